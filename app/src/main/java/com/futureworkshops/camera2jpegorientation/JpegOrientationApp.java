@@ -1,7 +1,14 @@
 package com.futureworkshops.camera2jpegorientation;
 
 import android.app.Application;
-import android.util.Pair;
+
+import com.futureworkshops.camera2jpegorientation.widget.camera.CameraTrace;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CapturePersister;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureStore;
+import com.futureworkshops.camera2jpegorientation.widget.camera.JpegSaver;
+import com.futureworkshops.camera2jpegorientation.widget.camera.ResourceGovernor;
+
+import java.io.File;
 
 /**
  * Created by stelian on 12/03/2018.
@@ -10,20 +17,62 @@ import android.util.Pair;
 public class JpegOrientationApp extends Application {
     
     /**
-     * Inappropriate way of saving the camera information to make it accessible between activities.
+     * Number of captures kept by the {@link CaptureStore}.
+     */
+    private static final int MAX_CAPTURES = 8;
+    
+    /**
+     * Maximum number of bytes the {@link CaptureStore} keeps in memory before spilling to disk.
+     */
+    private static final long CAPTURE_MEMORY_BUDGET = 48 * 1024 * 1024;
+    
+    private static final String CAPTURE_SPILL_DIR = "captures";
+    
+    /**
+     * Number of saved captures listed in the gallery; older ones are deleted.
+     */
+    private static final int MAX_SAVED_CAPTURES = 1000;
+    
+    /**
+     * Keeps the latest captures off the Java heap so they can be passed between activities.
+     */
+    private CaptureStore captureStore;
+    
+    /**
+     * Saves captures to disk in the background as soon as they are taken.
      */
-    private Pair<byte[], Integer> lastCameraData;
+    private CapturePersister capturePersister;
+    
+    /**
+     * Hands memory trim levels to the captures, the camera and the viewer.
+     */
+    private final ResourceGovernor resourceGovernor = new ResourceGovernor();
     
     @Override
     public void onCreate() {
         super.onCreate();
+        
+        // trace markers only in debug builds, see CameraTrace for exporting metrics
+        CameraTrace.setTracingEnabled(BuildConfig.DEBUG);
+        
+        captureStore = new CaptureStore(new File(getCacheDir(), CAPTURE_SPILL_DIR),
+            MAX_CAPTURES, CAPTURE_MEMORY_BUDGET);
+        capturePersister = new CapturePersister(new JpegSaver(this), MAX_SAVED_CAPTURES);
+        
+        // Glide registers its own callbacks to trim the bitmap pool and memory cache
+        registerComponentCallbacks(resourceGovernor);
+        resourceGovernor.register(captureStore);
+    }
+    
+    public CaptureStore getCaptureStore() {
+        return captureStore;
     }
     
-    public synchronized void setCameraData(Pair<byte[], Integer> cameraData) {
-        lastCameraData = cameraData;
+    public CapturePersister getCapturePersister() {
+        return capturePersister;
     }
     
-    public synchronized Pair<byte[], Integer> getLastCameraData() {
-        return lastCameraData;
+    public ResourceGovernor getResourceGovernor() {
+        return resourceGovernor;
     }
 }
@@ -0,0 +1,115 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.TransformationUtils;
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+import com.futureworkshops.camera2jpegorientation.orientation.PixelRotator;
+import com.futureworkshops.camera2jpegorientation.orientation.Rotations;
+import com.futureworkshops.camera2jpegorientation.widget.camera.ResourceGovernor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rotates decoded bitmaps through their pixels with a {@link PixelRotator} instead of drawing
+ * them into a copy with a rotation matrix.
+ * <p>
+ * The image is rotated in bands of rows: a band is read from the decoded bitmap, rotated across
+ * the cores and written straight to its place in a bitmap from the {@link BitmapPool}. Only the
+ * destination is as large as the image, like with a matrix; the two band arrays are a few
+ * megabytes, kept for the next image and dropped when memory runs low.
+ * </p>
+ * Bitmaps that are not opaque {@link Bitmap.Config#ARGB_8888} are rotated with a matrix, since
+ * reading and writing color ints would lose precision on translucent pixels. Thread safe,
+ * concurrent rotations allocate their own bands.
+ */
+class BitmapRotator implements ResourceGovernor.Trimmable {
+
+    /**
+     * Pixels in a band, several times {@link PixelRotator#PARALLEL_THRESHOLD} so each band is
+     * still split across the cores.
+     */
+    private static final int BAND_PIXELS = 4 * PixelRotator.PARALLEL_THRESHOLD;
+
+    private final BitmapPool bitmapPool;
+    private final PixelRotator pixelRotator;
+
+    private final AtomicReference<int[]> band = new AtomicReference<>();
+    private final AtomicReference<int[]> rotatedBand = new AtomicReference<>();
+
+    BitmapRotator(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+        // ForkJoinPool.commonPool() needs API 24
+        final int threads = Runtime.getRuntime().availableProcessors();
+        this.pixelRotator = new PixelRotator(new ForkJoinPool(threads));
+    }
+
+    /**
+     * @param degrees the clockwise rotation
+     * @return {@code bitmap} if there is nothing to rotate, otherwise a rotated bitmap from the pool
+     */
+    @NonNull
+    Bitmap rotate(@NonNull Bitmap bitmap, int degrees) {
+        final int quadrant = Rotations.quadrant(degrees);
+        if (quadrant == 0) {
+            return bitmap;
+        }
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888 || bitmap.hasAlpha()) {
+            return TransformationUtils.rotateImageExif(bitmapPool, bitmap,
+                ExifOrientation.degreesToExif(degrees));
+        }
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int bandRows = Math.min(height, Math.max(1, BAND_PIXELS / width));
+        final int[] source = acquire(band, bandRows * width);
+        final int[] target = acquire(rotatedBand, bandRows * width);
+        try {
+            // every pixel is written, no need to clear it
+            final Bitmap rotated = bitmapPool.getDirty(PixelRotator.rotatedWidth(width, height, degrees),
+                PixelRotator.rotatedHeight(width, height, degrees), Bitmap.Config.ARGB_8888);
+            for (int top = 0; top < height; top += bandRows) {
+                final int rows = Math.min(bandRows, height - top);
+                bitmap.getPixels(source, 0, width, 0, top, width, rows);
+                pixelRotator.rotate(source, width, rows, degrees, target);
+
+                final int bandWidth = PixelRotator.rotatedWidth(width, rows, degrees);
+                final int bandHeight = PixelRotator.rotatedHeight(width, rows, degrees);
+                switch (quadrant) {
+                    case 1:
+                        // the last source rows are the first columns
+                        rotated.setPixels(target, 0, bandWidth, height - top - rows, 0, bandWidth, bandHeight);
+                        break;
+                    case 2:
+                        rotated.setPixels(target, 0, bandWidth, 0, height - top - rows, bandWidth, bandHeight);
+                        break;
+                    default:
+                        rotated.setPixels(target, 0, bandWidth, top, 0, bandWidth, bandHeight);
+                        break;
+                }
+            }
+            rotated.setHasAlpha(false);
+            return rotated;
+        } finally {
+            band.set(source);
+            rotatedBand.set(target);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            band.set(null);
+            rotatedBand.set(null);
+        }
+    }
+
+    private static int[] acquire(AtomicReference<int[]> cached, int size) {
+        final int[] array = cached.getAndSet(null);
+        return array != null && array.length >= size ? array : new int[size];
+    }
+}
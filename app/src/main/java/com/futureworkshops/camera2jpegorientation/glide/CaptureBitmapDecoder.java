@@ -0,0 +1,99 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.load.ImageHeaderParser;
+import com.bumptech.glide.load.ImageHeaderParserUtils;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.ArrayPool;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+import com.bumptech.glide.load.resource.bitmap.Downsampler;
+import com.bumptech.glide.request.target.Target;
+import com.bumptech.glide.util.ByteBufferUtil;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CameraTrace;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureHandle;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes an in-memory capture straight from its buffer, with downsampling and the capture
+ * rotation applied.
+ * <p>
+ * The {@link Downsampler} already honours a valid EXIF orientation. Most camera devices don't set
+ * one, so in that case the rotation stored with the capture is applied by a {@link BitmapRotator},
+ * reusing bitmaps from the {@link BitmapPool}.
+ * </p>
+ */
+public class CaptureBitmapDecoder implements ResourceDecoder<CaptureHandle, Bitmap> {
+
+    private static final int EXIF_ORIENTATION_NORMAL = 1;
+
+    private final Downsampler downsampler;
+    private final List<ImageHeaderParser> parsers;
+    private final BitmapPool bitmapPool;
+    private final ArrayPool arrayPool;
+    private final BitmapRotator bitmapRotator;
+
+    CaptureBitmapDecoder(Downsampler downsampler, List<ImageHeaderParser> parsers,
+                         BitmapPool bitmapPool, ArrayPool arrayPool, BitmapRotator bitmapRotator) {
+        this.downsampler = downsampler;
+        this.parsers = parsers;
+        this.bitmapPool = bitmapPool;
+        this.arrayPool = arrayPool;
+        this.bitmapRotator = bitmapRotator;
+    }
+
+    @Override
+    public boolean handles(@NonNull CaptureHandle source, @NonNull Options options) {
+        return true;
+    }
+
+    @Override
+    public Resource<Bitmap> decode(@NonNull CaptureHandle source, int width, int height,
+                                   @NonNull Options options) throws IOException {
+        final long section = CameraTrace.beginSection(CameraTrace.DECODE);
+        try {
+            return decodeRotated(source, width, height, options);
+        } finally {
+            CameraTrace.endSection(CameraTrace.DECODE, section);
+        }
+    }
+
+    private Resource<Bitmap> decodeRotated(CaptureHandle source, int width, int height,
+                                           Options options) throws IOException {
+        final int exifOrientation = ImageHeaderParserUtils.getOrientation(parsers,
+            ByteBufferUtil.toStream(source.getData()), arrayPool);
+        final boolean applyRotation = exifOrientation <= EXIF_ORIENTATION_NORMAL &&
+            source.getRotation() != 0;
+
+        // sample against the size of the rotated image
+        int targetWidth = width;
+        int targetHeight = height;
+        if (applyRotation && source.getRotation() % 180 != 0 &&
+            width != Target.SIZE_ORIGINAL && height != Target.SIZE_ORIGINAL) {
+            targetWidth = height;
+            targetHeight = width;
+        }
+
+        final Resource<Bitmap> decoded = downsampler.decode(ByteBufferUtil.toStream(source.getData()),
+            targetWidth, targetHeight, options);
+        if (decoded == null || !applyRotation) {
+            return decoded;
+        }
+
+        final Bitmap bitmap = decoded.get();
+        final Bitmap rotated = bitmapRotator.rotate(bitmap, source.getRotation());
+        if (rotated == bitmap) {
+            return decoded;
+        }
+
+        // the rotated copy comes from the pool, give the original back
+        decoded.recycle();
+        return BitmapResource.obtain(rotated, bitmapPool);
+    }
+}
@@ -0,0 +1,99 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureHandle;
+
+/**
+ * Lets Glide load captures kept in memory by the
+ * {@link com.futureworkshops.camera2jpegorientation.widget.camera.CaptureStore}.
+ * <p>
+ * There is nothing to fetch: the data is the capture itself, decoded by
+ * {@link CaptureBitmapDecoder}. The fetcher holds its own reference to the capture so the
+ * caller can release its handle while a load is in progress.
+ * </p>
+ */
+public class CaptureModelLoader implements ModelLoader<CaptureHandle, CaptureHandle> {
+
+    @Override
+    public LoadData<CaptureHandle> buildLoadData(@NonNull CaptureHandle model, int width, int height,
+                                                 @NonNull Options options) {
+        // handles are created per screen, so the cache key is based on the capture itself
+        return new LoadData<>(new ObjectKey("capture:" + model.getId() + ":" + model.getRotation()),
+            new CaptureFetcher(model));
+    }
+
+    @Override
+    public boolean handles(@NonNull CaptureHandle model) {
+        return true;
+    }
+
+    private static class CaptureFetcher implements DataFetcher<CaptureHandle> {
+
+        private final CaptureHandle model;
+        private CaptureHandle data;
+
+        CaptureFetcher(CaptureHandle model) {
+            this.model = model;
+        }
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super CaptureHandle> callback) {
+            try {
+                data = model.duplicate();
+                callback.onDataReady(data);
+            } catch (IllegalStateException e) {
+                // the handle was released before the load started
+                callback.onLoadFailed(e);
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            if (data != null) {
+                data.release();
+                data = null;
+            }
+        }
+
+        @Override
+        public void cancel() {
+            // nothing to cancel, the data is already in memory
+        }
+
+        @NonNull
+        @Override
+        public Class<CaptureHandle> getDataClass() {
+            return CaptureHandle.class;
+        }
+
+        @NonNull
+        @Override
+        public DataSource getDataSource() {
+            // the capture already lives in memory; this also keeps Glide from writing it to the
+            // disk cache
+            return DataSource.MEMORY_CACHE;
+        }
+    }
+
+    public static class Factory implements ModelLoaderFactory<CaptureHandle, CaptureHandle> {
+
+        @Override
+        public ModelLoader<CaptureHandle, CaptureHandle> build(MultiModelLoaderFactory multiFactory) {
+            return new CaptureModelLoader();
+        }
+
+        @Override
+        public void teardown() {
+            // nothing to release
+        }
+    }
+}
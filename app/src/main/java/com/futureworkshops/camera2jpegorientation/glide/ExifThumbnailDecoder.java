@@ -0,0 +1,107 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
+
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+import com.bumptech.glide.request.target.Target;
+import com.futureworkshops.camera2jpegorientation.orientation.PixelRotator;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CameraTrace;
+import com.futureworkshops.camera2jpegorientation.widget.camera.SavedCapture;
+
+import java.io.IOException;
+
+/**
+ * Decodes the thumbnail embedded in the EXIF data of a saved capture, rotated upright, when it
+ * is large enough for the requested size.
+ * <p>
+ * Camera JPEGs usually carry a small JPEG thumbnail in their APP1 segment: decoding it takes a
+ * fraction of the time needed to downsample the full image. For larger sizes, or files without
+ * a thumbnail, this decoder returns {@code null} and Glide falls back to
+ * {@link SavedCaptureDecoder}.
+ * </p>
+ */
+public class ExifThumbnailDecoder implements ResourceDecoder<SavedCapture, Bitmap> {
+
+    /**
+     * The thumbnail is used if it covers at least this fraction of the requested size; gallery
+     * cells are cropped from it, so a slight upscale isn't noticeable.
+     */
+    private static final float MIN_SCALE = 0.5f;
+
+    private final BitmapPool bitmapPool;
+    private final BitmapRotator bitmapRotator;
+
+    ExifThumbnailDecoder(BitmapPool bitmapPool, BitmapRotator bitmapRotator) {
+        this.bitmapPool = bitmapPool;
+        this.bitmapRotator = bitmapRotator;
+    }
+
+    @Override
+    public boolean handles(@NonNull SavedCapture source, @NonNull Options options) {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Resource<Bitmap> decode(@NonNull SavedCapture source, int width, int height,
+                                   @NonNull Options options) throws IOException {
+        if (width == Target.SIZE_ORIGINAL || height == Target.SIZE_ORIGINAL) {
+            return null;
+        }
+
+        final long section = CameraTrace.beginSection(CameraTrace.DECODE);
+        try {
+            final ExifInterface exif = new ExifInterface(source.getFile().getAbsolutePath());
+            final byte[] thumbnail = exif.getThumbnail();
+            if (thumbnail == null) {
+                // no thumbnail, or an uncompressed one
+                return null;
+            }
+
+            final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+            decodeOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, decodeOptions);
+            final int degrees = exif.getRotationDegrees();
+            final int thumbnailWidth = decodeOptions.outWidth;
+            final int thumbnailHeight = decodeOptions.outHeight;
+            if (thumbnailWidth <= 0 || thumbnailHeight <= 0 ||
+                PixelRotator.rotatedWidth(thumbnailWidth, thumbnailHeight, degrees) < width * MIN_SCALE ||
+                PixelRotator.rotatedHeight(thumbnailWidth, thumbnailHeight, degrees) < height * MIN_SCALE) {
+                return null;
+            }
+
+            decodeOptions.inJustDecodeBounds = false;
+            decodeOptions.inMutable = true;
+            decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            decodeOptions.inBitmap = bitmapPool.getDirty(thumbnailWidth, thumbnailHeight,
+                Bitmap.Config.ARGB_8888);
+            Bitmap decoded;
+            try {
+                decoded = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, decodeOptions);
+            } catch (IllegalArgumentException e) {
+                // the pooled bitmap could not be reused
+                decoded = null;
+            }
+            if (decoded == null) {
+                bitmapPool.put(decodeOptions.inBitmap);
+                return null;
+            }
+
+            final Bitmap rotated = bitmapRotator.rotate(decoded, degrees);
+            if (rotated != decoded) {
+                bitmapPool.put(decoded);
+            }
+            return BitmapResource.obtain(rotated, bitmapPool);
+        } finally {
+            CameraTrace.endSection(CameraTrace.DECODE, section);
+        }
+    }
+}
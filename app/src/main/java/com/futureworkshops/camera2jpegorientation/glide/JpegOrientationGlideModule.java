@@ -0,0 +1,57 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.Registry;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.resource.bitmap.Downsampler;
+import com.bumptech.glide.module.AppGlideModule;
+import com.futureworkshops.camera2jpegorientation.JpegOrientationApp;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureHandle;
+import com.futureworkshops.camera2jpegorientation.widget.camera.SavedCapture;
+
+/**
+ * Registers the components that let Glide display in-memory and saved captures.
+ * <p>
+ * {@code Glide.with(context).load(captureHandle)} decodes the capture from memory, using Glide's
+ * bitmap pool and memory cache, with the capture rotation applied.
+ * </p>
+ * <p>
+ * {@code Glide.with(context).load(savedCapture)} decodes a saved capture from its EXIF thumbnail
+ * when it is large enough, from the file otherwise. Decoded thumbnails go through Glide's memory
+ * cache and, with {@code DiskCacheStrategy.RESOURCE}, its disk cache.
+ * </p>
+ */
+@GlideModule
+public final class JpegOrientationGlideModule extends AppGlideModule {
+
+    @Override
+    public void registerComponents(@NonNull Context context, @NonNull Glide glide,
+                                   @NonNull Registry registry) {
+        final Downsampler downsampler = new Downsampler(registry.getImageHeaderParsers(),
+            context.getResources().getDisplayMetrics(), glide.getBitmapPool(), glide.getArrayPool());
+        final BitmapRotator bitmapRotator = new BitmapRotator(glide.getBitmapPool());
+        ((JpegOrientationApp) context.getApplicationContext()).getResourceGovernor()
+            .register(bitmapRotator);
+
+        registry
+            .append(CaptureHandle.class, CaptureHandle.class, new CaptureModelLoader.Factory())
+            .append(Registry.BUCKET_BITMAP, CaptureHandle.class, Bitmap.class,
+                new CaptureBitmapDecoder(downsampler, registry.getImageHeaderParsers(),
+                    glide.getBitmapPool(), glide.getArrayPool(), bitmapRotator))
+            .append(SavedCapture.class, SavedCapture.class, new SavedCaptureModelLoader.Factory())
+            // tried in order, the thumbnail decoder gives up when the thumbnail is too small
+            .append(Registry.BUCKET_BITMAP, SavedCapture.class, Bitmap.class,
+                new ExifThumbnailDecoder(glide.getBitmapPool(), bitmapRotator))
+            .append(Registry.BUCKET_BITMAP, SavedCapture.class, Bitmap.class,
+                new SavedCaptureDecoder(downsampler));
+    }
+
+    @Override
+    public boolean isManifestParsingEnabled() {
+        return false;
+    }
+}
@@ -0,0 +1,46 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.resource.bitmap.Downsampler;
+import com.bumptech.glide.util.ByteBufferUtil;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CameraTrace;
+import com.futureworkshops.camera2jpegorientation.widget.camera.SavedCapture;
+
+import java.io.IOException;
+
+/**
+ * Decodes a saved capture from its memory-mapped file, downsampled to the requested size.
+ * <p>
+ * The saved files always carry the EXIF orientation, which the {@link Downsampler} applies.
+ * </p>
+ */
+public class SavedCaptureDecoder implements ResourceDecoder<SavedCapture, Bitmap> {
+
+    private final Downsampler downsampler;
+
+    SavedCaptureDecoder(Downsampler downsampler) {
+        this.downsampler = downsampler;
+    }
+
+    @Override
+    public boolean handles(@NonNull SavedCapture source, @NonNull Options options) {
+        return true;
+    }
+
+    @Override
+    public Resource<Bitmap> decode(@NonNull SavedCapture source, int width, int height,
+                                   @NonNull Options options) throws IOException {
+        final long section = CameraTrace.beginSection(CameraTrace.DECODE);
+        try {
+            return downsampler.decode(ByteBufferUtil.toStream(ByteBufferUtil.fromFile(source.getFile())),
+                width, height, options);
+        } finally {
+            CameraTrace.endSection(CameraTrace.DECODE, section);
+        }
+    }
+}
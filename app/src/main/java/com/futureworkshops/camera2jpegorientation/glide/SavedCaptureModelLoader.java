@@ -0,0 +1,89 @@
+package com.futureworkshops.camera2jpegorientation.glide;
+
+import android.support.annotation.NonNull;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+import com.futureworkshops.camera2jpegorientation.widget.camera.SavedCapture;
+
+/**
+ * Lets Glide load the captures saved by the
+ * {@link com.futureworkshops.camera2jpegorientation.widget.camera.CapturePersister}.
+ * <p>
+ * The data is the capture itself, decoded by {@link ExifThumbnailDecoder} or
+ * {@link SavedCaptureDecoder}. The cache key includes the checksum of the file, so the
+ * thumbnails kept in Glide's disk cache stay valid across launches and never outlive a file
+ * that was replaced.
+ * </p>
+ */
+public class SavedCaptureModelLoader implements ModelLoader<SavedCapture, SavedCapture> {
+
+    @Override
+    public LoadData<SavedCapture> buildLoadData(@NonNull SavedCapture model, int width, int height,
+                                                @NonNull Options options) {
+        final String key = "saved:" + model.getId() + ":" + model.getEntry().getChecksum();
+        return new LoadData<>(new ObjectKey(key), new SavedCaptureFetcher(model));
+    }
+
+    @Override
+    public boolean handles(@NonNull SavedCapture model) {
+        return true;
+    }
+
+    private static class SavedCaptureFetcher implements DataFetcher<SavedCapture> {
+
+        private final SavedCapture model;
+
+        SavedCaptureFetcher(SavedCapture model) {
+            this.model = model;
+        }
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super SavedCapture> callback) {
+            // the decoders read the file themselves
+            callback.onDataReady(model);
+        }
+
+        @Override
+        public void cleanup() {
+            // nothing to release
+        }
+
+        @Override
+        public void cancel() {
+            // nothing to cancel
+        }
+
+        @NonNull
+        @Override
+        public Class<SavedCapture> getDataClass() {
+            return SavedCapture.class;
+        }
+
+        @NonNull
+        @Override
+        public DataSource getDataSource() {
+            // a local file: Glide keeps the decoded thumbnails in its disk cache, not the source
+            return DataSource.LOCAL;
+        }
+    }
+
+    public static class Factory implements ModelLoaderFactory<SavedCapture, SavedCapture> {
+
+        @Override
+        public ModelLoader<SavedCapture, SavedCapture> build(MultiModelLoaderFactory multiFactory) {
+            return new SavedCaptureModelLoader();
+        }
+
+        @Override
+        public void teardown() {
+            // nothing to release
+        }
+    }
+}
@@ -1,24 +1,29 @@
 package com.futureworkshops.camera2jpegorientation.presentation.camera;
 
-import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
-import android.util.Pair;
 import android.view.HapticFeedbackConstants;
 import android.view.View;
+import android.widget.ImageView;
 
+import com.bumptech.glide.Glide;
+import com.futureworkshops.camera2jpegorientation.BuildConfig;
 import com.futureworkshops.camera2jpegorientation.JpegOrientationApp;
 import com.futureworkshops.camera2jpegorientation.R;
 import com.futureworkshops.camera2jpegorientation.presentation.common.BaseActivity;
+import com.futureworkshops.camera2jpegorientation.presentation.gallery.GalleryActivity;
 import com.futureworkshops.camera2jpegorientation.presentation.viewer.JpegViewerActivity;
 import com.futureworkshops.camera2jpegorientation.widget.camera.CameraParams;
 import com.futureworkshops.camera2jpegorientation.widget.camera.CameraView;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureHandle;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CapturedImage;
+import com.futureworkshops.camera2jpegorientation.widget.camera.ResourceGovernor;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.schedulers.Schedulers;
+import io.reactivex.disposables.CompositeDisposable;
 
 public class CameraActivity extends BaseActivity {
     
@@ -27,6 +32,14 @@ public class CameraActivity extends BaseActivity {
     @BindView(R.id.cameraView)
     CameraView cameraView;
     
+    @BindView(R.id.reviewThumbnail)
+    ImageView reviewThumbnail;
+    
+    private final ResourceGovernor.Trimmable cameraTrimmable = level -> cameraView.trimMemory(level);
+    
+    // disposing a capture cancels it, and keeps its images away from a destroyed activity
+    private final CompositeDisposable captureDisposables = new CompositeDisposable();
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -36,6 +49,8 @@ public class CameraActivity extends BaseActivity {
         
         //  setup camera
         setupCamera();
+        
+        getResourceGovernor().register(cameraTrimmable);
     }
     
     @Override
@@ -58,32 +73,85 @@ public class CameraActivity extends BaseActivity {
         }
     }
     
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        
+        captureDisposables.dispose();
+        ((JpegOrientationApp) getApplicationContext()).getCapturePersister().setWriteListener(null);
+        getResourceGovernor().unregister(cameraTrimmable);
+    }
+    
     @OnClick(R.id.shutter)
     void shuterBtnClicked(View v) {
         v.performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
         
         // TODO: 12/03/2018 take picture
-        cameraView.takePicture()
-            .subscribeOn(Schedulers.io())
-            .observeOn(AndroidSchedulers.mainThread())
-            .subscribe(pair -> {
-                    handlePhotoData(pair);
+        captureDisposables.add(cameraView.takePictureWithThumbnail(AndroidSchedulers.mainThread())
+            .subscribe(image -> {
+                    if (image.isThumbnail()) {
+                        showReviewThumbnail(image);
+                    } else {
+                        handlePhotoData(image);
+                    }
                 },
                 throwable -> {
                     Log.e(TAG, "shuterBtnClicked: ", throwable);
-                });
+                }));
+    }
+    
+    @OnClick(R.id.reviewThumbnail)
+    void reviewThumbnailClicked() {
+        startActivity(GalleryActivity.createIntent(this));
     }
     
-    private void handlePhotoData(Pair<byte[], Integer> pair) {
-        ((JpegOrientationApp)getApplicationContext()).setCameraData(pair);
+    private void showReviewThumbnail(CapturedImage thumbnail) {
+        // the view is square so rotating it rotates the image in place
+        reviewThumbnail.setRotation(thumbnail.getRotation());
+        reviewThumbnail.setVisibility(View.VISIBLE);
+        Glide.with(this)
+            .load(thumbnail.getJpeg())
+            .into(reviewThumbnail);
+        thumbnail.close();
+    }
+    
+    private void handlePhotoData(CapturedImage image) {
+        final JpegOrientationApp app = (JpegOrientationApp) getApplicationContext();
+        final long captureId;
+        try {
+            // copied straight from the camera buffer, which is returned right after
+            captureId = app.getCaptureStore().put(image.getBuffer(), image.getRotation());
+        } finally {
+            image.close();
+        }
+        
+        // start writing the file right away, the viewer picks it up when needed
+        final CaptureHandle handle = app.getCaptureStore().acquire(captureId);
+        if (handle != null) {
+            app.getCapturePersister().persist(handle);
+            handle.release();
+        }
     
-        // TODO: 12/03/2018 launch viewer activity
-        startActivity(new Intent(this, JpegViewerActivity.class));
+        startActivity(JpegViewerActivity.createIntent(this, captureId));
         
     }
     
     private void setupCamera() {
         cameraView.setFacing(CameraParams.FACING_BACK);
         cameraView.setFlash(CameraParams.FLASH_OFF);
+        
+        // show a review thumbnail while the full image is being encoded
+        cameraView.setReviewThumbnailsEnabled(true);
+        
+        // lets testers spot throttled or overloaded devices
+        cameraView.setPerformanceHudEnabled(BuildConfig.DEBUG);
+        
+        // lower the JPEG quality when storage can't keep up
+        ((JpegOrientationApp) getApplicationContext()).getCapturePersister()
+            .setWriteListener(cameraView.getJpegQualityPolicy());
+    }
+    
+    private ResourceGovernor getResourceGovernor() {
+        return ((JpegOrientationApp) getApplicationContext()).getResourceGovernor();
     }
 }
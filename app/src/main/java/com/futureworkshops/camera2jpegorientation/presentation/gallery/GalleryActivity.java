@@ -0,0 +1,116 @@
+package com.futureworkshops.camera2jpegorientation.presentation.gallery;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.integration.recyclerview.RecyclerViewPreloader;
+import com.bumptech.glide.util.FixedPreloadSizeProvider;
+import com.futureworkshops.camera2jpegorientation.JpegOrientationApp;
+import com.futureworkshops.camera2jpegorientation.R;
+import com.futureworkshops.camera2jpegorientation.presentation.common.BaseActivity;
+import com.futureworkshops.camera2jpegorientation.widget.camera.SavedCapture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import butterknife.BindView;
+import butterknife.ButterKnife;
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Grid of the saved captures, newest first.
+ * <p>
+ * The list comes from the capture index, without opening the files. Thumbnails are decoded by
+ * Glide off the main thread at the size of a cell, from the EXIF thumbnail when possible; they
+ * are kept in Glide's memory cache and disk cache and preloaded a few rows ahead of the scroll
+ * direction, so binding a cell only starts a request.
+ * </p>
+ */
+public class GalleryActivity extends BaseActivity {
+    
+    private static final String TAG = GalleryActivity.class.getSimpleName();
+    
+    private static final int SPAN_COUNT = 3;
+    
+    /**
+     * Rows of thumbnails preloaded ahead of the scroll direction.
+     */
+    private static final int PRELOAD_ROWS = 4;
+    
+    @BindView(R.id.recyclerView)
+    RecyclerView recyclerView;
+    
+    @BindView(R.id.emptyView)
+    TextView emptyView;
+    
+    private GalleryAdapter adapter;
+    
+    private Disposable listDisposable = Disposables.disposed();
+    
+    public static Intent createIntent(Context context) {
+        return new Intent(context, GalleryActivity.class);
+    }
+    
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_gallery);
+        
+        ButterKnife.bind(this);
+        
+        setupToolbar(true);
+        
+        // thumbnails are decoded and cached at the size of a cell
+        final int cellSize = getResources().getDisplayMetrics().widthPixels / SPAN_COUNT;
+        final RequestManager requestManager = Glide.with(this);
+        adapter = new GalleryAdapter(requestManager, cellSize);
+        
+        recyclerView.setLayoutManager(new GridLayoutManager(this, SPAN_COUNT));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerViewPreloader<>(requestManager, adapter,
+            new FixedPreloadSizeProvider<>(cellSize, cellSize), SPAN_COUNT * PRELOAD_ROWS));
+        
+        loadCaptures();
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        listDisposable.dispose();
+    }
+    
+    private void loadCaptures() {
+        final JpegOrientationApp app = (JpegOrientationApp) getApplicationContext();
+        
+        listDisposable.dispose();
+        listDisposable = Single.fromFuture(app.getCapturePersister().listSaved())
+            .map(captures -> {
+                final List<SavedCapture> newestFirst = new ArrayList<>(captures);
+                Collections.reverse(newestFirst);
+                return newestFirst;
+            })
+            .subscribeOn(Schedulers.io())
+            .observeOn(AndroidSchedulers.mainThread())
+            .subscribe(this::showCaptures,
+                throwable -> Log.e(TAG, "failed to list the saved captures", throwable));
+    }
+    
+    private void showCaptures(List<SavedCapture> captures) {
+        adapter.setCaptures(captures);
+        emptyView.setVisibility(captures.isEmpty() ? View.VISIBLE : View.GONE);
+    }
+}
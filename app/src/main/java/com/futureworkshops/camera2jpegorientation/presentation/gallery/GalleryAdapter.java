@@ -0,0 +1,105 @@
+package com.futureworkshops.camera2jpegorientation.presentation.gallery;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.bumptech.glide.ListPreloader;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.RequestOptions;
+import com.futureworkshops.camera2jpegorientation.R;
+import com.futureworkshops.camera2jpegorientation.widget.camera.SavedCapture;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binds the thumbnails of the saved captures.
+ * <p>
+ * Cells and preloads use the same request, so a preloaded thumbnail is a memory cache hit once
+ * its cell is bound.
+ * </p>
+ */
+class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ThumbnailHolder>
+    implements ListPreloader.PreloadModelProvider<SavedCapture> {
+    
+    private final RequestManager requestManager;
+    private final RequestOptions thumbnailOptions;
+    
+    private List<SavedCapture> captures = Collections.emptyList();
+    
+    GalleryAdapter(RequestManager requestManager, int thumbnailSize) {
+        this.requestManager = requestManager;
+        // the decoded thumbnail is kept on disk, the captures themselves are already local files
+        this.thumbnailOptions = new RequestOptions()
+            .override(thumbnailSize)
+            .centerCrop()
+            .diskCacheStrategy(DiskCacheStrategy.RESOURCE);
+        setHasStableIds(true);
+    }
+    
+    void setCaptures(@NonNull List<SavedCapture> captures) {
+        this.captures = captures;
+        notifyDataSetChanged();
+    }
+    
+    @NonNull
+    @Override
+    public ThumbnailHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        final View view = LayoutInflater.from(parent.getContext())
+            .inflate(R.layout.item_gallery_capture, parent, false);
+        return new ThumbnailHolder(view);
+    }
+    
+    @Override
+    public void onBindViewHolder(@NonNull ThumbnailHolder holder, int position) {
+        getPreloadRequestBuilder(captures.get(position))
+            .into(holder.imageView);
+    }
+    
+    @Override
+    public void onViewRecycled(@NonNull ThumbnailHolder holder) {
+        // gives the bitmap back to the pool right away
+        requestManager.clear(holder.imageView);
+    }
+    
+    @Override
+    public int getItemCount() {
+        return captures.size();
+    }
+    
+    @Override
+    public long getItemId(int position) {
+        return captures.get(position).getId();
+    }
+    
+    @NonNull
+    @Override
+    public List<SavedCapture> getPreloadItems(int position) {
+        return Collections.singletonList(captures.get(position));
+    }
+    
+    @NonNull
+    @Override
+    public RequestBuilder<Drawable> getPreloadRequestBuilder(@NonNull SavedCapture capture) {
+        return requestManager
+            .load(capture)
+            .apply(thumbnailOptions);
+    }
+    
+    static class ThumbnailHolder extends RecyclerView.ViewHolder {
+        
+        final ImageView imageView;
+        
+        ThumbnailHolder(View itemView) {
+            super(itemView);
+            imageView = itemView.findViewById(R.id.thumbnail);
+        }
+    }
+}
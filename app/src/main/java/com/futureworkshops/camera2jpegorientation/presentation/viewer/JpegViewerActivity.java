@@ -1,38 +1,81 @@
 package com.futureworkshops.camera2jpegorientation.presentation.viewer;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.media.ExifInterface;
 import android.util.Log;
-import android.util.Pair;
 import android.view.HapticFeedbackConstants;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
 import com.futureworkshops.camera2jpegorientation.JpegOrientationApp;
 import com.futureworkshops.camera2jpegorientation.R;
 import com.futureworkshops.camera2jpegorientation.presentation.common.BaseActivity;
-import com.futureworkshops.camera2jpegorientation.widget.camera.JpegSaver;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CameraTrace;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureHandle;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CapturePersister;
+import com.futureworkshops.camera2jpegorientation.widget.camera.CaptureStore;
+import com.futureworkshops.camera2jpegorientation.widget.camera.ResourceGovernor;
 
-import java.io.File;
-import java.io.IOException;
+import java.util.concurrent.Future;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.schedulers.Schedulers;
 
 public class JpegViewerActivity extends BaseActivity {
     
+    private static final String EXTRA_CAPTURE_ID = "capture_id";
+    
     @BindView(R.id.imageView)
     ImageView imageView;
     
-    private JpegOrientationApp jpegOrientationApp;
-    private JpegSaver jpegSaver;
-    private String currentFilePath;
+    @BindView(R.id.tiledImageView)
+    TiledImageView tiledImageView;
+    
+    private Disposable fileDisposable = Disposables.disposed();
+    
+    /**
+     * Handle to the displayed capture; keeps it in the {@link CaptureStore} while we show it.
+     */
+    private CaptureHandle captureHandle;
+    
+    /**
+     * Shows the current image again, once its bitmap was dropped while the screen was hidden.
+     */
+    private Runnable redisplay;
+    private boolean bitmapDropped;
+    
+    private final ResourceGovernor.Trimmable bitmapTrimmable = level -> {
+        tiledImageView.onTrimMemory(level);
+        
+        // the full screen bitmap is only needed while visible; Glide recycles it into its pool
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && redisplay != null && !bitmapDropped) {
+            Glide.with(this).clear(imageView);
+            bitmapDropped = true;
+        }
+    };
+    
+    public static Intent createIntent(Context context, long captureId) {
+        return new Intent(context, JpegViewerActivity.class)
+            .putExtra(EXTRA_CAPTURE_ID, captureId);
+    }
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -43,28 +86,42 @@ public class JpegViewerActivity extends BaseActivity {
         
         setupToolbar(true);
         
-        jpegOrientationApp = (JpegOrientationApp) getApplicationContext();
-        jpegSaver = new JpegSaver(this);
+        final CaptureStore captureStore = ((JpegOrientationApp) getApplicationContext()).getCaptureStore();
+        captureHandle = captureStore.acquire(getIntent().getLongExtra(EXTRA_CAPTURE_ID, CaptureStore.NO_CAPTURE));
+        
+        getResourceGovernor().register(bitmapTrimmable);
     }
     
     @Override
-    protected void onPause() {
-        super.onPause();
-        deletePreviousFile();
+    protected void onStart() {
+        super.onStart();
+        
+        if (bitmapDropped) {
+            bitmapDropped = false;
+            redisplay.run();
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        fileDisposable.dispose();
+        tiledImageView.recycle();
+        getResourceGovernor().unregister(bitmapTrimmable);
+        
+        if (captureHandle != null) {
+            // the file is kept for the gallery
+            captureHandle.release();
+            captureHandle = null;
+        }
     }
     
     @OnClick(R.id.decodeByteArrayBtn)
     void onDecodeByteArrayClicked(View v) {
         v.performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
         
-        final Pair<byte[], Integer> cameraData = jpegOrientationApp.getLastCameraData();
-        
-        if (cameraData != null) {
-            final Bitmap bitmap = BitmapFactory.decodeByteArray(cameraData.first,
-                0, cameraData.first.length);
-            
-            imageView.setScaleType(ScaleType.FIT_CENTER);   //required
-            imageView.setImageBitmap(bitmap);
+        if (captureHandle != null) {
+            showCapture();
         }
         
     }
@@ -73,66 +130,108 @@ public class JpegViewerActivity extends BaseActivity {
     void onDecodeFileClicked(View v) {
         v.performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
         
-        // delete previous file
-        deletePreviousFile();
+        if (captureHandle != null) {
+            final int traceCookie = (int) captureHandle.getId();
+            CameraTrace.beginAsync(CameraTrace.DISPLAY, traceCookie);
+            
+            // the file is normally saved by the time we get here, otherwise this waits for it
+            final Future<String> file = getCapturePersister().persist(captureHandle);
+            
+            fileDisposable.dispose();
+            fileDisposable = Single.fromFuture(file)
+                .doOnSuccess(path -> {
+                    ExifInterface exifInterface = new ExifInterface(path);
+                    int exifRotation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+                    Log.d("JpegViewerActivity", "current exif orientation: " + String.valueOf(exifRotation));
+                })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(path -> showFile(path, traceCookie),
+                    throwable -> {
+                        CameraTrace.endAsync(CameraTrace.DISPLAY, traceCookie);
+                        Log.e("JpegViewerActivity", "failed to save capture", throwable);
+                    });
+        }
+    }
+    
+    private void showCapture() {
+        tiledImageView.recycle();
+        tiledImageView.setVisibility(View.GONE);
+        imageView.setVisibility(View.VISIBLE);
+        imageView.setScaleType(ScaleType.FIT_CENTER);   //required
         
-        final Pair<byte[], Integer> cameraData = jpegOrientationApp.getLastCameraData();
+        final int traceCookie = (int) captureHandle.getId();
+        CameraTrace.beginAsync(CameraTrace.DISPLAY, traceCookie);
         
-        if (cameraData != null) {
-            String fileName = String.valueOf(System.currentTimeMillis()) + ".jpeg";
-            currentFilePath = jpegSaver
-                .saveTempJpeg(cameraData.first, fileName, cameraData.second);
-            
-            try {
-                ExifInterface exifInterface = new ExifInterface(currentFilePath);
-                int exifRotation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-                Log.d("JpegViewerActivity", "current exif orientation: " + String.valueOf(exifRotation));
-                
-                // automatically reads EXIF and rotates image
-                Glide.with(this)
-                    .load(currentFilePath)
-                    .into(imageView);
-//
-                // not really working
-//                Picasso.get()
-//                    .load(currentFilePath)
-//                    .into(imageView);
-                
-//                final Bitmap bitmap = BitmapFactory.decodeFile(currentFilePath);
-//                imageView.setImageBitmap(bitmap);
-//
-//                // calculate the scale
-//                float scaleWidth = ((float) imageView.getWidth()) / bitmap.getWidth();
-//                float scaleHeight = ((float) imageView.getHeight()) / bitmap.getHeight();
-//                int angle = exifInterface.getRotationDegrees();
-//
-//                // swap dimensions if we need to rotate the image
-//                if (angle == 90 || angle == 270) {
-//                    float tmp = scaleWidth;
-//                    scaleWidth = scaleHeight;
-//                    scaleHeight = tmp;
-//                }
-//
-//                imageView.setScaleType(ImageView.ScaleType.MATRIX);   //required
-//                Matrix matrix = new Matrix();
-//
-//                matrix.preRotate((float) angle, imageView.getPivotX(), imageView.getPivotY());
-//                matrix.postScale(scaleWidth, scaleHeight);
-//
-//
-//                imageView.setImageMatrix(matrix);
-                
-            } catch (IOException e) {
-                e.printStackTrace();
+        // decodes the capture from memory, downsampled to the view and with the rotation applied
+        Glide.with(this)
+            .load(captureHandle)
+            .listener(new DisplayTraceListener(traceCookie))
+            .into(imageView);
+        redisplay = this::showCapture;
+        bitmapDropped = false;
+    }
+    
+    private void showFile(String path, int traceCookie) {
+        Glide.with(this).clear(imageView);
+        imageView.setVisibility(View.GONE);
+        tiledImageView.setVisibility(View.VISIBLE);
+        
+        // decodes the visible tiles only, at the zoom level, and reads the EXIF orientation itself
+        tiledImageView.setImageFile(path, Glide.get(this).getBitmapPool(), new TiledImageView.ImageListener() {
+            @Override
+            public void onImageShown() {
+                CameraTrace.endAsync(CameraTrace.DISPLAY, traceCookie);
             }
             
-        }
+            @Override
+            public void onImageFailed(@NonNull Exception e) {
+                CameraTrace.endAsync(CameraTrace.DISPLAY, traceCookie);
+                Log.e("JpegViewerActivity", "failed to decode capture", e);
+            }
+        });
+        // the preview is kept when the screen is hidden, only the tiles are dropped
+        redisplay = null;
+        bitmapDropped = false;
+//
+        // not really working
+//        Picasso.get()
+//            .load(path)
+//            .into(imageView);
+        
+    }
+    
+    private CapturePersister getCapturePersister() {
+        return ((JpegOrientationApp) getApplicationContext()).getCapturePersister();
+    }
+    
+    private ResourceGovernor getResourceGovernor() {
+        return ((JpegOrientationApp) getApplicationContext()).getResourceGovernor();
     }
     
-    private void deletePreviousFile() {
-        if (currentFilePath != null) {
-            final File file = new File(currentFilePath);
-            file.delete();
+    /**
+     * Ends the {@link CameraTrace#DISPLAY} event once Glide shows the image or gives up.
+     */
+    private static class DisplayTraceListener implements RequestListener<Drawable> {
+        
+        private final int traceCookie;
+        
+        DisplayTraceListener(int traceCookie) {
+            this.traceCookie = traceCookie;
+        }
+        
+        @Override
+        public boolean onLoadFailed(@Nullable GlideException e, Object model, Target<Drawable> target,
+                                    boolean isFirstResource) {
+            CameraTrace.endAsync(CameraTrace.DISPLAY, traceCookie);
+            return false;
+        }
+        
+        @Override
+        public boolean onResourceReady(Drawable resource, Object model, Target<Drawable> target,
+                                       DataSource dataSource, boolean isFirstResource) {
+            CameraTrace.endAsync(CameraTrace.DISPLAY, traceCookie);
+            return false;
         }
     }
     
@@ -0,0 +1,401 @@
+package com.futureworkshops.camera2jpegorientation.presentation.viewer;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+import com.futureworkshops.camera2jpegorientation.widget.camera.ResourceGovernor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes square tiles of a JPEG file with {@link BitmapRegionDecoder}, for {@link TiledImageView}.
+ * <p>
+ * Tiles are decoded on a small pool, each thread with its own decoder since a decoder handles one
+ * region at a time. They are all {@link #TILE_SIZE} pixels wide whatever their sample size, so
+ * evicted tiles go back to Glide's {@link BitmapPool} and are reused by the next decodes. The
+ * cache holds about twice the tiles needed to cover the view at the sharpest sample size, its
+ * memory depends on the view size only.
+ * </p>
+ * The tiles and pending decodes are accessed on the main thread only.
+ */
+class TileLoader implements ResourceGovernor.Trimmable {
+
+    private static final String TAG = TileLoader.class.getSimpleName();
+
+    /**
+     * Side of the decoded tiles, in pixels.
+     */
+    static final int TILE_SIZE = 256;
+
+    private static final int DECODER_THREADS = 2;
+
+    private static final Bitmap.Config TILE_CONFIG = Bitmap.Config.RGB_565;
+
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 2;
+
+    private final String path;
+    private final BitmapPool bitmapPool;
+    private final Listener listener;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor;
+
+    private final LruCache<Tile, Bitmap> tiles;
+    private final Map<Tile, Future<?>> pendingTiles = new HashMap<>();
+
+    /**
+     * Decoders not decoding a tile, guarded by itself.
+     */
+    private final ArrayDeque<BitmapRegionDecoder> idleDecoders = new ArrayDeque<>();
+    private boolean closed;
+
+    private int width;
+    private int height;
+
+    TileLoader(@NonNull String path, @NonNull BitmapPool bitmapPool, @NonNull Listener listener) {
+        this.path = path;
+        this.bitmapPool = bitmapPool;
+        this.listener = listener;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(DECODER_THREADS, runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            runnable.run();
+        }, "TileLoader-" + threadCount.incrementAndGet()));
+
+        this.tiles = new LruCache<Tile, Bitmap>(TILE_BYTES) {
+            @Override
+            protected int sizeOf(Tile key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Tile key, Bitmap oldValue, Bitmap newValue) {
+                // nothing draws the tile anymore, evictions happen on the main thread like drawing
+                if (oldValue != newValue) {
+                    TileLoader.this.bitmapPool.put(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Read the size and orientation of the image and decode a preview of the whole image.
+     * @param maxWidth  the width of the preview bounds, in the upright image
+     * @param maxHeight the height of the preview bounds, in the upright image
+     */
+    void open(int maxWidth, int maxHeight) {
+        executor.execute(() -> {
+            final BitmapRegionDecoder decoder;
+            final Bitmap preview;
+            final int orientation;
+            try (FileInputStream stream = new FileInputStream(path)) {
+                final FileChannel channel = stream.getChannel();
+                orientation = ExifOrientation.readOrientation(channel,
+                    ByteBuffer.allocate(ExifOrientation.HEADER_PROBE_SIZE));
+                channel.position(0);
+                decoder = BitmapRegionDecoder.newInstance(stream, false);
+            } catch (IOException e) {
+                mainHandler.post(() -> {
+                    if (!isClosed()) {
+                        listener.onImageFailed(e);
+                    }
+                });
+                return;
+            }
+
+            final int imageDegrees = ExifOrientation.exifToDegrees(orientation);
+            final int imageWidth = decoder.getWidth();
+            final int imageHeight = decoder.getHeight();
+            final boolean swapped = imageDegrees % 180 != 0;
+            final int sampleSize = previewSampleSize(imageWidth, imageHeight,
+                swapped ? maxHeight : maxWidth, swapped ? maxWidth : maxHeight);
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = TILE_CONFIG;
+            preview = decoder.decodeRegion(new Rect(0, 0, imageWidth, imageHeight), options);
+            releaseDecoder(decoder);
+
+            mainHandler.post(() -> {
+                if (isClosed()) {
+                    if (preview != null) {
+                        preview.recycle();
+                    }
+                    return;
+                }
+                width = imageWidth;
+                height = imageHeight;
+                if (preview == null) {
+                    listener.onImageFailed(new IOException("Could not decode " + path));
+                } else {
+                    listener.onImageOpened(imageWidth, imageHeight, imageDegrees, preview, sampleSize);
+                }
+            });
+        });
+    }
+
+    /**
+     * Size the cache for a view; call again when the view size changes.
+     */
+    void setViewSize(int viewWidth, int viewHeight) {
+        // tiles are shown between half and the whole of their size, plus a partial row and column
+        final int columns = 2 * viewWidth / TILE_SIZE + 2;
+        final int rows = 2 * viewHeight / TILE_SIZE + 2;
+        tiles.resize(Math.max(1, 2 * columns * rows) * TILE_BYTES);
+    }
+
+    /**
+     * @return the cached tile, or null if it isn't decoded yet
+     */
+    @Nullable
+    Bitmap get(@NonNull Tile tile) {
+        return tiles.get(tile);
+    }
+
+    /**
+     * Decode the missing tiles of a range, dropping the pending decodes outside of it.
+     * @param sampleSize the sample size of the tiles
+     */
+    void request(int sampleSize, int firstColumn, int firstRow, int lastColumn, int lastRow) {
+        // a fast pan or zoom would otherwise queue decodes of tiles that are gone
+        final Iterator<Map.Entry<Tile, Future<?>>> pending = pendingTiles.entrySet().iterator();
+        while (pending.hasNext()) {
+            final Map.Entry<Tile, Future<?>> entry = pending.next();
+            final Tile tile = entry.getKey();
+            if (tile.sampleSize != sampleSize || tile.column < firstColumn || tile.column > lastColumn ||
+                tile.row < firstRow || tile.row > lastRow) {
+                entry.getValue().cancel(false);
+                pending.remove();
+            }
+        }
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final Tile tile = new Tile(sampleSize, column, row);
+                if (tiles.get(tile) == null && !pendingTiles.containsKey(tile)) {
+                    pendingTiles.put(tile, executor.submit(() -> decode(tile)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the pending decodes.
+     */
+    void cancelRequests() {
+        for (Future<?> future : pendingTiles.values()) {
+            future.cancel(false);
+        }
+        pendingTiles.clear();
+    }
+
+    /**
+     * @return the part of the image covered by a tile, before its orientation
+     */
+    Rect getSourceRect(@NonNull Tile tile, @NonNull Rect rect) {
+        final int tileSourceSize = TILE_SIZE * tile.sampleSize;
+        rect.set(tile.column * tileSourceSize, tile.row * tileSourceSize,
+            Math.min(width, (tile.column + 1) * tileSourceSize),
+            Math.min(height, (tile.row + 1) * tileSourceSize));
+        return rect;
+    }
+
+    /**
+     * Stop decoding and release the tiles and decoders.
+     */
+    void close() {
+        synchronized (idleDecoders) {
+            closed = true;
+            for (BitmapRegionDecoder decoder : idleDecoders) {
+                decoder.recycle();
+            }
+            idleDecoders.clear();
+        }
+        cancelRequests();
+        tiles.evictAll();
+        executor.shutdown();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // the preview stays, the visible tiles are decoded again when needed
+            tiles.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            tiles.trimToSize(tiles.maxSize() / 2);
+        }
+    }
+
+    /**
+     * @return the largest sample size, a power of 2, decoding at least one pixel per pixel shown
+     * at {@code scale} screen pixels per image pixel
+     */
+    static int sampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the smallest sample size, a power of 2, fitting the image in the given bounds
+     */
+    private static int previewSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+        while (width / sampleSize > maxWidth || height / sampleSize > maxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void decode(Tile tile) {
+        final BitmapRegionDecoder decoder = acquireDecoder();
+        if (decoder == null) {
+            return;
+        }
+
+        final Rect rect = getSourceRect(tile, new Rect());
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = tile.sampleSize;
+        options.inPreferredConfig = TILE_CONFIG;
+        // the decoder draws the region at the top left of the pooled bitmap, keeping its size
+        options.inBitmap = bitmapPool.getDirty(TILE_SIZE, TILE_SIZE, TILE_CONFIG);
+        options.inMutable = true;
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "failed to decode " + rect, e);
+            bitmap = null;
+        } finally {
+            releaseDecoder(decoder);
+        }
+        if (bitmap == null) {
+            bitmapPool.put(options.inBitmap);
+        }
+
+        final Bitmap decoded = bitmap;
+        mainHandler.post(() -> {
+            if (pendingTiles.remove(tile) == null || isClosed()) {
+                // no longer wanted
+                if (decoded != null) {
+                    bitmapPool.put(decoded);
+                }
+                return;
+            }
+            if (decoded != null) {
+                tiles.put(tile, decoded);
+                listener.onTileLoaded();
+            }
+        });
+    }
+
+    @Nullable
+    private BitmapRegionDecoder acquireDecoder() {
+        synchronized (idleDecoders) {
+            if (closed) {
+                return null;
+            }
+            if (!idleDecoders.isEmpty()) {
+                return idleDecoders.poll();
+            }
+        }
+        // at most one decoder per thread, opened on first use
+        try {
+            return BitmapRegionDecoder.newInstance(path, false);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to open " + path, e);
+            return null;
+        }
+    }
+
+    private void releaseDecoder(BitmapRegionDecoder decoder) {
+        synchronized (idleDecoders) {
+            if (closed) {
+                decoder.recycle();
+            } else {
+                idleDecoders.add(decoder);
+            }
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (idleDecoders) {
+            return closed;
+        }
+    }
+
+    /**
+     * A tile of the image, in a grid of {@link #TILE_SIZE} pixels at its sample size.
+     */
+    static final class Tile {
+
+        final int sampleSize;
+        final int column;
+        final int row;
+
+        Tile(int sampleSize, int column, int row) {
+            this.sampleSize = sampleSize;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Tile)) {
+                return false;
+            }
+            final Tile tile = (Tile) o;
+            return sampleSize == tile.sampleSize && column == tile.column && row == tile.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (sampleSize * 31 + column) * 31 + row;
+        }
+    }
+
+    interface Listener {
+
+        /**
+         * The image was opened, called on the main thread.
+         * @param preview the whole image, before its orientation, decoded at {@code sampleSize}
+         */
+        void onImageOpened(int width, int height, int degrees, @NonNull Bitmap preview, int sampleSize);
+
+        void onImageFailed(@NonNull Exception e);
+
+        /**
+         * A requested tile is in the cache, called on the main thread.
+         */
+        void onTileLoaded();
+    }
+}
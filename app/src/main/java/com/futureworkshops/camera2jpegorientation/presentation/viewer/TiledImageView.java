@@ -0,0 +1,316 @@
+package com.futureworkshops.camera2jpegorientation.presentation.viewer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.futureworkshops.camera2jpegorientation.orientation.PixelRotator;
+import com.futureworkshops.camera2jpegorientation.orientation.Rotations;
+import com.futureworkshops.camera2jpegorientation.widget.camera.ResourceGovernor;
+
+/**
+ * Zoomable view of a JPEG file that decodes only the visible part of the image, at the
+ * resolution it is shown at.
+ * <p>
+ * A preview of the whole image no larger than the view is shown first. When zooming in, the
+ * visible region is mapped back to the file through the EXIF orientation and decoded in tiles
+ * by a {@link TileLoader}, at the largest sample size that still shows every decoded pixel.
+ * Tiles are drawn in the coordinates of the file with the orientation applied to the canvas,
+ * so they are never rotated pixel by pixel.
+ * </p>
+ * Pinch to zoom, drag to pan, double tap to switch between the whole image and full resolution.
+ */
+public class TiledImageView extends View implements TileLoader.Listener, ResourceGovernor.Trimmable {
+
+    /**
+     * Largest zoom, in screen pixels per image pixel.
+     */
+    private static final float MAX_SCALE = 2f;
+
+    /**
+     * Zoom of a double tap on the whole image.
+     */
+    private static final float DOUBLE_TAP_SCALE = 1f;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix orientationMatrix = new Matrix();
+    private final Rect imageRect = new Rect();
+    private final Rect tileRect = new Rect();
+    private final Rect decodedRect = new Rect();
+    private final int[] visibleRegion = new int[4];
+
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+
+    private TileLoader tileLoader;
+    private boolean openPending;
+    private ImageListener imageListener;
+
+    private Bitmap preview;
+    private int previewSampleSize;
+
+    private int imageWidth;
+    private int imageHeight;
+    private int degrees;
+
+    private float minScale;
+    private float scale;
+    private float translateX;
+    private float translateY;
+
+    private int sampleSize;
+    private int firstColumn;
+    private int lastColumn;
+    private int firstRow;
+    private int lastRow;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                translateX -= distanceX;
+                translateY -= distanceY;
+                updateTiles();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                final boolean zoomedIn = scale > minScale * 1.01f;
+                zoomTo(zoomedIn ? minScale : Math.max(minScale, DOUBLE_TAP_SCALE), e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Show a JPEG file, upright according to its EXIF orientation.
+     * @param bitmapPool the pool of the tile bitmaps
+     */
+    public void setImageFile(@NonNull String path, @NonNull BitmapPool bitmapPool,
+                             @Nullable ImageListener imageListener) {
+        recycle();
+        this.imageListener = imageListener;
+        tileLoader = new TileLoader(path, bitmapPool, this);
+        openPending = true;
+        if (getWidth() > 0 && getHeight() > 0) {
+            open();
+        }
+    }
+
+    /**
+     * Stop decoding and release the image.
+     */
+    public void recycle() {
+        if (tileLoader != null) {
+            tileLoader.close();
+            tileLoader = null;
+        }
+        if (preview != null) {
+            preview.recycle();
+            preview = null;
+        }
+        openPending = false;
+        imageListener = null;
+        invalidate();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (tileLoader != null) {
+            tileLoader.onTrimMemory(level);
+        }
+    }
+
+    @Override
+    public void onImageOpened(int width, int height, int degrees, @NonNull Bitmap preview, int sampleSize) {
+        this.imageWidth = width;
+        this.imageHeight = height;
+        this.degrees = degrees;
+        this.preview = preview;
+        this.previewSampleSize = sampleSize;
+
+        // from the file to the upright image
+        final RectF bounds = new RectF(0, 0, width, height);
+        orientationMatrix.setRotate(degrees);
+        orientationMatrix.mapRect(bounds);
+        orientationMatrix.postTranslate(-bounds.left, -bounds.top);
+        imageRect.set(0, 0, width, height);
+
+        resetScale();
+        if (imageListener != null) {
+            imageListener.onImageShown();
+        }
+    }
+
+    @Override
+    public void onImageFailed(@NonNull Exception e) {
+        if (imageListener != null) {
+            imageListener.onImageFailed(e);
+        }
+    }
+
+    @Override
+    public void onTileLoaded() {
+        invalidate();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (preview == null) {
+            return super.onTouchEvent(event);
+        }
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (tileLoader == null) {
+            return;
+        }
+        if (openPending) {
+            open();
+        } else if (preview != null) {
+            tileLoader.setViewSize(w, h);
+            resetScale();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (preview == null) {
+            return;
+        }
+
+        canvas.save();
+        canvas.translate(translateX, translateY);
+        canvas.scale(scale, scale);
+        canvas.concat(orientationMatrix);
+
+        canvas.drawBitmap(preview, null, imageRect, paint);
+        if (sampleSize < previewSampleSize) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    final TileLoader.Tile tile = new TileLoader.Tile(sampleSize, column, row);
+                    final Bitmap bitmap = tileLoader.get(tile);
+                    if (bitmap == null) {
+                        // the preview shows through until the tile is decoded
+                        continue;
+                    }
+                    tileLoader.getSourceRect(tile, tileRect);
+                    decodedRect.set(0, 0, Math.max(1, tileRect.width() / sampleSize),
+                        Math.max(1, tileRect.height() / sampleSize));
+                    canvas.drawBitmap(bitmap, decodedRect, tileRect, paint);
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    private void open() {
+        openPending = false;
+        tileLoader.setViewSize(getWidth(), getHeight());
+        tileLoader.open(getWidth(), getHeight());
+    }
+
+    private void resetScale() {
+        final int orientedWidth = PixelRotator.rotatedWidth(imageWidth, imageHeight, degrees);
+        final int orientedHeight = PixelRotator.rotatedHeight(imageWidth, imageHeight, degrees);
+        minScale = Math.min((float) getWidth() / orientedWidth, (float) getHeight() / orientedHeight);
+        scale = minScale;
+        updateTiles();
+    }
+
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        newScale = Math.max(minScale, Math.min(Math.max(minScale, MAX_SCALE), newScale));
+        // keeps the image point under the focus in place
+        translateX = focusX - (focusX - translateX) * newScale / scale;
+        translateY = focusY - (focusY - translateY) * newScale / scale;
+        scale = newScale;
+        updateTiles();
+    }
+
+    /**
+     * Keep the image in the view and request the tiles of the visible region.
+     */
+    private void updateTiles() {
+        final float orientedWidth = PixelRotator.rotatedWidth(imageWidth, imageHeight, degrees);
+        final float orientedHeight = PixelRotator.rotatedHeight(imageWidth, imageHeight, degrees);
+        translateX = clampTranslation(translateX, getWidth(), orientedWidth * scale);
+        translateY = clampTranslation(translateY, getHeight(), orientedHeight * scale);
+        invalidate();
+
+        sampleSize = TileLoader.sampleSize(scale);
+        if (sampleSize >= previewSampleSize) {
+            // not sharper than the preview
+            tileLoader.cancelRequests();
+            return;
+        }
+
+        visibleRegion[0] = (int) Math.max(0, -translateX / scale);
+        visibleRegion[1] = (int) Math.max(0, -translateY / scale);
+        visibleRegion[2] = (int) Math.ceil(Math.min(orientedWidth, (getWidth() - translateX) / scale));
+        visibleRegion[3] = (int) Math.ceil(Math.min(orientedHeight, (getHeight() - translateY) / scale));
+        Rotations.rotatedToSource(visibleRegion, imageWidth, imageHeight, degrees);
+
+        final int tileSourceSize = TileLoader.TILE_SIZE * sampleSize;
+        firstColumn = visibleRegion[0] / tileSourceSize;
+        lastColumn = (visibleRegion[2] - 1) / tileSourceSize;
+        firstRow = visibleRegion[1] / tileSourceSize;
+        lastRow = (visibleRegion[3] - 1) / tileSourceSize;
+        tileLoader.request(sampleSize, firstColumn, firstRow, lastColumn, lastRow);
+    }
+
+    private static float clampTranslation(float translation, int viewSize, float imageSize) {
+        if (imageSize <= viewSize) {
+            return (viewSize - imageSize) / 2;
+        }
+        return Math.max(viewSize - imageSize, Math.min(0, translation));
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface ImageListener {
+
+        /**
+         * The preview of the image is shown.
+         */
+        void onImageShown();
+
+        void onImageFailed(@NonNull Exception e);
+    }
+}
@@ -0,0 +1,39 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} reading a {@link ByteBuffer} from its position to its limit, without
+ * copying it. Reading moves the position of the buffer.
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer mData;
+
+    ByteBufferInputStream(@NonNull ByteBuffer data) {
+        mData = data;
+    }
+
+    @Override
+    public int read() {
+        return mData.hasRemaining() ? mData.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) {
+        if (!mData.hasRemaining()) {
+            return -1;
+        }
+        final int count = Math.min(len, mData.remaining());
+        mData.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mData.remaining();
+    }
+}
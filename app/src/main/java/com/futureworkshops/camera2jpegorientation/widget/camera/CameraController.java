@@ -1,5 +1,6 @@
 package com.futureworkshops.camera2jpegorientation.widget.camera;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
@@ -20,12 +21,10 @@ import android.media.ImageReader;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.util.Log;
-import android.util.Pair;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
@@ -33,21 +32,23 @@ import android.view.TextureView;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Scheduler;
 import io.reactivex.Single;
-import io.reactivex.SingleEmitter;
-import io.reactivex.SingleOnSubscribe;
+import io.reactivex.SingleSource;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 
 /**
  * Created by stelian on 16/08/2017.
@@ -67,35 +68,63 @@ public class CameraController {
     private static final String TAG = CameraController.class.getCanonicalName();
     
     /**
-     * Camera state: Device is closed.
+     * Default aspect ratio of the screen. Most devices (phones) support 16:9 aspect ratio that's why we
+     * choose it.
      */
-    private static final int STATE_CLOSED = 0;
+    private static final Size DEFAULT_ASPECT_RATIO = new Size(1920, 1080);
     
     /**
-     * Camera state: Device is opened, but is not capturing.
+     * Largest JPEG thumbnail width we embed in captured images.
      */
-    private static final int STATE_OPENED = 1;
+    private static final int MAX_JPEG_THUMBNAIL_WIDTH = 320;
     
     /**
-     * Camera state: Showing camera preview.
+     * Quality of the JPEG thumbnail embedded in captured images.
      */
-    private static final int STATE_PREVIEW = 2;
+    private static final byte JPEG_THUMBNAIL_QUALITY = 70;
     
     /**
-     * Camera state: Waiting for 3A convergence before capturing a photo.
+     * {@link CaptureRequest#JPEG_THUMBNAIL_SIZE} disabling the EXIF thumbnail.
      */
-    private static final int STATE_WAITING_FOR_3A_CONVERGENCE = 3;
+    private static final Size NO_JPEG_THUMBNAIL = new Size(0, 0);
     
     /**
-     * Timeout for the pre-capture sequence.
+     * Default sensor orientation used until the camera characteristics are known.
      */
-    private static final long PRECAPTURE_TIMEOUT_MS = 1000;
+    private static final int DEFAULT_SENSOR_ORIENTATION = 90;
     
     /**
-     * Default aspect ratio of the screen. Most devices (phones) support 16:9 aspect ratio that's why we
-     * choose it.
+     * Number of JPEG images the {@link #mJpegImageReader} can hold, so a burst of captures isn't
+     * throttled while the delivered images are still in use.
      */
-    private static final Size DEFAULT_ASPECT_RATIO = new Size(1920, 1080);
+    private static final int JPEG_MAX_IMAGES = 5;
+    
+    /**
+     * Number of JPEG images the {@link #mJpegImageReader} holds when memory is low: one held by
+     * the {@link CapturedImage} delivered last and one being written by the camera.
+     */
+    private static final int JPEG_MIN_IMAGES = 2;
+    
+    /**
+     * Time without a memory warning after which the {@link #mJpegImageReader} gets its full
+     * capacity back when it is created again.
+     */
+    private static final long JPEG_CAPACITY_RESTORE_MS = 60000;
+    
+    /**
+     * Approximate size of the review thumbnails, in sensor orientation.
+     */
+    private static final Size REVIEW_THUMBNAIL_SIZE = new Size(640, 480);
+    
+    /**
+     * Quality of the JPEG review thumbnails.
+     */
+    private static final int REVIEW_THUMBNAIL_QUALITY = 80;
+    
+    /**
+     * Thumbnails are encoded as soon as they arrive, so two images are enough for a burst.
+     */
+    private static final int REVIEW_THUMBNAIL_MAX_IMAGES = 2;
     
     @IntDef({
         FLASH_MODE_OFF,
@@ -116,18 +145,6 @@ public class CameraController {
         INTERNAL_FACINGS.put(CameraParams.FACING_FRONT, CameraCharacteristics.LENS_FACING_FRONT);
     }
     
-    /**
-     * Conversion from screen rotation to JPEG orientation.
-     */
-    private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
-    
-    static {
-        ORIENTATIONS.append(Surface.ROTATION_0, 0);
-        ORIENTATIONS.append(Surface.ROTATION_90, 90);
-        ORIENTATIONS.append(Surface.ROTATION_180, 180);
-        ORIENTATIONS.append(Surface.ROTATION_270, 270);
-    }
-    
     /**
      * An additional thread for running tasks that shouldn't block the UI.  This is used for all
      * callbacks from the {@link CameraDevice} and {@link CameraCaptureSession}s.
@@ -135,12 +152,6 @@ public class CameraController {
     private HandlerThread mBackgroundThread;
     
     
-    /**
-     * A counter for tracking corresponding {@link CaptureRequest}s and {@link CaptureResult}s
-     * across the {@link CameraCaptureSession} capture callbacks.
-     */
-    private final AtomicInteger mRequestCounter = new AtomicInteger();
-    
     /**
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
      */
@@ -200,11 +211,43 @@ public class CameraController {
      */
     private Size mPreviewSize;
     
+    /**
+     * Preview sizes ranked by {@link #mPreviewSizeSelector} the last time the preview size was chosen.
+     */
+    private List<PreviewSizeSelector.Candidate> mPreviewSizeCandidates = Collections.emptyList();
+    
+    /**
+     * List of {@link ImageFormat#YUV_420_888} sizes available for frame analysis.
+     */
+    private final List<Size> mAnalysisSizes = new ArrayList<>();
+    
+    /**
+     * The requested frame analysis {@link Size} or {@code null} if frame analysis is disabled.
+     */
+    private Size mRequestedAnalysisSize;
+    
     /**
      * The {@link Size} of captured image.
      */
     private Size mJpegSize;
     
+    /**
+     * The {@link Size} of the thumbnail embedded in captured JPEGs. A {@code 0x0} size disables
+     * the thumbnail.
+     */
+    private Size mJpegThumbnailSize = new Size(0, 0);
+    
+    /**
+     * Whether or not captured JPEGs should embed a thumbnail.
+     */
+    private boolean mJpegThumbnailEnabled = true;
+    
+    /**
+     * Resolves JPEG orientation, EXIF orientation and preview transform for the current camera.
+     */
+    private OrientationResolver mOrientationResolver =
+        new OrientationResolver(DEFAULT_SENSOR_ORIENTATION, false);
+    
     /**
      * The {@link CameraCharacteristics} for the currently configured camera device.
      */
@@ -216,9 +259,42 @@ public class CameraController {
     private Handler mBackgroundHandler;
     
     /**
-     * {@link ImageReader} that handles JPEG image captures.
+     * A {@link Scheduler} running on {@link #mBackgroundThread}.
+     */
+    private Scheduler mCameraScheduler;
+    
+    /**
+     * {@link ImageReader} that handles JPEG image captures. It stays open until the last
+     * {@link CapturedImage} read from it is closed.
+     */
+    private RefCountedAutoCloseable<ImageReader> mJpegImageReader;
+    
+    /**
+     * Capacity of the next {@link #mJpegImageReader}, lowered when memory gets low.
+     */
+    private int mJpegMaxImages = JPEG_MAX_IMAGES;
+    
+    /**
+     * {@link SystemClock#elapsedRealtime()} of the last memory warning that lowered
+     * {@link #mJpegMaxImages}.
+     */
+    private long mJpegCapacityLoweredAt;
+    
+    /**
+     * {@link ImageReader} receiving the preview-sized {@link ImageFormat#YUV_420_888} copy of
+     * still captures, or {@code null} if review thumbnails are disabled.
+     */
+    private ImageReader mThumbnailImageReader;
+    
+    /**
+     * Whether or not a review thumbnail reader should be created when the camera starts.
+     */
+    private boolean mReviewThumbnailsEnabled = false;
+    
+    /**
+     * Encodes the review thumbnails on {@link #mBackgroundThread}.
      */
-    private ImageReader mJpegImageReader;
+    private final ThumbnailEncoder mThumbnailEncoder = new ThumbnailEncoder(REVIEW_THUMBNAIL_QUALITY);
     
     /**
      * Whether or not the currently configured camera device is fixed-focus.
@@ -228,37 +304,59 @@ public class CameraController {
     private boolean mLegacyDevice = false;
     
     /**
-     * Number of pending user requests to capture a photo.
+     * {@link CaptureRequest.Builder} for the camera preview
      */
-    private int mPendingUserCaptures = 0;
+    private CaptureRequest.Builder mPreviewRequestBuilder;
     
     /**
-     * Request ID to {@link SingleEmitter} mapping for in-progress JPEG captures.
+     * Still capture builders with the 3A, flash and EXIF thumbnail settings of the preview
+     * already set, indexed by whether they also target the review thumbnail output. They are
+     * prepared when the preview starts and dropped whenever one of these settings changes.
      */
-    private final TreeMap<Integer, SingleEmitter<Pair<byte[], Integer>>> mJpegEmitterQueue = new TreeMap<>();
+    private final CaptureRequest.Builder[] mStillRequestBuilders = new CaptureRequest.Builder[2];
     
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
+     * The JPEG quality last set on each of {@link #mStillRequestBuilders}.
      */
-    private CaptureRequest.Builder mPreviewRequestBuilder;
+    private final int[] mStillRequestQualities = new int[2];
+    
+    /**
+     * Whether the first preview frame of the session is still expected, only used on
+     * {@link #mBackgroundThread}.
+     */
+    private boolean mAwaitingFirstFrame;
+    
+    /**
+     * Timing of the preview stream, only updated on {@link #mBackgroundThread}.
+     */
+    private final PreviewFrameMonitor mPreviewFrameMonitor = new PreviewFrameMonitor();
     
     /**
-     * The state of the camera device.
+     * Whether the preview and capture timing is reported to the {@link Callback}.
+     */
+    private volatile boolean mPerformanceMonitoring;
+    
+    /**
+     * Tracks the camera state, the pre-capture sequence and the captures waiting for their JPEG.
      * @see #mPreCaptureCallback
      */
-    private int mState = STATE_CLOSED;
+    private final CaptureStateMachine mCaptureStateMachine;
     
     /**
-     * Timer to use with pre-capture sequence to ensure a timely capture if 3A convergence is
-     * taking too long.
+     * Fails the captures of {@link #mCaptureStateMachine} whose image never came, while a
+     * session is running.
      */
-    private long mCaptureTimer;
+    private final CaptureWatchdog mCaptureWatchdog;
     
     //**********************************************************************************************
     
     private final SurfaceInfo mSurfaceInfo = new SurfaceInfo();
+    private final PreviewSizeSelector mPreviewSizeSelector = new PreviewSizeSelector();
+    private final JpegQualityPolicy mJpegQualityPolicy = new JpegQualityPolicy();
+    private final PreviewFrameStream mPreviewFrameStream = new PreviewFrameStream();
     private Size mAspectRatio = DEFAULT_ASPECT_RATIO;
     private int mDisplayOrientation;
+    private int mDeviceOrientation = DeviceOrientationTracker.ORIENTATION_UNKNOWN;
     private Callback mCallback;
     private Context mContext;
     
@@ -268,6 +366,14 @@ public class CameraController {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
             mSurfaceInfo.configure(surface, width, height);
+            
+            // now that we know the surface size we can pick a preview size that doesn't exceed it;
+            // the sizes are collected on the camera thread, so check them under the lock too
+            synchronized (mCameraStateLock) {
+                if (!mPreviewSizes.isEmpty()) {
+                    mPreviewSize = chooseOptimalSize();
+                }
+            }
             configureTransform();
             
             // notify listener that we computed the preview size only if we know the selected preview size
@@ -276,8 +382,21 @@ public class CameraController {
             }
             
             // start preview if session is already available
-            if (mState != STATE_CLOSED) {
-                createCameraPreviewSessionLocked();
+            synchronized (mCameraStateLock) {
+                if (mCaptureStateMachine.getStateLocked() != CaptureStateMachine.STATE_CLOSED &&
+                    mBackgroundHandler != null) {
+                    // configure the session on the camera thread like every other camera call
+                    mBackgroundHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (mCameraStateLock) {
+                                if (mCameraDevice != null && mPreviewSize != null && mSurfaceInfo.surface != null) {
+                                    createCameraPreviewSessionLocked();
+                                }
+                            }
+                        }
+                    });
+                }
             }
             
         }
@@ -315,8 +434,9 @@ public class CameraController {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here if
             // the TextureView displaying this has been set up.
+            CameraTrace.endAsync(CameraTrace.OPEN, 0);
             synchronized (mCameraStateLock) {
-                mState = STATE_OPENED;
+                mCaptureStateMachine.setStateLocked(CaptureStateMachine.STATE_OPENED);
                 mCameraOpenCloseLock.release();
                 mCameraDevice = cameraDevice;
                 
@@ -332,7 +452,7 @@ public class CameraController {
         @Override
         public void onClosed(@NonNull CameraDevice cameraDevice) {
             synchronized (mCameraStateLock) {
-                mState = STATE_CLOSED;
+                mCaptureStateMachine.setStateLocked(CaptureStateMachine.STATE_CLOSED);
                 mCameraOpenCloseLock.release();
                 cameraDevice.close();
                 mCameraDevice = null;
@@ -342,8 +462,9 @@ public class CameraController {
         
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            CameraTrace.endAsync(CameraTrace.OPEN, 0);
             synchronized (mCameraStateLock) {
-                mState = STATE_CLOSED;
+                mCaptureStateMachine.setStateLocked(CaptureStateMachine.STATE_CLOSED);
                 mCameraOpenCloseLock.release();
                 cameraDevice.close();
                 mCameraDevice = null;
@@ -354,8 +475,9 @@ public class CameraController {
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
             Log.e(TAG, "Received camera device error: " + error);
+            CameraTrace.endAsync(CameraTrace.OPEN, 0);
             synchronized (mCameraStateLock) {
-                mState = STATE_CLOSED;
+                mCaptureStateMachine.setStateLocked(CaptureStateMachine.STATE_CLOSED);
                 mCameraOpenCloseLock.release();
                 cameraDevice.close();
                 mCameraDevice = null;
@@ -372,122 +494,121 @@ public class CameraController {
         = new ImageReader.OnImageAvailableListener() {
         
         @Override
-        public void onImageAvailable(ImageReader reader) {
+        public void onImageAvailable(final ImageReader reader) {
             synchronized (mCameraStateLock) {
-                final Map.Entry<Integer, SingleEmitter<Pair<byte[], Integer>>> entry = mJpegEmitterQueue.firstEntry();
-                final SingleEmitter<Pair<byte[], Integer>> emitter = entry.getValue();
-                
-                if (emitter != null && !emitter.isDisposed()) {
-                    if (reader == null) {
-                        emitter.onError(new Exception("ImageReader already closed."));
-                        mJpegEmitterQueue.remove(entry.getKey());
-                        return;
-                    }
-                    
-                    Image image;
-                    try {
-                        image = reader.acquireNextImage();
-                    } catch (IllegalStateException e) {
-                        emitter.onError(new Exception("Too many images queued for saving, dropping image for request: " +
-                            entry.getKey()));
-                        mJpegEmitterQueue.remove(entry.getKey());
-                        return;
-                    }
-                    
-                    if (image != null) {
-                        Image.Plane[] planes = image.getPlanes();
-                        if (planes.length > 0) {
-                            ByteBuffer buffer = planes[0].getBuffer();
-                            byte[] data = new byte[buffer.remaining()];
-                            buffer.get(data);
+                final RefCountedAutoCloseable<ImageReader> readerRef = mJpegImageReader;
+                mCaptureStateMachine.onJpegAvailableLocked(readerRef == null ? null :
+                    new CaptureStateMachine.JpegReader() {
+                        
+                        @Override
+                        public CapturedImage acquireNextJpeg(int rotation) {
+                            // the reader stays open while the image is in use
+                            final ImageReader retained = readerRef.getAndRetain();
+                            if (retained == null) {
+                                return null;
+                            }
                             
-                            // send image data and camera rotation
-                            int cameraRotation = sensorToDeviceRotation(mCharacteristics, mDisplayOrientation);
-                            emitter.onSuccess(new Pair<>(data, cameraRotation));
+                            Image image = null;
+                            boolean delivered = false;
+                            try {
+                                image = retained.acquireNextImage();
+                                if (image == null) {
+                                    return null;
+                                }
+                                final Image.Plane[] planes = image.getPlanes();
+                                if (planes.length == 0) {
+                                    return null;
+                                }
+                                
+                                // the JPEG is handed out in place, the image is closed with it
+                                final Image acquired = image;
+                                final CapturedImage captured = new CapturedImage(planes[0].getBuffer(),
+                                    rotation, false, image.getTimestamp(), new AutoCloseable() {
+                                    @Override
+                                    public void close() {
+                                        acquired.close();
+                                        readerRef.close();
+                                    }
+                                });
+                                delivered = true;
+                                return captured;
+                            } finally {
+                                if (!delivered) {
+                                    if (image != null) {
+                                        image.close();
+                                    }
+                                    readerRef.close();
+                                }
+                            }
                         }
                         
-                        // close the image to free up image reader resources
-                        image.close();
-                        
-                        // remove the request from queue
-                        mJpegEmitterQueue.remove(entry.getKey());
-                    } else {
-                        emitter.onError(new Exception("Error reading image for request " +
-                            entry.getKey()));
-                        mJpegEmitterQueue.remove(entry.getKey());
-                    }
-                    
-                }
+                        @Override
+                        public void discardNextJpeg() {
+                            final Image image = reader.acquireNextImage();
+                            if (image != null) {
+                                image.close();
+                            }
+                        }
+                    }, getJpegOrientationLocked());
             }
         }
         
     };
     
-    
     /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events for the preview and
-     * pre-capture sequence.
+     * This a callback object for the review thumbnail {@link ImageReader}. The frame is encoded
+     * to JPEG right away so its buffer is returned to the camera.
      */
-    private CameraCaptureSession.CaptureCallback mPreCaptureCallback
-        = new CameraCaptureSession.CaptureCallback() {
+    private final ImageReader.OnImageAvailableListener mOnThumbnailImageAvailableListener
+        = new ImageReader.OnImageAvailableListener() {
         
-        private void process(CaptureResult result) {
+        @Override
+        public void onImageAvailable(final ImageReader reader) {
             synchronized (mCameraStateLock) {
-                switch (mState) {
-                    case STATE_PREVIEW: {
-                        // when in preview mode we don't do anything
-                        break;
-                    }
-                    case STATE_WAITING_FOR_3A_CONVERGENCE: {
-                        boolean readyToCapture = true;
-                        if (!mNoAFRun) {
-                            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                            if (afState == null) {
-                                break;
-                            }
-                            
-                            // If auto-focus has reached locked state, we are ready to capture
-                            readyToCapture =
-                                (afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
-                                    afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
-                                    afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED);
-                        }
+                mCaptureStateMachine.onThumbnailAvailableLocked(reader == null ? null :
+                    new CaptureStateMachine.JpegReader() {
                         
-                        // If we are running on an non-legacy device, we should also wait until
-                        // auto-exposure and auto-white-balance have converged as well before
-                        // taking a picture.
-                        if (!isLegacyLocked()) {
-                            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                            Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
-                            if (aeState == null || awbState == null) {
-                                break;
+                        @Override
+                        public CapturedImage acquireNextJpeg(int rotation) {
+                            final Image image = reader.acquireNextImage();
+                            if (image == null) {
+                                return null;
                             }
                             
-                            readyToCapture = readyToCapture &&
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED &&
-                                awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED;
-                        }
-                        
-                        // If we haven't finished the pre-capture sequence but have hit our maximum
-                        // wait timeout, too bad! Begin capture anyway.
-                        if (!readyToCapture && hitTimeoutLocked()) {
-                            Log.w(TAG, "Timed out waiting for pre-capture sequence to complete.");
-                            readyToCapture = true;
+                            try {
+                                final byte[] jpeg = mThumbnailEncoder.encode(image);
+                                return jpeg == null ? null :
+                                    new CapturedImage(jpeg, rotation, true, image.getTimestamp());
+                            } finally {
+                                image.close();
+                            }
                         }
                         
-                        if (readyToCapture && mPendingUserCaptures > 0) {
-                            // Capture once for each user tap of the "Picture" button.
-                            while (mPendingUserCaptures > 0) {
-                                // if we have multiple requests, the mPendingUserCaptures will help
-                                // us map images to the correct emitters
-                                captureStillPictureLocked(mPendingUserCaptures);
-                                mPendingUserCaptures--;
+                        @Override
+                        public void discardNextJpeg() {
+                            final Image image = reader.acquireNextImage();
+                            if (image != null) {
+                                image.close();
                             }
-                            // After this, the camera will go back to the normal state of preview.
-                            mState = STATE_PREVIEW;
                         }
-                    }
-                }
+                    }, getJpegOrientationLocked());
+            }
+        }
+        
+    };
+    
+    
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that handles events for the preview and
+     * pre-capture sequence.
+     */
+    private CameraCaptureSession.CaptureCallback mPreCaptureCallback
+        = new CameraCaptureSession.CaptureCallback() {
+        
+        private void process(CaptureResult result) {
+            synchronized (mCameraStateLock) {
+                mCaptureStateMachine.onPreCaptureResultLocked(result.get(CaptureResult.CONTROL_AF_STATE),
+                    result.get(CaptureResult.CONTROL_AE_STATE), result.get(CaptureResult.CONTROL_AWB_STATE));
             }
         }
         
@@ -500,6 +621,11 @@ public class CameraController {
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
                                        TotalCaptureResult result) {
+            if (mAwaitingFirstFrame) {
+                mAwaitingFirstFrame = false;
+                CameraTrace.endAsync(CameraTrace.FIRST_FRAME, 0);
+            }
+            monitorFrame(result);
             process(result);
         }
         
@@ -522,9 +648,10 @@ public class CameraController {
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
                                        TotalCaptureResult result) {
+            // the still capture takes the place of a preview frame
+            monitorFrame(result);
             synchronized (mCameraStateLock) {
-                // release focus trigger
-                finishedCaptureLocked();
+                mCaptureStateMachine.onCaptureCompletedLocked();
             }
         }
         
@@ -532,28 +659,73 @@ public class CameraController {
         public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
                                     CaptureFailure failure) {
             synchronized (mCameraStateLock) {
-                // release focus trigger
-                finishedCaptureLocked();
-                
-                // noty emitter of failed captures and remove it from the queue
-                final AtomicInteger requestTag = (AtomicInteger) request.getTag();
-                final SingleEmitter<Pair<byte[], Integer>> emitter = mJpegEmitterQueue.get(requestTag);
-                
-                if (emitter != null && !emitter.isDisposed()) {
-                    emitter.onError(new Exception("Capture failed with reason : " + failure.toString()));
-                }
-                
-                mJpegEmitterQueue.remove(requestTag);
+                mCaptureStateMachine.onCaptureFailedLocked((Integer) request.getTag(), failure.toString());
             }
         }
         
     };
     
     
+    /**
+     * The Camera2 operations of the {@link #mCaptureStateMachine}.
+     */
+    private final CaptureStateMachine.Camera mStillCaptureCamera = new CaptureStateMachine.Camera() {
+        
+        @Override
+        public void triggerPrecapture() throws CameraAccessException {
+            // Trigger an auto-focus run if camera is capable. If the camera is already focused,
+            // this should do nothing.
+            if (!mNoAFRun) {
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CameraMetadata.CONTROL_AF_TRIGGER_START);
+            }
+            
+            // If this is not a legacy device, we can also trigger an auto-exposure metering
+            // run.
+            if (!isLegacyLocked()) {
+                // Tell the camera to lock focus.
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                    CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+            }
+            
+            // Replace the existing repeating request with one with updated 3A triggers.
+            mCaptureSession.capture(mPreviewRequestBuilder.build(), mPreCaptureCallback,
+                mBackgroundHandler);
+        }
+        
+        @Override
+        public boolean captureStill(int requestTag, int jpegQuality, boolean thumbnail)
+            throws CameraAccessException {
+            return captureStillPictureLocked(requestTag, jpegQuality, thumbnail);
+        }
+        
+        @Override
+        public void cancelPrecapture() {
+            finishedCaptureLocked();
+        }
+        
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+    
+    
     public CameraController(@NonNull Context context, @NonNull Callback callback) {
         mContext = context;
         mCallback = callback;
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mCaptureStateMachine = new CaptureStateMachine(mCameraStateLock, mStillCaptureCamera,
+            mJpegQualityPolicy);
+        mCaptureWatchdog = new CaptureWatchdog(mCameraStateLock, mCaptureStateMachine);
+        mCaptureStateMachine.setTimingListener(new CaptureStateMachine.TimingListener() {
+            @Override
+            public void onCaptureTiming(CaptureTiming timing) {
+                if (mPerformanceMonitoring) {
+                    mCallback.onCaptureTiming(timing);
+                }
+            }
+        });
     }
     
     /**
@@ -565,6 +737,19 @@ public class CameraController {
         configureTransform();
     }
     
+    /**
+     * Set the physical orientation of the device, used to rotate captured images when it is known.
+     * This allows correct JPEG orientation even when the display rotation is locked.
+     * @param deviceOrientation clockwise rotation of the device from its natural orientation,
+     *                          or {@link DeviceOrientationTracker#ORIENTATION_UNKNOWN} to use the
+     *                          display orientation
+     */
+    public void setDeviceOrientation(int deviceOrientation) {
+        synchronized (mCameraStateLock) {
+            mDeviceOrientation = deviceOrientation;
+        }
+    }
+    
     /**
      * Get the {@link TextureView.SurfaceTextureListener}  that needs to be added
      * to the {@link SurfaceTexture} that shows camera preview frames.
@@ -575,36 +760,73 @@ public class CameraController {
     
     /**
      * Configure camera dependencies and start a preview session.
+     * <p/>
+     * Returns right away: the camera characteristics are read, the image readers created and the
+     * camera opened on the {@link #getCameraScheduler() camera scheduler}, so the binder calls to
+     * the camera service don't hold the calling thread.
      */
     public void startCamera() {
         startBackgroundThreads();
         
-        synchronized (mCameraStateLock) {
-            chooseCameraIdByFacing();
-            collectCameraInfo();
-            chooseImageSizes();
-            
-            // notify listener that we computed the preview size only if we have a surface available
-            if (mSurfaceInfo.width > 0) {
-                notifyPreviewSizesAvailable();
+        getCameraScheduler().scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mCameraStateLock) {
+                    chooseCameraIdByFacing();
+                    collectCameraInfo();
+                    chooseImageSizes();
+                    
+                    // notify listener that we computed the preview size only if we have a surface available
+                    if (mSurfaceInfo.width > 0) {
+                        notifyPreviewSizesAvailable();
+                    }
+                    
+                    // prepare image reader
+                    prepareImageReaders();
+                }
+                
+                // open camera; waiting for a previous session to close must not hold the state
+                // lock taken by the UI callbacks
+                openCamera();
             }
-            
-            // prepare image reader
-            prepareImageReaders();
-            
-            // open camera
-            openCamera();
-        }
+        });
     }
     
     /**
      * Stop the camera session and release all associated resources.
+     * <p/>
+     * Waits for the camera work already scheduled, e.g. a pending {@link #startCamera()}, then
+     * closes the camera on the calling thread: closing waits for the camera to finish opening,
+     * which is reported on the camera thread.
      */
     public void stopCamera() {
+        awaitCameraThread();
         closeCamera();
         stopBackgroundThreads();
     }
     
+    /**
+     * Wait until the work scheduled on the camera thread so far has run.
+     */
+    private void awaitCameraThread() {
+        final Scheduler cameraScheduler = getCameraScheduler();
+        if (cameraScheduler == null) {
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        cameraScheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for the camera thread.", e);
+        }
+    }
+    
     /**
      * Initiate a still image capture.
      * <p/>
@@ -612,66 +834,92 @@ public class CameraController {
      * machine that waits for auto-focus to finish, ending in a "locked" state where the lens is no
      * longer moving, waits for auto-exposure to choose a good exposure value, and waits for
      * auto-white-balance to converge.
+     * <p/>
+     * The JPEG quality is chosen by the {@link #getJpegQualityPolicy() quality policy}.
+     * <p/>
+     * The capture is started on the {@link #getCameraScheduler() camera scheduler} and the result is
+     * delivered on the camera thread.
+     * <p/>
+     * The {@link CapturedImage} holds one of the camera JPEG buffers and must be closed once
+     * consumed.
+     */
+    public Single<CapturedImage> takePicture() {
+        return takePicture(JpegQualityPolicy.QUALITY_DEFAULT, null);
+    }
+    
+    /**
+     * Initiate a still image capture and deliver the result on {@code resultScheduler}.
+     * @param resultScheduler the {@link Scheduler} used to deliver the result or {@code null} to
+     *                        deliver it on the camera thread
+     * @see #takePicture()
      */
-    public Single<Pair<byte[], Integer>> takePicture() {
+    public Single<CapturedImage> takePicture(Scheduler resultScheduler) {
+        return takePicture(JpegQualityPolicy.QUALITY_DEFAULT, resultScheduler);
+    }
+    
+    /**
+     * Initiate a still image capture using a specific JPEG quality.
+     * @param jpegQuality the JPEG quality (1-100) or {@link JpegQualityPolicy#QUALITY_DEFAULT}
+     * @param resultScheduler the {@link Scheduler} used to deliver the result or {@code null} to
+     *                        deliver it on the camera thread
+     * @see #takePicture()
+     */
+    public Single<CapturedImage> takePicture(final int jpegQuality, Scheduler resultScheduler) {
+        if (jpegQuality != JpegQualityPolicy.QUALITY_DEFAULT) {
+            JpegQualityPolicy.checkQuality(jpegQuality);
+        }
         
-        return Single.create(new SingleOnSubscribe<Pair<byte[], Integer>>() {
-            
-            @Override
-            public void subscribe(SingleEmitter<Pair<byte[], Integer>> emitter) throws Exception {
-                synchronized (mCameraStateLock) {
-                    mPendingUserCaptures++;
-                    
-                    // If we already triggered a pre-capture sequence, or are in a state where we cannot
-                    // do this, return immediately.
-                    if (mState == STATE_WAITING_FOR_3A_CONVERGENCE) {
-                        // the pre-capture is already started; image can be scheduled for capture
-                        final int requestTag = mRequestCounter.getAndIncrement();
-                        mJpegEmitterQueue.put(requestTag, emitter);
-                    } else if (mState != STATE_PREVIEW) {
-                        emitter.onError(new Exception(
-                            String.format("Camera state %d can't trigger image capture", mState)));
+        final Single<CapturedImage> capture = Single.defer(
+            new Callable<SingleSource<CapturedImage>>() {
+                
+                @Override
+                public SingleSource<CapturedImage> call() throws Exception {
+                    final Scheduler cameraScheduler = getCameraScheduler();
+                    if (cameraScheduler == null) {
+                        return Single.error(new IllegalStateException("Camera is not started"));
                     }
                     
-                    try {
-                        // Trigger an auto-focus run if camera is capable. If the camera is already focused,
-                        // this should do nothing.
-                        if (!mNoAFRun) {
-                            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                                CameraMetadata.CONTROL_AF_TRIGGER_START);
-                        }
-                        
-                        // If this is not a legacy device, we can also trigger an auto-exposure metering
-                        // run.
-                        if (!isLegacyLocked()) {
-                            // Tell the camera to lock focus.
-                            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                                CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-                        }
-                        
-                        // Update state machine to wait for auto-focus, auto-exposure, and
-                        // auto-white-balance (aka. "3A") to converge.
-                        mState = STATE_WAITING_FOR_3A_CONVERGENCE;
-                        
-                        // Start a timer for the pre-capture sequence.
-                        startTimerLocked();
-                        
-                        // Replace the existing repeating request with one with updated 3A triggers.
-                        mCaptureSession.capture(mPreviewRequestBuilder.build(), mPreCaptureCallback,
-                            mBackgroundHandler);
-                        
-                        // we use the request tag to save a reference to the emitter
-                        // this tag will also be added to the capture request triggered after camera
-                        // is ready to take a picture
-                        final int requestTag = mRequestCounter.getAndIncrement();
-                        mJpegEmitterQueue.put(requestTag, emitter);
-                        
-                    } catch (CameraAccessException e) {
-                        emitter.onError(e);
+                    // subscribing on the camera thread avoids contending for mCameraStateLock with
+                    // the camera callbacks and an extra thread hop before the capture is issued
+                    return mCaptureStateMachine.createCapture(jpegQuality).subscribeOn(cameraScheduler);
+                }
+            });
+        
+        return resultScheduler != null ? capture.observeOn(resultScheduler) : capture;
+    }
+    
+    /**
+     * Initiate a still image capture that also delivers a small review thumbnail.
+     * <p/>
+     * The still request targets a preview-sized output besides the JPEG one, so the thumbnail is
+     * emitted first, usually a frame or two after the shutter, while the camera is still encoding
+     * the full resolution JPEG. The full image is emitted last. The thumbnail is skipped if review
+     * thumbnails are not {@link #setReviewThumbnailsEnabled(boolean) enabled} or available.
+     * @param jpegQuality     the JPEG quality (1-100) or {@link JpegQualityPolicy#QUALITY_DEFAULT}
+     * @param resultScheduler the {@link Scheduler} used to deliver the images or {@code null} to
+     *                        deliver them on the camera thread
+     * @see #takePicture()
+     */
+    public Observable<CapturedImage> takePictureWithThumbnail(final int jpegQuality,
+                                                              Scheduler resultScheduler) {
+        if (jpegQuality != JpegQualityPolicy.QUALITY_DEFAULT) {
+            JpegQualityPolicy.checkQuality(jpegQuality);
+        }
+        
+        final Observable<CapturedImage> capture = Observable.defer(
+            new Callable<ObservableSource<CapturedImage>>() {
+                
+                @Override
+                public ObservableSource<CapturedImage> call() throws Exception {
+                    final Scheduler cameraScheduler = getCameraScheduler();
+                    if (cameraScheduler == null) {
+                        return Observable.error(new IllegalStateException("Camera is not started"));
                     }
+                    return mCaptureStateMachine.createCapture(jpegQuality, true).subscribeOn(cameraScheduler);
                 }
-            }
-        });
+            });
+        
+        return resultScheduler != null ? capture.observeOn(resultScheduler) : capture;
     }
     
     /**
@@ -707,6 +955,7 @@ public class CameraController {
                 if (mCaptureSession != null) {
                     try {
                         updateFlashModeLocked();
+                        prepareStillRequestsLocked();
 //                        mCaptureSession.setRepeatingRequest(
 //                                mPreviewRequestBuilder.build(),
 //                                mPreCaptureCallback, mBackgroundHandler);
@@ -744,6 +993,146 @@ public class CameraController {
         return mAspectRatio;
     }
     
+    /**
+     * Get a {@link Scheduler} running on the camera thread. This can be used to run camera
+     * related work without hopping through other threads.
+     * @return the camera {@link Scheduler} or {@code null} if the camera is not started
+     */
+    public Scheduler getCameraScheduler() {
+        synchronized (mCameraStateLock) {
+            return mCameraScheduler;
+        }
+    }
+    
+    /**
+     * Get the counts of the captures that were cancelled, failed by the capture watchdog or by
+     * closing the camera, since this controller was created. Useful for diagnostics.
+     */
+    public CaptureCounters getCaptureCounters() {
+        synchronized (mCameraStateLock) {
+            return mCaptureStateMachine.getCountersLocked();
+        }
+    }
+    
+    /**
+     * Enable frame analysis. The camera will deliver {@link ImageFormat#YUV_420_888} preview frames
+     * of (approximately) {@code analysisSize} through {@link #getPreviewFrames()}.
+     * This should be called before starting the camera !
+     * @param analysisSize the desired frame size in sensor orientation (landscape), or
+     *                     {@code null} to disable frame analysis. Sizes up to the preview size
+     *                     are supported by all camera devices.
+     */
+    public void setFrameAnalysisSize(Size analysisSize) {
+        synchronized (mCameraStateLock) {
+            mRequestedAnalysisSize = analysisSize;
+        }
+    }
+    
+    /**
+     * Get the stream of preview frames. Frames are only delivered if frame analysis was enabled
+     * with {@link #setFrameAnalysisSize(Size)}, and every {@link PreviewFrame} must be
+     * {@link PreviewFrame#release() released} once analysed.
+     * <p/>
+     * Only the latest frame is delivered when the subscriber is busy. Frames are emitted on a
+     * dedicated analysis thread. Only one subscriber is allowed at a time.
+     */
+    public Flowable<PreviewFrame> getPreviewFrames() {
+        return mPreviewFrameStream.getFrames();
+    }
+    
+    /**
+     * Get the policy that chooses the JPEG quality of captures that don't request a specific one.
+     */
+    public JpegQualityPolicy getJpegQualityPolicy() {
+        return mJpegQualityPolicy;
+    }
+    
+    /**
+     * Set the JPEG quality used by {@link #takePicture()}.
+     * @param jpegQuality a value between 1 and 100
+     */
+    public void setJpegQuality(int jpegQuality) {
+        mJpegQualityPolicy.setQuality(jpegQuality);
+    }
+    
+    /**
+     * Enable or disable reporting the preview frame timing and the latency of every capture to
+     * the {@link Callback}.
+     */
+    public void setPerformanceMonitoringEnabled(boolean enabled) {
+        mPerformanceMonitoring = enabled;
+    }
+    
+    /**
+     * Enable or disable the review thumbnails of {@link #takePictureWithThumbnail(int, Scheduler)}.
+     * The thumbnails need an extra camera output, so they are not available together with
+     * {@link #setFrameAnalysisSize(Size) frame analysis}.
+     * This should be called before starting the camera !
+     */
+    public void setReviewThumbnailsEnabled(boolean enabled) {
+        synchronized (mCameraStateLock) {
+            mReviewThumbnailsEnabled = enabled;
+        }
+    }
+    
+    /**
+     * Enable or disable the thumbnail embedded in the EXIF data of captured JPEGs. Disabling it
+     * saves a few KB per image.
+     */
+    public void setJpegThumbnailEnabled(boolean enabled) {
+        synchronized (mCameraStateLock) {
+            mJpegThumbnailEnabled = enabled;
+            invalidateStillRequestsLocked();
+            if (mCaptureSession != null) {
+                prepareStillRequestsQuietlyLocked();
+            }
+        }
+    }
+    
+    /**
+     * Release memory according to a {@link ComponentCallbacks2} trim level. While the app is
+     * running low on memory the JPEG {@link ImageReader} is given a smaller capacity; the change
+     * takes effect the next time the camera is started. The full capacity is restored when the
+     * camera is started {@link #JPEG_CAPACITY_RESTORE_MS} after the last warning.
+     * @param level one of the {@code TRIM_MEMORY_} levels of {@link ComponentCallbacks2}
+     */
+    public void trimMemory(int level) {
+        // hiding the UI says nothing about the memory available
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        synchronized (mCameraStateLock) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                mJpegMaxImages = JPEG_MIN_IMAGES;
+                mJpegCapacityLoweredAt = SystemClock.elapsedRealtime();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mJpegMaxImages = Math.min(mJpegMaxImages, JPEG_MIN_IMAGES + 1);
+                mJpegCapacityLoweredAt = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+    
+    /**
+     * Set the relative tolerance used to match preview sizes against the surface aspect ratio.
+     * This should be called before starting the camera !
+     * @see PreviewSizeSelector#setAspectRatioTolerance(float)
+     */
+    public void setAspectRatioTolerance(float tolerance) {
+        synchronized (mCameraStateLock) {
+            mPreviewSizeSelector.setAspectRatioTolerance(tolerance);
+        }
+    }
+    
+    /**
+     * Get the preview sizes ranked when the current preview size was chosen, from the best to
+     * the worst. Useful for diagnostics.
+     */
+    public List<PreviewSizeSelector.Candidate> getPreviewSizeCandidates() {
+        synchronized (mCameraStateLock) {
+            return mPreviewSizeCandidates;
+        }
+    }
+    
     /**
      * Starts a background thread and its {@link Handler}.
      */
@@ -753,6 +1142,7 @@ public class CameraController {
         
         synchronized (mCameraStateLock) {
             mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+            mCameraScheduler = AndroidSchedulers.from(mBackgroundThread.getLooper());
         }
     }
     
@@ -768,7 +1158,10 @@ public class CameraController {
             if (null != mBackgroundThread) {
                 mBackgroundThread.join();
                 mBackgroundThread = null;
-                mBackgroundHandler = null;
+                synchronized (mCameraStateLock) {
+                    mBackgroundHandler = null;
+                    mCameraScheduler = null;
+                }
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -839,6 +1232,14 @@ public class CameraController {
             Collections.sort(mPreviewSizes, new CompareSizesByArea());
         }
         
+        // get frame analysis sizes
+        mAnalysisSizes.clear();
+        final Size[] analysisOutputSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        if (analysisOutputSizes != null) {
+            mAnalysisSizes.addAll(Arrays.asList(analysisOutputSizes));
+            Collections.sort(mAnalysisSizes, new CompareSizesByArea());
+        }
+        
         // get picture sizes
         mPictureSizes.clear();
         // try to get hi-res output sizes for Marshmallow and higher
@@ -858,6 +1259,9 @@ public class CameraController {
             }
         }
         
+        // precompute every orientation value for this camera
+        mOrientationResolver = OrientationResolver.from(mCharacteristics);
+        
         //determine if device has Legacy support
         mLegacyDevice = mCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL) ==
             CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
@@ -868,6 +1272,19 @@ public class CameraController {
         
         // If MINIMUM_FOCUS_DISTANCE is 0, lens is fixed-focus and we need to skip the AF run.
         mNoAFRun = (minFocusDist == null || minFocusDist == 0);
+        mCaptureStateMachine.setCapabilitiesLocked(mNoAFRun, mLegacyDevice);
+        
+        // pick the largest thumbnail that is small enough to keep the EXIF data compact
+        mJpegThumbnailSize = NO_JPEG_THUMBNAIL;
+        final Size[] thumbnailSizes = mCharacteristics.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES);
+        if (thumbnailSizes != null) {
+            for (Size size : thumbnailSizes) {
+                if (size.getWidth() <= MAX_JPEG_THUMBNAIL_WIDTH &&
+                    size.getWidth() > mJpegThumbnailSize.getWidth()) {
+                    mJpegThumbnailSize = size;
+                }
+            }
+        }
     }
     
     /**
@@ -920,9 +1337,59 @@ public class CameraController {
      * Create {@link ImageReader}s for image preview and capture requests.
      */
     private void prepareImageReaders() {
-        mJpegImageReader = ImageReader.newInstance(mJpegSize.getWidth(), mJpegSize.getHeight(),
-            ImageFormat.JPEG, 5);
-        mJpegImageReader.setOnImageAvailableListener(mOnJpegImageAvailableListener, mBackgroundHandler);
+        // there is no callback once memory is available again, a quiet period has to do
+        if (mJpegMaxImages < JPEG_MAX_IMAGES &&
+            SystemClock.elapsedRealtime() - mJpegCapacityLoweredAt >= JPEG_CAPACITY_RESTORE_MS) {
+            mJpegMaxImages = JPEG_MAX_IMAGES;
+        }
+        
+        final ImageReader jpegImageReader = ImageReader.newInstance(mJpegSize.getWidth(),
+            mJpegSize.getHeight(), ImageFormat.JPEG, mJpegMaxImages);
+        jpegImageReader.setOnImageAvailableListener(mOnJpegImageAvailableListener, mBackgroundHandler);
+        mJpegImageReader = new RefCountedAutoCloseable<>(jpegImageReader);
+        
+        // frame analysis reader; the analysis size is expressed in sensor coordinates so there
+        // is nothing to swap
+        if (mRequestedAnalysisSize != null && !mAnalysisSizes.isEmpty()) {
+            final Size analysisSize = mPreviewSizeSelector.rank(mAnalysisSizes, mAspectRatio,
+                mRequestedAnalysisSize.getWidth(), mRequestedAnalysisSize.getHeight(), 0, 0)
+                .get(0).getSize();
+            mPreviewFrameStream.open(analysisSize);
+        } else {
+            mPreviewFrameStream.close();
+        }
+        
+        // review thumbnail reader; a second YUV stream next to the analysis one and the full size
+        // JPEG is not a guaranteed stream combination
+        if (mReviewThumbnailsEnabled && !mAnalysisSizes.isEmpty()) {
+            if (mPreviewFrameStream.isOpen()) {
+                Log.w(TAG, "Review thumbnails are not available with frame analysis");
+            } else {
+                final Size thumbnailSize = mPreviewSizeSelector.rank(mAnalysisSizes, mJpegSize,
+                    REVIEW_THUMBNAIL_SIZE.getWidth(), REVIEW_THUMBNAIL_SIZE.getHeight(), 0, 0)
+                    .get(0).getSize();
+                mThumbnailImageReader = ImageReader.newInstance(thumbnailSize.getWidth(),
+                    thumbnailSize.getHeight(), ImageFormat.YUV_420_888, REVIEW_THUMBNAIL_MAX_IMAGES);
+                mThumbnailImageReader.setOnImageAvailableListener(mOnThumbnailImageAvailableListener,
+                    mBackgroundHandler);
+            }
+        }
+    }
+    
+    /**
+     * Record the timing of a preview or still capture frame.
+     * <p/>
+     * Call this only on {@link #mBackgroundThread}.
+     */
+    private void monitorFrame(CaptureResult result) {
+        if (!mPerformanceMonitoring) {
+            return;
+        }
+        
+        final Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp != null && mPreviewFrameMonitor.onFrame(timestamp, result.getFrameNumber())) {
+            mCallback.onPreviewStats(mPreviewFrameMonitor.getStats());
+        }
     }
     
     /**
@@ -945,8 +1412,12 @@ public class CameraController {
             
             // Attempt to open the camera. mStateCallback will be called on the background handler's
             // thread when this succeeds or fails.
+            CameraTrace.beginAsync(CameraTrace.OPEN, 0);
             mCameraManager.openCamera(cameraId, mStateCallback, backgroundHandler);
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | SecurityException e) {
+            // on the camera thread, nobody can catch it
+            CameraTrace.endAsync(CameraTrace.OPEN, 0);
+            mCameraOpenCloseLock.release();
             e.printStackTrace();
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
@@ -971,19 +1442,35 @@ public class CameraController {
                 .createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
             
+            final List<Surface> outputs = new ArrayList<>(3);
+            outputs.add(surface);
+            outputs.add(mJpegImageReader.get().getSurface());
+            if (mThumbnailImageReader != null) {
+                outputs.add(mThumbnailImageReader.getSurface());
+            }
+            
+            // frame analysis receives the same frames as the preview
+            final Surface analysisSurface = mPreviewFrameStream.getSurface();
+            if (analysisSurface != null) {
+                mPreviewRequestBuilder.addTarget(analysisSurface);
+                outputs.add(analysisSurface);
+            }
+            
             // Here, we create a CameraCaptureSession for camera preview.
-            // this is called on mBackgroundThread so we don't need to set it in the callback
-            mCameraDevice.createCaptureSession(Arrays.asList(surface,
-                mJpegImageReader.getSurface()),
+            // The session callbacks are delivered on mBackgroundThread
+            CameraTrace.beginAsync(CameraTrace.SESSION_CONFIGURE, 0);
+            mCameraDevice.createCaptureSession(outputs,
                 new CameraCaptureSession.StateCallback() {
                     
                     @Override
                     public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                        CameraTrace.endAsync(CameraTrace.SESSION_CONFIGURE, 0);
                         startPreview(cameraCaptureSession);
                     }
                     
                     @Override
                     public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+                        CameraTrace.endAsync(CameraTrace.SESSION_CONFIGURE, 0);
                         Log.e(TAG, "Failed to configure capture session.");
                     }
                     
@@ -993,10 +1480,10 @@ public class CameraController {
                             mCaptureSession = null;
                         }
                     }
-                }, null  // this is already called from the background thread
-            
+                }, mBackgroundHandler
             );
         } catch (CameraAccessException e) {
+            CameraTrace.endAsync(CameraTrace.SESSION_CONFIGURE, 0);
             e.printStackTrace();
         }
     }
@@ -1011,30 +1498,27 @@ public class CameraController {
             try {
                 setup3AControlsLocked();
                 
-                // Finally, we start displaying the camera preview.
-                // This needs to run on the main thread to actually see preview frames
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    
-                    @Override
-                    public void run() {
-                        try {
-                            cameraCaptureSession.setRepeatingRequest(
-                                mPreviewRequestBuilder.build(),
-                                mPreCaptureCallback, mBackgroundHandler);
-                            mState = STATE_PREVIEW;
-                        } catch (CameraAccessException | IllegalStateException e) {
-                            Log.e(TAG, "Failed to start camera preview.", e);
-                        }
-                    }
-                });
-                
-                
-            } catch (IllegalStateException e) {
-                e.printStackTrace();
+                // Finally, we start displaying the camera preview. We are already on the camera
+                // thread so there is no need to hop to another one.
+                CameraTrace.beginAsync(CameraTrace.FIRST_FRAME, 0);
+                mAwaitingFirstFrame = true;
+                mPreviewFrameMonitor.reset();
+                cameraCaptureSession.setRepeatingRequest(
+                    mPreviewRequestBuilder.build(),
+                    mPreCaptureCallback, mBackgroundHandler);
+                mCaptureStateMachine.setStateLocked(CaptureStateMachine.STATE_PREVIEW);
+            } catch (CameraAccessException | IllegalStateException e) {
+                mAwaitingFirstFrame = false;
+                CameraTrace.endAsync(CameraTrace.FIRST_FRAME, 0);
+                Log.e(TAG, "Failed to start camera preview.", e);
                 return;
             }
             // When the session is ready, we start displaying the preview.
             mCaptureSession = cameraCaptureSession;
+            mCaptureWatchdog.startLocked(mBackgroundHandler);
+            
+            // keeps building the still requests off the shutter path
+            prepareStillRequestsQuietlyLocked();
         }
     }
     
@@ -1044,98 +1528,49 @@ public class CameraController {
      */
     private void configureTransform() {
         if (mPreviewSize != null) {
-            Matrix matrix = new Matrix();
-            
-            if (mDisplayOrientation % 180 == 90) {
-                // Rotate the camera preview when the screen is landscape.
-                final float[] surfaceCoordinates = {
-                    0.f, 0.f, // top left
-                    mSurfaceInfo.width, 0.f, // top right
-                    0.f, mSurfaceInfo.height, // bottom left
-                    mSurfaceInfo.width, mSurfaceInfo.height, // bottom right
-                };
-                
-                final float[] targetCoordinates;
-                if (mDisplayOrientation == 90) { // Clockwise
-                    targetCoordinates =
-                        new float[] {
-                            0.f, mSurfaceInfo.height, // top left
-                            0.f, 0.f, // top right
-                            mSurfaceInfo.width, mSurfaceInfo.height, // bottom left
-                            mSurfaceInfo.width, 0.f, // bottom right
-                        };
-                } else {
-                    // Counter-clockwise
-                    targetCoordinates = new float[] {
-                        mSurfaceInfo.width, 0.f, // top left
-                        mSurfaceInfo.width, mSurfaceInfo.height, // top right
-                        0.f, 0.f, // bottom left
-                        0.f, mSurfaceInfo.height, // bottom right
-                    };
-                }
-
-             /* Set the matrix such that the specified src points would map to
-               the specified dst points.
-               The "points" are represented as an array of floats,
-               order [x0, y0, x1, y1, ...], where each "point" is 2 float values.
-              */
-                matrix.setPolyToPoly(surfaceCoordinates, 0, targetCoordinates, 0, 4);
-            }
-            mCallback.onTransformUpdated(matrix);
+            // the resolver caches one matrix per display rotation and only recomputes them when
+            // the surface size changes
+            mCallback.onTransformUpdated(mOrientationResolver.getPreviewTransform(mDisplayOrientation,
+                mSurfaceInfo.width, mSurfaceInfo.height));
         }
     }
     
     /**
-     * Check if we are using a device that only supports the LEGACY hardware level.
+     * Get the rotation to apply to captured JPEGs, based on the physical device orientation when
+     * known or on the display orientation otherwise.
      * <p/>
      * Call this only with {@link #mCameraStateLock} held.
-     * @return true if this is a legacy device.
      */
-    private boolean isLegacyLocked() {
-        return mLegacyDevice;
-    }
-    
-    /**
-     * Start the timer for the pre-capture sequence.
-     * <p/>
-     * Call this only with {@link #mCameraStateLock} held.
-     */
-    private void startTimerLocked() {
-        mCaptureTimer = SystemClock.elapsedRealtime();
+    private int getJpegOrientationLocked() {
+        if (mDeviceOrientation != DeviceOrientationTracker.ORIENTATION_UNKNOWN) {
+            return mOrientationResolver.getJpegOrientationForDevice(mDeviceOrientation);
+        }
+        return mOrientationResolver.getJpegOrientation(mDisplayOrientation);
     }
     
     /**
-     * Check if the timer for the pre-capture sequence has been hit.
+     * Check if we are using a device that only supports the LEGACY hardware level.
      * <p/>
      * Call this only with {@link #mCameraStateLock} held.
-     * @return true if the timeout occurred.
+     * @return true if this is a legacy device.
      */
-    private boolean hitTimeoutLocked() {
-        return (SystemClock.elapsedRealtime() - mCaptureTimer) > PRECAPTURE_TIMEOUT_MS;
+    private boolean isLegacyLocked() {
+        return mLegacyDevice;
     }
     
     /**
      * Given a list of {@code Size}s supported by a camera({@code mPreviewSizes}), choose the smallest one that
-     * is at least as large as the respective texture view size, and whose aspect ratio matches with
-     * {@code mAspectRatio}. If such size  doesn't exist, choose the largest one.
-     * @return The optimal {@code Size}, or the largest one if none were big enough
+     * covers the texture view (in sensor coordinates) and whose aspect ratio is within the
+     * {@link #mPreviewSizeSelector} tolerance of {@code mAspectRatio}.
+     * <p/>
+     * This rewrites {@link #mPreviewSizeCandidates}.
+     * @return The optimal {@code Size} as ranked by {@link PreviewSizeSelector}
      */
     private Size chooseOptimalSize() {
-        final float ratioFLoat = mAspectRatio.getWidth() * 1.0f / mAspectRatio.getHeight();
-        
-        for (Size size : mPreviewSizes) {
-            // if we have a matching aspect ratio
-            final float ratio = size.getWidth() * 1.0f / size.getHeight();
-            if (ratio == ratioFLoat) {
-                if (size.getWidth() >= mAspectRatio.getWidth() &&
-                    size.getHeight() >= mAspectRatio.getHeight()) {
-                    return size;
-                }
-            }
-        }
+        mPreviewSizeCandidates = mPreviewSizeSelector.rank(mPreviewSizes, mAspectRatio,
+            mSurfaceInfo.width, mSurfaceInfo.height, mDisplayOrientation, mOrientationResolver.getSensorOrientation());
         
-        // if we didn't find any suitable size, return the largest one
-        return mPreviewSizes.get(mPreviewSizes.size() - 1);
+        return mPreviewSizeCandidates.get(0).getSize();
     }
     
     /**
@@ -1202,6 +1637,7 @@ public class CameraController {
         
         mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
         mPreviewRequestBuilder.set(CaptureRequest.FLASH_MODE, mFlashMode);
+        invalidateStillRequestsLocked();
     }
     
     /**
@@ -1218,6 +1654,7 @@ public class CameraController {
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_MODE,
                 CaptureRequest.CONTROL_AWB_MODE_AUTO);
         }
+        invalidateStillRequestsLocked();
     }
     
     /**
@@ -1238,6 +1675,7 @@ public class CameraController {
                     CaptureRequest.CONTROL_AF_MODE_AUTO);
             }
         }
+        invalidateStillRequestsLocked();
     }
     
     /**
@@ -1276,8 +1714,9 @@ public class CameraController {
                 // Reset state and clean up resources used by the camera.
                 // Note: After calling this, the ImageReaders will be closed after any background
                 // tasks saving Images from these readers have been completed.
-                mPendingUserCaptures = 0;
-                mState = STATE_CLOSED;
+                mCaptureWatchdog.stopLocked();
+                mCaptureStateMachine.closeLocked();
+                invalidateStillRequestsLocked();
                 if (null != mCaptureSession) {
                     mCaptureSession.close();
                     mCaptureSession = null;
@@ -1287,9 +1726,16 @@ public class CameraController {
                     mCameraDevice = null;
                 }
                 if (null != mJpegImageReader) {
+                    // images of the closed session must not reach the next one
+                    mJpegImageReader.get().setOnImageAvailableListener(null, null);
                     mJpegImageReader.close();
                     mJpegImageReader = null;
                 }
+                if (null != mThumbnailImageReader) {
+                    mThumbnailImageReader.close();
+                    mThumbnailImageReader = null;
+                }
+                mPreviewFrameStream.close();
             }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
@@ -1300,97 +1746,139 @@ public class CameraController {
     
     /**
      * Send a capture request to the camera device that initiates a capture targeting the JPEG output.
-     * <p> {@code currentCaptureNumber} is used to match the request to the proper emitter by
-     * subtracting this number from {@code # mRequestCounter}.</p>
      * <p/>
      * Call this only with {@link #mCameraStateLock} held.
-     * @param currentCaptureNumber the number of the current capture
-     */
-    private void captureStillPictureLocked(int currentCaptureNumber) {
-        final int requestTag = mRequestCounter.get() - currentCaptureNumber;
-        final SingleEmitter emitter = mJpegEmitterQueue.get(requestTag);
+     * @param requestTag  the tag used to match the request with its emitter
+     * @param jpegQuality the quality requested for this capture
+     * @param thumbnail   whether the request should also target the review thumbnail output
+     * @return {@code true} if a review thumbnail will be produced
+     * @throws IllegalStateException if the camera device is no longer available
+     */
+    private boolean captureStillPictureLocked(int requestTag, int jpegQuality, boolean thumbnail)
+        throws CameraAccessException {
+        if (null == mCameraDevice) {
+            throw new IllegalStateException("Camera device is no longer available");
+        }
         
-        // only proceed if the emiter still exists and is still subscribed
-        if (emitter != null && !emitter.isDisposed()) {
-            try {
-                if (null == mCameraDevice) {
-                    // notify emitter that we don't have a camera device anymore
-                    emitter.onError(new Exception("Camera device is no longer available"));
-                    return;
-                }
-                
-                // This is the CaptureRequest.Builder that we use to take a picture.
-                final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                
-                captureBuilder.addTarget(mJpegImageReader.getSurface());
-                
-                // Use the same AE and AF modes as the preview.
-                captureBuilder.set(CaptureRequest.CONTROL_MODE,
-                    mPreviewRequestBuilder.get(CaptureRequest.CONTROL_MODE));
-                
-                captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
-                
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                    mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AE_MODE));
-                
-                final Integer flashMode = mPreviewRequestBuilder.get(CaptureRequest.FLASH_MODE);
-                captureBuilder.set(CaptureRequest.FLASH_MODE, flashMode);
-                
-                // if we force the flash we need to update auto-exposure  precapture trigger
-                if (flashMode == CaptureRequest.FLASH_MODE_SINGLE) {
-                    captureBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                        CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-                }
-                
-                captureBuilder.set(CaptureRequest.CONTROL_AWB_MODE,
-                    mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AWB_MODE));
-                
-                // fixme this may not work on SAMSUNG devices
-                // Set orientation.
-//                captureBuilder.set(CaptureRequest.JPEG_ORIENTATION,
-//                        sensorToDeviceRotation(mCharacteristics, mDisplayOrientation));
-                
-                // Set request tag to easily track results in callbacks.
-                captureBuilder.setTag(requestTag);
-                
-                CaptureRequest request = captureBuilder.build();
-                
-                mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
-                
-            } catch (CameraAccessException e) {
-                emitter.onError(e);
-            }
+        // both outputs are filled from the same sensor frame
+        final boolean thumbnailTargeted = thumbnail && mThumbnailImageReader != null;
+        final int index = thumbnailTargeted ? 1 : 0;
+        CaptureRequest.Builder captureBuilder = mStillRequestBuilders[index];
+        if (captureBuilder == null) {
+            captureBuilder = createStillRequestBuilderLocked(thumbnailTargeted);
+            mStillRequestBuilders[index] = captureBuilder;
+            mStillRequestQualities[index] = 0;
+        }
+        
+        // the quality is only set when it changes, it rarely does between shots
+        final int quality = mJpegQualityPolicy.resolveQuality(jpegQuality);
+        if (quality != mStillRequestQualities[index]) {
+            captureBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) quality);
+            mStillRequestQualities[index] = quality;
+        }
+        
+        // Set request tag to easily track results in callbacks.
+        captureBuilder.setTag(requestTag);
+        
+        mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, mBackgroundHandler);
+        return thumbnailTargeted;
+    }
+    
+    /**
+     * Create the still capture builders, unless they are still valid.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private void prepareStillRequestsLocked() throws CameraAccessException {
+        if (mStillRequestBuilders[0] == null) {
+            mStillRequestBuilders[0] = createStillRequestBuilderLocked(false);
+            mStillRequestQualities[0] = 0;
+        }
+        if (mStillRequestBuilders[1] == null && mThumbnailImageReader != null) {
+            mStillRequestBuilders[1] = createStillRequestBuilderLocked(true);
+            mStillRequestQualities[1] = 0;
+        }
+    }
+    
+    /**
+     * Like {@link #prepareStillRequestsLocked()}, failures are logged and the builders are
+     * created by the next capture instead.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private void prepareStillRequestsQuietlyLocked() {
+        try {
+            prepareStillRequestsLocked();
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Failed to prepare the still capture requests.", e);
         }
     }
     
+    /**
+     * Drop the still capture builders after a change of the preview 3A, flash or EXIF thumbnail
+     * settings; they are created again with the new settings.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private void invalidateStillRequestsLocked() {
+        mStillRequestBuilders[0] = null;
+        mStillRequestBuilders[1] = null;
+    }
     
     /**
-     * Rotation need to transform from the camera sensor orientation to the device's current
-     * orientation.
-     * @param c the {@link CameraCharacteristics} to query for the camera sensor
-     * orientation.
-     * @param deviceOrientation the current device orientation relative to the native device
-     * orientation.
-     * @return the total rotation from the sensor orientation to the current device orientation.
+     * Create a still capture builder with the 3A and flash modes of the preview and the EXIF
+     * thumbnail settings. The JPEG quality and the tag are set for every capture.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     * @param thumbnail whether the request also targets the review thumbnail output
      */
-    private static int sensorToDeviceRotation(CameraCharacteristics c, int deviceOrientation) {
-        int sensorOrientation = c.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    private CaptureRequest.Builder createStillRequestBuilderLocked(boolean thumbnail)
+        throws CameraAccessException {
+        // This is the CaptureRequest.Builder that we use to take a picture.
+        final CaptureRequest.Builder captureBuilder =
+            mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        
+        captureBuilder.addTarget(mJpegImageReader.get().getSurface());
+        if (thumbnail) {
+            captureBuilder.addTarget(mThumbnailImageReader.getSurface());
+        }
+        
+        // Use the same AE and AF modes as the preview.
+        captureBuilder.set(CaptureRequest.CONTROL_MODE,
+            mPreviewRequestBuilder.get(CaptureRequest.CONTROL_MODE));
+        
+        captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+            mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
         
-        // Get device orientation in degrees
-        deviceOrientation = ORIENTATIONS.get(deviceOrientation);
+        captureBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+            mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AE_MODE));
         
-        // Reverse device orientation for front-facing cameras
-        if (c.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT) {
-            deviceOrientation = -deviceOrientation;
+        final Integer flashMode = mPreviewRequestBuilder.get(CaptureRequest.FLASH_MODE);
+        captureBuilder.set(CaptureRequest.FLASH_MODE, flashMode);
+        
+        // if we force the flash we need to update auto-exposure  precapture trigger
+        if (flashMode != null && flashMode == CaptureRequest.FLASH_MODE_SINGLE) {
+            captureBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
         }
         
-        // Calculate desired JPEG orientation relative to camera orientation to make
-        // the image upright relative to the device orientation
-        return (sensorOrientation + deviceOrientation + 360) % 360;
+        captureBuilder.set(CaptureRequest.CONTROL_AWB_MODE,
+            mPreviewRequestBuilder.get(CaptureRequest.CONTROL_AWB_MODE));
+        
+        // EXIF thumbnail parameters
+        captureBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE,
+            mJpegThumbnailEnabled ? mJpegThumbnailSize : NO_JPEG_THUMBNAIL);
+        captureBuilder.set(CaptureRequest.JPEG_THUMBNAIL_QUALITY, JPEG_THUMBNAIL_QUALITY);
+        
+        // fixme this may not work on SAMSUNG devices
+        // Set orientation.
+//        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+//                getJpegOrientationLocked());
+        
+        return captureBuilder;
     }
     
+    
     /**
      * Called after a RAW/JPEG capture has completed; resets the AF trigger state for the
      * pre-capture sequence.
@@ -1430,8 +1918,27 @@ public class CameraController {
          */
         void onCaptureStarted();
         
+        /**
+         * Called on the camera thread with the latest preview timing, when performance monitoring
+         * is enabled.
+         * @see #setPerformanceMonitoringEnabled(boolean)
+         */
+        void onPreviewStats(PreviewFrameMonitor.Stats stats);
+        
+        /**
+         * Called on the camera thread when a capture is delivered, when performance monitoring is
+         * enabled.
+         * @see #setPerformanceMonitoringEnabled(boolean)
+         */
+        void onCaptureTiming(CaptureTiming timing);
+        
         void onSizesAvailable(Size previewSize, Size surfaceSize);
         
+        /**
+         * Called when the preview transform changes. The {@link Matrix} is reused by the
+         * controller, so it must be applied right away or copied, and may be reported from the
+         * camera thread.
+         */
         void onTransformUpdated(Matrix matrix);
     }
     
@@ -0,0 +1,203 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Systrace/Perfetto markers and metrics for the camera stack.
+ * <p>
+ * Synchronous work (copying an image, writing EXIF, decoding) is wrapped in {@link Trace}
+ * sections. Work that spans callbacks (opening the camera, configuring the session, waiting for
+ * the first frame, the pre-capture and still capture of each request) is reported as async
+ * events; the ones that belong to a capture use its request tag as cookie so overlapping captures
+ * show up as separate tracks.
+ * </p>
+ * <p>
+ * Everything is disabled by default and costs a volatile read. Tracing and the
+ * {@link MetricsSink} are enabled independently, so release builds can export metrics without
+ * emitting trace markers. Both should be set up before the camera is opened.
+ * </p>
+ */
+public final class CameraTrace {
+
+    private static final String TAG = CameraTrace.class.getSimpleName();
+
+    public static final String OPEN = "camera:open";
+    public static final String SESSION_CONFIGURE = "camera:configureSession";
+    public static final String FIRST_FRAME = "camera:firstFrame";
+    public static final String CAPTURE = "camera:capture";
+    public static final String PRECAPTURE = "camera:precapture";
+    public static final String STILL_CAPTURE = "camera:stillCapture";
+    public static final String IMAGE_COPY = "camera:imageCopy";
+    public static final String EXIF_WRITE = "camera:exifWrite";
+    public static final String DECODE = "camera:decode";
+    public static final String DISPLAY = "viewer:display";
+
+    public static final String COUNTER_PENDING_CAPTURES = "camera:pendingCaptures";
+    public static final String COUNTER_JPEG_BYTES = "camera:jpegBytes";
+
+    /**
+     * Returned by {@link #beginSection(String)} when nothing is recorded.
+     */
+    private static final long NOT_RECORDED = 0;
+
+    /**
+     * {@code Trace.TRACE_TAG_APP}, the tag of the public {@link Trace} methods.
+     */
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    private static volatile boolean sTracing;
+    private static volatile MetricsSink sMetricsSink;
+
+    /**
+     * The async and counter methods are hidden before API 29.
+     */
+    private static Method sAsyncTraceBegin;
+    private static Method sAsyncTraceEnd;
+    private static Method sTraceCounter;
+
+    /**
+     * Start times of the async events reported to the {@link MetricsSink}, by name and cookie.
+     */
+    private static final Map<String, Map<Integer, Long>> sAsyncStarts = new HashMap<>();
+
+    private CameraTrace() {
+    }
+
+    /**
+     * Enable or disable the trace markers.
+     */
+    public static void setTracingEnabled(boolean enabled) {
+        if (enabled) {
+            resolveHiddenMethods();
+        }
+        sTracing = enabled;
+    }
+
+    /**
+     * Set the sink that receives the section durations and counters, or {@code null} to stop
+     * collecting metrics.
+     */
+    public static void setMetricsSink(MetricsSink sink) {
+        sMetricsSink = sink;
+    }
+
+    /**
+     * Begin a section on the current thread. It must be ended on the same thread with
+     * {@link #endSection(String, long)}.
+     * @return the token to pass to {@link #endSection(String, long)}
+     */
+    public static long beginSection(String name) {
+        if (sTracing) {
+            Trace.beginSection(name);
+        }
+        return sTracing || sMetricsSink != null ? System.nanoTime() : NOT_RECORDED;
+    }
+
+    public static void endSection(String name, long token) {
+        if (token == NOT_RECORDED) {
+            return;
+        }
+        if (sTracing) {
+            Trace.endSection();
+        }
+        final MetricsSink sink = sMetricsSink;
+        if (sink != null) {
+            sink.onSectionEnded(name, System.nanoTime() - token);
+        }
+    }
+
+    /**
+     * Begin an async event, which may end on another thread.
+     * @param cookie distinguishes overlapping events with the same name
+     */
+    public static void beginAsync(String name, int cookie) {
+        if (sTracing) {
+            invokeHidden(sAsyncTraceBegin, name, cookie);
+        }
+        if (sMetricsSink != null) {
+            synchronized (sAsyncStarts) {
+                Map<Integer, Long> starts = sAsyncStarts.get(name);
+                if (starts == null) {
+                    starts = new HashMap<>();
+                    sAsyncStarts.put(name, starts);
+                }
+                starts.put(cookie, System.nanoTime());
+            }
+        }
+    }
+
+    public static void endAsync(String name, int cookie) {
+        if (sTracing) {
+            invokeHidden(sAsyncTraceEnd, name, cookie);
+        }
+        final MetricsSink sink = sMetricsSink;
+        if (sink != null) {
+            final Long start;
+            synchronized (sAsyncStarts) {
+                final Map<Integer, Long> starts = sAsyncStarts.get(name);
+                start = starts != null ? starts.remove(cookie) : null;
+            }
+            if (start != null) {
+                sink.onSectionEnded(name, System.nanoTime() - start);
+            }
+        }
+    }
+
+    public static void counter(String name, long value) {
+        if (sTracing) {
+            invokeHidden(sTraceCounter, name, (int) value);
+        }
+        final MetricsSink sink = sMetricsSink;
+        if (sink != null) {
+            sink.onCounter(name, value);
+        }
+    }
+
+    private static synchronized void resolveHiddenMethods() {
+        if (sAsyncTraceBegin != null) {
+            return;
+        }
+        try {
+            sAsyncTraceBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+            sAsyncTraceEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            sTraceCounter = Trace.class.getMethod("traceCounter", long.class, String.class, int.class);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, "Async trace events are not available.", e);
+        }
+    }
+
+    private static void invokeHidden(Method method, String name, int value) {
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(null, TRACE_TAG_APP, name, value);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to trace " + name, e);
+        }
+    }
+
+    /**
+     * Receives the camera metrics, e.g. to export them from production builds.
+     * The methods are called on the thread doing the work and should return quickly.
+     */
+    public interface MetricsSink {
+
+        /**
+         * Called when a section or async event ends.
+         * @param name          one of the {@link CameraTrace} section names
+         * @param durationNanos duration of the section, in nanoseconds
+         */
+        void onSectionEnded(String name, long durationNanos);
+
+        /**
+         * Called when a counter changes.
+         */
+        void onCounter(String name, long value);
+    }
+}
@@ -9,8 +9,8 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
-import android.util.Pair;
 import android.util.Size;
+import android.view.Gravity;
 import android.view.TextureView;
 import android.view.animation.AlphaAnimation;
 import android.view.animation.Animation;
@@ -21,7 +21,11 @@ import com.futureworkshops.camera2jpegorientation.R;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.List;
 
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
 import io.reactivex.Single;
 
 
@@ -62,10 +66,12 @@ public class CameraView extends FrameLayout {
     private AlphaAnimation mCaptureAnimation;
 
     private final DisplayOrientationDetector mDisplayOrientationDetector;
+    private final DeviceOrientationTracker mDeviceOrientationTracker;
     private boolean mAdjustViewBounds;
     private boolean mRequestLayoutOnOpen;
     private CameraStateCallback mCameraStateCallback;
     private PreviewSizeListener mPreviewSizeListener;
+    private PerformanceHudView mPerformanceHud;
 
     private CameraController.Callback mCameraControllerCallback = new CameraController.Callback() {
         @Override
@@ -103,18 +109,55 @@ public class CameraView extends FrameLayout {
             });
         }
 
+        @Override
+        public void onPreviewStats(final PreviewFrameMonitor.Stats stats) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPerformanceHud != null) {
+                        mPerformanceHud.setPreviewStats(stats);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCaptureTiming(final CaptureTiming timing) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPerformanceHud != null) {
+                        mPerformanceHud.setCaptureTiming(timing);
+                    }
+                }
+            });
+        }
+
         @Override
         public void onSizesAvailable(Size previewSize, Size surfaceSize) {
-            if (mPreviewSizeListener != null) {
-                Size preview = new Size(previewSize.getWidth(), previewSize.getHeight());
-                Size surface = new Size(surfaceSize.getWidth(), surfaceSize.getHeight());
-                mPreviewSizeListener.onPreviewSizesCalculated(preview, surface);
-            }
+            final Size preview = new Size(previewSize.getWidth(), previewSize.getHeight());
+            final Size surface = new Size(surfaceSize.getWidth(), surfaceSize.getHeight());
+            // also reported from the camera thread when the camera starts
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPreviewSizeListener != null) {
+                        mPreviewSizeListener.onPreviewSizesCalculated(preview, surface);
+                    }
+                }
+            });
         }
 
         @Override
         public void onTransformUpdated(Matrix matrix) {
-            mTextureView.setTransform(matrix);
+            final Matrix transform = new Matrix(matrix);
+            // also computed on the camera thread when the camera starts
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mTextureView.setTransform(transform);
+                }
+            });
         }
     };
 
@@ -133,6 +176,7 @@ public class CameraView extends FrameLayout {
         if (isInEditMode()) {
             mCameraController = null;
             mDisplayOrientationDetector = null;
+            mDeviceOrientationTracker = null;
             return;
         }
 
@@ -159,6 +203,14 @@ public class CameraView extends FrameLayout {
                 mCameraController.setDisplayOrientation(displayOrientation);
             }
         };
+
+        // Physical orientation tracker, keeps captures upright when the UI rotation is locked
+        mDeviceOrientationTracker = new DeviceOrientationTracker(context) {
+            @Override
+            public void onDeviceOrientationChanged(int deviceOrientation) {
+                mCameraController.setDeviceOrientation(deviceOrientation);
+            }
+        };
     }
 
     @Override
@@ -167,6 +219,7 @@ public class CameraView extends FrameLayout {
 
         if (!isInEditMode()) {
             mDisplayOrientationDetector.enable(getDisplay());
+            mDeviceOrientationTracker.enable();
         }
     }
 
@@ -174,10 +227,18 @@ public class CameraView extends FrameLayout {
     protected void onDetachedFromWindow() {
         if (!isInEditMode()) {
             mDisplayOrientationDetector.disable();
+            mDeviceOrientationTracker.disable();
         }
         super.onDetachedFromWindow();
     }
 
+    /**
+     * Gets the tracker of the physical device orientation, e.g. to tune its hysteresis.
+     */
+    public DeviceOrientationTracker getDeviceOrientationTracker() {
+        return mDeviceOrientationTracker;
+    }
+
     public void setCameraStateCallback(CameraStateCallback cameraStateCallback) {
         mCameraStateCallback = cameraStateCallback;
     }
@@ -268,11 +329,68 @@ public class CameraView extends FrameLayout {
         return flash;
     }
 
+    /**
+     * Gets the preview sizes ranked when the current preview size was chosen, from the best to
+     * the worst.
+     */
+    public List<PreviewSizeSelector.Candidate> getPreviewSizeCandidates() {
+        return mCameraController.getPreviewSizeCandidates();
+    }
+
+    /**
+     * Enables frame analysis with frames of (approximately) {@code analysisSize}, or disables it
+     * when {@code null}. Takes effect the next time the camera is started.
+     *
+     * @see CameraController#setFrameAnalysisSize(Size)
+     */
+    public void setFrameAnalysisSize(@Nullable Size analysisSize) {
+        mCameraController.setFrameAnalysisSize(analysisSize);
+    }
+
+    /**
+     * Gets the stream of YUV preview frames. Every frame must be released once analysed.
+     *
+     * @see CameraController#getPreviewFrames()
+     */
+    public Flowable<PreviewFrame> getPreviewFrames() {
+        return mCameraController.getPreviewFrames();
+    }
+
+    /**
+     * Shows or hides an overlay with the preview frame rate, jitter and dropped frames and the
+     * latency breakdown of the last capture.
+     *
+     * @param enabled {@code true} to measure and show the timing.
+     */
+    public void setPerformanceHudEnabled(boolean enabled) {
+        if (enabled && mPerformanceHud == null) {
+            mPerformanceHud = new PerformanceHudView(getContext());
+            addView(mPerformanceHud, new LayoutParams(LayoutParams.WRAP_CONTENT,
+                    LayoutParams.WRAP_CONTENT, Gravity.TOP | Gravity.START));
+        } else if (!enabled && mPerformanceHud != null) {
+            removeView(mPerformanceHud);
+            mPerformanceHud = null;
+        }
+        mCameraController.setPerformanceMonitoringEnabled(enabled);
+    }
+
+    /**
+     * Release camera memory according to a trim level, typically from a
+     * {@link ResourceGovernor.Trimmable} registered by the hosting activity.
+     *
+     * @param level one of the {@code TRIM_MEMORY_} levels of {@link android.content.ComponentCallbacks2}.
+     * @see CameraController#trimMemory(int)
+     */
+    public void trimMemory(int level) {
+        mCameraController.trimMemory(level);
+    }
+
     /**
      * Open a camera device and start showing camera preview. This is typically called from
-     * {@link android.app.Activity#onResume()}.
+     * {@link android.app.Activity#onResume()}. The camera is opened in the background; failing to
+     * open it, e.g. without the camera permission, is logged and the camera stays closed.
      */
-    public void start() throws SecurityException {
+    public void start() {
         mCameraController.startCamera();
 
         // media sound is released every time we call stop() so make sure to init when we start
@@ -304,14 +422,75 @@ public class CameraView extends FrameLayout {
      * Capture a still image trying to use auto-focus,
      * auto-white-balance and auto-exposure(if not changed by user).
      * <p/>
-     * The capture process is already running in a background thread!
+     * The capture process is already running on the camera thread and the result is delivered
+     * on it, use {@link #takePicture(Scheduler)} to receive it on another thread.
      *
-     * @return a {@link Pair} containing the image data ({@code byte[]}) and the rotation that
-     * needs to be applied to the image in roder to match the current device rotation.
+     * @return the {@link CapturedImage} with the image data and the rotation that needs to be
+     * applied to the image in order to match the current device rotation. It must be closed once
+     * consumed.
      */
-    public Single<Pair<byte[], Integer>> takePicture() {
+    public Single<CapturedImage> takePicture() {
         return mCameraController.takePicture();
     }
+
+    /**
+     * Capture a still image using a specific JPEG quality.
+     *
+     * @param jpegQuality the JPEG quality, between 1 and 100.
+     * @see #takePicture()
+     */
+    public Single<CapturedImage> takePicture(int jpegQuality) {
+        return mCameraController.takePicture(jpegQuality, null);
+    }
+
+    /**
+     * Capture a still image and deliver the result on {@code resultScheduler}.
+     *
+     * @param resultScheduler the {@link Scheduler} on which the result is delivered.
+     * @see #takePicture()
+     */
+    public Single<CapturedImage> takePicture(Scheduler resultScheduler) {
+        return mCameraController.takePicture(resultScheduler);
+    }
+
+    /**
+     * Capture a still image and a small review thumbnail of it, delivered on
+     * {@code resultScheduler}. The thumbnail is emitted first, well before the full image.
+     *
+     * @param resultScheduler the {@link Scheduler} on which the images are delivered.
+     * @see #setReviewThumbnailsEnabled(boolean)
+     * @see CameraController#takePictureWithThumbnail(int, Scheduler)
+     */
+    public Observable<CapturedImage> takePictureWithThumbnail(Scheduler resultScheduler) {
+        return mCameraController.takePictureWithThumbnail(JpegQualityPolicy.QUALITY_DEFAULT,
+                resultScheduler);
+    }
+
+    /**
+     * Enables the review thumbnails of {@link #takePictureWithThumbnail(Scheduler)}. This should
+     * be called before {@link #start()}.
+     *
+     * @param enabled {@code true} to add a thumbnail output to the camera session.
+     */
+    public void setReviewThumbnailsEnabled(boolean enabled) {
+        mCameraController.setReviewThumbnailsEnabled(enabled);
+    }
+
+    /**
+     * Sets the JPEG quality used by {@link #takePicture()}.
+     *
+     * @param jpegQuality a value between 1 and 100.
+     */
+    public void setJpegQuality(int jpegQuality) {
+        mCameraController.setJpegQuality(jpegQuality);
+    }
+
+    /**
+     * Gets the policy that chooses the JPEG quality, e.g. to enable the adaptive quality.
+     */
+    public JpegQualityPolicy getJpegQualityPolicy() {
+        return mCameraController.getJpegQualityPolicy();
+    }
     
 
     @Override
@@ -0,0 +1,87 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import java.util.Locale;
+
+/**
+ * Counts of the captures that did not end with a delivered JPEG, since the
+ * {@link CameraController} was created. Each is a snapshot, taken by
+ * {@link CameraController#getCaptureCounters()}.
+ */
+public final class CaptureCounters {
+
+    private final int cancelledBeforeStill;
+    private final int cancelledAfterStill;
+    private final int expiredBeforeStill;
+    private final int expiredAfterStill;
+    private final int failedOnClose;
+    private final int orphanedImages;
+
+    CaptureCounters(int cancelledBeforeStill, int cancelledAfterStill, int expiredBeforeStill,
+                    int expiredAfterStill, int failedOnClose, int orphanedImages) {
+        this.cancelledBeforeStill = cancelledBeforeStill;
+        this.cancelledAfterStill = cancelledAfterStill;
+        this.expiredBeforeStill = expiredBeforeStill;
+        this.expiredAfterStill = expiredAfterStill;
+        this.failedOnClose = failedOnClose;
+        this.orphanedImages = orphanedImages;
+    }
+
+    /**
+     * @return the number of captures disposed before their still request was sent.
+     */
+    public int getCancelledBeforeStill() {
+        return cancelledBeforeStill;
+    }
+
+    /**
+     * @return the number of captures disposed after their still request was sent, whose images
+     * were freed without being read.
+     */
+    public int getCancelledAfterStill() {
+        return cancelledAfterStill;
+    }
+
+    /**
+     * @return the number of captures failed by the watchdog because their still request could
+     * not be sent in time.
+     */
+    public int getExpiredBeforeStill() {
+        return expiredBeforeStill;
+    }
+
+    /**
+     * @return the number of captures failed by the watchdog because their JPEG never arrived.
+     */
+    public int getExpiredAfterStill() {
+        return expiredAfterStill;
+    }
+
+    /**
+     * @return the number of captures failed because the camera was closed.
+     */
+    public int getFailedOnClose() {
+        return failedOnClose;
+    }
+
+    /**
+     * @return the number of images that arrived for no capture and were freed without being read.
+     */
+    public int getOrphanedImages() {
+        return orphanedImages;
+    }
+
+    /**
+     * @return the number of captures reclaimed by the watchdog or by closing the camera.
+     */
+    public int getReclaimed() {
+        return expiredBeforeStill + expiredAfterStill + failedOnClose;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "cancelled %d+%d, expired %d+%d, failed on close %d, orphaned images %d",
+            cancelledBeforeStill, cancelledAfterStill, expiredBeforeStill, expiredAfterStill,
+            failedOnClose, orphanedImages);
+    }
+}
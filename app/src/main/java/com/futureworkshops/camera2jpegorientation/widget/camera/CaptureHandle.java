@@ -0,0 +1,110 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A reference to a capture kept by a {@link CaptureStore}.
+ * <p>
+ * The capture data stays valid until {@link #release()} is called, even if the store evicts
+ * the capture in the meantime.
+ * </p>
+ */
+public final class CaptureHandle {
+
+    private final CaptureStore mStore;
+    private final CaptureStore.Entry mEntry;
+    private final ByteBuffer mData;
+    private boolean mReleased;
+
+    CaptureHandle(CaptureStore store, CaptureStore.Entry entry) {
+        mStore = store;
+        mEntry = entry;
+        mData = entry.buffer.asReadOnlyBuffer();
+    }
+
+    public long getId() {
+        return mEntry.id;
+    }
+
+    /**
+     * @return the rotation that needs to be applied to the image, in degrees.
+     */
+    public int getRotation() {
+        return mEntry.rotation;
+    }
+
+    /**
+     * @return the time the capture was stored, in milliseconds since epoch.
+     */
+    public long getTimestamp() {
+        return mEntry.timestamp;
+    }
+
+    /**
+     * @return the size of the JPEG data, in bytes.
+     */
+    public int getSize() {
+        return mEntry.size;
+    }
+
+    /**
+     * Acquire another reference to the same capture, e.g. to read it on another thread while
+     * this handle may be released.
+     */
+    @NonNull
+    public CaptureHandle duplicate() {
+        checkNotReleased();
+        return mStore.acquire(mEntry);
+    }
+
+    /**
+     * @return a new read-only view over the JPEG data.
+     */
+    @NonNull
+    public ByteBuffer getData() {
+        checkNotReleased();
+        return mData.duplicate();
+    }
+
+    /**
+     * @return a new {@link InputStream} reading the JPEG data without copying it.
+     */
+    @NonNull
+    public InputStream openStream() {
+        return new ByteBufferInputStream(getData());
+    }
+
+    /**
+     * Copy the JPEG data to the Java heap. Prefer {@link #getData()} or {@link #openStream()}.
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        final ByteBuffer data = getData();
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Release the reference to the capture. Calling this more than once has no effect.
+     */
+    public synchronized void release() {
+        if (!mReleased) {
+            mReleased = true;
+            mStore.release(mEntry);
+        }
+    }
+
+    public synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    private synchronized void checkNotReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("Capture handle " + mEntry.id + " was released");
+        }
+    }
+}
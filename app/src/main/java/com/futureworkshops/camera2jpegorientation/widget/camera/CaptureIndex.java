@@ -0,0 +1,352 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only index of the JPEGs saved by {@link JpegSaver}, so that saved captures can be listed
+ * without opening every file.
+ * <p>
+ * The index is a small header followed by fixed-width records: file id, capture timestamp, size,
+ * dimensions, checksum and EXIF orientation. Saving a capture appends a record and deleting one
+ * appends a tombstone; a later record for the same id replaces the earlier ones. Listing maps the
+ * file and reads it sequentially. Once dead records outnumber live ones the index is
+ * {@link #compactIfNeeded() compacted} into a new file, moved over the old one.
+ * </p>
+ * The index is a cache of the file metadata: records are not synced to disk one by one, so a
+ * listed file may be missing after a crash. A record torn by a crash is dropped when the index
+ * is opened. This class is thread safe; it does disk I/O, use it on a background thread.
+ */
+public class CaptureIndex {
+
+    /**
+     * "CIDX"
+     */
+    static final int MAGIC = 0x43494458;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+
+    private static final short FLAG_DELETED = 1;
+
+    /**
+     * Compaction is skipped below this number of dead records, rewriting the index would cost
+     * more than reading them.
+     */
+    static final int COMPACT_MIN_DEAD_RECORDS = 64;
+
+    private static final int CHECKSUM_CHUNK = 64 * 1024;
+
+    private final File mFile;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+    private RandomAccessFile mAccess;
+    private final Set<Long> mLiveIds = new HashSet<>();
+    private int mDeadRecords;
+
+    public CaptureIndex(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * Record a saved file, replacing any previous record with the same id.
+     */
+    public synchronized void add(@NonNull Entry entry) throws IOException {
+        open();
+        if (!mLiveIds.add(entry.mId)) {
+            mDeadRecords++;
+        }
+        mRecord.clear();
+        putRecord(mRecord, entry, (short) 0);
+        append();
+    }
+
+    /**
+     * Record that a file was deleted.
+     */
+    public synchronized void remove(long id) throws IOException {
+        open();
+        if (!mLiveIds.remove(id)) {
+            return;
+        }
+        // the tombstone and the record it cancels
+        mDeadRecords += 2;
+        mRecord.clear();
+        putRecord(mRecord, new Entry(id, 0, 0, 0, 0, 0, 0), FLAG_DELETED);
+        append();
+    }
+
+    /**
+     * @return the live records, in the order the files were first saved
+     */
+    @NonNull
+    public synchronized List<Entry> list() throws IOException {
+        open();
+        return new ArrayList<>(read(mAccess.getChannel()).values());
+    }
+
+    /**
+     * @return the number of live records
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return mLiveIds.size();
+    }
+
+    /**
+     * Rewrite the index without its dead records if they outnumber the live ones.
+     * @return true if the index was compacted
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        open();
+        if (mDeadRecords < COMPACT_MIN_DEAD_RECORDS || mDeadRecords <= mLiveIds.size()) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Rewrite the index with the live records only.
+     */
+    public synchronized void compact() throws IOException {
+        open();
+        final List<Entry> entries = new ArrayList<>(read(mAccess.getChannel()).values());
+
+        final File compacted = new File(mFile.getPath() + ".tmp");
+        try (RandomAccessFile access = new RandomAccessFile(compacted, "rw")) {
+            access.setLength(0);
+            final FileChannel channel = access.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * RECORD_SIZE);
+            putHeader(buffer);
+            for (Entry entry : entries) {
+                putRecord(buffer, entry, (short) 0);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+
+        close();
+        if (!compacted.renameTo(mFile)) {
+            compacted.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+        open();
+    }
+
+    public synchronized void close() throws IOException {
+        if (mAccess != null) {
+            mAccess.close();
+            mAccess = null;
+        }
+    }
+
+    /**
+     * @return the CRC32 of the segments, read from their position to their limit
+     */
+    static int checksum(ByteBuffer[] segments) {
+        final CRC32 crc = new CRC32();
+        byte[] chunk = null;
+        for (ByteBuffer segment : segments) {
+            if (segment.hasArray()) {
+                crc.update(segment.array(), segment.arrayOffset() + segment.position(),
+                    segment.remaining());
+                continue;
+            }
+            // CRC32.update(ByteBuffer) needs API 26
+            if (chunk == null) {
+                chunk = new byte[CHECKSUM_CHUNK];
+            }
+            final ByteBuffer data = segment.duplicate();
+            while (data.hasRemaining()) {
+                final int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private void open() throws IOException {
+        if (mAccess != null) {
+            return;
+        }
+        mAccess = new RandomAccessFile(mFile, "rw");
+        final FileChannel channel = mAccess.getChannel();
+        if (!hasValidHeader(channel)) {
+            // missing, from another version or corrupted: the files are indexed again as saved
+            channel.truncate(0);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            putHeader(header);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+
+        // drop a record torn by a crash while appending
+        final long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        channel.truncate(HEADER_SIZE + records * RECORD_SIZE);
+
+        mLiveIds.clear();
+        mLiveIds.addAll(read(channel).keySet());
+        mDeadRecords = (int) records - mLiveIds.size();
+    }
+
+    private void append() throws IOException {
+        final FileChannel channel = mAccess.getChannel();
+        long position = channel.size();
+        mRecord.flip();
+        while (mRecord.hasRemaining()) {
+            position += channel.write(mRecord, position);
+        }
+    }
+
+    private static Map<Long, Entry> read(FileChannel channel) throws IOException {
+        final Map<Long, Entry> entries = new LinkedHashMap<>();
+        final long size = channel.size() - HEADER_SIZE;
+        if (size < RECORD_SIZE) {
+            return entries;
+        }
+
+        final MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+            size - size % RECORD_SIZE);
+        while (records.remaining() >= RECORD_SIZE) {
+            final long id = records.getLong();
+            final long timestamp = records.getLong();
+            final long fileSize = records.getLong();
+            final int width = records.getInt();
+            final int height = records.getInt();
+            final int checksum = records.getInt();
+            final int orientation = records.getShort();
+            final short flags = records.getShort();
+            if ((flags & FLAG_DELETED) != 0) {
+                entries.remove(id);
+            } else {
+                // keeps the position of the first save
+                entries.put(id, new Entry(id, timestamp, fileSize, width, height, orientation, checksum));
+            }
+        }
+        return entries;
+    }
+
+    private static boolean hasValidHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION && header.getInt() == RECORD_SIZE;
+    }
+
+    private static void putRecord(ByteBuffer buffer, Entry entry, short flags) {
+        buffer.putLong(entry.mId)
+            .putLong(entry.mTimestamp)
+            .putLong(entry.mSize)
+            .putInt(entry.mWidth)
+            .putInt(entry.mHeight)
+            .putInt(entry.mChecksum)
+            .putShort((short) entry.mOrientation)
+            .putShort(flags);
+    }
+
+    private static void putHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+    }
+
+    /**
+     * Metadata of a saved JPEG.
+     */
+    public static final class Entry {
+
+        private final long mId;
+        private final long mTimestamp;
+        private final long mSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mOrientation;
+        private final int mChecksum;
+
+        Entry(long id, long timestamp, long size, int width, int height, int orientation,
+              int checksum) {
+            mId = id;
+            mTimestamp = timestamp;
+            mSize = size;
+            mWidth = width;
+            mHeight = height;
+            mOrientation = orientation;
+            mChecksum = checksum;
+        }
+
+        /**
+         * @return the id the file was saved with, see {@link JpegSaver#getFileName(long)}
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return the time of the capture, in milliseconds since epoch.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return the size of the file, in bytes.
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return the width of the image, before the orientation is applied.
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return the height of the image, before the orientation is applied.
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return the EXIF orientation written to the file.
+         */
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        /**
+         * @return the CRC32 of the file.
+         */
+        public int getChecksum() {
+            return mChecksum;
+        }
+    }
+}
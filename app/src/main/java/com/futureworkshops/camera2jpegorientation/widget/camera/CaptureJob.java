@@ -0,0 +1,259 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A capture going through a {@link CapturePipeline}, with what its stages found or produced so
+ * far.
+ * <p>
+ * A job is processed by one stage at a time, so its state needs no locking; the hand-off between
+ * stages makes it visible to the next one. The options are set before the job is submitted.
+ * </p>
+ */
+public final class CaptureJob {
+
+    private static final String TAG = CaptureJob.class.getSimpleName();
+
+    private final long mId;
+    private final long mTimestamp;
+    private final int mRotation;
+    private final ByteBuffer mSource;
+    private AutoCloseable mSourceRelease;
+
+    private Rect mCrop;
+    private int mMaxSize;
+    private int mJpegQuality = JpegQualityPolicy.QUALITY_DEFAULT;
+    private Object mTag;
+
+    private int mExifOrientation;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer[] mSegments;
+    private Bitmap mBitmap;
+    private int mChecksum;
+    private String mPath;
+
+    private String mFailedStage;
+    private Throwable mFailure;
+
+    /**
+     * @param id        the id of the capture, which names its file
+     * @param timestamp the time of the capture, in milliseconds since epoch
+     * @param source    the JPEG of the capture, from its position to its limit; it is not modified
+     * @param rotation  the rotation that needs to be applied to the image
+     * @param release   closed once the job has left the pipeline, after which {@code source} is
+     *                  no longer read
+     */
+    public CaptureJob(long id, long timestamp, @NonNull ByteBuffer source, int rotation,
+                      @Nullable AutoCloseable release) {
+        mId = id;
+        mTimestamp = timestamp;
+        mSource = source.slice().asReadOnlyBuffer();
+        mRotation = rotation;
+        mSourceRelease = release;
+    }
+
+    /**
+     * Keep only a region of the image, in the coordinates of the encoded image, before the
+     * rotation is applied. The image is decoded and encoded again.
+     */
+    public void setCrop(@Nullable Rect crop) {
+        mCrop = crop;
+    }
+
+    /**
+     * Scale the image down so that neither side exceeds {@code maxSize} pixels. The image is
+     * decoded and encoded again.
+     * @param maxSize the largest side in pixels, or {@code 0} to keep the size
+     */
+    public void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Set the quality of the JPEG encoded when the image is cropped or scaled.
+     * @param jpegQuality a value between 1 and 100, or {@link JpegQualityPolicy#QUALITY_DEFAULT}
+     *                    to use the quality of the policy given to {@link CaptureStages#encode}
+     */
+    public void setJpegQuality(int jpegQuality) {
+        if (jpegQuality != JpegQualityPolicy.QUALITY_DEFAULT) {
+            JpegQualityPolicy.checkQuality(jpegQuality);
+        }
+        mJpegQuality = jpegQuality;
+    }
+
+    /**
+     * Attach an object of the caller to the job, e.g. to find who waits for it once it is done.
+     */
+    public void setTag(@Nullable Object tag) {
+        mTag = tag;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return the time of the capture, in milliseconds since epoch.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the rotation that needs to be applied to the image, in degrees.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    @Nullable
+    public Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * @return a new read-only view of the JPEG given to the job.
+     */
+    @NonNull
+    public ByteBuffer getSource() {
+        return mSource.duplicate();
+    }
+
+    @Nullable
+    public Rect getCrop() {
+        return mCrop;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the requested quality or {@link JpegQualityPolicy#QUALITY_DEFAULT}.
+     */
+    public int getJpegQuality() {
+        return mJpegQuality;
+    }
+
+    /**
+     * @return whether the image must be decoded and encoded again.
+     */
+    public boolean isReencoded() {
+        return mCrop != null || mMaxSize > 0;
+    }
+
+    /**
+     * @return the EXIF orientation written with the image, once oriented.
+     */
+    public int getExifOrientation() {
+        return mExifOrientation;
+    }
+
+    /**
+     * @return the width of the image that is saved, before the rotation is applied.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the height of the image that is saved, before the rotation is applied.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the JPEG to save, in segments to be written in order, or {@code null} before the
+     * job is oriented.
+     */
+    @Nullable
+    public ByteBuffer[] getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * @return the CRC32 of the segments, once computed.
+     */
+    public int getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * @return the path of the saved file, or {@code null} before it is saved.
+     */
+    @Nullable
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return the name of the stage that failed, or {@code null} if none did.
+     */
+    @Nullable
+    public String getFailedStage() {
+        return mFailedStage;
+    }
+
+    /**
+     * @return what made the job fail, or {@code null} if it didn't.
+     */
+    @Nullable
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    @Nullable
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    void setBitmap(@Nullable Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    void setImage(@NonNull ByteBuffer[] segments, int exifOrientation, int width, int height) {
+        mSegments = segments;
+        mExifOrientation = exifOrientation;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    void setChecksum(int checksum) {
+        mChecksum = checksum;
+    }
+
+    void setPath(@NonNull String path) {
+        mPath = path;
+    }
+
+    void fail(@NonNull String stage, @NonNull Throwable failure) {
+        mFailedStage = stage;
+        mFailure = failure;
+    }
+
+    /**
+     * Free what the job still holds. Called by the pipeline once the job is done.
+     */
+    void release() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        if (mSourceRelease != null) {
+            try {
+                mSourceRelease.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to release capture " + mId, e);
+            }
+            mSourceRelease = null;
+        }
+    }
+}
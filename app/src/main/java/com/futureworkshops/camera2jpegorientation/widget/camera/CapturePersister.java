@@ -0,0 +1,235 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import io.reactivex.functions.Consumer;
+
+/**
+ * Writes captures to disk in the background as soon as they are taken, so the file is
+ * normally ready by the time a screen needs it.
+ * <p>
+ * Captures go through a {@link CapturePipeline} made of {@link CaptureStages}, so the EXIF
+ * orientation and checksum of a capture are computed while the previous one is written, and
+ * are saved through a {@link JpegSaver}. Each capture is saved once; the {@link Future} returned
+ * by {@link #persist(CaptureHandle)} resolves to the file path, or {@code null} if the file could
+ * not be saved. Captures are handed to the pipeline from a background thread, which waits while
+ * the pipeline is full rather than the caller.
+ * </p>
+ * <p>
+ * Saved captures are recorded in the {@link CaptureIndex} of the saver and kept until they are
+ * discarded or, oldest first, once there are more than {@code maxSavedCaptures}; a capture whose
+ * file was deleted is saved again by {@link #persist(CaptureHandle)}. Deleting files happens on
+ * the background thread, once the file is saved.
+ * </p>
+ * This class is thread safe.
+ */
+public class CapturePersister {
+
+    private static final String THREAD_NAME = "CapturePersister";
+
+    /**
+     * Captures waiting for each stage, beyond which the stage before waits.
+     */
+    private static final int STAGE_QUEUE_CAPACITY = 4;
+
+    private final JpegSaver mJpegSaver;
+    private final CapturePipeline mPipeline;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME);
+        }
+    });
+
+    /**
+     * Pending and completed saves, by capture id.
+     */
+    private final Map<Long, Future<String>> mFiles = new HashMap<>();
+
+    /**
+     * @param maxSavedCaptures number of saved captures kept on disk
+     */
+    public CapturePersister(@NonNull JpegSaver jpegSaver, int maxSavedCaptures) {
+        mJpegSaver = jpegSaver;
+
+        // captures are saved as the camera encoded them, so the crop, downscale and encode
+        // stages would only let them through
+        mPipeline = new CapturePipeline.Builder()
+            .addStage(CaptureStages.orient(), 1, STAGE_QUEUE_CAPACITY)
+            .addStage(CaptureStages.checksum(), 1, STAGE_QUEUE_CAPACITY)
+            .addStage(CaptureStages.persist(jpegSaver, maxSavedCaptures, new Consumer<Long>() {
+                @Override
+                public void accept(Long captureId) {
+                    // the file is gone, a new save must write it again
+                    forget(captureId);
+                }
+            }), 1, STAGE_QUEUE_CAPACITY)
+            .addStage(CaptureStages.publish(new Consumer<CaptureJob>() {
+                @Override
+                public void accept(CaptureJob job) {
+                    complete(job);
+                }
+            }), 1, STAGE_QUEUE_CAPACITY)
+            .setListener(new CapturePipeline.Listener() {
+                @Override
+                public void onJobFinished(@NonNull CaptureJob job) {
+                    // failed jobs skip the publish stage
+                    complete(job);
+                }
+            })
+            .build();
+    }
+
+    /**
+     * @return the throughput and queue depth of every stage saving captures.
+     */
+    @NonNull
+    public List<CapturePipeline.StageMetrics> getMetrics() {
+        return mPipeline.getMetrics();
+    }
+
+    /**
+     * @see JpegSaver#setWriteListener(JpegSaver.WriteListener)
+     */
+    public void setWriteListener(@Nullable JpegSaver.WriteListener writeListener) {
+        mJpegSaver.setWriteListener(writeListener);
+    }
+
+    /**
+     * Start saving a capture, unless it was already saved or is being saved.
+     * <p>
+     * The capture is read through its own handle, so {@code handle} can be released right away.
+     * </p>
+     * @return the path of the file, once saved
+     */
+    @NonNull
+    public synchronized Future<String> persist(@NonNull CaptureHandle handle) {
+        final Future<String> existing = mFiles.get(handle.getId());
+        if (existing != null) {
+            return existing;
+        }
+
+        final CaptureHandle capture = handle.duplicate();
+        final CaptureJob job = new CaptureJob(capture.getId(), capture.getTimestamp(),
+            capture.getData(), capture.getRotation(), new AutoCloseable() {
+            @Override
+            public void close() {
+                capture.release();
+            }
+        });
+        final FutureTask<String> file = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() {
+                return job.getPath();
+            }
+        });
+        job.setTag(file);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // waits while the pipeline is full
+                    mPipeline.submit(job);
+                } catch (InterruptedException | RuntimeException e) {
+                    e.printStackTrace();
+                    file.run();
+                    capture.release();
+                }
+            }
+        });
+        mFiles.put(handle.getId(), file);
+        return file;
+    }
+
+    /**
+     * Resolve the future of a job leaving the pipeline to its path. It only runs once.
+     */
+    private static void complete(CaptureJob job) {
+        ((FutureTask<?>) job.getTag()).run();
+    }
+
+    private synchronized void forget(long captureId) {
+        mFiles.remove(captureId);
+    }
+
+    /**
+     * @return the save started for the capture or {@code null} if it was never persisted or its
+     * file was deleted since.
+     */
+    @Nullable
+    public synchronized Future<String> getFile(long captureId) {
+        return mFiles.get(captureId);
+    }
+
+    /**
+     * Forget a capture and delete its file, after it is saved if a save is still in progress.
+     */
+    public synchronized void discard(long captureId) {
+        final Future<String> file = mFiles.remove(captureId);
+        if (file == null) {
+            return;
+        }
+
+        // queued after the save, so the file is complete (or missing) by then
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (file.get() != null) {
+                        mJpegSaver.deleteTempJpeg(captureId);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * List the saved captures from the index, once the saves started so far are done.
+     * @return the captures, oldest first
+     */
+    @NonNull
+    public Future<List<SavedCapture>> listSaved() {
+        final List<Future<String>> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(mFiles.values());
+        }
+        return mExecutor.submit(new Callable<List<SavedCapture>>() {
+            @Override
+            public List<SavedCapture> call() throws Exception {
+                for (Future<String> file : pending) {
+                    file.get();
+                }
+                final List<CaptureIndex.Entry> entries = mJpegSaver.listTempJpegs();
+                final List<SavedCapture> captures = new ArrayList<>(entries.size());
+                for (CaptureIndex.Entry entry : entries) {
+                    captures.add(new SavedCapture(mJpegSaver.getTempJpeg(entry.getId()), entry));
+                }
+                return captures;
+            }
+        });
+    }
+}
@@ -0,0 +1,465 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes captures after they are taken through a chain of {@link Stage}s, e.g. the ones of
+ * {@link CaptureStages}.
+ * <p>
+ * Every stage has its own worker threads and a bounded queue of the jobs waiting for it. A worker
+ * hands the job it finished to the next stage and waits while that stage's queue is full, so a
+ * slow stage holds back the ones before it instead of piling up captures in memory, and the
+ * back-pressure reaches {@link #submit(CaptureJob)} or {@link #offer(CaptureJob)}. Giving the CPU
+ * bound stages several threads spreads a burst over the cores, while a stage writing to storage
+ * can keep a single one.
+ * </p>
+ * <p>
+ * A job leaves the pipeline after the last stage, or as soon as a stage fails, and the
+ * {@link Listener} is notified on the thread of the stage it left. Jobs can overtake each other
+ * on stages with several threads.
+ * </p>
+ * Each stage is traced as a {@link CameraTrace} section named {@code pipeline:<stage>}, and its
+ * queue depth as the counter {@code pipeline:<stage>:queue}. {@link #getMetrics()} reports the
+ * throughput and queue depth of every stage.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class CapturePipeline {
+
+    private static final String TAG = CapturePipeline.class.getSimpleName();
+
+    private final List<StageRunner> mStages;
+    private final Listener mListener;
+    private final long mStartNanos = System.nanoTime();
+    private volatile boolean mShutdown;
+
+    private CapturePipeline(Builder builder) {
+        mListener = builder.mListener;
+        final List<StageRunner> stages = new ArrayList<>(builder.mStages.size());
+        for (int i = 0; i < builder.mStages.size(); i++) {
+            stages.add(new StageRunner(builder.mStages.get(i), builder.mThreads.get(i),
+                builder.mQueueCapacities.get(i)));
+        }
+        mStages = Collections.unmodifiableList(stages);
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).start(builder.mThreadFactory, i + 1 < mStages.size() ? mStages.get(i + 1) : null);
+        }
+    }
+
+    /**
+     * Queue a job, waiting while the first stage is full.
+     * @throws IllegalStateException if the pipeline is shut down
+     */
+    public void submit(@NonNull CaptureJob job) throws InterruptedException {
+        checkRunning();
+        mStages.get(0).put(job);
+    }
+
+    /**
+     * Queue a job if the first stage has room for it.
+     * @return {@code false} if the job was not queued because the first stage is full
+     * @throws IllegalStateException if the pipeline is shut down
+     */
+    public boolean offer(@NonNull CaptureJob job) {
+        checkRunning();
+        return mStages.get(0).offer(job);
+    }
+
+    /**
+     * @return a snapshot of the metrics of every stage, in pipeline order.
+     */
+    @NonNull
+    public List<StageMetrics> getMetrics() {
+        final long elapsedNanos = System.nanoTime() - mStartNanos;
+        final List<StageMetrics> metrics = new ArrayList<>(mStages.size());
+        for (StageRunner stage : mStages) {
+            metrics.add(stage.getMetrics(elapsedNanos));
+        }
+        return metrics;
+    }
+
+    /**
+     * Stop the workers and wait for them to exit. The jobs being processed are interrupted and
+     * the ones still queued fail with a {@link CancellationException}.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (StageRunner stage : mStages) {
+            stage.interrupt();
+        }
+        try {
+            for (StageRunner stage : mStages) {
+                stage.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // no worker moves jobs anymore
+        for (StageRunner stage : mStages) {
+            stage.cancelQueued();
+        }
+    }
+
+    private void checkRunning() {
+        if (mShutdown) {
+            throw new IllegalStateException("Capture pipeline is shut down");
+        }
+    }
+
+    private void finish(CaptureJob job) {
+        try {
+            if (mListener != null) {
+                mListener.onJobFinished(job);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Listener failed for capture " + job.getId(), e);
+        } finally {
+            job.release();
+        }
+    }
+
+    /**
+     * The workers and the queue of a stage.
+     */
+    private final class StageRunner implements Runnable {
+
+        private final Stage mStage;
+        private final String mSection;
+        private final String mQueueCounter;
+        private final BlockingQueue<CaptureJob> mQueue;
+        private final Thread[] mWorkers;
+        private StageRunner mNext;
+
+        private final AtomicLong mProcessed = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+        StageRunner(Stage stage, int threads, int queueCapacity) {
+            mStage = stage;
+            mSection = "pipeline:" + stage.getName();
+            mQueueCounter = mSection + ":queue";
+            mQueue = new ArrayBlockingQueue<>(queueCapacity);
+            mWorkers = new Thread[threads];
+        }
+
+        void start(ThreadFactory threadFactory, StageRunner next) {
+            mNext = next;
+            for (int i = 0; i < mWorkers.length; i++) {
+                mWorkers[i] = threadFactory.newThread(this);
+                mWorkers[i].setName(mSection + "#" + i);
+                mWorkers[i].start();
+            }
+        }
+
+        void put(CaptureJob job) throws InterruptedException {
+            mQueue.put(job);
+            onQueued();
+        }
+
+        boolean offer(CaptureJob job) {
+            if (!mQueue.offer(job)) {
+                return false;
+            }
+            onQueued();
+            return true;
+        }
+
+        private void onQueued() {
+            final int depth = mQueue.size();
+            CameraTrace.counter(mQueueCounter, depth);
+            int max;
+            do {
+                max = mMaxQueueDepth.get();
+            } while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth));
+        }
+
+        @Override
+        public void run() {
+            while (!mShutdown) {
+                final CaptureJob job;
+                try {
+                    job = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                CameraTrace.counter(mQueueCounter, mQueue.size());
+
+                final long start = System.nanoTime();
+                final long section = CameraTrace.beginSection(mSection);
+                Throwable failure = null;
+                try {
+                    mStage.process(job);
+                } catch (Throwable e) {
+                    // errors too, e.g. running out of memory decoding a large capture: the job
+                    // must still finish and the worker must keep serving the stage
+                    failure = e;
+                } finally {
+                    CameraTrace.endSection(mSection, section);
+                    mBusyNanos.addAndGet(System.nanoTime() - start);
+                }
+
+                if (failure != null) {
+                    mFailed.incrementAndGet();
+                    job.fail(mStage.getName(), failure);
+                    finish(job);
+                    Log.w(TAG, "Stage " + mStage.getName() + " failed for capture " + job.getId(), failure);
+                    continue;
+                }
+                mProcessed.incrementAndGet();
+                if (mNext == null) {
+                    finish(job);
+                    continue;
+                }
+                try {
+                    // waits while the next stage is full
+                    mNext.put(job);
+                } catch (InterruptedException e) {
+                    job.fail(mStage.getName(), new CancellationException("Capture pipeline is shut down"));
+                    finish(job);
+                    break;
+                }
+            }
+        }
+
+        void interrupt() {
+            for (Thread worker : mWorkers) {
+                worker.interrupt();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread worker : mWorkers) {
+                worker.join();
+            }
+        }
+
+        void cancelQueued() {
+            final List<CaptureJob> queued = new ArrayList<>();
+            mQueue.drainTo(queued);
+            for (CaptureJob job : queued) {
+                job.fail(mStage.getName(), new CancellationException("Capture pipeline is shut down"));
+                finish(job);
+            }
+        }
+
+        StageMetrics getMetrics(long elapsedNanos) {
+            return new StageMetrics(mStage.getName(), mWorkers.length, mQueue.size(),
+                mQueue.size() + mQueue.remainingCapacity(), mMaxQueueDepth.get(), mProcessed.get(),
+                mFailed.get(), mBusyNanos.get(), elapsedNanos);
+        }
+    }
+
+    /**
+     * A step of the processing of a capture.
+     */
+    public interface Stage {
+
+        /**
+         * @return a short name for logs, traces and metrics.
+         */
+        @NonNull
+        String getName();
+
+        /**
+         * Process a job, on a worker thread of the stage. Throwing takes the job out of the
+         * pipeline.
+         */
+        void process(@NonNull CaptureJob job) throws Exception;
+    }
+
+    /**
+     * Notified on a worker thread when a job leaves the pipeline. It should return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * Called after the last stage, or after the stage that failed; the job is released
+         * afterwards.
+         * @see CaptureJob#getFailure()
+         */
+        void onJobFinished(@NonNull CaptureJob job);
+    }
+
+    /**
+     * Throughput and queue depth of a stage since the pipeline was built.
+     */
+    public static final class StageMetrics {
+
+        private static final double NANOS_PER_SECOND = 1e9;
+
+        private final String mName;
+        private final int mThreads;
+        private final int mQueueDepth;
+        private final int mQueueCapacity;
+        private final int mMaxQueueDepth;
+        private final long mProcessed;
+        private final long mFailed;
+        private final long mBusyNanos;
+        private final long mElapsedNanos;
+
+        StageMetrics(String name, int threads, int queueDepth, int queueCapacity,
+                     int maxQueueDepth, long processed, long failed, long busyNanos,
+                     long elapsedNanos) {
+            mName = name;
+            mThreads = threads;
+            mQueueDepth = queueDepth;
+            mQueueCapacity = queueCapacity;
+            mMaxQueueDepth = maxQueueDepth;
+            mProcessed = processed;
+            mFailed = failed;
+            mBusyNanos = busyNanos;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getThreads() {
+            return mThreads;
+        }
+
+        /**
+         * @return the number of jobs waiting for the stage.
+         */
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        public int getQueueCapacity() {
+            return mQueueCapacity;
+        }
+
+        /**
+         * @return the largest number of jobs that waited for the stage at once. A stage whose
+         * queue fills up is the bottleneck of the pipeline.
+         */
+        public int getMaxQueueDepth() {
+            return mMaxQueueDepth;
+        }
+
+        /**
+         * @return the number of jobs the stage passed on.
+         */
+        public long getProcessed() {
+            return mProcessed;
+        }
+
+        public long getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * @return the time the workers spent processing jobs, excluding the time waiting for the
+         * next stage.
+         */
+        public long getBusyNanos() {
+            return mBusyNanos;
+        }
+
+        /**
+         * @return the jobs processed per second of work of one thread, i.e. the throughput the
+         * stage could sustain with a single thread.
+         */
+        public double getJobsPerBusySecond() {
+            return mBusyNanos == 0 ? 0 : (mProcessed + mFailed) * NANOS_PER_SECOND / mBusyNanos;
+        }
+
+        /**
+         * @return the fraction of the time since the pipeline was built that the workers were
+         * busy, between 0 and 1.
+         */
+        public double getUtilization() {
+            return mElapsedNanos == 0 ? 0 : (double) mBusyNanos / (mElapsedNanos * mThreads);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                "%s: %d processed, %d failed, %.1f jobs/busy s, %.0f%% busy x%d, queue %d/%d (max %d)",
+                mName, mProcessed, mFailed, getJobsPerBusySecond(), getUtilization() * 100, mThreads,
+                mQueueDepth, mQueueCapacity, mMaxQueueDepth);
+        }
+    }
+
+    /**
+     * Builds a {@link CapturePipeline} from its stages, in processing order.
+     */
+    public static final class Builder {
+
+        private final List<Stage> mStages = new ArrayList<>();
+        private final List<Integer> mThreads = new ArrayList<>();
+        private final List<Integer> mQueueCapacities = new ArrayList<>();
+        private Listener mListener;
+        private ThreadFactory mThreadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                });
+            }
+        };
+
+        /**
+         * Add a stage after the ones added so far.
+         * @param threads       number of jobs the stage processes at once
+         * @param queueCapacity number of jobs that can wait for the stage
+         */
+        @NonNull
+        public Builder addStage(@NonNull Stage stage, int threads, int queueCapacity) {
+            if (threads < 1 || queueCapacity < 1) {
+                throw new IllegalArgumentException("A stage needs a thread and room for a job");
+            }
+            mStages.add(stage);
+            mThreads.add(threads);
+            mQueueCapacities.add(queueCapacity);
+            return this;
+        }
+
+        @NonNull
+        public Builder setListener(@Nullable Listener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * Set the factory of the worker threads. The default one runs them with a background
+         * priority.
+         */
+        @NonNull
+        public Builder setThreadFactory(@NonNull ThreadFactory threadFactory) {
+            mThreadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * Build the pipeline and start its workers.
+         */
+        @NonNull
+        public CapturePipeline build() {
+            if (mStages.isEmpty()) {
+                throw new IllegalStateException("A pipeline needs at least one stage");
+            }
+            return new CapturePipeline(this);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import io.reactivex.functions.Consumer;
+
+/**
+ * The stages of a {@link CapturePipeline} that saves captures, in the order they should run:
+ * {@link #orient()}, {@link #crop()}, {@link #downscale()}, {@link #encode(JpegQualityPolicy)},
+ * {@link #checksum()}, {@link #persist(JpegSaver, int)} and {@link #publish(Consumer)}.
+ * <p>
+ * The camera JPEG is saved as it is, with its EXIF orientation set, unless the job asks for a
+ * {@link CaptureJob#setCrop(Rect) crop} or a {@link CaptureJob#setMaxSize(int) smaller size}:
+ * decoding and encoding again takes far longer than the other stages and loses quality, so the
+ * crop, downscale and encode stages let the other jobs through untouched. A pipeline whose jobs
+ * are never cropped or scaled, like the one of {@link CapturePersister}, leaves them out.
+ * </p>
+ */
+public final class CaptureStages {
+
+    private CaptureStages() {
+    }
+
+    /**
+     * Set the EXIF orientation matching the rotation of the job, without copying the JPEG.
+     */
+    @NonNull
+    public static CapturePipeline.Stage orient() {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "orient";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) {
+                final ByteBuffer source = job.getSource();
+                final int exifOrientation = ExifOrientation.degreesToExif(job.getRotation());
+                final int[] dimensions = ExifOrientation.readDimensions(source);
+                job.setImage(ExifOrientation.withOrientation(source, exifOrientation), exifOrientation,
+                    dimensions != null ? dimensions[0] : 0, dimensions != null ? dimensions[1] : 0);
+            }
+        };
+    }
+
+    /**
+     * Decode the region of the image to keep, for jobs that are encoded again. The region is
+     * decoded at the largest power of two sample size that keeps it above the requested size, so
+     * the full image is never decoded.
+     */
+    @NonNull
+    public static CapturePipeline.Stage crop() {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "crop";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) throws IOException {
+                if (!job.isReencoded()) {
+                    return;
+                }
+
+                final Rect region = new Rect(0, 0, job.getWidth(), job.getHeight());
+                if (job.getCrop() != null && !region.intersect(job.getCrop())) {
+                    throw new IllegalArgumentException("Crop " + job.getCrop() + " is outside of the image");
+                }
+
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                options.inSampleSize = 1;
+                final int largestSide = Math.max(region.width(), region.height());
+                while (job.getMaxSize() > 0 && largestSide / (options.inSampleSize * 2) >= job.getMaxSize()) {
+                    options.inSampleSize *= 2;
+                }
+
+                final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(
+                    new ByteBufferInputStream(job.getSource()), false);
+                final Bitmap bitmap;
+                try {
+                    bitmap = decoder.decodeRegion(region, options);
+                } finally {
+                    decoder.recycle();
+                }
+                if (bitmap == null) {
+                    throw new IOException("Could not decode capture " + job.getId());
+                }
+                job.setBitmap(bitmap);
+            }
+        };
+    }
+
+    /**
+     * Scale the decoded image down to the requested size.
+     */
+    @NonNull
+    public static CapturePipeline.Stage downscale() {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "downscale";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) {
+                final Bitmap bitmap = job.getBitmap();
+                if (bitmap == null || job.getMaxSize() <= 0) {
+                    return;
+                }
+
+                final float scale = (float) job.getMaxSize() / Math.max(bitmap.getWidth(), bitmap.getHeight());
+                if (scale >= 1) {
+                    return;
+                }
+                final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    job.setBitmap(scaled);
+                }
+            }
+        };
+    }
+
+    /**
+     * Encode the decoded image to a JPEG with the EXIF orientation of the job, replacing the
+     * camera JPEG.
+     * @param jpegQualityPolicy resolves the quality of jobs that don't request one, the same way
+     *                          as for the captures themselves
+     */
+    @NonNull
+    public static CapturePipeline.Stage encode(@NonNull final JpegQualityPolicy jpegQualityPolicy) {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "encode";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) throws IOException {
+                final Bitmap bitmap = job.getBitmap();
+                if (bitmap == null) {
+                    return;
+                }
+
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final int quality = jpegQualityPolicy.resolveQuality(job.getJpegQuality());
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, output)) {
+                    throw new IOException("Could not encode capture " + job.getId());
+                }
+                job.setImage(ExifOrientation.withOrientation(ByteBuffer.wrap(output.toByteArray()),
+                    job.getExifOrientation()), job.getExifOrientation(), bitmap.getWidth(),
+                    bitmap.getHeight());
+                job.setBitmap(null);
+                bitmap.recycle();
+            }
+        };
+    }
+
+    /**
+     * Compute the CRC32 recorded in the {@link CaptureIndex}, so the saved file can be verified.
+     */
+    @NonNull
+    public static CapturePipeline.Stage checksum() {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "checksum";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) {
+                job.setChecksum(CaptureIndex.checksum(getSegments(job)));
+            }
+        };
+    }
+
+    /**
+     * Write the JPEG as {@link JpegSaver#getFileName(long) the file of the capture} and record it
+     * in the index, then delete the oldest files beyond {@code maxSavedCaptures}.
+     *
+     * @param onDeleted receives the id of every capture whose file was deleted
+     */
+    @NonNull
+    public static CapturePipeline.Stage persist(@NonNull final JpegSaver jpegSaver,
+                                                final int maxSavedCaptures,
+                                                @NonNull final Consumer<Long> onDeleted) {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "persist";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) throws Exception {
+                final ByteBuffer[] segments = getSegments(job);
+                long size = 0;
+                for (ByteBuffer segment : segments) {
+                    size += segment.remaining();
+                }
+
+                final String path = jpegSaver.saveTempJpeg(segments, new CaptureIndex.Entry(job.getId(),
+                    job.getTimestamp(), size, job.getWidth(), job.getHeight(),
+                    job.getExifOrientation(), job.getChecksum()));
+                if (path == null) {
+                    throw new IOException("Could not save capture " + job.getId());
+                }
+                job.setPath(path);
+                for (Long id : jpegSaver.trimTempJpegs(maxSavedCaptures)) {
+                    onDeleted.accept(id);
+                }
+            }
+        };
+    }
+
+    /**
+     * Hand the saved job to {@code consumer}, on a thread of its own so a slow consumer doesn't
+     * hold the storage.
+     */
+    @NonNull
+    public static CapturePipeline.Stage publish(@NonNull final Consumer<CaptureJob> consumer) {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "publish";
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) throws Exception {
+                consumer.accept(job);
+            }
+        };
+    }
+
+    private static ByteBuffer[] getSegments(CaptureJob job) {
+        final ByteBuffer[] segments = job.getSegments();
+        if (segments == null) {
+            throw new IllegalStateException("Capture " + job.getId() + " was not oriented");
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,776 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CaptureResult;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableOnSubscribe;
+import io.reactivex.Single;
+import io.reactivex.functions.Cancellable;
+
+/**
+ * The pre-capture and still capture state machine of the {@link CameraController}.
+ * <p>
+ * It waits for 3A convergence, sends one still capture per pending user request and matches
+ * every JPEG with the emitter that requested it. The camera is reached through the {@link Camera}
+ * and {@link JpegReader} interfaces so the state machine can be driven without a camera device.
+ * </p>
+ * <p>
+ * A capture can also ask for a review thumbnail, produced by the same still request on a second,
+ * small output. Thumbnails arrive in request order like the JPEGs; a thumbnail arriving after the
+ * JPEG of its capture is dropped.
+ * </p>
+ * <p>
+ * Disposing a capture cancels it: a capture still waiting for 3A convergence is dropped without
+ * sending its still request, and the pre-capture sequence is cancelled if no other capture waits
+ * for it. Once the still request is sent the image can't be stopped, so the capture stays queued
+ * to keep the images matched with their requests and its images are freed without being read.
+ * Errors are reported with {@code tryOnError}, since a capture can be disposed from any thread
+ * right before it fails.
+ * </p>
+ * <p>
+ * Every capture has deadlines, enforced by {@link #reclaimExpiredLocked()}: a capture that
+ * could not send its still request, or whose JPEG never came, fails with a
+ * {@link TimeoutException} instead of waiting forever. Images arriving for no capture are freed
+ * without being read, and closing the state machine fails all the captures left.
+ * </p>
+ * Methods with "Locked" in the name expect the lock given to the constructor to be held.
+ */
+class CaptureStateMachine {
+
+    private static final String TAG = CaptureStateMachine.class.getSimpleName();
+
+    /**
+     * Camera state: Device is closed.
+     */
+    static final int STATE_CLOSED = 0;
+
+    /**
+     * Camera state: Device is opened, but is not capturing.
+     */
+    static final int STATE_OPENED = 1;
+
+    /**
+     * Camera state: Showing camera preview.
+     */
+    static final int STATE_PREVIEW = 2;
+
+    /**
+     * Camera state: Waiting for 3A convergence before capturing a photo.
+     */
+    static final int STATE_WAITING_FOR_3A_CONVERGENCE = 3;
+
+    /**
+     * Timeout for the pre-capture sequence.
+     */
+    static final long PRECAPTURE_TIMEOUT_MS = 1000;
+
+    /**
+     * Time allowed from the request of a capture until its still request is sent. The
+     * pre-capture timeout normally sends it much earlier, unless 3A results stop coming.
+     */
+    static final long PRECAPTURE_DEADLINE_MS = 5 * PRECAPTURE_TIMEOUT_MS;
+
+    /**
+     * Time allowed from the still request of a capture until its JPEG arrives.
+     */
+    static final long STILL_DEADLINE_MS = 5000;
+
+    private final Object mLock;
+    private final Camera mCamera;
+    private final JpegQualityPolicy mJpegQualityPolicy;
+
+    /**
+     * A counter for tracking corresponding capture requests and results across the capture
+     * callbacks.
+     */
+    private final AtomicInteger mRequestCounter = new AtomicInteger();
+
+    /**
+     * Request ID to {@link PendingCapture} mapping for in-progress JPEG captures.
+     */
+    private final TreeMap<Integer, PendingCapture> mJpegEmitterQueue = new TreeMap<>();
+
+    /**
+     * Number of pending user requests to capture a photo, whose still request is not sent yet.
+     */
+    private int mPendingUserCaptures = 0;
+
+    /**
+     * Number of captures cancelled before their still request was sent, and after.
+     */
+    private int mCancelledBeforeStill;
+    private int mCancelledAfterStill;
+
+    /**
+     * Number of captures failed past their deadline before their still request was sent, and
+     * after.
+     */
+    private int mExpiredBeforeStill;
+    private int mExpiredAfterStill;
+
+    /**
+     * Number of captures failed by {@link #closeLocked()}.
+     */
+    private int mFailedOnClose;
+
+    /**
+     * Number of images that arrived for no capture.
+     */
+    private int mOrphanedImages;
+
+    private long mPrecaptureDeadlineMs = PRECAPTURE_DEADLINE_MS;
+    private long mStillDeadlineMs = STILL_DEADLINE_MS;
+
+    /**
+     * Number of JPEGs still to come for captures that expired after their still request.
+     */
+    private int mLateImages = 0;
+
+    /**
+     * Number of thumbnails still to come for captures whose JPEG was already delivered.
+     */
+    private int mLateThumbnails = 0;
+
+    /**
+     * The state of the camera device.
+     */
+    private int mState = STATE_CLOSED;
+
+    /**
+     * Timer to use with pre-capture sequence to ensure a timely capture if 3A convergence is
+     * taking too long.
+     */
+    private long mCaptureTimer;
+
+    /**
+     * Whether or not the camera device is fixed-focus.
+     */
+    private boolean mNoAFRun = false;
+
+    private boolean mLegacyDevice = false;
+
+    private TimingListener mTimingListener;
+
+    CaptureStateMachine(Object lock, Camera camera, JpegQualityPolicy jpegQualityPolicy) {
+        mLock = lock;
+        mCamera = camera;
+        mJpegQualityPolicy = jpegQualityPolicy;
+    }
+
+    /**
+     * Create the {@link Single} that registers a capture and triggers the pre-capture sequence
+     * when subscribed. It should be subscribed on the thread receiving the camera callbacks.
+     */
+    Single<CapturedImage> createCapture(final int jpegQuality) {
+        return createCapture(jpegQuality, false).lastOrError();
+    }
+
+    /**
+     * Create the {@link Observable} that registers a capture and triggers the pre-capture sequence
+     * when subscribed. It emits the review thumbnail first, if {@code thumbnail} is set and the
+     * camera provides one, then the full image and completes. It should be subscribed on the
+     * thread receiving the camera callbacks.
+     */
+    Observable<CapturedImage> createCapture(final int jpegQuality, final boolean thumbnail) {
+        return Observable.create(new ObservableOnSubscribe<CapturedImage>() {
+
+            @Override
+            public void subscribe(ObservableEmitter<CapturedImage> emitter) throws Exception {
+                synchronized (mLock) {
+                    requestCaptureLocked(emitter, jpegQuality, thumbnail);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set what the camera device supports.
+     * <p/>
+     * Call this only with the lock held.
+     * @param noAFRun      whether the lens is fixed-focus
+     * @param legacyDevice whether the device only supports the LEGACY hardware level
+     */
+    void setCapabilitiesLocked(boolean noAFRun, boolean legacyDevice) {
+        mNoAFRun = noAFRun;
+        mLegacyDevice = legacyDevice;
+    }
+
+    /**
+     * Set a listener notified with the timing of every delivered capture. Set it before the
+     * camera is opened.
+     */
+    void setTimingListener(TimingListener timingListener) {
+        mTimingListener = timingListener;
+    }
+
+    int getStateLocked() {
+        return mState;
+    }
+
+    void setStateLocked(int state) {
+        mState = state;
+    }
+
+    /**
+     * @return the number of captures waiting for their JPEG.
+     */
+    int getPendingCaptureCountLocked() {
+        return mJpegEmitterQueue.size();
+    }
+
+    /**
+     * @return a snapshot of the counts of captures that didn't deliver their JPEG.
+     */
+    CaptureCounters getCountersLocked() {
+        return new CaptureCounters(mCancelledBeforeStill, mCancelledAfterStill, mExpiredBeforeStill,
+            mExpiredAfterStill, mFailedOnClose, mOrphanedImages);
+    }
+
+    /**
+     * Change the capture deadlines, {@link #PRECAPTURE_DEADLINE_MS} and
+     * {@link #STILL_DEADLINE_MS} by default.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    void setDeadlinesLocked(long precaptureDeadlineMs, long stillDeadlineMs) {
+        mPrecaptureDeadlineMs = precaptureDeadlineMs;
+        mStillDeadlineMs = stillDeadlineMs;
+    }
+
+    /**
+     * Close the state machine. The captures left fail: the ones waiting for 3A convergence are
+     * not sent, and the images of the others are aborted with the session.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    void closeLocked() {
+        final Iterator<Map.Entry<Integer, PendingCapture>> entries = mJpegEmitterQueue.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Integer, PendingCapture> entry = entries.next();
+            final PendingCapture capture = entry.getValue();
+            entries.remove();
+            onRemovedLocked(entry.getKey(), capture, 0);
+            if (!capture.cancelled) {
+                mFailedOnClose++;
+            }
+            capture.emitter.tryOnError(new IllegalStateException(capture.stillSent ?
+                "Camera closed before the image was received" : "Camera closed before the capture"));
+        }
+        mPendingUserCaptures = 0;
+        mLateImages = 0;
+        mLateThumbnails = 0;
+        mState = STATE_CLOSED;
+    }
+
+    /**
+     * Register a capture and start the pre-capture sequence if it isn't running already.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    private void requestCaptureLocked(ObservableEmitter<CapturedImage> emitter, int jpegQuality,
+                                      boolean thumbnail) {
+        // disposed before reaching the camera thread
+        if (emitter.isDisposed()) {
+            return;
+        }
+
+        // If we already triggered a pre-capture sequence, or are in a state where we cannot
+        // do this, return immediately.
+        if (mState == STATE_WAITING_FOR_3A_CONVERGENCE) {
+            // the pre-capture is already started; image can be scheduled for capture
+            enqueueLocked(emitter, jpegQuality, thumbnail);
+            return;
+        } else if (mState != STATE_PREVIEW) {
+            emitter.tryOnError(new Exception(
+                String.format("Camera state %d can't trigger image capture", mState)));
+            return;
+        }
+
+        try {
+            // Trigger an auto-focus and auto-exposure metering run if the camera is capable.
+            mCamera.triggerPrecapture();
+
+            // Update state machine to wait for auto-focus, auto-exposure, and
+            // auto-white-balance (aka. "3A") to converge.
+            mState = STATE_WAITING_FOR_3A_CONVERGENCE;
+
+            // Start a timer for the pre-capture sequence.
+            mCaptureTimer = mCamera.elapsedRealtime();
+
+            // we use the request tag to save a reference to the emitter
+            // this tag will also be added to the capture request triggered after camera
+            // is ready to take a picture
+            enqueueLocked(emitter, jpegQuality, thumbnail);
+        } catch (CameraAccessException e) {
+            emitter.tryOnError(e);
+        }
+    }
+
+    private void enqueueLocked(ObservableEmitter<CapturedImage> emitter, int jpegQuality,
+                               boolean thumbnail) {
+        final int requestTag = mRequestCounter.getAndIncrement();
+        final PendingCapture capture = new PendingCapture(emitter, jpegQuality, thumbnail);
+        capture.queuedMillis = mCamera.elapsedRealtime();
+        mJpegEmitterQueue.put(requestTag, capture);
+        mPendingUserCaptures++;
+        mJpegQualityPolicy.onCaptureQueued();
+
+        CameraTrace.beginAsync(CameraTrace.CAPTURE, requestTag);
+        CameraTrace.beginAsync(CameraTrace.PRECAPTURE, requestTag);
+        CameraTrace.counter(CameraTrace.COUNTER_PENDING_CAPTURES, mJpegEmitterQueue.size());
+
+        // also called when the capture terminates, it is already removed by then
+        emitter.setCancellable(new Cancellable() {
+            @Override
+            public void cancel() {
+                synchronized (mLock) {
+                    cancelLocked(requestTag);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel a disposed capture.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    private void cancelLocked(int requestTag) {
+        final PendingCapture capture = mJpegEmitterQueue.get(requestTag);
+        if (capture == null || capture.cancelled) {
+            return;
+        }
+
+        if (capture.stillSent) {
+            // the images will come anyway, they are freed as soon as they arrive
+            capture.cancelled = true;
+            mCancelledAfterStill++;
+            return;
+        }
+
+        removeLocked(requestTag, 0);
+        mCancelledBeforeStill++;
+        mPendingUserCaptures--;
+        if (mPendingUserCaptures == 0 && mState == STATE_WAITING_FOR_3A_CONVERGENCE) {
+            // nobody waits for 3A anymore
+            mCamera.cancelPrecapture();
+            mState = STATE_PREVIEW;
+        }
+    }
+
+    /**
+     * Fail the captures past their deadline. A capture whose still request could not be sent in
+     * {@link #PRECAPTURE_DEADLINE_MS} is dropped like a cancelled one; a capture whose JPEG
+     * didn't arrive {@link #STILL_DEADLINE_MS} after its still request is assumed lost by the
+     * camera. Should its image come after all, it is freed without being read rather than given
+     * to the next capture; if it is really lost, the next image is freed instead and its capture
+     * expires too, so the still deadline is kept far above the normal capture latency.
+     * <p/>
+     * Call this only with the lock held.
+     * @return the number of captures failed
+     */
+    int reclaimExpiredLocked() {
+        if (mJpegEmitterQueue.isEmpty()) {
+            return 0;
+        }
+
+        final long now = mCamera.elapsedRealtime();
+        int reclaimed = 0;
+        final Iterator<Map.Entry<Integer, PendingCapture>> entries = mJpegEmitterQueue.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Integer, PendingCapture> entry = entries.next();
+            final PendingCapture capture = entry.getValue();
+            final boolean expired = capture.stillSent ?
+                now - capture.stillSentMillis > mStillDeadlineMs :
+                now - capture.queuedMillis > mPrecaptureDeadlineMs;
+            if (!expired) {
+                continue;
+            }
+
+            entries.remove();
+            onRemovedLocked(entry.getKey(), capture, 0);
+            reclaimed++;
+            if (capture.stillSent) {
+                mExpiredAfterStill++;
+                // images still to come must not go to the next capture
+                mLateImages++;
+                // a thumbnail still to come must not go to the next capture
+                if (capture.thumbnailExpected && !capture.thumbnailReceived) {
+                    mLateThumbnails++;
+                }
+            } else {
+                mExpiredBeforeStill++;
+                mPendingUserCaptures--;
+            }
+            capture.emitter.tryOnError(new TimeoutException(capture.stillSent ?
+                "No image received for request " + entry.getKey() :
+                "Could not start the capture of request " + entry.getKey()));
+        }
+
+        if (mPendingUserCaptures == 0 && mState == STATE_WAITING_FOR_3A_CONVERGENCE) {
+            mCamera.cancelPrecapture();
+            mState = STATE_PREVIEW;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Handle a preview or pre-capture result. Once 3A converged (or timed out) a still capture is
+     * sent for each pending user request.
+     * <p/>
+     * Call this only with the lock held.
+     * @param afState  {@link CaptureResult#CONTROL_AF_STATE} or {@code null}
+     * @param aeState  {@link CaptureResult#CONTROL_AE_STATE} or {@code null}
+     * @param awbState {@link CaptureResult#CONTROL_AWB_STATE} or {@code null}
+     */
+    void onPreCaptureResultLocked(Integer afState, Integer aeState, Integer awbState) {
+        // when in preview mode we don't do anything
+        if (mState != STATE_WAITING_FOR_3A_CONVERGENCE) {
+            return;
+        }
+
+        boolean readyToCapture = true;
+        if (!mNoAFRun) {
+            if (afState == null) {
+                return;
+            }
+
+            // If auto-focus has reached locked state, we are ready to capture
+            readyToCapture =
+                (afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
+                    afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                    afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED);
+        }
+
+        // If we are running on an non-legacy device, we should also wait until
+        // auto-exposure and auto-white-balance have converged as well before
+        // taking a picture.
+        if (!mLegacyDevice) {
+            if (aeState == null || awbState == null) {
+                return;
+            }
+
+            readyToCapture = readyToCapture &&
+                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED &&
+                awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED;
+        }
+
+        // If we haven't finished the pre-capture sequence but have hit our maximum
+        // wait timeout, too bad! Begin capture anyway.
+        if (!readyToCapture && mCamera.elapsedRealtime() - mCaptureTimer > PRECAPTURE_TIMEOUT_MS) {
+            Log.w(TAG, "Timed out waiting for pre-capture sequence to complete.");
+            readyToCapture = true;
+        }
+
+        if (readyToCapture && mPendingUserCaptures > 0) {
+            // Capture once for each user tap of the "Picture" button, in request order; a failed
+            // request removes its capture so the queue is walked on a copy
+            for (Map.Entry<Integer, PendingCapture> entry : new ArrayList<>(mJpegEmitterQueue.entrySet())) {
+                if (!entry.getValue().stillSent) {
+                    captureStillPictureLocked(entry.getKey(), entry.getValue());
+                }
+            }
+            mPendingUserCaptures = 0;
+            // After this, the camera will go back to the normal state of preview.
+            mState = STATE_PREVIEW;
+        }
+    }
+
+    /**
+     * Send the still capture of a pending request.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    private void captureStillPictureLocked(int requestTag, PendingCapture capture) {
+        // no image will come for a request that is not sent, so the entry must not stay queued
+        if (capture.emitter.isDisposed()) {
+            removeLocked(requestTag, 0);
+            return;
+        }
+
+        try {
+            CameraTrace.endAsync(CameraTrace.PRECAPTURE, requestTag);
+            capture.stillSent = true;
+            capture.stillSentNanos = System.nanoTime();
+            capture.stillSentMillis = mCamera.elapsedRealtime();
+            CameraTrace.beginAsync(CameraTrace.STILL_CAPTURE, requestTag);
+            capture.thumbnailExpected = mCamera.captureStill(requestTag, capture.jpegQuality,
+                capture.thumbnailRequested);
+        } catch (CameraAccessException | IllegalStateException e) {
+            removeLocked(requestTag, 0);
+            capture.emitter.tryOnError(e);
+        }
+    }
+
+    /**
+     * Handle the end of a still capture.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    void onCaptureCompletedLocked() {
+        // release focus trigger
+        mCamera.cancelPrecapture();
+    }
+
+    /**
+     * Handle a failed still capture; no image will be produced for it.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    void onCaptureFailedLocked(int requestTag, String reason) {
+        // release focus trigger
+        mCamera.cancelPrecapture();
+
+        // notify emitter of failed captures and remove it from the queue
+        final PendingCapture capture = removeLocked(requestTag, 0);
+        if (capture != null) {
+            capture.emitter.tryOnError(new Exception("Capture failed with reason : " + reason));
+        }
+    }
+
+    /**
+     * Deliver the next JPEG to the oldest capture whose still request was sent. Images arrive in
+     * request order, after the ones of the captures that expired waiting for them.
+     * <p/>
+     * Call this only with the lock held.
+     * @param reader   the source of the JPEG or {@code null} if it is already closed
+     * @param rotation the rotation that needs to be applied to the image
+     */
+    void onJpegAvailableLocked(JpegReader reader, int rotation) {
+        // the images of expired captures come first and must not go to the next capture
+        final Map.Entry<Integer, PendingCapture> entry;
+        if (mLateImages > 0) {
+            mLateImages--;
+            entry = null;
+        } else {
+            entry = firstStillSentLocked();
+        }
+        if (entry == null) {
+            // its capture was reclaimed, the image must still leave the reader
+            if (reader != null) {
+                mOrphanedImages++;
+                discard(reader);
+            }
+            return;
+        }
+        final ObservableEmitter<CapturedImage> emitter = entry.getValue().emitter;
+
+        // the entry is removed below whatever happens, its thumbnail must not go to the next one
+        if (entry.getValue().thumbnailExpected && !entry.getValue().thumbnailReceived) {
+            mLateThumbnails++;
+        }
+
+        if (reader == null) {
+            removeLocked(entry.getKey(), 0);
+            emitter.tryOnError(new Exception("ImageReader already closed."));
+            return;
+        }
+
+        // the image is freed even when nobody waits for it, so it isn't matched to the next
+        // request, but it is only copied for a live capture
+        if (entry.getValue().cancelled || emitter.isDisposed()) {
+            discard(reader);
+            removeLocked(entry.getKey(), 0);
+            return;
+        }
+
+        final CapturedImage image;
+        final long copyStart = System.nanoTime();
+        final long copySection = CameraTrace.beginSection(CameraTrace.IMAGE_COPY);
+        try {
+            image = reader.acquireNextJpeg(rotation);
+        } catch (IllegalStateException e) {
+            removeLocked(entry.getKey(), 0);
+            emitter.tryOnError(new Exception("Too many images queued for saving, dropping image for request: " +
+                entry.getKey()));
+            return;
+        } finally {
+            CameraTrace.endSection(CameraTrace.IMAGE_COPY, copySection);
+        }
+
+        if (image == null) {
+            removeLocked(entry.getKey(), 0);
+            emitter.tryOnError(new Exception("Error reading image for request " + entry.getKey()));
+            return;
+        }
+
+        CameraTrace.counter(CameraTrace.COUNTER_JPEG_BYTES, image.getByteCount());
+        final PendingCapture capture = removeLocked(entry.getKey(), image.getByteCount());
+        if (mTimingListener != null) {
+            final long now = System.nanoTime();
+            mTimingListener.onCaptureTiming(new CaptureTiming(
+                capture.stillSentNanos - capture.queuedNanos, copyStart - capture.stillSentNanos,
+                now - copyStart, now - capture.queuedNanos, image.getByteCount()));
+        }
+        if (!emitter.isDisposed()) {
+            // send image data and camera rotation
+            emitter.onNext(image);
+            emitter.onComplete();
+        } else {
+            image.close();
+        }
+    }
+
+    /**
+     * Deliver the next review thumbnail to the oldest capture waiting for one.
+     * <p/>
+     * Call this only with the lock held.
+     * @param reader   the source of the thumbnail or {@code null} if it is already closed
+     * @param rotation the rotation that needs to be applied to the image
+     */
+    void onThumbnailAvailableLocked(JpegReader reader, int rotation) {
+        if (reader == null) {
+            return;
+        }
+
+        // the image is freed even when nobody waits for it so the reader doesn't fill up, but it
+        // is only encoded for a live capture
+        if (mLateThumbnails > 0) {
+            mLateThumbnails--;
+            discard(reader);
+            return;
+        }
+
+        PendingCapture target = null;
+        for (PendingCapture capture : mJpegEmitterQueue.values()) {
+            if (capture.thumbnailExpected && !capture.thumbnailReceived) {
+                target = capture;
+                break;
+            }
+        }
+        if (target == null) {
+            mOrphanedImages++;
+            discard(reader);
+            return;
+        }
+        target.thumbnailReceived = true;
+        if (target.cancelled || target.emitter.isDisposed()) {
+            discard(reader);
+            return;
+        }
+
+        CapturedImage image;
+        try {
+            image = reader.acquireNextJpeg(rotation);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Too many thumbnails queued, dropping one", e);
+            image = null;
+        }
+        if (image != null) {
+            target.emitter.onNext(image);
+        }
+    }
+
+    /**
+     * @return the oldest capture whose still request was sent, {@code null} if there is none.
+     * Still requests are sent in request order, so no capture before it can get an image.
+     */
+    private Map.Entry<Integer, PendingCapture> firstStillSentLocked() {
+        for (Map.Entry<Integer, PendingCapture> entry : mJpegEmitterQueue.entrySet()) {
+            if (entry.getValue().stillSent) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private PendingCapture removeLocked(int requestTag, long jpegBytes) {
+        final PendingCapture capture = mJpegEmitterQueue.remove(requestTag);
+        if (capture != null) {
+            onRemovedLocked(requestTag, capture, jpegBytes);
+        }
+        return capture;
+    }
+
+    private void onRemovedLocked(int requestTag, PendingCapture capture, long jpegBytes) {
+        mJpegQualityPolicy.onCaptureFinished(jpegBytes);
+
+        CameraTrace.endAsync(capture.stillSent ? CameraTrace.STILL_CAPTURE : CameraTrace.PRECAPTURE,
+            requestTag);
+        CameraTrace.endAsync(CameraTrace.CAPTURE, requestTag);
+        CameraTrace.counter(CameraTrace.COUNTER_PENDING_CAPTURES, mJpegEmitterQueue.size());
+    }
+
+    /**
+     * Free the next image of {@code reader} without reading it.
+     */
+    private static void discard(JpegReader reader) {
+        try {
+            reader.discardNextJpeg();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Too many images queued, could not free one", e);
+        }
+    }
+
+    /**
+     * The camera operations needed by the state machine. They are called with the lock held.
+     */
+    interface Camera {
+
+        /**
+         * Send the auto-focus and auto-exposure triggers that start the pre-capture sequence.
+         */
+        void triggerPrecapture() throws CameraAccessException;
+
+        /**
+         * Send a still capture request.
+         * @param requestTag  the tag to set on the request; results and failures refer to it
+         * @param jpegQuality the quality requested by the user or
+         *                    {@link JpegQualityPolicy#QUALITY_DEFAULT}
+         * @param thumbnail   whether the user asked for a review thumbnail
+         * @return {@code true} if the request also targets the thumbnail output
+         * @throws IllegalStateException if the camera device is no longer available
+         */
+        boolean captureStill(int requestTag, int jpegQuality, boolean thumbnail)
+            throws CameraAccessException;
+
+        /**
+         * Reset the pre-capture triggers after a still capture.
+         */
+        void cancelPrecapture();
+
+        /**
+         * @return the current time in milliseconds, used for the pre-capture timeout.
+         */
+        long elapsedRealtime();
+    }
+
+    /**
+     * Receives the {@link CaptureTiming} of the delivered captures, with the lock held.
+     */
+    interface TimingListener {
+
+        void onCaptureTiming(CaptureTiming timing);
+    }
+
+    /**
+     * Source of the captured JPEGs and thumbnails.
+     */
+    interface JpegReader {
+
+        /**
+         * Acquire the next JPEG. Its image is freed when the returned {@link CapturedImage} is
+         * closed.
+         * @param rotation the rotation that needs to be applied to the image
+         * @return the JPEG or {@code null} if no image could be read
+         * @throws IllegalStateException if too many images are queued
+         */
+        CapturedImage acquireNextJpeg(int rotation);
+
+        /**
+         * Free the next image without reading it.
+         * @throws IllegalStateException if too many images are queued
+         */
+        void discardNextJpeg();
+    }
+}
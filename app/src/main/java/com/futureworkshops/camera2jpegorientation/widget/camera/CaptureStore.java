@@ -0,0 +1,385 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the most recent captures outside of the Java heap so they can be handed between screens.
+ * <p>
+ * JPEG data is copied into direct {@link ByteBuffer}s, accounted against a memory budget. When the
+ * budget is exceeded the oldest captures are spilled to memory-mapped files (if a spill directory
+ * was given) and when more than {@code maxCaptures} are stored the oldest ones are evicted.
+ * </p>
+ * Captures are identified by a {@code long} id that can be passed in an Intent; screens
+ * {@link #acquire(long)} a reference counted {@link CaptureHandle} and must release it when done.
+ * <p>
+ * A capture with an acquired handle, e.g. one being saved or viewed, is pinned: it is neither
+ * spilled nor evicted, and its memory doesn't count against the budget until its handles are
+ * released, when the store trims again. Only {@link #clear()} evicts pinned captures; their
+ * memory is reclaimed once every handle is released.
+ * </p>
+ * <p>
+ * Registered with a {@link ResourceGovernor}, the store spills more captures as memory gets
+ * lower and evicts them all when the process is about to be killed.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class CaptureStore implements ResourceGovernor.Trimmable {
+
+    private static final String TAG = CaptureStore.class.getSimpleName();
+
+    /**
+     * Id returned for captures that could not be stored.
+     */
+    public static final long NO_CAPTURE = -1;
+
+    private final File mSpillDir;
+    private final int mMaxCaptures;
+    private long mMemoryBudget;
+
+    /**
+     * Stored entries, from the oldest to the newest.
+     */
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+
+    /**
+     * Direct buffers released by evicted entries, reused for new captures.
+     */
+    private final List<ByteBuffer> mFreeBuffers = new ArrayList<>();
+
+    /**
+     * Ids also name the saved files, started from the clock so they don't repeat across launches.
+     */
+    private long mNextId = System.currentTimeMillis();
+
+    /**
+     * Bytes in the direct buffers of stored captures, pinned or not.
+     */
+    private long mDirectBytes;
+    private long mFreeBytes;
+
+    /**
+     * @param spillDir     directory for spilled captures or {@code null} to evict captures as soon
+     *                     as the memory budget is exceeded
+     * @param maxCaptures  maximum number of captures to keep
+     * @param memoryBudget maximum number of bytes kept in direct buffers
+     */
+    public CaptureStore(@Nullable File spillDir, int maxCaptures, long memoryBudget) {
+        if (maxCaptures < 1) {
+            throw new IllegalArgumentException("At least one capture must be kept: " + maxCaptures);
+        }
+        mSpillDir = spillDir;
+        mMaxCaptures = maxCaptures;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Store a capture.
+     * @param jpeg     the JPEG data; it is copied so the array can be dropped right away
+     * @param rotation the rotation that needs to be applied to the image
+     * @return the id of the capture
+     */
+    public long put(@NonNull byte[] jpeg, int rotation) {
+        return put(ByteBuffer.wrap(jpeg), rotation);
+    }
+
+    /**
+     * Store a capture.
+     * @param jpeg     the JPEG data, from its position to its limit; it is copied and the
+     *                 position of {@code jpeg} is not changed
+     * @param rotation the rotation that needs to be applied to the image
+     * @return the id of the capture
+     */
+    public synchronized long put(@NonNull ByteBuffer jpeg, int rotation) {
+        final int size = jpeg.remaining();
+        final ByteBuffer buffer = obtainBuffer(size);
+        buffer.put(jpeg.duplicate());
+        buffer.flip();
+
+        final Entry entry = new Entry(mNextId++, buffer, rotation, System.currentTimeMillis());
+        mEntries.put(entry.id, entry);
+        mDirectBytes += buffer.capacity();
+
+        trimLocked(mMemoryBudget);
+        return entry.id;
+    }
+
+    /**
+     * Get a handle to a stored capture. The handle must be {@link CaptureHandle#release() released}.
+     * @return the handle or {@code null} if the capture was evicted
+     */
+    @Nullable
+    public synchronized CaptureHandle acquire(long id) {
+        final Entry entry = mEntries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        entry.refCount++;
+        return new CaptureHandle(this, entry);
+    }
+
+    /**
+     * @return the id of the newest capture or {@link #NO_CAPTURE}.
+     */
+    public synchronized long getLatestId() {
+        long latest = NO_CAPTURE;
+        for (Long id : mEntries.keySet()) {
+            latest = id;
+        }
+        return latest;
+    }
+
+    /**
+     * @return the number of bytes held in direct buffers by stored captures, including reusable
+     * buffers.
+     */
+    public synchronized long getDirectBytes() {
+        return mDirectBytes + mFreeBytes;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Change the memory budget and spill or evict captures to honour it.
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+        trimLocked(memoryBudget);
+    }
+
+    /**
+     * Spill or evict captures until at most {@code maxBytes} are held in direct buffers and drop
+     * the reusable buffers.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        trimLocked(maxBytes);
+        mFreeBuffers.clear();
+        mFreeBytes = 0;
+    }
+
+    /**
+     * Evict every capture. Captures with acquired handles stay readable until released.
+     */
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            evictLocked(entry);
+        }
+        mEntries.clear();
+        mFreeBuffers.clear();
+        mFreeBytes = 0;
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // spilled captures are file backed and can be paged out
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMemoryBudget / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(mMemoryBudget / 2);
+        }
+    }
+
+    synchronized CaptureHandle acquire(Entry entry) {
+        entry.refCount++;
+        return new CaptureHandle(this, entry);
+    }
+
+    synchronized void release(Entry entry) {
+        releaseLocked(entry);
+        if (entry.refCount == 1 && mEntries.get(entry.id) == entry) {
+            // unpinned, so it may be what kept the store above its limits
+            trimLocked(mMemoryBudget);
+        }
+    }
+
+    private void trimLocked(long maxBytes) {
+        // evict the oldest captures above the count limit, never the newest one
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        int older = mEntries.size() - 1;
+        while (mEntries.size() > mMaxCaptures && older-- > 0) {
+            final Entry entry = iterator.next();
+            if (entry.isPinned()) {
+                continue;
+            }
+            iterator.remove();
+            evictLocked(entry);
+        }
+
+        // pinned captures can't be reclaimed, spilling the others wouldn't bring them down
+        long reclaimableBytes = mDirectBytes;
+        for (Entry entry : mEntries.values()) {
+            if (!entry.spilled && entry.isPinned()) {
+                reclaimableBytes -= entry.buffer.capacity();
+            }
+        }
+
+        // spill (or evict) the oldest in-memory captures above the memory budget
+        final Iterator<Entry> spillIterator = mEntries.values().iterator();
+        while (reclaimableBytes > maxBytes && spillIterator.hasNext()) {
+            final Entry entry = spillIterator.next();
+            if (entry.spilled || entry.isPinned()) {
+                continue;
+            }
+            final int capacity = entry.buffer.capacity();
+            if (!spillLocked(entry)) {
+                spillIterator.remove();
+                evictLocked(entry);
+            }
+            reclaimableBytes -= capacity;
+        }
+
+        // don't keep more reusable buffers than the budget allows
+        while (mFreeBytes > 0 && mDirectBytes + mFreeBytes > maxBytes) {
+            mFreeBytes -= mFreeBuffers.remove(0).capacity();
+        }
+    }
+
+    /**
+     * Move the data of {@code entry} to a memory-mapped file.
+     * @return false if the entry can't be spilled
+     */
+    private boolean spillLocked(Entry entry) {
+        // buffers still read through handles can't be moved
+        if (mSpillDir == null || entry.isPinned()) {
+            return false;
+        }
+
+        if (!mSpillDir.exists() && !mSpillDir.mkdirs()) {
+            return false;
+        }
+
+        final File file = new File(mSpillDir, "capture_" + entry.id);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer source = entry.buffer.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            mDirectBytes -= entry.buffer.capacity();
+            recycleLocked(entry.buffer);
+            entry.buffer = mapped;
+            entry.spilled = true;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to spill capture " + entry.id, e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            // the mapping stays valid after the file is deleted
+            file.delete();
+        }
+    }
+
+    /**
+     * Drop the reference of the store to an entry removed from {@link #mEntries}. Its memory
+     * stops counting as stored right away and is reused once every handle is released.
+     */
+    private void evictLocked(Entry entry) {
+        if (!entry.spilled) {
+            mDirectBytes -= entry.buffer.capacity();
+        }
+        releaseLocked(entry);
+    }
+
+    private void releaseLocked(Entry entry) {
+        entry.refCount--;
+        if (entry.refCount == 0 && !entry.spilled) {
+            recycleLocked(entry.buffer);
+            entry.buffer = null;
+        }
+    }
+
+    private void recycleLocked(ByteBuffer buffer) {
+        // don't keep reusable buffers beyond the budget, e.g. after the last handle of a pinned
+        // capture is released
+        if (mDirectBytes + mFreeBytes + buffer.capacity() > mMemoryBudget) {
+            return;
+        }
+        mFreeBuffers.add(buffer);
+        mFreeBytes += buffer.capacity();
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        // reuse the smallest free buffer that fits
+        int best = -1;
+        for (int i = 0; i < mFreeBuffers.size(); i++) {
+            final int capacity = mFreeBuffers.get(i).capacity();
+            if (capacity >= size && (best < 0 || capacity < mFreeBuffers.get(best).capacity())) {
+                best = i;
+            }
+        }
+
+        if (best >= 0) {
+            final ByteBuffer buffer = mFreeBuffers.remove(best);
+            mFreeBytes -= buffer.capacity();
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * A stored capture. Guarded by the {@link CaptureStore} lock.
+     */
+    static final class Entry {
+
+        final long id;
+        final int rotation;
+        final long timestamp;
+        final int size;
+        ByteBuffer buffer;
+        boolean spilled;
+
+        /**
+         * The store holds one reference until the entry is evicted.
+         */
+        int refCount = 1;
+
+        Entry(long id, ByteBuffer buffer, int rotation, long timestamp) {
+            this.id = id;
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+            this.rotation = rotation;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return whether a handle is acquired, so the buffer is read outside of the store.
+         */
+        boolean isPinned() {
+            return refCount > 1;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import java.util.Locale;
+
+/**
+ * Where the time of a capture went, from the subscription to
+ * {@link CameraController#takePicture()} until the JPEG was delivered.
+ */
+public final class CaptureTiming {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final long precaptureNanos;
+    private final long stillCaptureNanos;
+    private final long imageCopyNanos;
+    private final long totalNanos;
+    private final long jpegBytes;
+
+    CaptureTiming(long precaptureNanos, long stillCaptureNanos, long imageCopyNanos,
+                  long totalNanos, long jpegBytes) {
+        this.precaptureNanos = precaptureNanos;
+        this.stillCaptureNanos = stillCaptureNanos;
+        this.imageCopyNanos = imageCopyNanos;
+        this.totalNanos = totalNanos;
+        this.jpegBytes = jpegBytes;
+    }
+
+    /**
+     * @return the time spent waiting for 3A convergence before the still request was sent.
+     */
+    public long getPrecaptureNanos() {
+        return precaptureNanos;
+    }
+
+    /**
+     * @return the time from the still request until its image was available.
+     */
+    public long getStillCaptureNanos() {
+        return stillCaptureNanos;
+    }
+
+    /**
+     * @return the time spent acquiring the JPEG from the image reader. It is no longer copied
+     * there, see {@link CapturedImage}.
+     */
+    public long getImageCopyNanos() {
+        return imageCopyNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getJpegBytes() {
+        return jpegBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.0fms (3A %.0fms, still %.0fms, copy %.1fms) %dKB",
+            totalNanos / NANOS_PER_MILLI, precaptureNanos / NANOS_PER_MILLI,
+            stillCaptureNanos / NANOS_PER_MILLI, imageCopyNanos / NANOS_PER_MILLI, jpegBytes / 1024);
+    }
+}
@@ -0,0 +1,76 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Enforces the capture deadlines of a {@link CaptureStateMachine}: while the camera is open it
+ * periodically checks, on the camera thread, for captures whose image will never come and fails
+ * them, so a dropped image doesn't hold its subscriber and its reader slot forever.
+ * <p/>
+ * Methods with "Locked" in the name expect the lock given to the constructor to be held.
+ */
+class CaptureWatchdog {
+
+    private static final String TAG = CaptureWatchdog.class.getSimpleName();
+
+    /**
+     * Time between two checks. The deadlines are several seconds long, so a check finds a stale
+     * capture at most this late.
+     */
+    static final long CHECK_INTERVAL_MS = 500;
+
+    private final Object mLock;
+    private final CaptureStateMachine mStateMachine;
+
+    /**
+     * The {@link Handler} of the camera thread, or {@code null} while stopped.
+     */
+    private Handler mHandler;
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mHandler == null) {
+                    return;
+                }
+                final int reclaimed = mStateMachine.reclaimExpiredLocked();
+                if (reclaimed > 0) {
+                    Log.w(TAG, "Reclaimed " + reclaimed + " stalled captures, " +
+                        mStateMachine.getCountersLocked());
+                }
+                mHandler.postDelayed(this, CHECK_INTERVAL_MS);
+            }
+        }
+    };
+
+    CaptureWatchdog(Object lock, CaptureStateMachine stateMachine) {
+        mLock = lock;
+        mStateMachine = stateMachine;
+    }
+
+    /**
+     * Start checking on the thread of {@code handler}, which must be the one receiving the camera
+     * callbacks.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    void startLocked(Handler handler) {
+        stopLocked();
+        mHandler = handler;
+        mHandler.postDelayed(mCheck, CHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Stop checking.
+     * <p/>
+     * Call this only with the lock held.
+     */
+    void stopLocked() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mCheck);
+            mHandler = null;
+        }
+    }
+}
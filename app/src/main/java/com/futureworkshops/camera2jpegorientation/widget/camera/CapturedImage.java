@@ -0,0 +1,178 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A JPEG delivered by {@link CameraController#takePicture()} or
+ * {@link CameraController#takePictureWithThumbnail(int, io.reactivex.Scheduler)}: either the
+ * review thumbnail of a capture or its full resolution image.
+ * <p>
+ * The full image is not copied out of the camera: {@link #getBuffer()} is a read-only view of
+ * the camera buffer, which can be written to a file or stored without ever creating a
+ * {@code byte[]}. {@link #getJpeg()} copies it on demand, once. Until the image is
+ * {@link #close() closed} it holds one of the few buffers of the camera, and captures fail once
+ * they are all held, so it must be closed as soon as the data is consumed.
+ * </p>
+ * The methods of this class can be called from any thread.
+ */
+public final class CapturedImage implements Closeable {
+
+    private static final String TAG = CapturedImage.class.getSimpleName();
+
+    private final int mRotation;
+    private final boolean mThumbnail;
+    private final long mTimestamp;
+    private final int mByteCount;
+
+    /**
+     * Read-only view of the JPEG, {@code null} once closed.
+     */
+    private ByteBuffer mBuffer;
+
+    /**
+     * What to close with the image, {@code null} if the JPEG is on the heap.
+     */
+    private AutoCloseable mSource;
+
+    private byte[] mJpeg;
+    private int[] mDimensions;
+
+    /**
+     * @param buffer    the JPEG, from its position to its limit
+     * @param source    closed with the image, after which {@code buffer} is no longer read
+     * @param timestamp the sensor timestamp of the exposure
+     */
+    CapturedImage(@NonNull ByteBuffer buffer, int rotation, boolean thumbnail, long timestamp,
+                  @Nullable AutoCloseable source) {
+        mBuffer = buffer.slice().asReadOnlyBuffer();
+        mRotation = rotation;
+        mThumbnail = thumbnail;
+        mTimestamp = timestamp;
+        mByteCount = mBuffer.remaining();
+        mSource = source;
+    }
+
+    CapturedImage(@NonNull byte[] jpeg, int rotation, boolean thumbnail, long timestamp) {
+        this(ByteBuffer.wrap(jpeg), rotation, thumbnail, timestamp, null);
+        mJpeg = jpeg;
+    }
+
+    /**
+     * @return a read-only view of the JPEG, from position 0 to its end. It must not be read
+     * after the image is closed.
+     * @throws IllegalStateException if the image is closed
+     */
+    @NonNull
+    public synchronized ByteBuffer getBuffer() {
+        checkOpen();
+        return mBuffer.duplicate();
+    }
+
+    /**
+     * @return the JPEG data, copied out of the camera buffer on the first call. The copy stays
+     * valid after the image is closed.
+     * @throws IllegalStateException if the image was closed before the first call
+     */
+    @NonNull
+    public synchronized byte[] getJpeg() {
+        if (mJpeg == null) {
+            checkOpen();
+            mJpeg = new byte[mByteCount];
+            mBuffer.duplicate().get(mJpeg);
+        }
+        return mJpeg;
+    }
+
+    /**
+     * @return the size of the JPEG in bytes.
+     */
+    public int getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return the rotation that needs to be applied to the image, in degrees.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return the sensor timestamp of the exposure in nanoseconds, in the time base of
+     * {@link android.media.Image#getTimestamp()}.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the width of the encoded image in pixels, before the rotation is applied, or
+     * {@code 0} if the JPEG has no start of frame.
+     * @throws IllegalStateException if the image is closed and the size was never read
+     */
+    public int getWidth() {
+        return readDimensions()[0];
+    }
+
+    /**
+     * @return the height of the encoded image in pixels, before the rotation is applied, or
+     * {@code 0} if the JPEG has no start of frame.
+     * @throws IllegalStateException if the image is closed and the size was never read
+     */
+    public int getHeight() {
+        return readDimensions()[1];
+    }
+
+    /**
+     * @return {@code true} for the small preview-sized image, which is always delivered before
+     * the full resolution one.
+     */
+    public boolean isThumbnail() {
+        return mThumbnail;
+    }
+
+    public synchronized boolean isClosed() {
+        return mBuffer == null;
+    }
+
+    /**
+     * Return the camera buffer. Calling it again has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (mBuffer == null) {
+            return;
+        }
+        mBuffer = null;
+        if (mSource != null) {
+            try {
+                mSource.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to release the image", e);
+            }
+            mSource = null;
+        }
+    }
+
+    private synchronized int[] readDimensions() {
+        if (mDimensions == null) {
+            checkOpen();
+            final int[] read = ExifOrientation.readDimensions(mBuffer.duplicate());
+            mDimensions = read != null ? read : new int[2];
+        }
+        return mDimensions;
+    }
+
+    private void checkOpen() {
+        if (mBuffer == null) {
+            throw new IllegalStateException("Image is closed");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.os.SystemClock;
+import android.view.OrientationEventListener;
+
+
+/**
+ * Tracks the physical orientation of the device, independently of the display rotation.
+ * <p>
+ * The raw angle reported by {@link OrientationEventListener} is mapped to a quadrant (0, 90, 180
+ * or 270 degrees, clockwise from the natural orientation) without querying the display. The
+ * quadrant only changes once the angle moves {@link #setHysteresis(int) hysteresis} degrees past
+ * the boundary between two quadrants, so holding the device at ~45 degrees doesn't flip the
+ * orientation back and forth, and events closer than {@link #setMinUpdateInterval(long)} are
+ * ignored. {@link #onDeviceOrientationChanged(int)} is only called when the quadrant changes.
+ * </p>
+ * This keeps the capture orientation correct when the UI orientation is locked.
+ */
+public abstract class DeviceOrientationTracker {
+
+    public static final int DEFAULT_HYSTERESIS = 15;
+    public static final long DEFAULT_MIN_UPDATE_INTERVAL_MS = 100;
+
+    /** The orientation is not known yet. */
+    public static final int ORIENTATION_UNKNOWN = -1;
+
+    private final OrientationEventListener mOrientationEventListener;
+
+    private int mHysteresis = DEFAULT_HYSTERESIS;
+    private long mMinUpdateIntervalMs = DEFAULT_MIN_UPDATE_INTERVAL_MS;
+
+    private int mLastKnownDeviceOrientation = ORIENTATION_UNKNOWN;
+    private long mLastUpdateMs;
+
+    public DeviceOrientationTracker(Context context) {
+        this(context, SensorManager.SENSOR_DELAY_NORMAL);
+    }
+
+    /**
+     * @param sensorDelay the rate of the orientation sensor, one of the
+     *                    {@code SensorManager.SENSOR_DELAY_*} constants
+     */
+    public DeviceOrientationTracker(Context context, int sensorDelay) {
+        mOrientationEventListener = new OrientationEventListener(context, sensorDelay) {
+
+            @Override
+            public void onOrientationChanged(int orientation) {
+                if (orientation == OrientationEventListener.ORIENTATION_UNKNOWN) {
+                    return;
+                }
+
+                final long now = SystemClock.elapsedRealtime();
+                if (now - mLastUpdateMs < mMinUpdateIntervalMs) {
+                    return;
+                }
+                mLastUpdateMs = now;
+
+                final int quadrant = computeQuadrant(orientation, mLastKnownDeviceOrientation, mHysteresis);
+                if (quadrant != mLastKnownDeviceOrientation) {
+                    mLastKnownDeviceOrientation = quadrant;
+                    onDeviceOrientationChanged(quadrant);
+                }
+            }
+        };
+    }
+
+    /**
+     * Compute the orientation quadrant for a raw angle.
+     * @param angle      the raw angle in degrees, between 0 and 359
+     * @param current    the current quadrant or {@link #ORIENTATION_UNKNOWN}
+     * @param hysteresis how far past the quadrant boundary the angle has to move, in degrees
+     * @return one of 0, 90, 180 and 270
+     */
+    static int computeQuadrant(int angle, int current, int hysteresis) {
+        if (current != ORIENTATION_UNKNOWN) {
+            // angular distance to the center of the current quadrant
+            int distance = Math.abs(angle - current) % 360;
+            if (distance > 180) {
+                distance = 360 - distance;
+            }
+            if (distance <= 45 + hysteresis) {
+                return current;
+            }
+        }
+        return ((angle + 45) / 90 * 90) % 360;
+    }
+
+    /**
+     * Set how many degrees past the boundary between two quadrants the device needs to be rotated
+     * before the orientation changes.
+     */
+    public void setHysteresis(int hysteresis) {
+        if (hysteresis < 0 || hysteresis >= 45) {
+            throw new IllegalArgumentException("Hysteresis must be between 0 and 44: " + hysteresis);
+        }
+        mHysteresis = hysteresis;
+    }
+
+    /**
+     * Set the minimum interval between two processed sensor events.
+     */
+    public void setMinUpdateInterval(long minUpdateIntervalMs) {
+        mMinUpdateIntervalMs = minUpdateIntervalMs;
+    }
+
+    public void enable() {
+        if (mOrientationEventListener.canDetectOrientation()) {
+            mOrientationEventListener.enable();
+        }
+    }
+
+    public void disable() {
+        mOrientationEventListener.disable();
+    }
+
+    /**
+     * @return the last known orientation or {@link #ORIENTATION_UNKNOWN}.
+     */
+    public int getLastKnownDeviceOrientation() {
+        return mLastKnownDeviceOrientation;
+    }
+
+    /**
+     * Called when the physical orientation of the device changes quadrant.
+     *
+     * @param deviceOrientation One of 0, 90, 180, and 270, clockwise from the natural orientation.
+     */
+    public abstract void onDeviceOrientationChanged(int deviceOrientation);
+
+}
@@ -17,19 +17,23 @@
 package com.futureworkshops.camera2jpegorientation.widget.camera;
 
 import android.content.Context;
+import android.hardware.display.DisplayManager;
 import android.util.SparseIntArray;
 import android.view.Display;
-import android.view.OrientationEventListener;
 import android.view.Surface;
 
 
 /**
  * Monitors the value returned from {@link Display#getRotation()}.
+ * <p>
+ * Rotation changes are reported by the {@link DisplayManager}, including 180 degree turns that
+ * don't change the configuration, so no orientation sensor is needed and the rotation is only
+ * queried when the display changes. The physical orientation is tracked separately by the
+ * {@link DeviceOrientationTracker}.
+ * </p>
  */
 public abstract class DisplayOrientationDetector {
 
-    private final OrientationEventListener mOrientationEventListener;
-
     /** Mapping from Surface.Rotation_n to degrees. */
     private static final SparseIntArray DISPLAY_ORIENTATIONS = new SparseIntArray();
 
@@ -40,41 +44,58 @@ public abstract class DisplayOrientationDetector {
         DISPLAY_ORIENTATIONS.put(Surface.ROTATION_270, 270);
     }
 
+    private final DisplayManager mDisplayManager;
+
+    private final DisplayManager.DisplayListener mDisplayListener = new DisplayManager.DisplayListener() {
+
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (mDisplay == null || displayId != mDisplay.getDisplayId()) {
+                return;
+            }
+            final int rotation = mDisplay.getRotation();
+            if (mLastKnownRotation != rotation) {
+                mLastKnownRotation = rotation;
+                dispatchOnDisplayOrientationChanged(DISPLAY_ORIENTATIONS.get(rotation));
+            }
+        }
+    };
+
     private Display mDisplay;
 
+    /** This is either Surface.Rotation_0, _90, _180, _270, or -1 (invalid). */
+    private int mLastKnownRotation = -1;
+
     private int mLastKnownDisplayOrientation = 0;
 
     public DisplayOrientationDetector(Context context) {
-        mOrientationEventListener = new OrientationEventListener(context) {
-
-            /** This is either Surface.Rotation_0, _90, _180, _270, or -1 (invalid). */
-            private int mLastKnownRotation = -1;
-
-            @Override
-            public void onOrientationChanged(int orientation) {
-                if (orientation == OrientationEventListener.ORIENTATION_UNKNOWN ||
-                        mDisplay == null) {
-                    return;
-                }
-                final int rotation = mDisplay.getRotation();
-                if (mLastKnownRotation != rotation) {
-                    mLastKnownRotation = rotation;
-                    dispatchOnDisplayOrientationChanged(DISPLAY_ORIENTATIONS.get(rotation));
-                }
-            }
-        };
+        mDisplayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
     }
 
+    /**
+     * Start monitoring {@code display}. Must be called on a thread with a looper, e.g. the main
+     * thread, which receives the callbacks.
+     */
     public void enable(Display display) {
         mDisplay = display;
-        mOrientationEventListener.enable();
+        mDisplayManager.registerDisplayListener(mDisplayListener, null);
         // Immediately dispatch the first callback
-        dispatchOnDisplayOrientationChanged(DISPLAY_ORIENTATIONS.get(display.getRotation()));
+        mLastKnownRotation = display.getRotation();
+        dispatchOnDisplayOrientationChanged(DISPLAY_ORIENTATIONS.get(mLastKnownRotation));
     }
 
     public void disable() {
-        mOrientationEventListener.disable();
+        mDisplayManager.unregisterDisplayListener(mDisplayListener);
         mDisplay = null;
+        mLastKnownRotation = -1;
     }
 
     public int getLastKnownDisplayOrientation() {
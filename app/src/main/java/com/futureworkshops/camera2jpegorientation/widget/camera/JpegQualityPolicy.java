@@ -0,0 +1,239 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.hardware.camera2.CaptureRequest;
+
+/**
+ * Decides the {@link CaptureRequest#JPEG_QUALITY} used for still captures.
+ * <p>
+ * By default every capture uses {@link #getQuality()}. When adaptive mode is enabled the quality is
+ * lowered in {@link #QUALITY_STEP} increments (down to {@link #getMinQuality()}) while one of
+ * these conditions holds and raised back once it clears:
+ * <ul>
+ * <li>a burst is sustained, i.e. at least {@link #getBurstThreshold()} captures are in flight
+ * for {@link #SUSTAINED_BURST_UPDATES} consecutive updates;</li>
+ * <li>storage falls behind, i.e. the rate at which JPEG bytes are produced is higher than the
+ * write throughput measured by {@link JpegSaver}. The produced rate decays while the camera is
+ * idle, since no more than one average shot can have been produced since the last one.</li>
+ * </ul>
+ * </p>
+ * All methods are thread safe.
+ */
+public class JpegQualityPolicy implements JpegSaver.WriteListener {
+
+    /**
+     * Use the quality chosen by the policy instead of a per-capture value.
+     */
+    public static final int QUALITY_DEFAULT = -1;
+
+    public static final int DEFAULT_QUALITY = 90;
+    public static final int DEFAULT_MIN_QUALITY = 70;
+    public static final int DEFAULT_BURST_THRESHOLD = 3;
+
+    /**
+     * Amount by which the adaptive quality is lowered or raised on each update.
+     */
+    public static final int QUALITY_STEP = 5;
+
+    /**
+     * Number of consecutive updates with a full pipeline before a burst is considered sustained.
+     */
+    public static final int SUSTAINED_BURST_UPDATES = 2;
+
+    /**
+     * Weight of the newest sample in the moving averages.
+     */
+    private static final float EMA_WEIGHT = 0.3f;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private int mQuality = DEFAULT_QUALITY;
+    private int mMinQuality = DEFAULT_MIN_QUALITY;
+    private int mBurstThreshold = DEFAULT_BURST_THRESHOLD;
+    private boolean mAdaptive;
+
+    /**
+     * How much the adaptive mode currently takes off {@link #mQuality}.
+     */
+    private int mPenalty;
+
+    private int mCapturesInFlight;
+    private int mBurstUpdates;
+
+    private long mLastCaptureNanos;
+    private float mAverageShotBytes;
+    private float mProducedBytesPerSecond;
+    private float mWriteBytesPerSecond;
+
+    /**
+     * Validate a JPEG quality value.
+     * @return {@code quality} if it is between 1 and 100
+     */
+    public static int checkQuality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("JPEG quality must be between 1 and 100: " + quality);
+        }
+        return quality;
+    }
+
+    /**
+     * Set the quality used for all captures that don't request a specific quality.
+     */
+    public synchronized void setQuality(int quality) {
+        mQuality = checkQuality(quality);
+        mPenalty = Math.min(mPenalty, Math.max(0, mQuality - mMinQuality));
+    }
+
+    public synchronized int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Set the lowest quality the adaptive mode can fall back to.
+     */
+    public synchronized void setMinQuality(int minQuality) {
+        mMinQuality = checkQuality(minQuality);
+        mPenalty = Math.min(mPenalty, Math.max(0, mQuality - mMinQuality));
+    }
+
+    public synchronized int getMinQuality() {
+        return mMinQuality;
+    }
+
+    /**
+     * Set the number of in-flight captures from which we consider the camera is shooting a burst.
+     */
+    public synchronized void setBurstThreshold(int burstThreshold) {
+        if (burstThreshold < 1) {
+            throw new IllegalArgumentException("Burst threshold must be at least 1: " + burstThreshold);
+        }
+        mBurstThreshold = burstThreshold;
+    }
+
+    public synchronized int getBurstThreshold() {
+        return mBurstThreshold;
+    }
+
+    /**
+     * Enable or disable the adaptive quality. Disabling it restores {@link #getQuality()}.
+     */
+    public synchronized void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+        if (!adaptive) {
+            mPenalty = 0;
+            mBurstUpdates = 0;
+        }
+    }
+
+    public synchronized boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * Get the quality for a capture.
+     * @param requestedQuality the per-capture quality or {@link #QUALITY_DEFAULT}
+     * @return {@code requestedQuality} if set, otherwise the (possibly adapted) global quality
+     */
+    public synchronized int resolveQuality(int requestedQuality) {
+        if (requestedQuality != QUALITY_DEFAULT) {
+            return requestedQuality;
+        }
+        return mQuality - mPenalty;
+    }
+
+    /**
+     * @return the average size of the JPEGs produced so far, in bytes.
+     */
+    public synchronized long getAverageShotBytes() {
+        return (long) mAverageShotBytes;
+    }
+
+    /**
+     * @return the rate at which JPEG bytes are currently produced, in bytes per second.
+     */
+    public synchronized long getProducedBytesPerSecond() {
+        return (long) producedBytesPerSecond(nanoTime());
+    }
+
+    /**
+     * @return the average write throughput reported by {@link JpegSaver}, in bytes per second.
+     */
+    public synchronized long getWriteBytesPerSecond() {
+        return (long) mWriteBytesPerSecond;
+    }
+
+    /**
+     * Called by the {@link CameraController} when the user requests a capture.
+     */
+    synchronized void onCaptureQueued() {
+        mCapturesInFlight++;
+        update();
+    }
+
+    /**
+     * Called by the {@link CameraController} when a capture ends.
+     * @param jpegBytes size of the produced JPEG or 0 if the capture failed
+     */
+    synchronized void onCaptureFinished(long jpegBytes) {
+        mCapturesInFlight = Math.max(0, mCapturesInFlight - 1);
+
+        if (jpegBytes > 0) {
+            final long now = nanoTime();
+            if (mLastCaptureNanos > 0 && now > mLastCaptureNanos) {
+                final float bytesPerSecond = jpegBytes * 1.0f * NANOS_PER_SECOND / (now - mLastCaptureNanos);
+                // average from the decayed rate, or a pause between bursts would barely lower it
+                mProducedBytesPerSecond = average(producedBytesPerSecond(now), bytesPerSecond);
+            }
+            mAverageShotBytes = average(mAverageShotBytes, jpegBytes);
+            mLastCaptureNanos = now;
+        }
+        update();
+    }
+
+    @Override
+    public synchronized void onJpegWritten(long bytes, long durationNanos) {
+        if (bytes > 0 && durationNanos > 0) {
+            mWriteBytesPerSecond = average(mWriteBytesPerSecond, bytes * 1.0f * NANOS_PER_SECOND / durationNanos);
+            update();
+        }
+    }
+
+    private void update() {
+        if (!mAdaptive) {
+            return;
+        }
+
+        mBurstUpdates = mCapturesInFlight >= mBurstThreshold ? mBurstUpdates + 1 : 0;
+        final boolean sustainedBurst = mBurstUpdates >= SUSTAINED_BURST_UPDATES;
+        final boolean storageBehind = mWriteBytesPerSecond > 0 &&
+            producedBytesPerSecond(nanoTime()) > mWriteBytesPerSecond;
+
+        if (sustainedBurst || storageBehind) {
+            mPenalty = Math.min(mPenalty + QUALITY_STEP, Math.max(0, mQuality - mMinQuality));
+        } else if (mPenalty > 0) {
+            mPenalty = Math.max(0, mPenalty - QUALITY_STEP);
+        }
+    }
+
+    /**
+     * Get the produced rate, bounded by one average shot over the time elapsed since the last
+     * capture so that it decays while the camera is idle.
+     */
+    private float producedBytesPerSecond(long now) {
+        if (mLastCaptureNanos > 0 && now > mLastCaptureNanos) {
+            final float idleBytesPerSecond = mAverageShotBytes * NANOS_PER_SECOND / (now - mLastCaptureNanos);
+            return Math.min(mProducedBytesPerSecond, idleBytesPerSecond);
+        }
+        return mProducedBytesPerSecond;
+    }
+
+    /**
+     * Clock used for the produced rate; overridden by tests.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private static float average(float average, float sample) {
+        return average == 0 ? sample : average + EMA_WEIGHT * (sample - average);
+    }
+}
@@ -3,12 +3,18 @@ package com.futureworkshops.camera2jpegorientation.widget.camera;
 import android.content.Context;
 import android.graphics.BitmapFactory;
 import android.support.annotation.NonNull;
-import android.support.media.ExifInterface;
-import android.util.Log;
+import android.support.annotation.Nullable;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Helper class that saves JPEG files with the correct EXIF information.
@@ -19,18 +25,42 @@ import java.io.IOException;
  * <p/>Both {@link BitmapFactory#decodeFile(String)} and Open CV's <b>imread(String)</b>
  * use the EXIF tags to correctly determine image rotation.
  * </p>
+ * Files saved with an id are recorded in a {@link CaptureIndex}, so they can be listed without
+ * opening them.
  */
 
 public class JpegSaver {
     
     private static final String TEMP_DIR = "tmp";
     
+    private static final String INDEX_FILE = "captures.idx";
+    
+    /**
+     * Id of the files saved by name, which are not indexed.
+     */
+    private static final long NO_FILE_ID = -1;
+    
     private Context context;
     
+    private volatile WriteListener writeListener;
+    
+    /**
+     * Opened on first use, from the thread saving the files.
+     */
+    private CaptureIndex index;
+    
     public JpegSaver(@NonNull Context context) {
         this.context = context;
     }
     
+    /**
+     * Set a listener notified with the size and duration of every JPEG write. The listener is
+     * called on the thread doing the write.
+     */
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+    
     /**
      * Save the {@code byte[]} data in a temporary folder with the name {@code imageName}.
      * <p/>
@@ -41,46 +71,179 @@ public class JpegSaver {
      * @return
      */
     public String saveTempJpeg(byte[] imageData, @NonNull String imageName, int rotation) {
-        final File tmpDir = getTmpDir();
-        final File file = new File(tmpDir, imageName);
+        return saveTempJpeg(ByteBuffer.wrap(imageData), imageName, rotation);
+    }
+    
+    /**
+     * Save the JPEG data in a temporary folder with the name {@code imageName}, without copying
+     * it to the Java heap.
+     * <p/>
+     * The method will update the <b>EXIF</b> data
+     * @param imageData the JPEG data, from its position to its limit; the position of
+     *                  {@code imageData} is not changed
+     * @param imageName the name of the file
+     * @param rotation  the rotation that needs to be applied to the image
+     * @return the path of the saved file or {@code null} if it could not be saved
+     */
+    public String saveTempJpeg(@NonNull ByteBuffer imageData, @NonNull String imageName, int rotation) {
+        return save(imageData, imageName, rotation, NO_FILE_ID, 0);
+    }
+    
+    /**
+     * Save the JPEG data in a temporary folder as {@link #getFileName(long) getFileName(fileId)}
+     * and record it in the index.
+     * @param imageData the JPEG data, from its position to its limit; the position of
+     *                  {@code imageData} is not changed
+     * @param fileId    the id of the file, e.g. the capture id
+     * @param timestamp the time of the capture, in milliseconds since epoch
+     * @param rotation  the rotation that needs to be applied to the image
+     * @return the path of the saved file or {@code null} if it could not be saved
+     */
+    public String saveTempJpeg(@NonNull ByteBuffer imageData, long fileId, long timestamp, int rotation) {
+        return save(imageData, getFileName(fileId), rotation, fileId, timestamp);
+    }
+    
+    /**
+     * Save a JPEG that already has its EXIF orientation, e.g. prepared by the
+     * {@link CaptureStages}, as {@link #getFileName(long) getFileName(entry.getId())} and record
+     * it in the index.
+     * @param segments the JPEG, in segments written in order from their position to their limit
+     * @param entry    the index record of the file, with the size and checksum of the segments
+     * @return the path of the saved file or {@code null} if it could not be saved
+     */
+    public String saveTempJpeg(@NonNull ByteBuffer[] segments, @NonNull CaptureIndex.Entry entry) {
+        return write(new File(getTmpDir(), getFileName(entry.getId())), segments, entry.getSize(), entry);
+    }
+    
+    /**
+     * Delete a file saved with {@link #saveTempJpeg(ByteBuffer, long, long, int)} and remove it
+     * from the index, compacting the index when needed.
+     * @return true if the file was deleted
+     */
+    public synchronized boolean deleteTempJpeg(long fileId) {
+        final boolean deleted = getTempJpeg(fileId).delete();
+        try {
+            final CaptureIndex index = getIndex();
+            index.remove(fileId);
+            index.compactIfNeeded();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return deleted;
+    }
+    
+    /**
+     * Delete the oldest files saved with an id until at most {@code maxFiles} are left.
+     * @return the ids of the files deleted, oldest first
+     */
+    @NonNull
+    public synchronized List<Long> trimTempJpegs(int maxFiles) {
+        try {
+            final CaptureIndex index = getIndex();
+            final int excess = index.size() - maxFiles;
+            if (excess <= 0) {
+                return Collections.emptyList();
+            }
+            final List<CaptureIndex.Entry> entries = index.list();
+            final List<Long> deleted = new ArrayList<>(excess);
+            for (int i = 0; i < excess; i++) {
+                final long id = entries.get(i).getId();
+                deleteTempJpeg(id);
+                deleted.add(id);
+            }
+            return deleted;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * List the files saved with an id, reading the index only. Don't call it on the main thread.
+     * @return the metadata of the files, in the order they were saved
+     */
+    @NonNull
+    public synchronized List<CaptureIndex.Entry> listTempJpegs() throws IOException {
+        return getIndex().list();
+    }
+    
+    /**
+     * @return the file saved with {@code fileId}, which may not exist
+     */
+    @NonNull
+    public File getTempJpeg(long fileId) {
+        return new File(getTmpDir(), getFileName(fileId));
+    }
+    
+    @NonNull
+    public static String getFileName(long fileId) {
+        return "capture_" + fileId + ".jpeg";
+    }
+    
+    @Nullable
+    private String save(ByteBuffer imageData, String imageName, int rotation, long fileId,
+                        long timestamp) {
+        // read-only, so the orientation is not patched into the caller's buffer
+        final ByteBuffer data = imageData.asReadOnlyBuffer();
+        
+        // set the EXIF orientation tag in case some devices don't add it, in the same write
+        // as the image data instead of reopening the file
+        final int exifOrientation = ExifOrientation.degreesToExif(rotation);
+        final ByteBuffer[] segments;
+        try {
+            segments = ExifOrientation.withOrientation(data, exifOrientation);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+        
+        CaptureIndex.Entry entry = null;
+        if (fileId != NO_FILE_ID) {
+            final int[] dimensions = ExifOrientation.readDimensions(data);
+            entry = new CaptureIndex.Entry(fileId, timestamp, remaining(segments),
+                dimensions != null ? dimensions[0] : 0, dimensions != null ? dimensions[1] : 0,
+                exifOrientation, CaptureIndex.checksum(segments));
+        }
+        return write(new File(getTmpDir(), imageName), segments, data.remaining(), entry);
+    }
+    
+    /**
+     * Write the segments to {@code file} and record it in the index if {@code entry} is set.
+     * @param size the size reported to the {@link WriteListener}
+     * @return the path of the file or {@code null} if it could not be written
+     */
+    @Nullable
+    private String write(File file, ByteBuffer[] segments, long size, @Nullable CaptureIndex.Entry entry) {
         FileOutputStream output = null;
         String path = null;
         
         try {
             // save file to temp path
+            final long writeStart = System.nanoTime();
             output = new FileOutputStream(file);
-            output.write(imageData);
-            output.close();
-            
-            //  read EXIF tags
-            ExifInterface exifInterface = new ExifInterface(file.getAbsolutePath());
-            
-            int exifOrientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION,
-                ExifInterface.ORIENTATION_NORMAL);
-            
-            Log.d("JpegSaver", "previous exif orientation: " + String.valueOf(exifOrientation));
+            final FileChannel channel = output.getChannel();
             
-            // update EXIF orientation tag in case some devices don't add it
-            int exifRotation = ExifInterface.ORIENTATION_NORMAL;
-            switch (rotation) {
-                case 90:
-                    exifRotation = ExifInterface.ORIENTATION_ROTATE_90;
-                    break;
-                case 180:
-                    exifRotation = ExifInterface.ORIENTATION_ROTATE_180;
-                    break;
-                case 270:
-                    exifRotation = ExifInterface.ORIENTATION_ROTATE_270;
-                    break;
+            final long exifSection = CameraTrace.beginSection(CameraTrace.EXIF_WRITE);
+            try {
+                final ByteBuffer last = segments[segments.length - 1];
+                while (last.hasRemaining()) {
+                    channel.write(segments);
+                }
+            } finally {
+                CameraTrace.endSection(CameraTrace.EXIF_WRITE, exifSection);
             }
+            output.close();
             
-            Log.d("JpegSaver", "updated exif orientation: " + String.valueOf(exifRotation));
-            
-            exifInterface.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(exifRotation));
-            exifInterface.saveAttributes();
-            final int degrees = exifInterface.getRotationDegrees();
+            final WriteListener listener = writeListener;
+            if (listener != null) {
+                listener.onJpegWritten(size, System.nanoTime() - writeStart);
+            }
             
             path = file.getAbsolutePath();
+            
+            if (entry != null) {
+                index(entry);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             if (null != output) {
@@ -95,6 +258,30 @@ public class JpegSaver {
         return path;
     }
     
+    private synchronized void index(CaptureIndex.Entry entry) {
+        try {
+            getIndex().add(entry);
+        } catch (IOException e) {
+            // the file is saved, it is only missing from the listings
+            e.printStackTrace();
+        }
+    }
+    
+    private synchronized CaptureIndex getIndex() {
+        if (index == null) {
+            index = new CaptureIndex(new File(getTmpDir(), INDEX_FILE));
+        }
+        return index;
+    }
+    
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+    
     private File getTmpDir() {
         File tempDir = new File(this.context.getFilesDir(), TEMP_DIR);
         
@@ -104,4 +291,17 @@ public class JpegSaver {
         
         return tempDir;
     }
+    
+    /**
+     * Interface used to measure the storage throughput.
+     */
+    public interface WriteListener {
+        
+        /**
+         * Called after the JPEG data has been written to disk.
+         * @param bytes         number of bytes written
+         * @param durationNanos time spent writing, in nanoseconds
+         */
+        void onJpegWritten(long bytes, long durationNanos);
+    }
 }
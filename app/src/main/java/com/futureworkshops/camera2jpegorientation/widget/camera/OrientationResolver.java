@@ -0,0 +1,163 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.graphics.Matrix;
+import android.hardware.camera2.CameraCharacteristics;
+import android.support.annotation.NonNull;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+import com.futureworkshops.camera2jpegorientation.orientation.Rotations;
+
+/**
+ * Resolves every orientation related value for an opened camera.
+ * <p>
+ * The sensor orientation and lens facing are read once and the JPEG rotation, the EXIF orientation
+ * and the preview transform are precomputed for the four display rotations, so resolving them
+ * for a capture or a rotation change is a table lookup that doesn't allocate. The rotation math
+ * itself lives in {@link Rotations}, which doesn't depend on Android.
+ * </p>
+ * Display rotations are expressed in degrees (0, 90, 180 or 270), as reported by
+ * {@link DisplayOrientationDetector}.
+ */
+public final class OrientationResolver {
+
+    private static final int ROTATION_COUNT = 4;
+
+    private final int mSensorOrientation;
+    private final boolean mFrontFacing;
+
+    private final int[] mJpegOrientations = new int[ROTATION_COUNT];
+    private final int[] mExifOrientations = new int[ROTATION_COUNT];
+
+    // preview transforms are recomputed only when the surface size changes
+    private final Matrix[] mPreviewTransforms = new Matrix[ROTATION_COUNT];
+    private final float[] mSurfaceCoordinates = new float[8];
+    private final float[] mTargetCoordinates = new float[8];
+    private int mSurfaceWidth = -1;
+    private int mSurfaceHeight = -1;
+
+    /**
+     * @param sensorOrientation clockwise angle through which the sensor image needs to be rotated
+     *                          to be upright in the native device orientation
+     * @param frontFacing       whether the camera faces the same direction as the screen
+     */
+    public OrientationResolver(int sensorOrientation, boolean frontFacing) {
+        mSensorOrientation = sensorOrientation;
+        mFrontFacing = frontFacing;
+
+        for (int i = 0; i < ROTATION_COUNT; i++) {
+            mJpegOrientations[i] = Rotations.jpegRotation(sensorOrientation, frontFacing, i * 90);
+            mExifOrientations[i] = ExifOrientation.degreesToExif(mJpegOrientations[i]);
+            mPreviewTransforms[i] = new Matrix();
+        }
+    }
+
+    /**
+     * Create a resolver for the camera described by {@code characteristics}.
+     */
+    @NonNull
+    public static OrientationResolver from(@NonNull CameraCharacteristics characteristics) {
+        final Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        final Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+
+        return new OrientationResolver(sensorOrientation != null ? sensorOrientation : 0,
+            facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT);
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    public boolean isFrontFacing() {
+        return mFrontFacing;
+    }
+
+    /**
+     * Rotation needed to transform the captured JPEG from the camera sensor orientation to the
+     * device's current orientation.
+     * @param displayRotation the display rotation in degrees
+     * @return the clockwise rotation to apply to the JPEG, in degrees
+     */
+    public int getJpegOrientation(int displayRotation) {
+        return mJpegOrientations[Rotations.quadrant(displayRotation)];
+    }
+
+    /**
+     * Rotation needed to transform the captured JPEG from the camera sensor orientation to the
+     * physical device orientation, e.g. as reported by {@link DeviceOrientationTracker}.
+     * @param deviceOrientation clockwise rotation of the device from its natural orientation
+     * @return the clockwise rotation to apply to the JPEG, in degrees
+     */
+    public int getJpegOrientationForDevice(int deviceOrientation) {
+        // a device rotated clockwise shows its content rotated counter-clockwise
+        return mJpegOrientations[Rotations.quadrant(360 - deviceOrientation)];
+    }
+
+    /**
+     * @param displayRotation the display rotation in degrees
+     * @return the EXIF orientation matching {@link #getJpegOrientation(int)}
+     */
+    public int getExifOrientation(int displayRotation) {
+        return mExifOrientations[Rotations.quadrant(displayRotation)];
+    }
+
+    /**
+     * Get the transform matrix for the TextureView showing the preview.
+     * <p>
+     * The returned {@link Matrix} is cached and will be updated the next time the surface size
+     * changes, so it must not be modified or kept.
+     * </p>
+     * @param displayRotation the display rotation in degrees
+     * @param surfaceWidth    width of the TextureView surface
+     * @param surfaceHeight   height of the TextureView surface
+     */
+    public synchronized Matrix getPreviewTransform(int displayRotation, int surfaceWidth, int surfaceHeight) {
+        if (surfaceWidth != mSurfaceWidth || surfaceHeight != mSurfaceHeight) {
+            updatePreviewTransforms(surfaceWidth, surfaceHeight);
+        }
+        return mPreviewTransforms[Rotations.quadrant(displayRotation)];
+    }
+
+    private void updatePreviewTransforms(int width, int height) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+
+        setCoordinates(mSurfaceCoordinates,
+            0.f, 0.f, // top left
+            width, 0.f, // top right
+            0.f, height, // bottom left
+            width, height); // bottom right
+
+        // Rotate the camera preview when the screen is landscape.
+        mPreviewTransforms[0].reset();
+        mPreviewTransforms[2].reset();
+
+        // Clockwise
+        setCoordinates(mTargetCoordinates,
+            0.f, height, // top left
+            0.f, 0.f, // top right
+            width, height, // bottom left
+            width, 0.f); // bottom right
+        mPreviewTransforms[1].setPolyToPoly(mSurfaceCoordinates, 0, mTargetCoordinates, 0, 4);
+
+        // Counter-clockwise
+        setCoordinates(mTargetCoordinates,
+            width, 0.f, // top left
+            width, height, // top right
+            0.f, 0.f, // bottom left
+            0.f, height); // bottom right
+        mPreviewTransforms[3].setPolyToPoly(mSurfaceCoordinates, 0, mTargetCoordinates, 0, 4);
+    }
+
+    private static void setCoordinates(float[] coordinates,
+                                       float x0, float y0, float x1, float y1,
+                                       float x2, float y2, float x3, float y3) {
+        coordinates[0] = x0;
+        coordinates[1] = y0;
+        coordinates[2] = x1;
+        coordinates[3] = y1;
+        coordinates[4] = x2;
+        coordinates[5] = y2;
+        coordinates[6] = x3;
+        coordinates[7] = y3;
+    }
+}
@@ -0,0 +1,58 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import io.reactivex.ObservableEmitter;
+
+/**
+ * A user request to capture a photo, tracked by {@link CaptureStateMachine} from the moment
+ * {@link CameraController#takePicture()} is subscribed until the JPEG is delivered.
+ */
+class PendingCapture {
+
+    /**
+     * Emitter that receives the review thumbnail, if one was requested, and then the JPEG.
+     */
+    final ObservableEmitter<CapturedImage> emitter;
+
+    /**
+     * JPEG quality requested for this capture or {@link JpegQualityPolicy#QUALITY_DEFAULT}.
+     */
+    final int jpegQuality;
+
+    /**
+     * Whether the user asked for a review thumbnail, whether the still request targets the
+     * thumbnail output and whether the thumbnail image was received.
+     */
+    final boolean thumbnailRequested;
+    boolean thumbnailExpected;
+    boolean thumbnailReceived;
+
+    /**
+     * Whether the still capture request has been sent to the camera.
+     */
+    boolean stillSent;
+
+    /**
+     * Whether the capture was disposed after its still request was sent; its images are freed
+     * without being read.
+     */
+    boolean cancelled;
+
+    /**
+     * {@link System#nanoTime()} when the capture was queued and when its still request was sent.
+     */
+    final long queuedNanos = System.nanoTime();
+    long stillSentNanos;
+
+    /**
+     * {@link CaptureStateMachine.Camera#elapsedRealtime()} when the capture was queued and when
+     * its still request was sent, from which its deadlines are counted.
+     */
+    long queuedMillis;
+    long stillSentMillis;
+
+    PendingCapture(ObservableEmitter<CapturedImage> emitter, int jpegQuality, boolean thumbnailRequested) {
+        this.emitter = emitter;
+        this.jpegQuality = jpegQuality;
+        this.thumbnailRequested = thumbnailRequested;
+    }
+}
@@ -0,0 +1,70 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.support.v7.widget.AppCompatTextView;
+import android.util.TypedValue;
+
+import java.util.Locale;
+
+/**
+ * Overlay of the {@link CameraView} showing the preview timing and the latency of the last
+ * capture. The setters must be called on the UI thread.
+ */
+class PerformanceHudView extends AppCompatTextView {
+
+    private static final int BACKGROUND_COLOR = 0x99000000;
+    private static final float TEXT_SIZE_SP = 11;
+    private static final int PADDING_DP = 6;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private PreviewFrameMonitor.Stats mPreviewStats;
+    private CaptureTiming mCaptureTiming;
+
+    PerformanceHudView(Context context) {
+        super(context);
+
+        final int padding = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, PADDING_DP,
+            context.getResources().getDisplayMetrics());
+        setPadding(padding, padding, padding, padding);
+        setBackgroundColor(BACKGROUND_COLOR);
+        setTextColor(Color.WHITE);
+        setTextSize(TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP);
+        setTypeface(Typeface.MONOSPACE);
+        update();
+    }
+
+    void setPreviewStats(PreviewFrameMonitor.Stats previewStats) {
+        mPreviewStats = previewStats;
+        update();
+    }
+
+    void setCaptureTiming(CaptureTiming captureTiming) {
+        mCaptureTiming = captureTiming;
+        update();
+    }
+
+    private void update() {
+        final StringBuilder text = new StringBuilder();
+        if (mPreviewStats == null) {
+            text.append("preview: waiting for frames");
+        } else {
+            text.append(String.format(Locale.US, "preview %.1f fps, jitter %.1f ms%n",
+                mPreviewStats.getFps(), mPreviewStats.getJitterMs()));
+            text.append(String.format(Locale.US, "max interval %.0f ms, dropped %d/%d",
+                mPreviewStats.getMaxIntervalMs(), mPreviewStats.getDroppedFrames(),
+                mPreviewStats.getFrames() + mPreviewStats.getDroppedFrames()));
+        }
+
+        if (mCaptureTiming != null) {
+            text.append(String.format(Locale.US, "%nlast capture %.0f ms, %d KB%n",
+                mCaptureTiming.getTotalNanos() / NANOS_PER_MILLI, mCaptureTiming.getJpegBytes() / 1024));
+            text.append(String.format(Locale.US, "3A %.0f / still %.0f / copy %.1f ms",
+                mCaptureTiming.getPrecaptureNanos() / NANOS_PER_MILLI,
+                mCaptureTiming.getStillCaptureNanos() / NANOS_PER_MILLI,
+                mCaptureTiming.getImageCopyNanos() / NANOS_PER_MILLI));
+        }
+        setText(text);
+    }
+}
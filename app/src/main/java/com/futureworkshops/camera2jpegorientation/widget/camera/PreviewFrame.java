@@ -0,0 +1,152 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ImageFormat#YUV_420_888} preview frame delivered for analysis.
+ * <p>
+ * The plane buffers are direct views over the camera buffer, so no pixel data is copied. They are
+ * only valid until {@link #release()} is called and must not be kept after that. Frames are pooled
+ * and reused, so every frame <b>must</b> be released as soon as the analysis is done; while
+ * {@link PreviewFrameStream#MAX_FRAMES_IN_FLIGHT} frames are held new frames are dropped.
+ * </p>
+ * <p>
+ * Since the object is reused, each delivery has its own {@link #getGeneration() generation}.
+ * Code that may release a frame after it was delivered again, e.g. from a timeout, should
+ * remember the generation and call {@link #release(long)}.
+ * </p>
+ */
+public final class PreviewFrame {
+
+    private static final int PLANE_COUNT = 3;
+
+    private final PreviewFrameStream mOwner;
+    private final ByteBuffer[] mPlanes = new ByteBuffer[PLANE_COUNT];
+    private final int[] mRowStrides = new int[PLANE_COUNT];
+    private final int[] mPixelStrides = new int[PLANE_COUNT];
+
+    private Image mImage;
+    private RefCountedAutoCloseable<ImageReader> mReader;
+    private long mGeneration;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+
+    PreviewFrame(PreviewFrameStream owner) {
+        mOwner = owner;
+    }
+
+    /**
+     * Attach the frame to an acquired {@link Image}. The frame takes ownership of the image and
+     * of a reference to its reader.
+     */
+    void attach(Image image, RefCountedAutoCloseable<ImageReader> reader) {
+        mImage = image;
+        mReader = reader;
+        mWidth = image.getWidth();
+        mHeight = image.getHeight();
+        mTimestamp = image.getTimestamp();
+
+        final Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < PLANE_COUNT; i++) {
+            mPlanes[i] = planes[i].getBuffer();
+            mRowStrides[i] = planes[i].getRowStride();
+            mPixelStrides[i] = planes[i].getPixelStride();
+        }
+    }
+
+    /**
+     * Close the attached {@link Image}, if any.
+     * @return true if an image was attached
+     */
+    boolean detach() {
+        if (mImage == null) {
+            return false;
+        }
+
+        mImage.close();
+        mImage = null;
+        for (int i = 0; i < PLANE_COUNT; i++) {
+            mPlanes[i] = null;
+        }
+        // after the image, the reader may be closed now
+        mReader.close();
+        mReader = null;
+        return true;
+    }
+
+    /**
+     * Called by the {@link PreviewFrameStream} under its lock when the frame leaves the pool.
+     */
+    void nextGeneration() {
+        mGeneration++;
+    }
+
+    /**
+     * @return the generation of this delivery of the frame, for {@link #release(long)}.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the sensor timestamp of the frame, in nanoseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Get a plane of the frame.
+     * @param plane 0 for Y, 1 for U (Cb) and 2 for V (Cr)
+     * @return a direct {@link ByteBuffer} over the plane data, valid until {@link #release()}
+     */
+    public ByteBuffer getPlane(int plane) {
+        return mPlanes[plane];
+    }
+
+    /**
+     * @param plane 0 for Y, 1 for U (Cb) and 2 for V (Cr)
+     * @return the distance in bytes between the starts of two consecutive rows of the plane.
+     */
+    public int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    /**
+     * @param plane 0 for Y, 1 for U (Cb) and 2 for V (Cr)
+     * @return the distance in bytes between two consecutive pixels of a row of the plane.
+     */
+    public int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    /**
+     * Release the frame and its camera buffer. Calling this again before the frame is delivered
+     * anew has no effect; use {@link #release(long)} when a release may come later than that.
+     */
+    public void release() {
+        release(mGeneration);
+    }
+
+    /**
+     * Release the frame if it is still in the delivery of {@code generation}; otherwise this
+     * delivery was already released and the call has no effect.
+     * @param generation the {@link #getGeneration() generation} of the frame when it was received
+     */
+    public void release(long generation) {
+        mOwner.recycle(this, generation);
+    }
+}
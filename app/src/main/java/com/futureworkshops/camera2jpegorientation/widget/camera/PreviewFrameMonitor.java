@@ -0,0 +1,187 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.util.Locale;
+
+/**
+ * Computes the timing of the preview stream from the {@link CaptureResult#SENSOR_TIMESTAMP} and
+ * frame number of every result.
+ * <p>
+ * The frame rate and jitter are computed over the last {@link #WINDOW_SIZE} frame intervals.
+ * Frame numbers are consecutive for all the requests of a session, so a gap in them means the
+ * camera dropped frames. New {@link Stats} are published every {@link #REPORT_INTERVAL_NS} of
+ * sensor time.
+ * </p>
+ * {@link #onFrame(long, long)} and {@link #reset()} are called on the camera thread,
+ * {@link #getStats()} can be called from any thread.
+ */
+public class PreviewFrameMonitor {
+
+    /**
+     * Number of frame intervals the frame rate and jitter are computed over.
+     */
+    static final int WINDOW_SIZE = 60;
+
+    static final long REPORT_INTERVAL_NS = 500000000L;
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private static final Stats NO_STATS = new Stats(0, 0, 0, 0, 0, 0);
+
+    /**
+     * Ring buffer of the last frame intervals, in nanoseconds.
+     */
+    private final long[] mIntervals = new long[WINDOW_SIZE];
+    private int mIntervalCount;
+    private int mNextInterval;
+
+    private long mLastTimestamp;
+    private long mLastFrameNumber = -1;
+    private long mLastReportTimestamp;
+    private long mFrames;
+    private long mDroppedFrames;
+
+    private volatile Stats mStats = NO_STATS;
+
+    /**
+     * Forget the frames of the previous session.
+     */
+    void reset() {
+        mIntervalCount = 0;
+        mNextInterval = 0;
+        mLastFrameNumber = -1;
+        mFrames = 0;
+        mDroppedFrames = 0;
+        mStats = NO_STATS;
+    }
+
+    /**
+     * Record a frame.
+     * @param sensorTimestampNs the start of exposure of the frame, in nanoseconds
+     * @param frameNumber       the frame number of the result
+     * @return {@code true} if new {@link Stats} are available
+     */
+    boolean onFrame(long sensorTimestampNs, long frameNumber) {
+        if (mLastFrameNumber < 0) {
+            mLastReportTimestamp = sensorTimestampNs;
+        } else {
+            // results arrive in order; anything else is a duplicate
+            if (frameNumber <= mLastFrameNumber) {
+                return false;
+            }
+            mDroppedFrames += frameNumber - mLastFrameNumber - 1;
+
+            final long interval = sensorTimestampNs - mLastTimestamp;
+            if (interval > 0) {
+                mIntervals[mNextInterval] = interval;
+                mNextInterval = (mNextInterval + 1) % WINDOW_SIZE;
+                mIntervalCount = Math.min(mIntervalCount + 1, WINDOW_SIZE);
+            }
+        }
+
+        mFrames++;
+        mLastFrameNumber = frameNumber;
+        mLastTimestamp = sensorTimestampNs;
+
+        if (sensorTimestampNs - mLastReportTimestamp < REPORT_INTERVAL_NS || mIntervalCount == 0) {
+            return false;
+        }
+        mLastReportTimestamp = sensorTimestampNs;
+        mStats = computeStats();
+        return true;
+    }
+
+    /**
+     * @return the latest statistics.
+     */
+    public Stats getStats() {
+        return mStats;
+    }
+
+    private Stats computeStats() {
+        long sum = 0;
+        long max = 0;
+        for (int i = 0; i < mIntervalCount; i++) {
+            sum += mIntervals[i];
+            max = Math.max(max, mIntervals[i]);
+        }
+        final double mean = (double) sum / mIntervalCount;
+
+        double variance = 0;
+        for (int i = 0; i < mIntervalCount; i++) {
+            final double deviation = mIntervals[i] - mean;
+            variance += deviation * deviation;
+        }
+        variance /= mIntervalCount;
+
+        return new Stats(NANOS_PER_SECOND / mean, mean / NANOS_PER_MILLI,
+            Math.sqrt(variance) / NANOS_PER_MILLI, max / NANOS_PER_MILLI, mFrames, mDroppedFrames);
+    }
+
+    /**
+     * A snapshot of the preview timing.
+     */
+    public static final class Stats {
+
+        private final double fps;
+        private final double meanIntervalMs;
+        private final double jitterMs;
+        private final double maxIntervalMs;
+        private final long frames;
+        private final long droppedFrames;
+
+        Stats(double fps, double meanIntervalMs, double jitterMs, double maxIntervalMs,
+              long frames, long droppedFrames) {
+            this.fps = fps;
+            this.meanIntervalMs = meanIntervalMs;
+            this.jitterMs = jitterMs;
+            this.maxIntervalMs = maxIntervalMs;
+            this.frames = frames;
+            this.droppedFrames = droppedFrames;
+        }
+
+        /**
+         * @return the effective frame rate over the window.
+         */
+        public double getFps() {
+            return fps;
+        }
+
+        public double getMeanIntervalMs() {
+            return meanIntervalMs;
+        }
+
+        /**
+         * @return the standard deviation of the frame intervals over the window.
+         */
+        public double getJitterMs() {
+            return jitterMs;
+        }
+
+        public double getMaxIntervalMs() {
+            return maxIntervalMs;
+        }
+
+        /**
+         * @return the number of frames received since the preview started.
+         */
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return the number of frames missing from the frame numbers since the preview started.
+         */
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f fps jitter=%.1fms max=%.1fms dropped=%d/%d",
+                fps, jitterMs, maxIntervalMs, droppedFrames, frames + droppedFrames);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.FlowableOnSubscribe;
+import io.reactivex.functions.Cancellable;
+
+/**
+ * Delivers {@link ImageFormat#YUV_420_888} preview frames for analysis.
+ * <p>
+ * Frames are read from an {@link ImageReader} on a dedicated thread so that a slow analyzer never
+ * delays the camera callbacks. Only the most recent frame is acquired and frames are only
+ * delivered while the subscriber has requested them and holds less than
+ * {@link #MAX_FRAMES_IN_FLIGHT} frames; all other frames are closed right away, so the preview
+ * is never throttled by the analysis. {@link PreviewFrame}s are pooled and no memory is
+ * allocated per frame.
+ * </p>
+ * <p>
+ * The reader is reference counted: every delivered frame retains it, so closing the stream
+ * doesn't invalidate the frames the subscriber still holds. The reader is closed once the last
+ * of them is released.
+ * </p>
+ */
+class PreviewFrameStream implements ImageReader.OnImageAvailableListener {
+
+    /**
+     * Maximum number of frames the subscriber can hold at the same time.
+     */
+    static final int MAX_FRAMES_IN_FLIGHT = 2;
+
+    private static final String TAG = PreviewFrameStream.class.getSimpleName();
+
+    /**
+     * {@link ImageReader#acquireLatestImage()} needs a free slot on top of the frames in flight.
+     */
+    private static final int MAX_IMAGES = MAX_FRAMES_IN_FLIGHT + 1;
+
+    private final AtomicReference<FlowableEmitter<PreviewFrame>> mEmitter = new AtomicReference<>();
+
+    /**
+     * Frames that are not held by the subscriber. Guarded by {@code this}.
+     */
+    private final PreviewFrame[] mFreeFrames = new PreviewFrame[MAX_FRAMES_IN_FLIGHT];
+    private int mFreeFrameCount;
+
+    private final Flowable<PreviewFrame> mFrames = Flowable.create(new FlowableOnSubscribe<PreviewFrame>() {
+
+        @Override
+        public void subscribe(final FlowableEmitter<PreviewFrame> emitter) throws Exception {
+            if (!mEmitter.compareAndSet(null, emitter)) {
+                emitter.onError(new IllegalStateException("Preview frames already have a subscriber"));
+                return;
+            }
+
+            emitter.setCancellable(new Cancellable() {
+                @Override
+                public void cancel() throws Exception {
+                    mEmitter.compareAndSet(emitter, null);
+                }
+            });
+        }
+        // demand is handled in onImageAvailable() so frames are never buffered
+    }, BackpressureStrategy.MISSING);
+
+    private HandlerThread mThread;
+    private RefCountedAutoCloseable<ImageReader> mImageReader;
+    private long mDroppedFrames;
+
+    PreviewFrameStream() {
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            mFreeFrames[i] = new PreviewFrame(this);
+        }
+        mFreeFrameCount = MAX_FRAMES_IN_FLIGHT;
+    }
+
+    /**
+     * Create the {@link ImageReader} for frames of the given size.
+     */
+    synchronized void open(Size size) {
+        close();
+
+        mThread = new HandlerThread("CameraFrameAnalysis");
+        mThread.start();
+
+        final ImageReader imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+            ImageFormat.YUV_420_888, MAX_IMAGES);
+        imageReader.setOnImageAvailableListener(this, new Handler(mThread.getLooper()));
+        mImageReader = new RefCountedAutoCloseable<>(imageReader);
+    }
+
+    /**
+     * Stop reading frames. The {@link ImageReader} is closed once the frames held by the subscriber
+     * are released, so they stay valid until then.
+     */
+    synchronized void close() {
+        if (mImageReader != null) {
+            mImageReader.get().setOnImageAvailableListener(null, null);
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+        }
+    }
+
+    /**
+     * @return true if frames are read for analysis.
+     */
+    synchronized boolean isOpen() {
+        return mImageReader != null;
+    }
+
+    /**
+     * @return the {@link Surface} the camera should draw preview frames into.
+     */
+    synchronized Surface getSurface() {
+        return mImageReader != null ? mImageReader.get().getSurface() : null;
+    }
+
+    /**
+     * @return the stream of frames. Only one subscriber is allowed at a time.
+     */
+    Flowable<PreviewFrame> getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return the number of frames dropped because the subscriber was busy.
+     */
+    synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        // the frame keeps the reader open until it is released
+        final RefCountedAutoCloseable<ImageReader> readerRef = retainReader(reader);
+        if (readerRef == null) {
+            // a frame of a closed reader
+            return;
+        }
+
+        final FlowableEmitter<PreviewFrame> emitter = mEmitter.get();
+        final PreviewFrame frame = emitter != null && emitter.requested() > 0 ? obtainFrame() : null;
+
+        final Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // all images are held
+            Log.w(TAG, "Unable to acquire preview frame", e);
+            if (frame != null) {
+                recycle(frame, frame.getGeneration());
+            }
+            readerRef.close();
+            return;
+        }
+
+        if (image == null) {
+            if (frame != null) {
+                recycle(frame, frame.getGeneration());
+            }
+            readerRef.close();
+            return;
+        }
+
+        if (frame == null) {
+            // nobody is ready for this frame; free the buffer so the camera can reuse it
+            image.close();
+            readerRef.close();
+            synchronized (this) {
+                mDroppedFrames++;
+            }
+            return;
+        }
+
+        frame.attach(image, readerRef);
+        if (emitter.isCancelled()) {
+            // cancelled since requested() was read: onNext would drop the frame, and with it the
+            // image and the reader reference
+            recycle(frame, frame.getGeneration());
+            return;
+        }
+        emitter.onNext(frame);
+    }
+
+    /**
+     * @return the current reader, retained, or {@code null} if {@code reader} is not the current one.
+     */
+    private synchronized RefCountedAutoCloseable<ImageReader> retainReader(ImageReader reader) {
+        if (mImageReader == null || mImageReader.get() != reader || mImageReader.getAndRetain() == null) {
+            return null;
+        }
+        return mImageReader;
+    }
+
+    private synchronized PreviewFrame obtainFrame() {
+        if (mFreeFrameCount == 0) {
+            return null;
+        }
+        final PreviewFrame frame = mFreeFrames[--mFreeFrameCount];
+        mFreeFrames[mFreeFrameCount] = null;
+        frame.nextGeneration();
+        return frame;
+    }
+
+    /**
+     * Give a frame back to the pool, unless it was already released for {@code generation}.
+     */
+    synchronized void recycle(PreviewFrame frame, long generation) {
+        if (generation != frame.getGeneration()) {
+            // a late release of an earlier delivery
+            return;
+        }
+        for (int i = 0; i < mFreeFrameCount; i++) {
+            if (mFreeFrames[i] == frame) {
+                // already released
+                return;
+            }
+        }
+        frame.detach();
+        mFreeFrames[mFreeFrameCount++] = frame;
+    }
+}
@@ -0,0 +1,183 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ranks the preview sizes supported by a camera against the surface that will display them.
+ * <p>
+ * A size is preferred when its aspect ratio is within {@link #setAspectRatioTolerance(float)} of
+ * the requested aspect ratio and it covers the surface (in sensor coordinates) while wasting as few
+ * pixels as possible. Sizes larger than {@link #MAX_PREVIEW_WIDTH} x {@link #MAX_PREVIEW_HEIGHT}
+ * are only used when nothing else is available, since camera devices only guarantee preview
+ * streams up to 1080p.
+ * </p>
+ */
+public class PreviewSizeSelector {
+
+    /**
+     * Max preview width that is guaranteed by Camera2 API.
+     */
+    public static final int MAX_PREVIEW_WIDTH = 1920;
+
+    /**
+     * Max preview height that is guaranteed by Camera2 API.
+     */
+    public static final int MAX_PREVIEW_HEIGHT = 1080;
+
+    /**
+     * Default relative aspect ratio tolerance. 1920x1088 still matches 16:9 with this value.
+     */
+    public static final float DEFAULT_ASPECT_RATIO_TOLERANCE = 0.02f;
+
+    /**
+     * Candidate tier: aspect ratio matches and the size covers the surface.
+     */
+    public static final int TIER_MATCH_COVERING = 0;
+
+    /**
+     * Candidate tier: aspect ratio matches but the size is smaller than the surface.
+     */
+    public static final int TIER_MATCH_UNDERSIZED = 1;
+
+    /**
+     * Candidate tier: aspect ratio doesn't match but the size covers the surface.
+     */
+    public static final int TIER_MISMATCH_COVERING = 2;
+
+    /**
+     * Candidate tier: neither the aspect ratio matches nor does the size cover the surface.
+     */
+    public static final int TIER_MISMATCH_UNDERSIZED = 3;
+
+    /**
+     * Candidate tier: the size exceeds the guaranteed preview size.
+     */
+    public static final int TIER_OVERSIZED = 4;
+
+    private float mAspectRatioTolerance = DEFAULT_ASPECT_RATIO_TOLERANCE;
+
+    /**
+     * Set the relative tolerance used when comparing aspect ratios, e.g. {@code 0.02f} accepts
+     * ratios within 2% of the requested one.
+     */
+    public void setAspectRatioTolerance(float aspectRatioTolerance) {
+        if (aspectRatioTolerance < 0) {
+            throw new IllegalArgumentException("Tolerance must be positive: " + aspectRatioTolerance);
+        }
+        mAspectRatioTolerance = aspectRatioTolerance;
+    }
+
+    public float getAspectRatioTolerance() {
+        return mAspectRatioTolerance;
+    }
+
+    /**
+     * Rank {@code sizes} from the best to the worst preview size.
+     *
+     * @param sizes             preview sizes supported by the camera
+     * @param aspectRatio       the desired aspect ratio, in landscape (sensor) orientation
+     * @param surfaceWidth      width of the surface showing the preview, or 0 if unknown
+     * @param surfaceHeight     height of the surface showing the preview, or 0 if unknown
+     * @param displayRotation   display rotation in degrees (0, 90, 180 or 270)
+     * @param sensorOrientation sensor orientation in degrees (0, 90, 180 or 270)
+     * @return the ranked candidates; the first one is the optimal size
+     */
+    @NonNull
+    public List<Candidate> rank(@NonNull List<Size> sizes, @NonNull Size aspectRatio,
+                                int surfaceWidth, int surfaceHeight,
+                                int displayRotation, int sensorOrientation) {
+        // the surface is laid out in display coordinates while preview sizes are in sensor
+        // coordinates, so we need to swap dimensions when the two are rotated by 90 degrees
+        final boolean swapped = (displayRotation + sensorOrientation) % 180 != 0;
+
+        int targetWidth = swapped ? surfaceHeight : surfaceWidth;
+        int targetHeight = swapped ? surfaceWidth : surfaceHeight;
+
+        // if the surface isn't available yet we aim for the aspect ratio size
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            targetWidth = aspectRatio.getWidth();
+            targetHeight = aspectRatio.getHeight();
+        }
+
+        final float ratio = aspectRatio.getWidth() * 1.0f / aspectRatio.getHeight();
+        final long targetArea = (long) targetWidth * targetHeight;
+
+        final List<Candidate> candidates = new ArrayList<>(sizes.size());
+        for (Size size : sizes) {
+            final float sizeRatio = size.getWidth() * 1.0f / size.getHeight();
+            final boolean ratioMatches = Math.abs(sizeRatio - ratio) <= ratio * mAspectRatioTolerance;
+            final boolean covers = size.getWidth() >= targetWidth && size.getHeight() >= targetHeight;
+            final long area = (long) size.getWidth() * size.getHeight();
+
+            final int tier;
+            if (size.getWidth() > MAX_PREVIEW_WIDTH || size.getHeight() > MAX_PREVIEW_HEIGHT) {
+                tier = TIER_OVERSIZED;
+            } else if (ratioMatches) {
+                tier = covers ? TIER_MATCH_COVERING : TIER_MATCH_UNDERSIZED;
+            } else {
+                tier = covers ? TIER_MISMATCH_COVERING : TIER_MISMATCH_UNDERSIZED;
+            }
+
+            // covering sizes cost the pixels they waste, undersized ones the pixels they miss
+            candidates.add(new Candidate(size, tier, Math.abs(area - targetArea)));
+        }
+
+        Collections.sort(candidates, CANDIDATE_COMPARATOR);
+        return Collections.unmodifiableList(candidates);
+    }
+
+    private static final Comparator<Candidate> CANDIDATE_COMPARATOR = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            if (lhs.tier != rhs.tier) {
+                return lhs.tier < rhs.tier ? -1 : 1;
+            }
+            return Long.signum(lhs.cost - rhs.cost);
+        }
+    };
+
+    /**
+     * A ranked preview size.
+     */
+    public static final class Candidate {
+
+        private final Size size;
+        private final int tier;
+        private final long cost;
+
+        Candidate(Size size, int tier, long cost) {
+            this.size = size;
+            this.tier = tier;
+            this.cost = cost;
+        }
+
+        public Size getSize() {
+            return size;
+        }
+
+        /**
+         * @return one of the {@code TIER_*} constants; lower is better.
+         */
+        public int getTier() {
+            return tier;
+        }
+
+        /**
+         * @return the number of pixels wasted (or missing) compared to the surface.
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return size + " tier=" + tier + " cost=" + cost;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A wrapper for an {@link AutoCloseable} object that implements reference counting to allow
+ * for resource management.
+ * <p>
+ * The owner holds the first reference and gives it up with {@link #close()}; the object is
+ * closed once every reference taken with {@link #getAndRetain()} is released too.
+ * </p>
+ */
+class RefCountedAutoCloseable<T extends AutoCloseable> implements AutoCloseable {
+
+    private T mObject;
+    private long mRefCount = 0;
+
+    /**
+     * Wrap the given object.
+     * @param object an object to wrap.
+     */
+    RefCountedAutoCloseable(@NonNull T object) {
+        mObject = object;
+    }
+
+    /**
+     * Increment the reference count and return the wrapped object.
+     * @return the wrapped object, or {@code null} if the object has been released.
+     */
+    @Nullable
+    synchronized T getAndRetain() {
+        if (mRefCount < 0) {
+            return null;
+        }
+        mRefCount++;
+        return mObject;
+    }
+
+    /**
+     * Return the wrapped object.
+     * @return the wrapped object, or {@code null} if the object has been released.
+     */
+    @Nullable
+    synchronized T get() {
+        return mObject;
+    }
+
+    /**
+     * Decrement the reference count and release the wrapped object if there are no other
+     * users retaining this object.
+     */
+    @Override
+    public synchronized void close() {
+        if (mRefCount >= 0) {
+            mRefCount--;
+            if (mRefCount < 0) {
+                try {
+                    mObject.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    mObject = null;
+                }
+            }
+        }
+    }
+}
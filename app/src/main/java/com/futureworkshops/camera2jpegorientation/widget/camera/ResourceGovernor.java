@@ -0,0 +1,75 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands the memory trim levels of the process to the components holding large buffers.
+ * <p>
+ * The application registers the governor with
+ * {@link android.content.Context#registerComponentCallbacks(android.content.ComponentCallbacks)}
+ * and components {@link #register(Trimmable) register} themselves with the governor. Every
+ * component decides what to release for a level; {@link #onLowMemory()} is reported as
+ * {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}.
+ * </p>
+ * Components are held strongly: screens must {@link #unregister(Trimmable) unregister} when
+ * they are destroyed. This class is thread safe, levels are dispatched on the main thread.
+ */
+public class ResourceGovernor implements ComponentCallbacks2 {
+
+    private static final String TAG = ResourceGovernor.class.getSimpleName();
+
+    private final CopyOnWriteArrayList<Trimmable> mTrimmables = new CopyOnWriteArrayList<>();
+
+    private volatile int mLastTrimLevel;
+
+    public void register(@NonNull Trimmable trimmable) {
+        mTrimmables.addIfAbsent(trimmable);
+    }
+
+    public void unregister(@NonNull Trimmable trimmable) {
+        mTrimmables.remove(trimmable);
+    }
+
+    /**
+     * @return the last level received, or 0 if memory was never trimmed.
+     */
+    public int getLastTrimLevel() {
+        return mLastTrimLevel;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.d(TAG, "trim memory, level " + level + ", " + mTrimmables.size() + " components");
+        mLastTrimLevel = level;
+        for (Trimmable trimmable : mTrimmables) {
+            trimmable.onTrimMemory(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // nothing to do
+    }
+
+    /**
+     * A component that can release memory.
+     */
+    public interface Trimmable {
+
+        /**
+         * Release memory according to {@code level}.
+         * @param level one of the {@code TRIM_MEMORY_} levels of {@link ComponentCallbacks2}
+         */
+        void onTrimMemory(int level);
+    }
+}
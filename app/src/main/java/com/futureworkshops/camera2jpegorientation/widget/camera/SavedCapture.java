@@ -0,0 +1,61 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+
+/**
+ * A capture saved by the {@link CapturePersister}, with the metadata recorded in the
+ * {@link CaptureIndex}.
+ * <p>
+ * Two instances are equal if they describe the same file content, so they can be used as cache
+ * keys.
+ * </p>
+ */
+public final class SavedCapture {
+
+    private final File mFile;
+    private final CaptureIndex.Entry mEntry;
+
+    SavedCapture(@NonNull File file, @NonNull CaptureIndex.Entry entry) {
+        mFile = file;
+        mEntry = entry;
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getId() {
+        return mEntry.getId();
+    }
+
+    /**
+     * @return the metadata of the file, read from the index.
+     */
+    @NonNull
+    public CaptureIndex.Entry getEntry() {
+        return mEntry;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SavedCapture)) {
+            return false;
+        }
+        final SavedCapture other = (SavedCapture) o;
+        return mEntry.getId() == other.mEntry.getId() &&
+            mEntry.getChecksum() == other.mEntry.getChecksum() &&
+            mFile.equals(other.mFile);
+    }
+
+    @Override
+    public int hashCode() {
+        final long id = mEntry.getId();
+        return 31 * (int) (id ^ (id >>> 32)) + mEntry.getChecksum();
+    }
+}
@@ -0,0 +1,81 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the small {@link ImageFormat#YUV_420_888} review frames of still captures to JPEG.
+ * <p>
+ * The frame is repacked into the NV21 layout understood by {@link YuvImage}; the NV21 buffer is
+ * reused between frames. Thumbnails are small so this takes a few milliseconds, far less than the
+ * HAL needs to encode the full resolution JPEG.
+ * </p>
+ * Not thread safe, use it from the camera thread only.
+ */
+class ThumbnailEncoder {
+
+    private final int mQuality;
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private byte[] mNv21;
+
+    /**
+     * @param quality the JPEG quality, between 1 and 100
+     */
+    ThumbnailEncoder(int quality) {
+        mQuality = quality;
+    }
+
+    /**
+     * Encode {@code image}. The image is not closed.
+     */
+    byte[] encode(Image image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int size = width * height * 3 / 2;
+        if (mNv21 == null || mNv21.length != size) {
+            mNv21 = new byte[size];
+        }
+
+        final Image.Plane[] planes = image.getPlanes();
+        copyLuma(planes[0], width, height);
+        copyChroma(planes[1], planes[2], width, height);
+
+        mOutput.reset();
+        new YuvImage(mNv21, ImageFormat.NV21, width, height, null)
+            .compressToJpeg(new Rect(0, 0, width, height), mQuality, mOutput);
+        return mOutput.toByteArray();
+    }
+
+    private void copyLuma(Image.Plane plane, int width, int height) {
+        final ByteBuffer buffer = plane.getBuffer();
+        final int rowStride = plane.getRowStride();
+        for (int row = 0; row < height; row++) {
+            buffer.position(row * rowStride);
+            buffer.get(mNv21, row * width, width);
+        }
+    }
+
+    /**
+     * Interleave the chroma planes as V then U, whatever their pixel stride.
+     */
+    private void copyChroma(Image.Plane uPlane, Image.Plane vPlane, int width, int height) {
+        final ByteBuffer u = uPlane.getBuffer();
+        final ByteBuffer v = vPlane.getBuffer();
+        final int rowStride = uPlane.getRowStride();
+        final int pixelStride = uPlane.getPixelStride();
+
+        int offset = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                final int index = row * rowStride + col * pixelStride;
+                mNv21[offset++] = v.get(index);
+                mNv21[offset++] = u.get(index);
+            }
+        }
+    }
+}
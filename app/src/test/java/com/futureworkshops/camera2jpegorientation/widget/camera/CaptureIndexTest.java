@@ -0,0 +1,101 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void list_returnsTheLatestRecordOfLiveFilesInSaveOrder() throws Exception {
+        final File file = folder.newFile();
+        final CaptureIndex index = new CaptureIndex(file);
+        index.add(entry(1, 100));
+        index.add(entry(2, 200));
+        index.add(entry(3, 300));
+        index.remove(2);
+        index.add(entry(1, 150));
+        index.close();
+
+        final List<CaptureIndex.Entry> entries = new CaptureIndex(file).list();
+
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).getId());
+        assertEquals(150, entries.get(0).getSize());
+        assertEquals(3, entries.get(1).getId());
+        assertEquals(4000, entries.get(1).getWidth());
+        assertEquals(3000, entries.get(1).getHeight());
+        assertEquals(6, entries.get(1).getOrientation());
+    }
+
+    @Test
+    public void open_dropsARecordTornByACrash() throws Exception {
+        final File file = folder.newFile();
+        final CaptureIndex index = new CaptureIndex(file);
+        index.add(entry(1, 100));
+        index.close();
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(access.length() + CaptureIndex.RECORD_SIZE / 2);
+        }
+
+        final CaptureIndex reopened = new CaptureIndex(file);
+        assertEquals(1, reopened.size());
+        reopened.add(entry(2, 200));
+
+        assertEquals(2, reopened.list().size());
+        assertEquals(CaptureIndex.HEADER_SIZE + 2 * CaptureIndex.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void compactIfNeeded_rewritesOnceDeadRecordsOutnumberLiveOnes() throws Exception {
+        final File file = folder.newFile();
+        final CaptureIndex index = new CaptureIndex(file);
+        index.add(entry(0, 100));
+        for (int id = 1; id <= CaptureIndex.COMPACT_MIN_DEAD_RECORDS / 2; id++) {
+            index.add(entry(id, 100));
+            index.remove(id);
+            if (id < CaptureIndex.COMPACT_MIN_DEAD_RECORDS / 2) {
+                assertFalse(index.compactIfNeeded());
+            }
+        }
+
+        assertTrue(index.compactIfNeeded());
+
+        assertEquals(CaptureIndex.HEADER_SIZE + CaptureIndex.RECORD_SIZE, file.length());
+        assertEquals(0, index.list().get(0).getId());
+        index.add(entry(7, 100));
+        assertEquals(2, new CaptureIndex(file).size());
+    }
+
+    @Test
+    public void checksum_coversEverySegment() {
+        final byte[] head = {1, 2, 3};
+        final byte[] tail = {4, 5};
+        final ByteBuffer direct = ByteBuffer.allocateDirect(tail.length).put(tail);
+        direct.flip();
+
+        final CRC32 crc = new CRC32();
+        crc.update(new byte[]{1, 2, 3, 4, 5});
+
+        assertEquals((int) crc.getValue(),
+            CaptureIndex.checksum(new ByteBuffer[]{ByteBuffer.wrap(head), direct}));
+        assertEquals(tail.length, direct.remaining());
+    }
+
+    private static CaptureIndex.Entry entry(long id, long size) {
+        return new CaptureIndex.Entry(id, 1000 + id, size, 4000, 3000, 6, (int) id);
+    }
+}
@@ -0,0 +1,176 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a {@link FakeCamera} with concurrent captures and reports the throughput, the latency
+ * percentiles and every capture that was dropped or delivered to the wrong emitter.
+ */
+class CaptureLoadHarness {
+
+    private final FakeCamera mCamera;
+    private int mClients = 4;
+    private int mCapturesPerClient = 25;
+    private long mTimeoutMs = 5000;
+
+    CaptureLoadHarness(FakeCamera camera) {
+        mCamera = camera;
+    }
+
+    /**
+     * @param clients number of threads taking pictures at the same time
+     */
+    CaptureLoadHarness clients(int clients) {
+        mClients = clients;
+        return this;
+    }
+
+    CaptureLoadHarness capturesPerClient(int capturesPerClient) {
+        mCapturesPerClient = capturesPerClient;
+        return this;
+    }
+
+    /**
+     * @param timeoutMs time after which a capture that neither succeeded nor failed is counted as
+     *                  dropped
+     */
+    CaptureLoadHarness timeout(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    Report run() throws InterruptedException {
+        final Report report = new Report(mClients * mCapturesPerClient);
+        final ExecutorService clients = Executors.newFixedThreadPool(mClients);
+
+        final long start = System.nanoTime();
+        for (int client = 0; client < mClients; client++) {
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < mCapturesPerClient; i++) {
+                        capture(report);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(mClients * mCapturesPerClient * mTimeoutMs, TimeUnit.MILLISECONDS);
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void capture(Report report) {
+        final AtomicInteger requestTag = new AtomicInteger(-1);
+        final long start = System.nanoTime();
+        try {
+            final CapturedImage result = mCamera.takePicture(requestTag)
+                .timeout(mTimeoutMs, TimeUnit.MILLISECONDS)
+                .blockingGet();
+
+            final boolean mismatched = FakeCamera.getRequestTag(result.getBuffer()) != requestTag.get();
+            result.close();
+            report.onSuccess(System.nanoTime() - start, mismatched);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                report.onDropped();
+            } else {
+                report.onError();
+            }
+        }
+    }
+
+    static class Report {
+
+        final int requested;
+        long elapsedNanos;
+
+        private final List<Long> mLatencies = new ArrayList<>();
+        private int mSucceeded;
+        private int mFailed;
+        private int mDropped;
+        private int mMismatched;
+
+        Report(int requested) {
+            this.requested = requested;
+        }
+
+        synchronized void onSuccess(long latencyNanos, boolean mismatched) {
+            mSucceeded++;
+            if (mismatched) {
+                mMismatched++;
+            }
+            mLatencies.add(latencyNanos);
+        }
+
+        synchronized void onError() {
+            mFailed++;
+        }
+
+        synchronized void onDropped() {
+            mDropped++;
+        }
+
+        synchronized int getSucceeded() {
+            return mSucceeded;
+        }
+
+        /**
+         * @return captures that ended with an error
+         */
+        synchronized int getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * @return captures that neither succeeded nor failed within the timeout
+         */
+        synchronized int getDropped() {
+            return mDropped;
+        }
+
+        /**
+         * @return captures that received the JPEG of another request
+         */
+        synchronized int getMismatched() {
+            return mMismatched;
+        }
+
+        double getCapturesPerSecond() {
+            return getSucceeded() / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the latency of the successful captures at {@code percentile}, in milliseconds
+         */
+        synchronized double getLatencyMs(double percentile) {
+            if (mLatencies.isEmpty()) {
+                return 0;
+            }
+            final List<Long> sorted = new ArrayList<>(mLatencies);
+            Collections.sort(sorted);
+            final int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index)) / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                "%d/%d captures, %d failed, %d dropped, %d mismatched, %.1f captures/s, " +
+                    "latency p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms",
+                getSucceeded(), requested, getFailed(), getDropped(), getMismatched(),
+                getCapturesPerSecond(), getLatencyMs(50), getLatencyMs(90), getLatencyMs(99),
+                getLatencyMs(100));
+        }
+    }
+}
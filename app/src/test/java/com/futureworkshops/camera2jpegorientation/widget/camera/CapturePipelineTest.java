@@ -0,0 +1,213 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hand-off, failures, back-pressure and shutdown of the pipeline, on real worker threads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.O_MR1)
+public class CapturePipelineTest {
+
+    private static final int JOBS = 20;
+
+    private final LinkedBlockingQueue<CaptureJob> finished = new LinkedBlockingQueue<>();
+    private final AtomicInteger releases = new AtomicInteger();
+    private CapturePipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void jobs_goThroughEveryStageInOrder() throws Exception {
+        final List<String> visits = Collections.synchronizedList(new ArrayList<>());
+        pipeline = newBuilder()
+            .addStage(stage("first", job -> visits.add("first:" + job.getId())), 2, 2)
+            .addStage(stage("second", job -> visits.add("second:" + job.getId())), 1, 2)
+            .build();
+
+        for (int i = 0; i < JOBS; i++) {
+            pipeline.submit(newJob(i));
+        }
+        for (int i = 0; i < JOBS; i++) {
+            final CaptureJob job = finished.poll(5, TimeUnit.SECONDS);
+            assertNull(job.getFailure());
+            assertTrue(visits.indexOf("first:" + job.getId()) < visits.indexOf("second:" + job.getId()));
+        }
+
+        assertEquals(2 * JOBS, visits.size());
+        final List<CapturePipeline.StageMetrics> metrics = pipeline.getMetrics();
+        assertEquals("first", metrics.get(0).getName());
+        assertEquals(JOBS, metrics.get(0).getProcessed());
+        assertEquals(JOBS, metrics.get(1).getProcessed());
+        // jobs are released after the listener, on the worker threads
+        shutdown();
+        assertEquals(JOBS, releases.get());
+    }
+
+    @Test
+    public void failure_skipsTheStagesAfter() throws Exception {
+        final AtomicInteger after = new AtomicInteger();
+        final IllegalStateException failure = new IllegalStateException("broken");
+        pipeline = newBuilder()
+            .addStage(stage("fail", job -> {
+                throw failure;
+            }), 1, 2)
+            .addStage(stage("after", job -> after.incrementAndGet()), 1, 2)
+            .build();
+
+        pipeline.submit(newJob(7));
+        final CaptureJob job = finished.poll(5, TimeUnit.SECONDS);
+
+        assertEquals("fail", job.getFailedStage());
+        assertSame(failure, job.getFailure());
+        assertEquals(0, after.get());
+        assertEquals(1, pipeline.getMetrics().get(0).getFailed());
+        shutdown();
+        assertEquals(1, releases.get());
+    }
+
+    @Test
+    public void error_failsTheJobAndKeepsTheWorker() throws Exception {
+        final OutOfMemoryError error = new OutOfMemoryError("decode");
+        pipeline = newBuilder()
+            .addStage(stage("decode", job -> {
+                if (job.getId() == 0) {
+                    throw error;
+                }
+            }), 1, 2)
+            .build();
+
+        pipeline.submit(newJob(0));
+        pipeline.submit(newJob(1));
+        final CaptureJob failed = finished.poll(5, TimeUnit.SECONDS);
+        final CaptureJob next = finished.poll(5, TimeUnit.SECONDS);
+
+        assertSame(error, failed.getFailure());
+        assertEquals(1, next.getId());
+        assertNull(next.getFailure());
+        shutdown();
+        assertEquals(2, releases.get());
+    }
+
+    @Test
+    public void slowStage_holdsBackTheOnesBefore() throws Exception {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        pipeline = newBuilder()
+            .addStage(stage("fast", job -> { }), 1, 1)
+            .addStage(stage("slow", job -> unblock.await()), 1, 1)
+            .build();
+
+        // one job in the slow stage, one queued for it, one held by the fast worker and one
+        // queued for the fast stage
+        int accepted = 0;
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (accepted < 4 && System.currentTimeMillis() < deadline) {
+            if (pipeline.offer(newJob(accepted))) {
+                accepted++;
+            } else {
+                Thread.sleep(5);
+            }
+        }
+        Thread.sleep(50);
+
+        assertEquals(4, accepted);
+        assertFalse(pipeline.offer(newJob(accepted)));
+        for (CapturePipeline.StageMetrics metrics : pipeline.getMetrics()) {
+            assertTrue(metrics.getMaxQueueDepth() <= metrics.getQueueCapacity());
+        }
+
+        unblock.countDown();
+        for (int i = 0; i < accepted; i++) {
+            assertNull(finished.poll(5, TimeUnit.SECONDS).getFailure());
+        }
+        shutdown();
+        assertEquals(accepted, releases.get());
+    }
+
+    @Test
+    public void shutdown_cancelsQueuedJobs() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        pipeline = newBuilder()
+            .addStage(stage("block", job -> {
+                started.countDown();
+                new CountDownLatch(1).await();
+            }), 1, 4)
+            .build();
+
+        pipeline.submit(newJob(0));
+        started.await(5, TimeUnit.SECONDS);
+        pipeline.submit(newJob(1));
+        shutdown();
+
+        assertEquals(2, finished.size());
+        for (CaptureJob job : finished) {
+            assertEquals("block", job.getFailedStage());
+        }
+        assertTrue(finished.peek().getFailure() instanceof InterruptedException
+            || finished.peek().getFailure() instanceof CancellationException);
+        assertEquals(2, releases.get());
+    }
+
+    private void shutdown() {
+        pipeline.shutdown();
+        pipeline = null;
+    }
+
+    private CapturePipeline.Builder newBuilder() {
+        return new CapturePipeline.Builder()
+            .setThreadFactory(Executors.defaultThreadFactory())
+            .setListener(finished::add);
+    }
+
+    private CaptureJob newJob(long id) {
+        return new CaptureJob(id, id, ByteBuffer.allocate(4), 0, releases::incrementAndGet);
+    }
+
+    private static CapturePipeline.Stage stage(String name, Step step) {
+        return new CapturePipeline.Stage() {
+            @NonNull
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void process(@NonNull CaptureJob job) throws Exception {
+                step.run(job);
+            }
+        };
+    }
+
+    private interface Step {
+        void run(CaptureJob job) throws Exception;
+    }
+}
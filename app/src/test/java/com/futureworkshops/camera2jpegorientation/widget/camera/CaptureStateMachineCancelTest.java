@@ -0,0 +1,252 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.hardware.camera2.CaptureResult;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.observers.TestObserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Disposal and reclamation of captures at every stage, driven synchronously on the test thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.O_MR1)
+public class CaptureStateMachineCancelTest {
+
+    private static final byte[] JPEG_A = {10};
+    private static final byte[] JPEG_B = {20};
+
+    private final Object lock = new Object();
+    private final RecordingCamera camera = new RecordingCamera();
+    private CaptureStateMachine stateMachine;
+
+    @Before
+    public void setUp() {
+        stateMachine = new CaptureStateMachine(lock, camera, new JpegQualityPolicy());
+        synchronized (lock) {
+            stateMachine.setCapabilitiesLocked(true, true);
+            stateMachine.setStateLocked(CaptureStateMachine.STATE_PREVIEW);
+        }
+    }
+
+    @Test
+    public void disposedBeforeConvergence_sendsNoStillRequest() {
+        final TestObserver<CapturedImage> capture = stateMachine.createCapture(0, false).test();
+        capture.dispose();
+
+        synchronized (lock) {
+            assertEquals(0, stateMachine.getPendingCaptureCountLocked());
+            assertEquals(1, stateMachine.getCountersLocked().getCancelledBeforeStill());
+            assertEquals(CaptureStateMachine.STATE_PREVIEW, stateMachine.getStateLocked());
+        }
+        assertEquals(1, camera.precaptureCancels);
+
+        converge();
+        assertTrue(camera.stillTags.isEmpty());
+    }
+
+    @Test
+    public void disposedBeforeConvergence_leavesTheOtherCapturesQueued() {
+        final TestObserver<CapturedImage> first = stateMachine.createCapture(0, false).test();
+        final TestObserver<CapturedImage> second = stateMachine.createCapture(0, false).test();
+        first.dispose();
+        converge();
+
+        assertEquals(1, camera.stillTags.size());
+        jpegAvailable(JPEG_B);
+        second.assertValueCount(1).assertComplete();
+        assertArrayEquals(JPEG_B, second.values().get(0).getJpeg());
+    }
+
+    @Test
+    public void disposedAfterTheStillRequest_freesItsImageWithoutReadingIt() {
+        final TestObserver<CapturedImage> first = stateMachine.createCapture(0, false).test();
+        final TestObserver<CapturedImage> second = stateMachine.createCapture(0, false).test();
+        converge();
+        first.dispose();
+
+        jpegAvailable(JPEG_A);
+        assertEquals(0, camera.reads);
+        assertTrue(camera.images.isEmpty());
+
+        jpegAvailable(JPEG_B);
+        second.assertValueCount(1).assertComplete();
+        assertArrayEquals(JPEG_B, second.values().get(0).getJpeg());
+        synchronized (lock) {
+            assertEquals(1, stateMachine.getCountersLocked().getCancelledAfterStill());
+            assertEquals(0, stateMachine.getPendingCaptureCountLocked());
+        }
+    }
+
+    @Test
+    public void reclaimExpired_failsCapturesThatCantStart() {
+        final TestObserver<CapturedImage> capture = stateMachine.createCapture(0, false).test();
+
+        camera.now = CaptureStateMachine.PRECAPTURE_DEADLINE_MS;
+        assertEquals(0, reclaimExpired());
+        camera.now++;
+        assertEquals(1, reclaimExpired());
+
+        capture.assertError(TimeoutException.class);
+        synchronized (lock) {
+            assertEquals(1, stateMachine.getCountersLocked().getExpiredBeforeStill());
+            assertEquals(CaptureStateMachine.STATE_PREVIEW, stateMachine.getStateLocked());
+        }
+        assertEquals(1, camera.precaptureCancels);
+    }
+
+    @Test
+    public void reclaimExpired_failsALostImageAndDrainsItIfItComesLate() {
+        final TestObserver<CapturedImage> capture = stateMachine.createCapture(0, false).test();
+        camera.now = 100;
+        converge();
+
+        camera.now += CaptureStateMachine.STILL_DEADLINE_MS + 1;
+        assertEquals(1, reclaimExpired());
+        capture.assertError(TimeoutException.class);
+
+        jpegAvailable(JPEG_A);
+        assertEquals(0, camera.reads);
+        assertTrue(camera.images.isEmpty());
+        synchronized (lock) {
+            assertEquals(1, stateMachine.getCountersLocked().getExpiredAfterStill());
+            assertEquals(1, stateMachine.getCountersLocked().getOrphanedImages());
+        }
+    }
+
+    @Test
+    public void lateImage_isNotGivenToACaptureWaitingForConvergence() {
+        final TestObserver<CapturedImage> lost = stateMachine.createCapture(0, false).test();
+        camera.now = 100;
+        converge();
+        camera.now += CaptureStateMachine.STILL_DEADLINE_MS + 1;
+        assertEquals(1, reclaimExpired());
+        final TestObserver<CapturedImage> next = stateMachine.createCapture(0, false).test();
+
+        jpegAvailable(JPEG_A);
+        lost.assertError(TimeoutException.class);
+        next.assertNoValues().assertNotTerminated();
+        assertTrue(camera.images.isEmpty());
+        synchronized (lock) {
+            assertEquals(1, stateMachine.getPendingCaptureCountLocked());
+            assertEquals(CaptureStateMachine.STATE_WAITING_FOR_3A_CONVERGENCE, stateMachine.getStateLocked());
+        }
+
+        converge();
+        assertEquals(2, camera.stillTags.size());
+        jpegAvailable(JPEG_B);
+        next.assertValueCount(1).assertComplete();
+        assertArrayEquals(JPEG_B, next.values().get(0).getJpeg());
+    }
+
+    @Test
+    public void lateImage_isNotGivenToTheNextSentCapture() {
+        final TestObserver<CapturedImage> lost = stateMachine.createCapture(0, false).test();
+        camera.now = 100;
+        converge();
+        camera.now += CaptureStateMachine.STILL_DEADLINE_MS;
+        final TestObserver<CapturedImage> next = stateMachine.createCapture(0, false).test();
+        converge();
+        camera.now++;
+        assertEquals(1, reclaimExpired());
+        lost.assertError(TimeoutException.class);
+
+        jpegAvailable(JPEG_A);
+        next.assertNoValues();
+        jpegAvailable(JPEG_B);
+        next.assertValueCount(1).assertComplete();
+        assertArrayEquals(JPEG_B, next.values().get(0).getJpeg());
+        assertEquals(1, camera.reads);
+    }
+
+    @Test
+    public void close_failsEveryCaptureLeft() {
+        final TestObserver<CapturedImage> sent = stateMachine.createCapture(0, false).test();
+        converge();
+        final TestObserver<CapturedImage> waiting = stateMachine.createCapture(0, false).test();
+
+        synchronized (lock) {
+            stateMachine.closeLocked();
+            assertEquals(0, stateMachine.getPendingCaptureCountLocked());
+            assertEquals(2, stateMachine.getCountersLocked().getFailedOnClose());
+        }
+        sent.assertError(IllegalStateException.class);
+        waiting.assertError(IllegalStateException.class);
+    }
+
+    private int reclaimExpired() {
+        synchronized (lock) {
+            return stateMachine.reclaimExpiredLocked();
+        }
+    }
+
+    private void converge() {
+        synchronized (lock) {
+            stateMachine.onPreCaptureResultLocked(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED, CaptureResult.CONTROL_AWB_STATE_CONVERGED);
+        }
+    }
+
+    private void jpegAvailable(byte[] jpeg) {
+        camera.images.add(jpeg);
+        synchronized (lock) {
+            stateMachine.onJpegAvailableLocked(camera, 90);
+        }
+    }
+
+    private static class RecordingCamera implements CaptureStateMachine.Camera, CaptureStateMachine.JpegReader {
+
+        final Queue<byte[]> images = new ArrayDeque<>();
+        final List<Integer> stillTags = new ArrayList<>();
+        int precaptureCancels;
+        int reads;
+        long now;
+
+        @Override
+        public void triggerPrecapture() {
+        }
+
+        @Override
+        public boolean captureStill(int requestTag, int jpegQuality, boolean thumbnail) {
+            stillTags.add(requestTag);
+            return false;
+        }
+
+        @Override
+        public void cancelPrecapture() {
+            precaptureCancels++;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+
+        @Override
+        public CapturedImage acquireNextJpeg(int rotation) {
+            reads++;
+            final byte[] jpeg = images.poll();
+            return jpeg == null ? null : new CapturedImage(jpeg, rotation, false, 0);
+        }
+
+        @Override
+        public void discardNextJpeg() {
+            images.poll();
+        }
+    }
+}
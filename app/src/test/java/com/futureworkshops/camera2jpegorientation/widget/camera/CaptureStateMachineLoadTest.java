@@ -0,0 +1,109 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Load tests of the capture state machine against a {@link FakeCamera}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.O_MR1)
+public class CaptureStateMachineLoadTest {
+
+    private FakeCamera camera;
+
+    @After
+    public void tearDown() {
+        if (camera != null) {
+            camera.stop();
+        }
+    }
+
+    @Test
+    public void concurrentCaptures_areAllDeliveredInOrder() throws Exception {
+        start(new FakeCamera.Script());
+        final CaptureLoadHarness.Report report = run(new CaptureLoadHarness(camera)
+            .clients(4)
+            .capturesPerClient(25));
+
+        assertEquals(report.requested, report.getSucceeded());
+        assertEquals(0, report.getMismatched());
+        assertEquals(0, camera.getPendingCaptureCount());
+    }
+
+    @Test
+    public void precaptureTimeout_stillCaptures() throws Exception {
+        start(new FakeCamera.Script().convergenceFrames(-1));
+        final CaptureLoadHarness.Report report = run(new CaptureLoadHarness(camera)
+            .clients(2)
+            .capturesPerClient(3));
+
+        assertEquals(report.requested, report.getSucceeded());
+        assertEquals(0, report.getMismatched());
+    }
+
+    @Test
+    public void legacyDevice_capturesWithoutWaitingForAeAndAwb() throws Exception {
+        start(new FakeCamera.Script().legacyDevice(true));
+        final CaptureLoadHarness.Report report = run(new CaptureLoadHarness(camera)
+            .clients(2)
+            .capturesPerClient(10));
+
+        assertEquals(report.requested, report.getSucceeded());
+        assertEquals(0, report.getMismatched());
+    }
+
+    @Test
+    public void failedCaptures_errorTheirOwnEmitter() throws Exception {
+        start(new FakeCamera.Script().failureRate(0.2));
+        final CaptureLoadHarness.Report report = run(new CaptureLoadHarness(camera)
+            .clients(4)
+            .capturesPerClient(25));
+
+        assertEquals(camera.getInjectedFailures(), report.getFailed());
+        assertEquals(report.requested - report.getFailed(), report.getSucceeded());
+        assertEquals(0, report.getDropped());
+        assertEquals(0, report.getMismatched());
+        assertEquals(0, camera.getPendingCaptureCount());
+    }
+
+    @Test
+    public void abandonedCaptures_dontReceiveLaterImages() throws Exception {
+        start(new FakeCamera.Script().stillLatency(300));
+
+        // the clients give up before their images arrive
+        final CaptureLoadHarness.Report abandoned = run(new CaptureLoadHarness(camera)
+            .clients(2)
+            .capturesPerClient(5)
+            .timeout(100));
+        assertEquals(abandoned.requested, abandoned.getDropped());
+
+        // wait for the images of the abandoned captures
+        Thread.sleep(1000);
+        assertEquals(0, camera.getPendingCaptureCount());
+
+        final CaptureLoadHarness.Report report = run(new CaptureLoadHarness(camera)
+            .clients(2)
+            .capturesPerClient(5));
+        assertEquals(report.requested, report.getSucceeded());
+        assertEquals(0, report.getMismatched());
+    }
+
+    private void start(FakeCamera.Script script) {
+        camera = new FakeCamera(script);
+        camera.start();
+    }
+
+    private static CaptureLoadHarness.Report run(CaptureLoadHarness harness) throws InterruptedException {
+        final CaptureLoadHarness.Report report = harness.run();
+        System.out.println(report);
+        return report;
+    }
+}
@@ -0,0 +1,144 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.hardware.camera2.CaptureResult;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import io.reactivex.observers.TestObserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matching of review thumbnails with their captures, driven synchronously on the test thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.O_MR1)
+public class CaptureStateMachineThumbnailTest {
+
+    private static final byte[] THUMBNAIL_A = {1};
+    private static final byte[] THUMBNAIL_B = {2};
+    private static final byte[] JPEG_A = {10};
+    private static final byte[] JPEG_B = {20};
+
+    private final Object lock = new Object();
+    private final StubCamera camera = new StubCamera();
+    private CaptureStateMachine stateMachine;
+
+    @Before
+    public void setUp() {
+        stateMachine = new CaptureStateMachine(lock, camera, new JpegQualityPolicy());
+        synchronized (lock) {
+            stateMachine.setCapabilitiesLocked(true, true);
+            stateMachine.setStateLocked(CaptureStateMachine.STATE_PREVIEW);
+        }
+    }
+
+    @Test
+    public void thumbnail_isEmittedBeforeTheJpeg() {
+        final TestObserver<CapturedImage> capture = stateMachine.createCapture(0, true).test();
+        converge();
+
+        thumbnailAvailable(THUMBNAIL_A);
+        capture.assertValueCount(1).assertNotComplete();
+        assertTrue(capture.values().get(0).isThumbnail());
+
+        jpegAvailable(JPEG_A);
+        capture.assertValueCount(2).assertComplete();
+        assertFalse(capture.values().get(1).isThumbnail());
+        assertArrayEquals(JPEG_A, capture.values().get(1).getJpeg());
+    }
+
+    @Test
+    public void lateThumbnail_isNotGivenToTheNextCapture() {
+        final TestObserver<CapturedImage> first = stateMachine.createCapture(0, true).test();
+        final TestObserver<CapturedImage> second = stateMachine.createCapture(0, true).test();
+        converge();
+
+        // the first JPEG overtakes its thumbnail
+        jpegAvailable(JPEG_A);
+        thumbnailAvailable(THUMBNAIL_A);
+        thumbnailAvailable(THUMBNAIL_B);
+        jpegAvailable(JPEG_B);
+
+        first.assertValueCount(1).assertComplete();
+        assertArrayEquals(JPEG_A, first.values().get(0).getJpeg());
+        second.assertValueCount(2).assertComplete();
+        assertArrayEquals(THUMBNAIL_B, second.values().get(0).getJpeg());
+    }
+
+    @Test
+    public void noThumbnailOutput_onlyEmitsTheJpeg() {
+        camera.thumbnailOutput = false;
+        final TestObserver<CapturedImage> capture = stateMachine.createCapture(0, true).test();
+        converge();
+
+        jpegAvailable(JPEG_A);
+        capture.assertValueCount(1).assertComplete();
+        assertFalse(capture.values().get(0).isThumbnail());
+    }
+
+    private void converge() {
+        synchronized (lock) {
+            stateMachine.onPreCaptureResultLocked(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED, CaptureResult.CONTROL_AWB_STATE_CONVERGED);
+        }
+    }
+
+    private void thumbnailAvailable(byte[] thumbnail) {
+        camera.images.add(new CapturedImage(thumbnail, 90, true, 0));
+        synchronized (lock) {
+            stateMachine.onThumbnailAvailableLocked(camera, 90);
+        }
+    }
+
+    private void jpegAvailable(byte[] jpeg) {
+        camera.images.add(new CapturedImage(jpeg, 90, false, 0));
+        synchronized (lock) {
+            stateMachine.onJpegAvailableLocked(camera, 90);
+        }
+    }
+
+    private static class StubCamera implements CaptureStateMachine.Camera, CaptureStateMachine.JpegReader {
+
+        final Queue<CapturedImage> images = new ArrayDeque<>();
+        boolean thumbnailOutput = true;
+
+        @Override
+        public void triggerPrecapture() {
+        }
+
+        @Override
+        public boolean captureStill(int requestTag, int jpegQuality, boolean thumbnail) {
+            return thumbnail && thumbnailOutput;
+        }
+
+        @Override
+        public void cancelPrecapture() {
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return 0;
+        }
+
+        @Override
+        public CapturedImage acquireNextJpeg(int rotation) {
+            return images.poll();
+        }
+
+        @Override
+        public void discardNextJpeg() {
+            images.poll();
+        }
+    }
+}
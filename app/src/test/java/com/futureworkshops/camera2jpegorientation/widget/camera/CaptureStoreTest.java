@@ -0,0 +1,166 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureStoreTest {
+
+    private static final int CAPTURE_SIZE = 1024;
+    private static final long MEMORY_BUDGET = 4 * CAPTURE_SIZE;
+
+    @Rule
+    public TemporaryFolder spillDir = new TemporaryFolder();
+
+    @Test
+    public void put_copiesTheDataWithoutMovingTheSource() {
+        final CaptureStore store = new CaptureStore(null, 4, MEMORY_BUDGET);
+        final byte[] data = jpeg(0);
+        data[1] = 7;
+        final ByteBuffer source = ByteBuffer.wrap(data);
+        source.position(1);
+
+        final long id = store.put(source, 90);
+        source.put(1, (byte) 0);
+        final CaptureHandle handle = store.acquire(id);
+
+        assertEquals(1, source.position());
+        assertEquals(90, handle.getRotation());
+        assertEquals(CAPTURE_SIZE - 1, handle.getSize());
+        assertEquals(7, handle.getData().get(0));
+        assertEquals(CAPTURE_SIZE - 1, store.getDirectBytes());
+        assertEquals(id, store.getLatestId());
+        handle.release();
+    }
+
+    @Test
+    public void acquire_returnsNullForUnknownCaptures() {
+        final CaptureStore store = new CaptureStore(null, 4, MEMORY_BUDGET);
+
+        assertNull(store.acquire(CaptureStore.NO_CAPTURE));
+        assertEquals(CaptureStore.NO_CAPTURE, store.getLatestId());
+    }
+
+    @Test
+    public void countLimit_evictsTheOldestCapture() {
+        final CaptureStore store = new CaptureStore(null, 2, MEMORY_BUDGET);
+
+        final long first = store.put(jpeg(1), 0);
+        final long second = store.put(jpeg(2), 0);
+        final long third = store.put(jpeg(3), 0);
+
+        assertNull(store.acquire(first));
+        assertNotNull(store.acquire(second));
+        assertNotNull(store.acquire(third));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void memoryBudget_spillsTheOldestCaptures() {
+        final CaptureStore store = new CaptureStore(spillDir.getRoot(), 8, MEMORY_BUDGET);
+        final long first = store.put(jpeg(1), 0);
+        for (int i = 2; i <= 6; i++) {
+            store.put(jpeg(i), 0);
+        }
+
+        final CaptureHandle handle = store.acquire(first);
+
+        assertEquals(6, store.size());
+        assertTrue(store.getDirectBytes() <= MEMORY_BUDGET);
+        assertArrayEquals(jpeg(1), handle.toByteArray());
+        handle.release();
+    }
+
+    @Test
+    public void memoryBudget_keepsPinnedCapturesAndTheOthers() {
+        final CaptureStore store = new CaptureStore(null, 8, MEMORY_BUDGET);
+        final long[] ids = new long[4];
+        final CaptureHandle[] handles = new CaptureHandle[4];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = store.put(jpeg(i), 0);
+            handles[i] = store.acquire(ids[i]);
+        }
+
+        // over budget, but the pinned captures can't be reclaimed anyway
+        final long last = store.put(jpeg(9), 0);
+
+        for (long id : ids) {
+            final CaptureHandle handle = store.acquire(id);
+            assertNotNull(handle);
+            handle.release();
+        }
+        final CaptureHandle lastHandle = store.acquire(last);
+        assertNotNull(lastHandle);
+        lastHandle.release();
+        assertEquals(5, store.size());
+
+        // unpinned, the captures no longer fit in the budget
+        for (CaptureHandle handle : handles) {
+            handle.release();
+        }
+
+        assertNull(store.acquire(ids[0]));
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void countLimit_skipsPinnedCaptures() {
+        final CaptureStore store = new CaptureStore(null, 1, MEMORY_BUDGET);
+        final long first = store.put(jpeg(1), 0);
+        final CaptureHandle handle = store.acquire(first);
+
+        final long second = store.put(jpeg(2), 0);
+
+        assertEquals(2, store.size());
+        handle.release();
+        assertNull(store.acquire(first));
+        assertNotNull(store.acquire(second));
+    }
+
+    @Test
+    public void evictedBuffers_areReusedForNewCaptures() {
+        final CaptureStore store = new CaptureStore(null, 1, MEMORY_BUDGET);
+        final long first = store.put(jpeg(1), 0);
+        final CaptureHandle handle = store.acquire(first);
+        final ByteBuffer firstBuffer = handle.getData();
+        handle.release();
+
+        // evicts the first capture, whose buffer the third one reuses
+        store.put(jpeg(2), 0);
+        store.put(jpeg(3), 0);
+        final CaptureHandle third = store.acquire(store.getLatestId());
+
+        assertEquals(3, firstBuffer.get(0));
+        assertEquals(3, third.getData().get(0));
+        assertEquals(2 * CAPTURE_SIZE, store.getDirectBytes());
+        third.release();
+    }
+
+    @Test
+    public void clear_keepsAcquiredDataUntilReleased() {
+        final CaptureStore store = new CaptureStore(null, 4, MEMORY_BUDGET);
+        final CaptureHandle handle = store.acquire(store.put(jpeg(5), 0));
+
+        store.clear();
+
+        assertEquals(0, store.size());
+        assertEquals(0, store.getDirectBytes());
+        assertArrayEquals(jpeg(5), handle.toByteArray());
+        handle.release();
+        assertEquals(CAPTURE_SIZE, store.getDirectBytes());
+    }
+
+    private static byte[] jpeg(int marker) {
+        final byte[] jpeg = new byte[CAPTURE_SIZE];
+        jpeg[0] = (byte) marker;
+        return jpeg;
+    }
+}
@@ -0,0 +1,60 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CaptureStoreTrimTest {
+
+    private static final int CAPTURE_SIZE = 1024;
+    private static final long MEMORY_BUDGET = 8 * CAPTURE_SIZE;
+
+    @Rule
+    public TemporaryFolder spillDir = new TemporaryFolder();
+
+    @Test
+    public void runningLow_spillsDownToAQuarterOfTheBudget() throws Exception {
+        final CaptureStore store = fill(new CaptureStore(spillDir.getRoot(), 8, MEMORY_BUDGET), 8);
+
+        store.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        assertEquals(MEMORY_BUDGET / 4, store.getDirectBytes());
+        assertEquals(8, store.size());
+    }
+
+    @Test
+    public void uiHidden_spillsEveryCapture() throws Exception {
+        final CaptureStore store = fill(new CaptureStore(spillDir.getRoot(), 8, MEMORY_BUDGET), 4);
+
+        store.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals(0, store.getDirectBytes());
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void complete_evictsEverythingButKeepsAcquiredCapturesReadable() throws Exception {
+        final CaptureStore store = fill(new CaptureStore(null, 8, MEMORY_BUDGET), 4);
+        final long latestId = store.getLatestId();
+        final CaptureHandle handle = store.acquire(latestId);
+
+        store.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertEquals(0, store.size());
+        assertNull(store.acquire(latestId));
+        assertEquals(CAPTURE_SIZE, handle.getSize());
+        handle.release();
+    }
+
+    private static CaptureStore fill(CaptureStore store, int captures) {
+        for (int i = 0; i < captures; i++) {
+            store.put(new byte[CAPTURE_SIZE], 0);
+        }
+        return store;
+    }
+}
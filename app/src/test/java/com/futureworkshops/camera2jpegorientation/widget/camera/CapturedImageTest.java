@@ -0,0 +1,64 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CapturedImageTest {
+
+    // SOI, then SOF0: length, precision, height, width
+    private static final byte[] JPEG = {
+        (byte) 0xFF, (byte) 0xD8,
+        (byte) 0xFF, (byte) 0xC0, 0, 8, 8, 0x0B, (byte) 0xB8, 0x0F, (byte) 0xA0
+    };
+
+    @Test
+    public void getBuffer_isAReadOnlyViewOfTheSource() {
+        final ByteBuffer source = ByteBuffer.allocateDirect(JPEG.length + 2);
+        source.put((byte) 0).put(JPEG).put((byte) 0);
+        source.position(1);
+        source.limit(1 + JPEG.length);
+        final CapturedImage image = new CapturedImage(source, 90, false, 42, null);
+
+        final ByteBuffer view = image.getBuffer();
+
+        assertTrue(view.isReadOnly());
+        assertEquals(0, view.position());
+        assertEquals(JPEG.length, view.remaining());
+        assertEquals(JPEG.length, image.getByteCount());
+        assertEquals((byte) 0xD8, view.get(1));
+        assertEquals(4000, image.getWidth());
+        assertEquals(3000, image.getHeight());
+        assertEquals(42, image.getTimestamp());
+    }
+
+    @Test
+    public void getJpeg_copiesOnceAndOutlivesClose() {
+        final AtomicInteger releases = new AtomicInteger();
+        final CapturedImage image = new CapturedImage(ByteBuffer.wrap(JPEG), 0, false, 0,
+            releases::incrementAndGet);
+
+        final byte[] jpeg = image.getJpeg();
+        image.close();
+        image.close();
+
+        assertArrayEquals(JPEG, jpeg);
+        assertSame(jpeg, image.getJpeg());
+        assertEquals(1, releases.get());
+        assertTrue(image.isClosed());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getBuffer_failsOnceClosed() {
+        final CapturedImage image = new CapturedImage(JPEG, 0, false, 0);
+        image.close();
+
+        image.getBuffer();
+    }
+}
@@ -0,0 +1,46 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import org.junit.Test;
+
+import static com.futureworkshops.camera2jpegorientation.widget.camera.DeviceOrientationTracker.ORIENTATION_UNKNOWN;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.DeviceOrientationTracker.computeQuadrant;
+import static org.junit.Assert.assertEquals;
+
+public class DeviceOrientationTrackerTest {
+
+    private static final int HYSTERESIS = 15;
+
+    @Test
+    public void unknownOrientation_takesTheClosestQuadrant() {
+        assertEquals(0, computeQuadrant(0, ORIENTATION_UNKNOWN, HYSTERESIS));
+        assertEquals(0, computeQuadrant(44, ORIENTATION_UNKNOWN, HYSTERESIS));
+        assertEquals(90, computeQuadrant(45, ORIENTATION_UNKNOWN, HYSTERESIS));
+        assertEquals(180, computeQuadrant(200, ORIENTATION_UNKNOWN, HYSTERESIS));
+        assertEquals(270, computeQuadrant(314, ORIENTATION_UNKNOWN, HYSTERESIS));
+        assertEquals(0, computeQuadrant(315, ORIENTATION_UNKNOWN, HYSTERESIS));
+        assertEquals(0, computeQuadrant(359, ORIENTATION_UNKNOWN, HYSTERESIS));
+    }
+
+    @Test
+    public void currentQuadrant_isKeptUntilTheHysteresisIsPassed() {
+        assertEquals(90, computeQuadrant(30, 90, HYSTERESIS));
+        assertEquals(0, computeQuadrant(29, 90, HYSTERESIS));
+        assertEquals(90, computeQuadrant(150, 90, HYSTERESIS));
+        assertEquals(180, computeQuadrant(151, 90, HYSTERESIS));
+    }
+
+    @Test
+    public void hysteresis_wrapsAroundZero() {
+        assertEquals(0, computeQuadrant(300, 0, HYSTERESIS));
+        assertEquals(270, computeQuadrant(299, 0, HYSTERESIS));
+        assertEquals(270, computeQuadrant(330, 270, HYSTERESIS));
+        assertEquals(0, computeQuadrant(331, 270, HYSTERESIS));
+        assertEquals(270, computeQuadrant(359, 270, 44));
+    }
+
+    @Test
+    public void noHysteresis_switchesAtTheBoundary() {
+        assertEquals(0, computeQuadrant(45, 0, 0));
+        assertEquals(90, computeQuadrant(46, 0, 0));
+    }
+}
@@ -0,0 +1,284 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.hardware.camera2.CaptureResult;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Stand-in for the {@code CameraDevice}, {@code CameraCaptureSession} and {@code ImageReader} used
+ * by the {@link CameraController}, driving a {@link CaptureStateMachine} off device.
+ * <p>
+ * Like the controller, every callback is delivered on a single camera thread with the state lock
+ * held: a preview result every frame, 3A converging a scripted number of frames after the
+ * pre-capture trigger, and still captures completing (or failing) after a scripted latency.
+ * Every JPEG starts with the tag of its request so deliveries can be checked.
+ * </p>
+ */
+class FakeCamera implements CaptureStateMachine.Camera, CaptureStateMachine.JpegReader {
+
+    /**
+     * Rotation reported with every JPEG.
+     */
+    static final int JPEG_ROTATION = 90;
+
+    private final Script mScript;
+    private final Object mLock = new Object();
+    private final CaptureStateMachine mStateMachine;
+    private final ScheduledExecutorService mCameraThread = Executors.newSingleThreadScheduledExecutor();
+    private final Scheduler mCameraScheduler = Schedulers.from(mCameraThread);
+    private final Random mRandom;
+
+    /**
+     * JPEGs waiting in the reader.
+     */
+    private final ArrayDeque<byte[]> mImages = new ArrayDeque<>();
+
+    /**
+     * Frames since the pre-capture trigger or -1 if no pre-capture sequence is running.
+     */
+    private int mFramesSinceTrigger = -1;
+
+    /**
+     * Captures subscribed so far, only used on the camera thread.
+     */
+    private int mSubscriptions;
+
+    private int mStillRequests;
+    private int mInjectedFailures;
+    private int mLostImages;
+
+    FakeCamera(Script script) {
+        mScript = script;
+        mRandom = new Random(script.seed);
+        mStateMachine = new CaptureStateMachine(mLock, this, new JpegQualityPolicy());
+    }
+
+    /**
+     * Open the camera and start the preview.
+     */
+    void start() {
+        synchronized (mLock) {
+            mStateMachine.setCapabilitiesLocked(mScript.noAFRun, mScript.legacyDevice);
+            mStateMachine.setStateLocked(CaptureStateMachine.STATE_PREVIEW);
+        }
+        mCameraThread.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                onFrame();
+            }
+        }, mScript.frameIntervalMs, mScript.frameIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        mCameraThread.shutdownNow();
+        synchronized (mLock) {
+            mStateMachine.closeLocked();
+        }
+    }
+
+    /**
+     * Take a picture the way {@link CameraController#takePicture()} does.
+     * @param requestTag set to the tag of the capture once it's subscribed
+     */
+    Single<CapturedImage> takePicture(final AtomicInteger requestTag) {
+        return mStateMachine.createCapture(JpegQualityPolicy.QUALITY_DEFAULT)
+            // tags are handed out in subscription order on the camera thread
+            .doOnSubscribe(new Consumer<Disposable>() {
+                @Override
+                public void accept(Disposable disposable) {
+                    requestTag.set(mSubscriptions++);
+                }
+            })
+            .subscribeOn(mCameraScheduler);
+    }
+
+    int getPendingCaptureCount() {
+        synchronized (mLock) {
+            return mStateMachine.getPendingCaptureCountLocked();
+        }
+    }
+
+    int getStillRequests() {
+        synchronized (mLock) {
+            return mStillRequests;
+        }
+    }
+
+    int getInjectedFailures() {
+        synchronized (mLock) {
+            return mInjectedFailures;
+        }
+    }
+
+    int getLostImages() {
+        synchronized (mLock) {
+            return mLostImages;
+        }
+    }
+
+    /**
+     * @return the tag of the request that produced {@code jpeg}.
+     */
+    static int getRequestTag(ByteBuffer jpeg) {
+        return jpeg.getInt(0);
+    }
+
+    @Override
+    public void triggerPrecapture() {
+        mFramesSinceTrigger = 0;
+    }
+
+    @Override
+    public boolean captureStill(final int requestTag, int jpegQuality, boolean thumbnail) {
+        mStillRequests++;
+        mCameraThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onStillCaptured(requestTag);
+            }
+        }, mScript.stillLatencyMs, TimeUnit.MILLISECONDS);
+        // the fake camera has no thumbnail output
+        return false;
+    }
+
+    @Override
+    public void cancelPrecapture() {
+        mFramesSinceTrigger = -1;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    @Override
+    public CapturedImage acquireNextJpeg(int rotation) {
+        final byte[] jpeg = mImages.poll();
+        return jpeg == null ? null : new CapturedImage(jpeg, rotation, false, 0);
+    }
+
+    @Override
+    public void discardNextJpeg() {
+        mImages.poll();
+    }
+
+    private void onFrame() {
+        synchronized (mLock) {
+            final boolean converged;
+            if (mFramesSinceTrigger < 0) {
+                // plain preview, 3A is settled
+                converged = true;
+            } else {
+                mFramesSinceTrigger++;
+                converged = mScript.convergenceFrames >= 0 && mFramesSinceTrigger >= mScript.convergenceFrames;
+            }
+
+            mStateMachine.onPreCaptureResultLocked(
+                converged ? CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED : CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN,
+                converged ? CaptureResult.CONTROL_AE_STATE_CONVERGED : CaptureResult.CONTROL_AE_STATE_PRECAPTURE,
+                converged ? CaptureResult.CONTROL_AWB_STATE_CONVERGED : CaptureResult.CONTROL_AWB_STATE_SEARCHING);
+        }
+    }
+
+    private void onStillCaptured(int requestTag) {
+        synchronized (mLock) {
+            if (mRandom.nextDouble() < mScript.failureRate) {
+                mInjectedFailures++;
+                mStateMachine.onCaptureFailedLocked(requestTag, "injected failure");
+                return;
+            }
+
+            mStateMachine.onCaptureCompletedLocked();
+            if (mRandom.nextDouble() < mScript.imageLossRate) {
+                // the result arrives but the buffer never reaches the reader
+                mLostImages++;
+                return;
+            }
+
+            final byte[] jpeg = new byte[mScript.jpegSize];
+            ByteBuffer.wrap(jpeg).putInt(requestTag);
+            mImages.add(jpeg);
+            mStateMachine.onJpegAvailableLocked(this, JPEG_ROTATION);
+        }
+    }
+
+    /**
+     * Timing and failures of a {@link FakeCamera}.
+     */
+    static class Script {
+
+        long frameIntervalMs = 33;
+
+        /**
+         * Frames from the pre-capture trigger until 3A converges, or -1 to never converge.
+         */
+        int convergenceFrames = 3;
+
+        /**
+         * Time from a still capture request to its result and image.
+         */
+        long stillLatencyMs = 100;
+
+        /**
+         * Fraction of still captures that fail.
+         */
+        double failureRate;
+
+        /**
+         * Fraction of completed still captures whose image never arrives.
+         */
+        double imageLossRate;
+
+        int jpegSize = 64 * 1024;
+        boolean noAFRun;
+        boolean legacyDevice;
+        long seed = 42;
+
+        Script frameInterval(long frameIntervalMs) {
+            this.frameIntervalMs = frameIntervalMs;
+            return this;
+        }
+
+        Script convergenceFrames(int convergenceFrames) {
+            this.convergenceFrames = convergenceFrames;
+            return this;
+        }
+
+        Script stillLatency(long stillLatencyMs) {
+            this.stillLatencyMs = stillLatencyMs;
+            return this;
+        }
+
+        Script failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        Script imageLossRate(double imageLossRate) {
+            this.imageLossRate = imageLossRate;
+            return this;
+        }
+
+        Script jpegSize(int jpegSize) {
+            this.jpegSize = jpegSize;
+            return this;
+        }
+
+        Script legacyDevice(boolean legacyDevice) {
+            this.legacyDevice = legacyDevice;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.futureworkshops.camera2jpegorientation.widget.camera.JpegQualityPolicy.DEFAULT_MIN_QUALITY;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.JpegQualityPolicy.DEFAULT_QUALITY;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.JpegQualityPolicy.QUALITY_DEFAULT;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.JpegQualityPolicy.QUALITY_STEP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JpegQualityPolicyTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long SHOT_BYTES = 1000000L;
+
+    private long now = SECOND;
+    private JpegQualityPolicy policy;
+
+    @Before
+    public void setUp() {
+        policy = new JpegQualityPolicy() {
+            @Override
+            long nanoTime() {
+                return now;
+            }
+        };
+        policy.setAdaptive(true);
+    }
+
+    @Test
+    public void notAdaptive_keepsTheQuality() {
+        policy.setAdaptive(false);
+        for (int i = 0; i < 8; i++) {
+            policy.onCaptureQueued();
+        }
+
+        assertEquals(DEFAULT_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+        assertEquals(50, policy.resolveQuality(50));
+    }
+
+    @Test
+    public void sustainedBurst_stepsDownToTheMinimum() {
+        // the threshold is reached by the third capture and sustained by the fourth
+        for (int i = 0; i < 3; i++) {
+            policy.onCaptureQueued();
+        }
+        assertEquals(DEFAULT_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+
+        policy.onCaptureQueued();
+        assertEquals(DEFAULT_QUALITY - QUALITY_STEP, policy.resolveQuality(QUALITY_DEFAULT));
+
+        for (int i = 0; i < 4; i++) {
+            policy.onCaptureQueued();
+        }
+        assertEquals(DEFAULT_MIN_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+    }
+
+    @Test
+    public void burstEnd_raisesTheQualityBack() {
+        for (int i = 0; i < 8; i++) {
+            policy.onCaptureQueued();
+        }
+
+        // still a burst while at least 3 captures are in flight
+        for (int i = 0; i < 5; i++) {
+            policy.onCaptureFinished(0);
+        }
+        assertEquals(DEFAULT_MIN_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+
+        policy.onCaptureFinished(0);
+        assertEquals(DEFAULT_MIN_QUALITY + QUALITY_STEP, policy.resolveQuality(QUALITY_DEFAULT));
+
+        policy.onCaptureFinished(0);
+        policy.onCaptureFinished(0);
+        policy.onCaptureQueued();
+        assertEquals(DEFAULT_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+    }
+
+    @Test
+    public void slowStorage_stepsDown() {
+        policy.onJpegWritten(SHOT_BYTES, SECOND);
+        shootEvery(SECOND / 2, 3);
+
+        // the rate is known from the second shot on, and each queued or finished capture steps down
+        assertEquals(2 * SHOT_BYTES, policy.getProducedBytesPerSecond());
+        assertEquals(DEFAULT_QUALITY - 3 * QUALITY_STEP, policy.resolveQuality(QUALITY_DEFAULT));
+    }
+
+    @Test
+    public void fastStorage_keepsTheQuality() {
+        policy.onJpegWritten(4 * SHOT_BYTES, SECOND);
+        shootEvery(SECOND / 2, 3);
+
+        assertEquals(DEFAULT_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+    }
+
+    @Test
+    public void idleCamera_decaysTheProducedRateAndRecovers() {
+        policy.onJpegWritten(SHOT_BYTES, SECOND);
+        shootEvery(SECOND / 2, 3);
+
+        now += 10 * SECOND;
+        assertEquals(SHOT_BYTES / 10, policy.getProducedBytesPerSecond());
+
+        // slow shots after the pause don't put storage behind again
+        shootEvery(SECOND, 2);
+        assertTrue(policy.getProducedBytesPerSecond() < SHOT_BYTES);
+        assertEquals(DEFAULT_QUALITY, policy.resolveQuality(QUALITY_DEFAULT));
+    }
+
+    private void shootEvery(long intervalNanos, int shots) {
+        for (int i = 0; i < shots; i++) {
+            now += intervalNanos;
+            policy.onCaptureQueued();
+            policy.onCaptureFinished(SHOT_BYTES);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewFrameMonitorTest {
+
+    private static final long FRAME_30_FPS_NS = 33333333L;
+
+    @Test
+    public void steadyStream_reportsFrameRateWithoutJitter() {
+        final PreviewFrameMonitor monitor = new PreviewFrameMonitor();
+        feed(monitor, 0, 0, 60, FRAME_30_FPS_NS);
+
+        final PreviewFrameMonitor.Stats stats = monitor.getStats();
+        assertEquals(30, stats.getFps(), 0.01);
+        assertEquals(0, stats.getJitterMs(), 0.001);
+        assertEquals(0, stats.getDroppedFrames());
+    }
+
+    @Test
+    public void frameNumberGaps_areCountedAsDropped() {
+        final PreviewFrameMonitor monitor = new PreviewFrameMonitor();
+        feed(monitor, 0, 0, 10, FRAME_30_FPS_NS);
+        // frames 10 and 11 never arrive
+        feed(monitor, 12 * FRAME_30_FPS_NS, 12, 30, FRAME_30_FPS_NS);
+
+        final PreviewFrameMonitor.Stats stats = monitor.getStats();
+        assertEquals(2, stats.getDroppedFrames());
+        assertEquals(3 * FRAME_30_FPS_NS / 1e6, stats.getMaxIntervalMs(), 0.001);
+        assertTrue(stats.getJitterMs() > 0);
+    }
+
+    @Test
+    public void stats_arePublishedEveryReportInterval() {
+        final PreviewFrameMonitor monitor = new PreviewFrameMonitor();
+        final long frameInterval = PreviewFrameMonitor.REPORT_INTERVAL_NS / 10;
+
+        int reports = 0;
+        for (int frame = 0; frame <= 30; frame++) {
+            if (monitor.onFrame(frame * frameInterval, frame)) {
+                reports++;
+            }
+        }
+        assertEquals(3, reports);
+    }
+
+    @Test
+    public void reset_forgetsThePreviousSession() {
+        final PreviewFrameMonitor monitor = new PreviewFrameMonitor();
+        feed(monitor, 0, 100, 30, FRAME_30_FPS_NS);
+
+        monitor.reset();
+        // frame numbers don't continue across sessions
+        assertFalse(monitor.onFrame(0, 0));
+        assertEquals(0, monitor.getStats().getFrames());
+    }
+
+    private static void feed(PreviewFrameMonitor monitor, long startTimestamp, long firstFrame,
+                             int frames, long interval) {
+        for (int i = 0; i < frames; i++) {
+            monitor.onFrame(startTimestamp + i * interval, firstFrame + i);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.futureworkshops.camera2jpegorientation.widget.camera;
+
+import android.os.Build;
+import android.util.Size;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.futureworkshops.camera2jpegorientation.widget.camera.PreviewSizeSelector.TIER_MATCH_COVERING;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.PreviewSizeSelector.TIER_MATCH_UNDERSIZED;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.PreviewSizeSelector.TIER_MISMATCH_COVERING;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.PreviewSizeSelector.TIER_MISMATCH_UNDERSIZED;
+import static com.futureworkshops.camera2jpegorientation.widget.camera.PreviewSizeSelector.TIER_OVERSIZED;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tiers, rotation and surface cost of the preview size ranking.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = Build.VERSION_CODES.O_MR1)
+public class PreviewSizeSelectorTest {
+
+    private static final Size RATIO_16_9 = new Size(16, 9);
+
+    private final PreviewSizeSelector selector = new PreviewSizeSelector();
+
+    @Test
+    public void rank_ordersTheTiers() {
+        final List<PreviewSizeSelector.Candidate> ranked = selector.rank(sizes(
+            3840, 2160,
+            640, 480,
+            1440, 1080,
+            960, 540,
+            1904, 1072,
+            1280, 720), RATIO_16_9, 1280, 720, 0, 0);
+
+        assertEquals(Arrays.asList(
+            new Size(1280, 720),
+            new Size(1904, 1072),
+            new Size(960, 540),
+            new Size(1440, 1080),
+            new Size(640, 480),
+            new Size(3840, 2160)), sizesOf(ranked));
+        assertEquals(Arrays.asList(
+            TIER_MATCH_COVERING,
+            TIER_MATCH_COVERING,
+            TIER_MATCH_UNDERSIZED,
+            TIER_MISMATCH_COVERING,
+            TIER_MISMATCH_UNDERSIZED,
+            TIER_OVERSIZED), tiersOf(ranked));
+    }
+
+    @Test
+    public void aspectRatioTolerance_decidesWhatMatches() {
+        final List<Size> sizes = sizes(1904, 1072);
+
+        assertEquals(TIER_MATCH_COVERING,
+            selector.rank(sizes, RATIO_16_9, 1280, 720, 0, 0).get(0).getTier());
+
+        selector.setAspectRatioTolerance(0f);
+
+        assertEquals(TIER_MISMATCH_COVERING,
+            selector.rank(sizes, RATIO_16_9, 1280, 720, 0, 0).get(0).getTier());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aspectRatioTolerance_mustBePositive() {
+        selector.setAspectRatioTolerance(-0.1f);
+    }
+
+    @Test
+    public void surface_isSwappedWhenRotatedAgainstTheSensor() {
+        final List<Size> sizes = sizes(1280, 720, 1920, 1080);
+
+        // portrait display, landscape sensor: the 1080x1920 surface needs a 1920x1080 preview
+        final PreviewSizeSelector.Candidate portrait = selector.rank(sizes, RATIO_16_9,
+            1080, 1920, 0, 90).get(0);
+        assertEquals(new Size(1920, 1080), portrait.getSize());
+        assertEquals(TIER_MATCH_COVERING, portrait.getTier());
+        assertEquals(0, portrait.getCost());
+
+        // same surface with display and sensor aligned: nothing covers 1080x1920
+        for (PreviewSizeSelector.Candidate candidate : selector.rank(sizes, RATIO_16_9,
+            1080, 1920, 90, 90)) {
+            assertEquals(TIER_MATCH_UNDERSIZED, candidate.getTier());
+        }
+        assertEquals(TIER_MATCH_COVERING,
+            selector.rank(sizes, RATIO_16_9, 1080, 1920, 180, 90).get(0).getTier());
+    }
+
+    @Test
+    public void cost_prefersTheSmallestCoveringSize() {
+        final List<PreviewSizeSelector.Candidate> ranked = selector.rank(sizes(
+            1920, 1080,
+            1280, 720,
+            1024, 576), RATIO_16_9, 1000, 563, 0, 0);
+
+        assertEquals(Arrays.asList(
+            new Size(1024, 576),
+            new Size(1280, 720),
+            new Size(1920, 1080)), sizesOf(ranked));
+        assertEquals(1280 * 720 - 1000 * 563, ranked.get(1).getCost());
+    }
+
+    @Test
+    public void cost_prefersTheClosestUndersizedSize() {
+        final List<PreviewSizeSelector.Candidate> ranked = selector.rank(sizes(
+            640, 360,
+            1280, 720), RATIO_16_9, 1600, 900, 0, 0);
+
+        assertEquals(new Size(1280, 720), ranked.get(0).getSize());
+        assertEquals(1600 * 900 - 1280 * 720, ranked.get(0).getCost());
+    }
+
+    @Test
+    public void unknownSurface_aimsForTheAspectRatio() {
+        final List<PreviewSizeSelector.Candidate> ranked = selector.rank(sizes(
+            1920, 1080,
+            1440, 1080,
+            640, 480), new Size(4, 3), 0, 0, 90, 90);
+
+        assertEquals(Arrays.asList(
+            new Size(640, 480),
+            new Size(1440, 1080),
+            new Size(1920, 1080)), sizesOf(ranked));
+        assertEquals(640 * 480 - 4 * 3, ranked.get(0).getCost());
+    }
+
+    private static List<Size> sizes(int... dimensions) {
+        final List<Size> sizes = new ArrayList<>();
+        for (int i = 0; i < dimensions.length; i += 2) {
+            sizes.add(new Size(dimensions[i], dimensions[i + 1]));
+        }
+        return sizes;
+    }
+
+    private static List<Size> sizesOf(List<PreviewSizeSelector.Candidate> candidates) {
+        final List<Size> sizes = new ArrayList<>();
+        for (PreviewSizeSelector.Candidate candidate : candidates) {
+            sizes.add(candidate.getSize());
+        }
+        return sizes;
+    }
+
+    private static List<Integer> tiersOf(List<PreviewSizeSelector.Candidate> candidates) {
+        final List<Integer> tiers = new ArrayList<>();
+        for (PreviewSizeSelector.Candidate candidate : candidates) {
+            tiers.add(candidate.getTier());
+        }
+        return tiers;
+    }
+}
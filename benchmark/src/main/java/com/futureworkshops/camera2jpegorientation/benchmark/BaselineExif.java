@@ -0,0 +1,375 @@
+package com.futureworkshops.camera2jpegorientation.benchmark;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * JVM stand-in for the JPEG path of the support library {@code ExifInterface}, which only runs on
+ * Android.
+ * <p>
+ * It does the same work as {@code JpegSaver} does today: the header is read through a buffered
+ * stream, every IFD0 tag and the thumbnail are copied into attribute objects and
+ * {@link #saveAttributes()} renames the file and copies all of it back with a rebuilt APP1
+ * segment.
+ * </p>
+ */
+public final class BaselineExif {
+
+    private static final int SIGNATURE_CHECK_SIZE = 5000;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TYPE_LONG = 4;
+
+    private static final int[] FORMAT_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private final File file;
+    private final Map<Integer, Attribute> attributes = new TreeMap<>();
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private byte[] thumbnail;
+
+    public BaselineExif(File file) throws IOException {
+        this.file = file;
+        try (InputStream in = new FileInputStream(file)) {
+            load(in);
+        }
+    }
+
+    private BaselineExif(InputStream in) throws IOException {
+        this.file = null;
+        load(in);
+    }
+
+    /**
+     * The save path of {@code JpegSaver}: write the capture, then fix its orientation.
+     */
+    public static void save(File file, ByteBuffer jpeg, int orientation) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            final FileChannel channel = output.getChannel();
+            final ByteBuffer data = jpeg.duplicate();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        final BaselineExif exif = new BaselineExif(file);
+        exif.getOrientation();
+        exif.setOrientation(orientation);
+        exif.saveAttributes();
+    }
+
+    /**
+     * Set the orientation of an in-memory JPEG the same way, through a full copy.
+     */
+    public static byte[] rewrite(byte[] jpeg, int orientation) throws IOException {
+        final BaselineExif exif = new BaselineExif(new ByteArrayInputStream(jpeg));
+        exif.setOrientation(orientation);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        exif.writeJpeg(new DataInputStream(new ByteArrayInputStream(jpeg)), new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the EXIF orientation or {@link ExifOrientation#ORIENTATION_UNDEFINED}
+     */
+    public int getOrientation() {
+        final Attribute attribute = attributes.get(ExifOrientation.TAG_ORIENTATION);
+        if (attribute == null) {
+            return ExifOrientation.ORIENTATION_UNDEFINED;
+        }
+        return ByteBuffer.wrap(attribute.bytes).order(byteOrder).getShort() & 0xFFFF;
+    }
+
+    public void setOrientation(int orientation) {
+        final byte[] bytes = ByteBuffer.allocate(2).order(byteOrder).putShort((short) orientation).array();
+        attributes.put(ExifOrientation.TAG_ORIENTATION, new Attribute(ExifOrientation.TYPE_SHORT, 1, bytes));
+    }
+
+    /**
+     * Rewrite the file with the current attributes.
+     */
+    public void saveAttributes() throws IOException {
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        if (!file.renameTo(tempFile)) {
+            throw new IOException("Could not rename to " + tempFile.getAbsolutePath());
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(tempFile));
+             DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            writeJpeg(in, out);
+        }
+        tempFile.delete();
+    }
+
+    private void load(InputStream source) throws IOException {
+        final InputStream in = new BufferedInputStream(source, SIGNATURE_CHECK_SIZE);
+
+        // the mime type is sniffed before the attributes are read
+        in.mark(SIGNATURE_CHECK_SIZE);
+        final byte[] signature = new byte[SIGNATURE_CHECK_SIZE];
+        in.read(signature);
+        in.reset();
+
+        final DataInputStream data = new DataInputStream(in);
+        readSoi(data);
+        while (true) {
+            final int marker = readMarker(data);
+            if (marker == ExifOrientation.MARKER_SOS || marker == ExifOrientation.MARKER_EOI) {
+                return;
+            }
+
+            final int length = data.readUnsignedShort() - 2;
+            if (marker == ExifOrientation.MARKER_APP1) {
+                final byte[] bytes = new byte[length];
+                data.readFully(bytes);
+                if (isExif(bytes)) {
+                    readExifSegment(bytes);
+                }
+            } else {
+                skipFully(data, length);
+            }
+        }
+    }
+
+    private void readExifSegment(byte[] segment) throws IOException {
+        final ByteBuffer tiff = ByteBuffer.wrap(segment, EXIF_HEADER.length,
+            segment.length - EXIF_HEADER.length).slice();
+        final short order = tiff.getShort(0);
+        if (order == 0x4949) {
+            byteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (order == 0x4D4D) {
+            byteOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Invalid byte order " + Integer.toHexString(order));
+        }
+        tiff.order(byteOrder);
+
+        final int ifd0 = tiff.getInt(4);
+        final int ifd1 = readIfd(tiff, ifd0, attributes);
+        if (ifd1 > 0) {
+            final Map<Integer, Attribute> ifd1Attributes = new TreeMap<>();
+            readIfd(tiff, ifd1, ifd1Attributes);
+            final Attribute offset = ifd1Attributes.get(TAG_JPEG_INTERCHANGE_FORMAT);
+            final Attribute length = ifd1Attributes.get(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+            if (offset != null && length != null) {
+                final int start = ByteBuffer.wrap(offset.bytes).order(byteOrder).getInt();
+                final int size = ByteBuffer.wrap(length.bytes).order(byteOrder).getInt();
+                thumbnail = new byte[size];
+                final ByteBuffer source = tiff.duplicate();
+                source.position(start);
+                source.get(thumbnail);
+            }
+        }
+    }
+
+    /**
+     * @return the offset of the next IFD
+     */
+    private int readIfd(ByteBuffer tiff, int offset, Map<Integer, Attribute> into) throws IOException {
+        if (offset < 8 || offset + 2 > tiff.limit()) {
+            throw new IOException("Invalid IFD offset " + offset);
+        }
+        final int count = tiff.getShort(offset) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            final int entry = offset + 2 + i * 12;
+            final int tag = tiff.getShort(entry) & 0xFFFF;
+            final int format = tiff.getShort(entry + 2) & 0xFFFF;
+            final int components = tiff.getInt(entry + 4);
+            if (format <= 0 || format >= FORMAT_SIZES.length) {
+                continue;
+            }
+
+            final int size = components * FORMAT_SIZES[format];
+            final int valueOffset = size > 4 ? tiff.getInt(entry + 8) : entry + 8;
+            final byte[] bytes = new byte[size];
+            final ByteBuffer source = tiff.duplicate();
+            source.position(valueOffset);
+            source.get(bytes);
+            into.put(tag, new Attribute(format, components, bytes));
+        }
+        return tiff.getInt(offset + 2 + count * 12);
+    }
+
+    private void writeJpeg(DataInputStream in, DataOutputStream out) throws IOException {
+        readSoi(in);
+        out.writeByte(0xFF);
+        out.writeByte(ExifOrientation.MARKER_SOI);
+        writeExifSegment(out);
+
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        while (true) {
+            final int marker = readMarker(in);
+            if (marker == ExifOrientation.MARKER_SOS || marker == ExifOrientation.MARKER_EOI) {
+                out.writeByte(0xFF);
+                out.writeByte(marker);
+                copy(in, out, Long.MAX_VALUE, buffer);
+                return;
+            }
+
+            final int length = in.readUnsignedShort();
+            if (marker == ExifOrientation.MARKER_APP1) {
+                final byte[] bytes = new byte[length - 2];
+                in.readFully(bytes);
+                if (isExif(bytes)) {
+                    // replaced by the segment written above
+                    continue;
+                }
+                out.writeByte(0xFF);
+                out.writeByte(marker);
+                out.writeShort(length);
+                out.write(bytes);
+            } else {
+                out.writeByte(0xFF);
+                out.writeByte(marker);
+                out.writeShort(length);
+                copy(in, out, length - 2, buffer);
+            }
+        }
+    }
+
+    private void writeExifSegment(DataOutputStream out) throws IOException {
+        final int ifd0Size = 2 + attributes.size() * 12 + 4;
+        int ifd0DataSize = 0;
+        for (Attribute attribute : attributes.values()) {
+            if (attribute.bytes.length > 4) {
+                ifd0DataSize += attribute.bytes.length;
+            }
+        }
+        final int ifd1Size = thumbnail != null ? 2 + 2 * 12 + 4 : 0;
+        final int tiffSize = 8 + ifd0Size + ifd0DataSize + ifd1Size +
+            (thumbnail != null ? thumbnail.length : 0);
+        final int segmentLength = 2 + EXIF_HEADER.length + tiffSize;
+        if (segmentLength > 0xFFFF) {
+            throw new IOException("EXIF segment too large: " + segmentLength);
+        }
+
+        final ByteBuffer tiff = ByteBuffer.allocate(tiffSize).order(byteOrder);
+        tiff.put((byte) (byteOrder == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        tiff.put(tiff.get(0));
+        tiff.putShort((short) 0x2A);
+        tiff.putInt(8);
+
+        // IFD0, values larger than 4 bytes follow it
+        int dataOffset = 8 + ifd0Size;
+        tiff.putShort((short) attributes.size());
+        for (Map.Entry<Integer, Attribute> entry : attributes.entrySet()) {
+            final Attribute attribute = entry.getValue();
+            tiff.putShort(entry.getKey().shortValue());
+            tiff.putShort((short) attribute.format);
+            tiff.putInt(attribute.components);
+            if (attribute.bytes.length > 4) {
+                tiff.putInt(dataOffset);
+                dataOffset += attribute.bytes.length;
+            } else {
+                tiff.put(Arrays.copyOf(attribute.bytes, 4));
+            }
+        }
+        tiff.putInt(thumbnail != null ? dataOffset : 0);
+        for (Attribute attribute : attributes.values()) {
+            if (attribute.bytes.length > 4) {
+                tiff.put(attribute.bytes);
+            }
+        }
+
+        // IFD1 with the thumbnail
+        if (thumbnail != null) {
+            tiff.putShort((short) 2);
+            tiff.putShort((short) TAG_JPEG_INTERCHANGE_FORMAT).putShort((short) TYPE_LONG).putInt(1);
+            tiff.putInt(dataOffset + ifd1Size);
+            tiff.putShort((short) TAG_JPEG_INTERCHANGE_FORMAT_LENGTH).putShort((short) TYPE_LONG).putInt(1);
+            tiff.putInt(thumbnail.length);
+            tiff.putInt(0);
+            tiff.put(thumbnail);
+        }
+
+        out.writeByte(0xFF);
+        out.writeByte(ExifOrientation.MARKER_APP1);
+        out.writeShort(segmentLength);
+        out.write(EXIF_HEADER);
+        out.write(tiff.array());
+    }
+
+    private static void readSoi(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != ExifOrientation.MARKER_SOI) {
+            throw new IOException("Not a JPEG");
+        }
+    }
+
+    private static int readMarker(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != 0xFF) {
+            throw new IOException("Invalid marker");
+        }
+        int marker = in.readUnsignedByte();
+        while (marker == 0xFF) {
+            marker = in.readUnsignedByte();
+        }
+        return marker;
+    }
+
+    private static boolean isExif(byte[] segment) {
+        if (segment.length < EXIF_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        if (in.skipBytes(count) != count) {
+            throw new IOException("Unexpected end of JPEG");
+        }
+    }
+
+    private static void copy(InputStream in, DataOutputStream out, long count, byte[] buffer)
+        throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                if (count == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new IOException("Unexpected end of JPEG");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static final class Attribute {
+
+        final int format;
+        final int components;
+        final byte[] bytes;
+
+        Attribute(int format, int components, byte[] bytes) {
+            this.format = format;
+            this.components = components;
+            this.bytes = bytes;
+        }
+    }
+}
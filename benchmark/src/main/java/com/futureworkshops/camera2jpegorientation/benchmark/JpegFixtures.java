@@ -0,0 +1,194 @@
+package com.futureworkshops.camera2jpegorientation.benchmark;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Synthetic camera JPEGs for the benchmarks.
+ * <p>
+ * The files have the structure and size of real captures: an optional APP1 segment laid out like
+ * a camera HAL writes it (little endian IFD0 and a JPEG thumbnail in IFD1), quantization and
+ * Huffman tables, a baseline frame header and byte-stuffed pseudo-random entropy coded data sized
+ * like a high quality capture. The image data is not decodable; none of the benchmarked paths
+ * read it.
+ * </p>
+ */
+public final class JpegFixtures {
+
+    /**
+     * Size of the entropy coded data, in bytes per pixel, of a typical quality 90 capture.
+     */
+    private static final double BYTES_PER_PIXEL = 0.35;
+
+    private static final int THUMBNAIL_SIZE = 24 * 1024;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private JpegFixtures() {
+    }
+
+    /**
+     * @return the width and height of a capture of the given resolution
+     */
+    public static int[] getDimensions(int megapixels) {
+        switch (megapixels) {
+            case 2:
+                return new int[]{1632, 1224};
+            case 8:
+                return new int[]{3264, 2448};
+            case 12:
+                return new int[]{4032, 3024};
+            case 50:
+                return new int[]{8160, 6120};
+            default:
+                // 4:3 sensor
+                final int height = (int) Math.sqrt(megapixels * 1_000_000 * 3 / 4.0);
+                return new int[]{height * 4 / 3, height};
+        }
+    }
+
+    /**
+     * Create a JPEG with the default orientation.
+     * @param withApp1 whether the JPEG has an EXIF segment, with an orientation tag
+     */
+    public static byte[] create(int megapixels, boolean withApp1) {
+        final int[] dimensions = getDimensions(megapixels);
+        final int width = dimensions[0];
+        final int height = dimensions[1];
+        final Random random = new Random(megapixels * 31 + (withApp1 ? 1 : 0));
+
+        final byte[] app1 = withApp1 ? createApp1(width, height, random) : new byte[0];
+        final byte[] entropy = createEntropyData((long) (width * (double) height * BYTES_PER_PIXEL), random);
+
+        final ByteBuffer jpeg = ByteBuffer.allocate(2 + app1.length + 69 + 19 + 33 + 14 + entropy.length + 2)
+            .order(ByteOrder.BIG_ENDIAN);
+        putMarker(jpeg, ExifOrientation.MARKER_SOI);
+        jpeg.put(app1);
+
+        // DQT, one 8 bit table
+        putMarker(jpeg, 0xDB);
+        jpeg.putShort((short) 67).put((byte) 0);
+        for (int i = 0; i < 64; i++) {
+            jpeg.put((byte) (2 + i / 8));
+        }
+
+        // SOF0, 3 components
+        putMarker(jpeg, 0xC0);
+        jpeg.putShort((short) 17).put((byte) 8).putShort((short) height).putShort((short) width).put((byte) 3);
+        for (int component = 1; component <= 3; component++) {
+            jpeg.put((byte) component).put((byte) (component == 1 ? 0x22 : 0x11)).put((byte) 0);
+        }
+
+        // DHT, the standard luminance DC table
+        putMarker(jpeg, 0xC4);
+        jpeg.putShort((short) 31).put((byte) 0x00);
+        jpeg.put(new byte[]{0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0});
+        jpeg.put(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+        // SOS
+        putMarker(jpeg, ExifOrientation.MARKER_SOS);
+        jpeg.putShort((short) 12).put((byte) 3);
+        for (int component = 1; component <= 3; component++) {
+            jpeg.put((byte) component).put((byte) 0);
+        }
+        jpeg.put((byte) 0).put((byte) 63).put((byte) 0);
+
+        jpeg.put(entropy);
+        putMarker(jpeg, ExifOrientation.MARKER_EOI);
+        return jpeg.array();
+    }
+
+    private static byte[] createApp1(int width, int height, Random random) {
+        final byte[] make = "FutureWorkshops\0".getBytes();
+        final byte[] model = "Benchmark Camera\0".getBytes();
+        final byte[] dateTime = "2018:03:12 10:00:00\0".getBytes();
+        final byte[] thumbnail = createThumbnail(random);
+
+        final int ifd0Entries = 6;
+        final int ifd0 = 8;
+        final int ifd0Data = ifd0 + 2 + ifd0Entries * 12 + 4;
+        final int ifd1 = ifd0Data + make.length + model.length + dateTime.length;
+        final int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+        final int tiffSize = thumbnailOffset + thumbnail.length;
+
+        final ByteBuffer tiff = ByteBuffer.allocate(tiffSize).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 0x2A).putInt(ifd0);
+
+        int dataOffset = ifd0Data;
+        tiff.putShort((short) ifd0Entries);
+        putEntry(tiff, 0x0100, 4, 1, width);
+        putEntry(tiff, 0x0101, 4, 1, height);
+        putEntry(tiff, 0x010F, 2, make.length, dataOffset);
+        dataOffset += make.length;
+        putEntry(tiff, 0x0110, 2, model.length, dataOffset);
+        dataOffset += model.length;
+        putEntry(tiff, ExifOrientation.TAG_ORIENTATION, ExifOrientation.TYPE_SHORT, 1,
+            ExifOrientation.ORIENTATION_NORMAL);
+        putEntry(tiff, 0x0132, 2, dateTime.length, dataOffset);
+        tiff.putInt(ifd1);
+        tiff.put(make).put(model).put(dateTime);
+
+        tiff.putShort((short) 2);
+        putEntry(tiff, 0x0201, 4, 1, thumbnailOffset);
+        putEntry(tiff, 0x0202, 4, 1, thumbnail.length);
+        tiff.putInt(0);
+        tiff.put(thumbnail);
+
+        final ByteBuffer app1 = ByteBuffer.allocate(4 + EXIF_HEADER.length + tiffSize)
+            .order(ByteOrder.BIG_ENDIAN);
+        putMarker(app1, ExifOrientation.MARKER_APP1);
+        app1.putShort((short) (2 + EXIF_HEADER.length + tiffSize));
+        app1.put(EXIF_HEADER).put(tiff.array());
+        return app1.array();
+    }
+
+    private static void putEntry(ByteBuffer tiff, int tag, int type, int count, int value) {
+        tiff.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == ExifOrientation.TYPE_SHORT) {
+            tiff.putShort((short) value).putShort((short) 0);
+        } else {
+            tiff.putInt(value);
+        }
+    }
+
+    private static byte[] createThumbnail(Random random) {
+        final byte[] entropy = createEntropyData(THUMBNAIL_SIZE - 4, random);
+        final ByteBuffer thumbnail = ByteBuffer.allocate(entropy.length + 4);
+        putMarker(thumbnail, ExifOrientation.MARKER_SOI);
+        thumbnail.put(entropy);
+        putMarker(thumbnail, ExifOrientation.MARKER_EOI);
+        return thumbnail.array();
+    }
+
+    /**
+     * @return random bytes with every 0xFF followed by a stuffed 0x00, about {@code size} long
+     */
+    private static byte[] createEntropyData(long size, Random random) {
+        final byte[] raw = new byte[(int) size];
+        random.nextBytes(raw);
+
+        int stuffed = 0;
+        for (byte b : raw) {
+            if (b == (byte) 0xFF) {
+                stuffed++;
+            }
+        }
+
+        final byte[] data = new byte[raw.length + stuffed];
+        int pos = 0;
+        for (byte b : raw) {
+            data[pos++] = b;
+            if (b == (byte) 0xFF) {
+                data[pos++] = 0;
+            }
+        }
+        return data;
+    }
+
+    private static void putMarker(ByteBuffer buffer, int marker) {
+        buffer.put((byte) 0xFF).put((byte) marker);
+    }
+}
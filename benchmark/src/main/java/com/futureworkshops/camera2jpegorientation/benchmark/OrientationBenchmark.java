@@ -0,0 +1,116 @@
+package com.futureworkshops.camera2jpegorientation.benchmark;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@code ExifInterface} based orientation handling of {@code JpegSaver}
+ * ({@link BaselineExif}) with {@link ExifOrientation}.
+ * <p>
+ * Run with {@code ./gradlew :benchmark:jmh}; the GC profiler reports the allocation rate next to
+ * the throughput.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrientationBenchmark {
+
+    @Param({"2", "8", "12", "50"})
+    public int megapixels;
+
+    @Param({"true", "false"})
+    public boolean withApp1;
+
+    private File directory;
+    private File probeFile;
+    private File saveFile;
+    private byte[] jpeg;
+    private ByteBuffer jpegBuffer;
+    private ByteBuffer scratch;
+    private RandomAccessFile probeAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        jpeg = JpegFixtures.create(megapixels, withApp1);
+        // patched in place by the optimized paths, always to the same value
+        jpegBuffer = ByteBuffer.wrap(jpeg.clone());
+        scratch = ByteBuffer.allocateDirect(ExifOrientation.HEADER_PROBE_SIZE);
+
+        directory = Files.createTempDirectory("orientation-benchmark").toFile();
+        probeFile = new File(directory, "probe.jpeg");
+        saveFile = new File(directory, "save.jpeg");
+        try (FileOutputStream output = new FileOutputStream(probeFile)) {
+            output.write(jpeg);
+        }
+        probeAccess = new RandomAccessFile(probeFile, "r");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        probeAccess.close();
+        probeFile.delete();
+        saveFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public int probeBaseline() throws IOException {
+        return new BaselineExif(probeFile).getOrientation();
+    }
+
+    @Benchmark
+    public int probeHeader() throws IOException {
+        return ExifOrientation.readOrientation(probeAccess.getChannel(), scratch);
+    }
+
+    @Benchmark
+    public byte[] patchBaseline() throws IOException {
+        return BaselineExif.rewrite(jpeg, ExifOrientation.ORIENTATION_ROTATE_90);
+    }
+
+    @Benchmark
+    public ByteBuffer[] patchInPlace() {
+        return ExifOrientation.withOrientation(jpegBuffer, ExifOrientation.ORIENTATION_ROTATE_90);
+    }
+
+    @Benchmark
+    public long saveBaseline() throws IOException {
+        BaselineExif.save(saveFile, ByteBuffer.wrap(jpeg), ExifOrientation.ORIENTATION_ROTATE_90);
+        return saveFile.length();
+    }
+
+    @Benchmark
+    public long saveGathering() throws IOException {
+        try (FileOutputStream output = new FileOutputStream(saveFile)) {
+            final FileChannel channel = output.getChannel();
+            ExifOrientation.write(channel, jpegBuffer, ExifOrientation.ORIENTATION_ROTATE_90);
+            return channel.size();
+        }
+    }
+}
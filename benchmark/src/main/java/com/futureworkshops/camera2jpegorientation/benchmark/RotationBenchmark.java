@@ -0,0 +1,96 @@
+package com.futureworkshops.camera2jpegorientation.benchmark;
+
+import com.futureworkshops.camera2jpegorientation.orientation.PixelRotator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a pixel by pixel rotation into a new array, what {@code Bitmap.createBitmap} with a
+ * rotation matrix amounts to, with the tiled {@link PixelRotator} on one thread and on a pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RotationBenchmark {
+
+    @Param({"2", "12"})
+    public int megapixels;
+
+    @Param({"90", "180"})
+    public int degrees;
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    private int[] rotated;
+    private ForkJoinPool pool;
+    private PixelRotator singleThreaded;
+    private PixelRotator parallel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // 4:3 like the camera captures
+        width = (int) Math.sqrt(megapixels * 1000000 * 4 / 3);
+        height = width * 3 / 4;
+        pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i * 0x01010101;
+        }
+        rotated = new int[pixels.length];
+
+        pool = new ForkJoinPool();
+        singleThreaded = new PixelRotator();
+        parallel = new PixelRotator(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] rotateBaseline() {
+        final int rotatedWidth = PixelRotator.rotatedWidth(width, height, degrees);
+        final int[] dst = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int index;
+                if (degrees == 90) {
+                    index = x * rotatedWidth + height - 1 - y;
+                } else {
+                    index = (height - 1 - y) * rotatedWidth + width - 1 - x;
+                }
+                dst[index] = pixels[y * width + x];
+            }
+        }
+        return dst;
+    }
+
+    @Benchmark
+    public int[] rotateTiled() {
+        return singleThreaded.rotate(pixels, width, height, degrees, rotated);
+    }
+
+    @Benchmark
+    public int[] rotateParallel() {
+        return parallel.rotate(pixels, width, height, degrees, rotated);
+    }
+}
@@ -0,0 +1,116 @@
+package com.futureworkshops.camera2jpegorientation.benchmark;
+
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the optimized paths produce the same orientation as the baseline, so the
+ * benchmarks compare equivalent work.
+ */
+public class ExifOrientationTest {
+
+    @Test
+    public void readOrientation_matchesBaseline() throws Exception {
+        for (boolean withApp1 : new boolean[]{true, false}) {
+            final byte[] jpeg = JpegFixtures.create(2, withApp1);
+            final File file = write(jpeg);
+
+            final int expected = new BaselineExif(file).getOrientation();
+            assertEquals(expected, ExifOrientation.readOrientation(ByteBuffer.wrap(jpeg)));
+            try (RandomAccessFile access = new RandomAccessFile(file, "r")) {
+                assertEquals(expected, ExifOrientation.readOrientation(access.getChannel(),
+                    ByteBuffer.allocate(ExifOrientation.HEADER_PROBE_SIZE)));
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void withOrientation_setsOrientation() throws Exception {
+        for (boolean withApp1 : new boolean[]{true, false}) {
+            final byte[] jpeg = JpegFixtures.create(2, withApp1);
+            final byte[] written = concat(ExifOrientation.withOrientation(ByteBuffer.wrap(jpeg),
+                ExifOrientation.ORIENTATION_ROTATE_270));
+
+            assertEquals(ExifOrientation.ORIENTATION_ROTATE_270,
+                ExifOrientation.readOrientation(ByteBuffer.wrap(written)));
+            assertEquals(ExifOrientation.ORIENTATION_ROTATE_270, readBaseline(written));
+        }
+    }
+
+    @Test
+    public void write_matchesBaselineOrientation() throws Exception {
+        for (boolean withApp1 : new boolean[]{true, false}) {
+            final byte[] jpeg = JpegFixtures.create(2, withApp1);
+
+            final File baseline = File.createTempFile("baseline", ".jpeg");
+            BaselineExif.save(baseline, ByteBuffer.wrap(jpeg), ExifOrientation.ORIENTATION_ROTATE_270);
+
+            final File optimized = File.createTempFile("optimized", ".jpeg");
+            try (RandomAccessFile access = new RandomAccessFile(optimized, "rw")) {
+                final FileChannel channel = access.getChannel();
+                ExifOrientation.write(channel, ByteBuffer.wrap(jpeg.clone()),
+                    ExifOrientation.ORIENTATION_ROTATE_270);
+            }
+
+            assertEquals(new BaselineExif(baseline).getOrientation(),
+                new BaselineExif(optimized).getOrientation());
+            baseline.delete();
+            optimized.delete();
+        }
+    }
+
+    @Test
+    public void rewrite_keepsImageData() throws Exception {
+        final byte[] jpeg = JpegFixtures.create(2, true);
+        final byte[] rewritten = BaselineExif.rewrite(jpeg, ExifOrientation.ORIENTATION_ROTATE_270);
+
+        // the entropy coded data is copied unchanged
+        final int tail = 4096;
+        assertArrayEquals(copyTail(jpeg, tail), copyTail(rewritten, tail));
+    }
+
+    private static int readBaseline(byte[] jpeg) throws IOException {
+        final File file = write(jpeg);
+        try {
+            return new BaselineExif(file).getOrientation();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File write(byte[] jpeg) throws IOException {
+        final File file = File.createTempFile("fixture", ".jpeg");
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.write(jpeg);
+        }
+        return file;
+    }
+
+    private static byte[] concat(ByteBuffer[] segments) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer segment : segments) {
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.duplicate().get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] copyTail(byte[] data, int length) {
+        final byte[] tail = new byte[length];
+        System.arraycopy(data, data.length - length, tail, 0, length);
+        return tail;
+    }
+}
@@ -0,0 +1,98 @@
+package com.futureworkshops.camera2jpegorientation.batch;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the files handled by a {@link BatchRunner}. Thread safe.
+ */
+public class BatchReport {
+
+    /**
+     * What happened to a file.
+     */
+    public enum Outcome {
+        /** the existing orientation tag was changed in place */
+        PATCHED,
+        /** the file had no orientation tag, a segment was inserted */
+        INSERTED,
+        /** the file already had the expected orientation */
+        UNCHANGED,
+        /** the file is not a JPEG */
+        SKIPPED,
+        /** the file could not be read or written */
+        FAILED
+    }
+
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private final LongAdder[] mCounts = new LongAdder[Outcome.values().length];
+    private final LongAdder mBytes = new LongAdder();
+    private volatile long mElapsedNanos;
+
+    BatchReport() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = new LongAdder();
+        }
+    }
+
+    void record(Outcome outcome, long bytes) {
+        mCounts[outcome.ordinal()].increment();
+        mBytes.add(bytes);
+    }
+
+    void finish(long elapsedNanos) {
+        mElapsedNanos = elapsedNanos;
+    }
+
+    public long getCount(Outcome outcome) {
+        return mCounts[outcome.ordinal()].sum();
+    }
+
+    /**
+     * @return the number of files handled, whatever their outcome
+     */
+    public long getFiles() {
+        long files = 0;
+        for (LongAdder count : mCounts) {
+            files += count.sum();
+        }
+        return files;
+    }
+
+    /**
+     * @return the total size of the files handled
+     */
+    public long getBytes() {
+        return mBytes.sum();
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    public double getFilesPerSecond() {
+        return perSecond(getFiles());
+    }
+
+    public double getMegabytesPerSecond() {
+        return perSecond(getBytes()) / BYTES_PER_MB;
+    }
+
+    private double perSecond(double value) {
+        final long elapsed = Math.max(mElapsedNanos, 1);
+        return value * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "%d files, %.1f MB in %.2f s: %.1f files/s, %.1f MB/s\n"
+                + "%d patched, %d inserted, %d unchanged, %d skipped, %d failed",
+            getFiles(), getBytes() / BYTES_PER_MB, mElapsedNanos / 1e9,
+            getFilesPerSecond(), getMegabytesPerSecond(),
+            getCount(Outcome.PATCHED), getCount(Outcome.INSERTED), getCount(Outcome.UNCHANGED),
+            getCount(Outcome.SKIPPED), getCount(Outcome.FAILED));
+    }
+}
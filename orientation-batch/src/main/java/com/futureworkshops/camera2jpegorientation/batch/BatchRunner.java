@@ -0,0 +1,182 @@
+package com.futureworkshops.camera2jpegorientation.batch;
+
+import com.futureworkshops.camera2jpegorientation.batch.BatchReport.Outcome;
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Normalizes or patches the EXIF orientation of every JPEG below a directory, on a fixed pool of
+ * workers.
+ * <p>
+ * The directory walk blocks once {@code maxInFlight} files are queued or being processed, so
+ * memory stays bounded whatever the size of the tree. Every worker reads the file headers into
+ * its own reusable buffer; an orientation tag is patched in place, two bytes, and a file without
+ * one is copied next to itself with {@link FileChannel#transferTo} and moved over the original,
+ * so the image data never goes through the heap.
+ * </p>
+ * Pixels are never re-encoded: normalizing only makes the orientation of every JPEG explicit.
+ */
+public class BatchRunner {
+
+    /**
+     * Give JPEGs without an orientation tag, or with an invalid one, an explicit
+     * {@link ExifOrientation#ORIENTATION_NORMAL}.
+     */
+    public static final int MODE_NORMALIZE = 0;
+
+    /**
+     * Set the orientation of every JPEG.
+     */
+    public static final int MODE_PATCH = 1;
+
+    private final int mMode;
+    private final int mOrientation;
+    private final int mThreads;
+    private final int mMaxInFlight;
+    private final PrintStream mErrors;
+
+    private final ThreadLocal<ByteBuffer> mScratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(ExifOrientation.HEADER_PROBE_SIZE);
+        }
+    };
+
+    /**
+     * @param mode        {@link #MODE_NORMALIZE} or {@link #MODE_PATCH}
+     * @param orientation the EXIF orientation set by {@link #MODE_PATCH}, ignored otherwise
+     * @param threads     number of workers
+     * @param maxInFlight maximum number of files queued or being processed
+     * @param errors      receives a line for every file that failed
+     */
+    public BatchRunner(int mode, int orientation, int threads, int maxInFlight, PrintStream errors) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+        mMode = mode;
+        mOrientation = orientation;
+        mThreads = threads;
+        mMaxInFlight = maxInFlight;
+        mErrors = errors;
+    }
+
+    /**
+     * Process every {@code .jpg} and {@code .jpeg} file below {@code root}, returning once all of
+     * them are done.
+     */
+    public BatchReport run(Path root) throws IOException, InterruptedException {
+        final BatchReport report = new BatchReport();
+        final ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        final Semaphore inFlight = new Semaphore(mMaxInFlight);
+        final long start = System.nanoTime();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || !hasJpegName(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    inFlight.acquireUninterruptibly();
+                    executor.execute(() -> {
+                        try {
+                            report.record(process(file), attrs.size());
+                        } catch (IOException | RuntimeException e) {
+                            fail(file, e);
+                            report.record(Outcome.FAILED, attrs.size());
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    fail(file, e);
+                    report.record(Outcome.FAILED, 0);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        report.finish(System.nanoTime() - start);
+        return report;
+    }
+
+    private Outcome process(Path file) throws IOException {
+        final ByteBuffer scratch = mScratch.get();
+        final int orientation;
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!ExifOrientation.isJpeg(channel, scratch)) {
+                return Outcome.SKIPPED;
+            }
+
+            // isJpeg() left the header in the scratch buffer
+            final int current = ExifOrientation.readOrientation(scratch);
+            orientation = targetOrientation(current);
+            if (current == orientation) {
+                return Outcome.UNCHANGED;
+            }
+            if (ExifOrientation.patchOrientation(channel, scratch, orientation)) {
+                return Outcome.PATCHED;
+            }
+        }
+
+        // the source is closed before the move, which some file systems require
+        insertOrientation(file, orientation);
+        return Outcome.INSERTED;
+    }
+
+    private int targetOrientation(int current) {
+        if (mMode == MODE_PATCH) {
+            return mOrientation;
+        }
+        // values 1 to 8 are the only valid orientations
+        return current >= ExifOrientation.ORIENTATION_NORMAL && current <= 8
+            ? current : ExifOrientation.ORIENTATION_NORMAL;
+    }
+
+    private static void insertOrientation(Path file, int orientation) throws IOException {
+        final Path temp = Files.createTempFile(file.toAbsolutePath().getParent(),
+            "." + file.getFileName(), ".tmp");
+        try {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ExifOrientation.transferWithOrientation(source, target, orientation);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void fail(Path file, Exception e) {
+        synchronized (mErrors) {
+            mErrors.println(file + ": " + e);
+        }
+    }
+
+    private static boolean hasJpegName(Path file) {
+        final String name = file.getFileName().toString().toLowerCase(Locale.US);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+}
@@ -0,0 +1,112 @@
+package com.futureworkshops.camera2jpegorientation.batch;
+
+import com.futureworkshops.camera2jpegorientation.batch.BatchReport.Outcome;
+import com.futureworkshops.camera2jpegorientation.orientation.ExifOrientation;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BatchRunnerTest {
+
+    /**
+     * Start of scan and a few bytes of entropy coded data.
+     */
+    private static final byte[] IMAGE_DATA = {(byte) 0xFF, (byte) ExifOrientation.MARKER_SOS, 0, 2,
+        0x12, 0x34, 0x56, (byte) 0xFF, (byte) ExifOrientation.MARKER_EOI};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File tagged;
+    private File untagged;
+    private File notJpeg;
+    private File ignored;
+
+    @Before
+    public void setUp() throws IOException {
+        final File nested = folder.newFolder("a", "b");
+        tagged = write(new File(folder.getRoot(), "tagged.jpg"), jpeg(ExifOrientation.ORIENTATION_ROTATE_90));
+        untagged = write(new File(nested, "untagged.JPEG"), jpeg(ExifOrientation.ORIENTATION_UNDEFINED));
+        notJpeg = write(new File(nested, "not_a.jpg"), new byte[]{1, 2, 3});
+        ignored = write(new File(nested, "other.png"), jpeg(ExifOrientation.ORIENTATION_UNDEFINED));
+    }
+
+    @Test
+    public void normalize_onlyInsertsMissingOrientations() throws Exception {
+        final BatchReport report = run(BatchRunner.MODE_NORMALIZE, 0);
+
+        assertEquals(3, report.getFiles());
+        assertEquals(1, report.getCount(Outcome.UNCHANGED));
+        assertEquals(1, report.getCount(Outcome.INSERTED));
+        assertEquals(1, report.getCount(Outcome.SKIPPED));
+        assertEquals(ExifOrientation.ORIENTATION_ROTATE_90, orientationOf(tagged));
+        assertEquals(ExifOrientation.ORIENTATION_NORMAL, orientationOf(untagged));
+        assertArrayEquals(jpeg(ExifOrientation.ORIENTATION_UNDEFINED), Files.readAllBytes(ignored.toPath()));
+    }
+
+    @Test
+    public void patch_setsEveryOrientation() throws Exception {
+        final BatchReport report = run(BatchRunner.MODE_PATCH, ExifOrientation.ORIENTATION_ROTATE_270);
+
+        assertEquals(1, report.getCount(Outcome.PATCHED));
+        assertEquals(1, report.getCount(Outcome.INSERTED));
+        assertEquals(0, report.getCount(Outcome.FAILED));
+        assertEquals(ExifOrientation.ORIENTATION_ROTATE_270, orientationOf(tagged));
+        assertEquals(ExifOrientation.ORIENTATION_ROTATE_270, orientationOf(untagged));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(notJpeg.toPath()));
+        // no temporary file is left behind
+        assertEquals(3, untagged.getParentFile().list().length);
+    }
+
+    @Test
+    public void patch_isIdempotent() throws Exception {
+        run(BatchRunner.MODE_PATCH, ExifOrientation.ORIENTATION_ROTATE_180);
+        final byte[] patched = Files.readAllBytes(untagged.toPath());
+
+        final BatchReport report = run(BatchRunner.MODE_PATCH, ExifOrientation.ORIENTATION_ROTATE_180);
+
+        assertEquals(2, report.getCount(Outcome.UNCHANGED));
+        assertArrayEquals(patched, Files.readAllBytes(untagged.toPath()));
+    }
+
+    private BatchReport run(int mode, int orientation) throws Exception {
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final BatchReport report = new BatchRunner(mode, orientation, 2, 1, new PrintStream(errors))
+            .run(folder.getRoot().toPath());
+        assertEquals("", errors.toString());
+        return report;
+    }
+
+    private static int orientationOf(File file) throws IOException {
+        return ExifOrientation.readOrientation(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] jpeg(int orientation) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(ExifOrientation.MARKER_SOI);
+        if (orientation != ExifOrientation.ORIENTATION_UNDEFINED) {
+            final ByteBuffer segment = ExifOrientation.createOrientationSegment(orientation);
+            out.write(segment.array(), 0, segment.limit());
+        }
+        out.write(IMAGE_DATA, 0, IMAGE_DATA.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,439 @@
+package com.futureworkshops.camera2jpegorientation.orientation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes the EXIF orientation of a JPEG without parsing or copying the rest of it.
+ * <p>
+ * Only the segment headers before the image data are walked. When the JPEG already has an
+ * orientation tag the value is patched in place, otherwise a minimal APP1 segment is spliced in
+ * right after the SOI marker.
+ * </p>
+ * Nothing here depends on Android, so the same code writes the captures on the device and
+ * fixes them in batch on a server.
+ */
+public final class ExifOrientation {
+
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    /**
+     * Bytes read from a file to find the orientation; the APP1 segment is at most 64KB and
+     * normally comes first.
+     */
+    public static final int HEADER_PROBE_SIZE = 128 * 1024;
+
+    public static final int MARKER_SOI = 0xD8;
+    public static final int MARKER_EOI = 0xD9;
+    public static final int MARKER_SOS = 0xDA;
+    public static final int MARKER_APP1 = 0xE1;
+
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TYPE_SHORT = 3;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * Mapping from a clockwise rotation quadrant to the EXIF orientation.
+     */
+    private static final int[] EXIF_ORIENTATIONS = {
+        ORIENTATION_NORMAL,
+        ORIENTATION_ROTATE_90,
+        ORIENTATION_ROTATE_180,
+        ORIENTATION_ROTATE_270
+    };
+
+    /**
+     * Size of the APP1 segment written by {@link #withOrientation(ByteBuffer, int)}, including
+     * its marker.
+     */
+    public static final int ORIENTATION_SEGMENT_SIZE = 2 + 2 + EXIF_HEADER.length + 8 + 2 + 12 + 4;
+
+    private ExifOrientation() {
+    }
+
+    /**
+     * Convert a clockwise rotation to the matching EXIF orientation.
+     * @param degrees one of 0, 90, 180 and 270; other angles are rounded to the closest one
+     * @return one of the {@code ORIENTATION_ROTATE_*} constants or {@link #ORIENTATION_NORMAL}
+     */
+    public static int degreesToExif(int degrees) {
+        return EXIF_ORIENTATIONS[Rotations.quadrant(degrees)];
+    }
+
+    /**
+     * Convert an EXIF orientation to the clockwise rotation that makes the image upright.
+     * Mirrored orientations are reported with the rotation only.
+     * @return the rotation in degrees, 0 for unknown orientations
+     */
+    public static int exifToDegrees(int orientation) {
+        switch (orientation) {
+            case ORIENTATION_ROTATE_90:
+            case 5: // transpose
+                return 90;
+            case ORIENTATION_ROTATE_180:
+            case 4: // flip vertical
+                return 180;
+            case ORIENTATION_ROTATE_270:
+            case 7: // transverse
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param jpeg the JPEG data, from its position to its limit; the position is not changed
+     * @return the EXIF orientation or {@link #ORIENTATION_UNDEFINED}
+     */
+    public static int readOrientation(ByteBuffer jpeg) {
+        final long location = locateOrientation(jpeg);
+        if (location < 0) {
+            return ORIENTATION_UNDEFINED;
+        }
+        return readShort(jpeg, offsetOf(location), isLittleEndian(location));
+    }
+
+    /**
+     * Read the orientation of a JPEG file, reading only its first bytes.
+     * @param scratch buffer for the header, reused between calls; at least
+     *                {@link #HEADER_PROBE_SIZE} bytes to find the orientation in every valid JPEG
+     */
+    public static int readOrientation(FileChannel channel, ByteBuffer scratch) throws IOException {
+        readHeader(channel, scratch);
+        return readOrientation(scratch);
+    }
+
+    /**
+     * Read the size of the image from the first start of frame segment.
+     * @param jpeg the JPEG data, from its position to its limit; the position is not changed
+     * @return the width and height in pixels, before any orientation is applied, or null if the
+     * data has no start of frame segment
+     */
+    public static int[] readDimensions(ByteBuffer jpeg) {
+        final int limit = jpeg.limit();
+        int pos = jpeg.position();
+        if (!isMarker(jpeg, pos, MARKER_SOI)) {
+            return null;
+        }
+        pos += 2;
+
+        while (pos + 4 <= limit) {
+            if ((jpeg.get(pos) & 0xFF) != 0xFF) {
+                return null;
+            }
+            final int marker = jpeg.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // markers without a length
+                pos += 2;
+                continue;
+            }
+
+            // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // length, sample precision, then height and width
+                if (pos + 9 > limit) {
+                    return null;
+                }
+                return new int[]{readShort(jpeg, pos + 7, false), readShort(jpeg, pos + 5, false)};
+            }
+            pos += 2 + readShort(jpeg, pos + 2, false);
+        }
+        return null;
+    }
+
+    /**
+     * @param channel a channel on a file
+     * @param scratch buffer for the header, reused between calls
+     * @return true if the file starts with a JPEG SOI marker
+     */
+    public static boolean isJpeg(FileChannel channel, ByteBuffer scratch) throws IOException {
+        readHeader(channel, scratch);
+        return isMarker(scratch, 0, MARKER_SOI);
+    }
+
+    /**
+     * Change the orientation of a JPEG file in place, writing only the two bytes of the value.
+     * @param scratch buffer for the header, see {@link #readOrientation(FileChannel, ByteBuffer)}
+     * @return false if the file has no orientation tag in its first {@code scratch.capacity()}
+     * bytes; use {@link #transferWithOrientation(FileChannel, FileChannel, int)}
+     */
+    public static boolean patchOrientation(FileChannel channel, ByteBuffer scratch, int orientation)
+        throws IOException {
+        readHeader(channel, scratch);
+        final long location = locateOrientation(scratch);
+        if (location < 0) {
+            return false;
+        }
+
+        final ByteBuffer value = ByteBuffer.allocate(2);
+        writeShort(value, 0, orientation, isLittleEndian(location));
+        long position = offsetOf(location);
+        while (value.hasRemaining()) {
+            position += channel.write(value, position);
+        }
+        return true;
+    }
+
+    /**
+     * Copy a JPEG file with an APP1 segment holding {@code orientation} inserted after its SOI
+     * marker. The image data is transferred between the channels without going through the heap.
+     * @param source a JPEG file, read from its start
+     * @param target the file receiving the copy, written from its current position
+     * @throws IllegalArgumentException if {@code source} is not a JPEG file
+     */
+    public static void transferWithOrientation(FileChannel source, FileChannel target,
+                                               int orientation) throws IOException {
+        final ByteBuffer soi = ByteBuffer.allocate(2);
+        readHeader(source, soi);
+        checkJpeg(soi);
+
+        final ByteBuffer[] head = {soi, createOrientationSegment(orientation)};
+        while (head[1].hasRemaining()) {
+            target.write(head);
+        }
+
+        final long size = source.size();
+        long position = 2;
+        while (position < size) {
+            position += source.transferTo(position, size - position, target);
+        }
+    }
+
+    /**
+     * Change the orientation in place.
+     * @return false if the JPEG has no orientation tag; use {@link #withOrientation(ByteBuffer, int)}
+     */
+    public static boolean patchOrientation(ByteBuffer jpeg, int orientation) {
+        final long location = locateOrientation(jpeg);
+        if (location < 0) {
+            return false;
+        }
+        writeShort(jpeg, offsetOf(location), orientation, isLittleEndian(location));
+        return true;
+    }
+
+    /**
+     * Set the orientation without copying the image data.
+     * <p>
+     * An existing orientation tag is patched in place, or replaced by a separate segment if
+     * {@code jpeg} is read-only. Otherwise an APP1 segment with the orientation is inserted after
+     * the SOI marker.
+     * </p>
+     * @return the segments of the resulting JPEG, to be written in order
+     */
+    public static ByteBuffer[] withOrientation(ByteBuffer jpeg, int orientation) {
+        checkJpeg(jpeg);
+        final long location = locateOrientation(jpeg);
+        if (location >= 0 && !jpeg.isReadOnly()) {
+            writeShort(jpeg, offsetOf(location), orientation, isLittleEndian(location));
+            return new ByteBuffer[]{jpeg.duplicate()};
+        }
+        if (location >= 0) {
+            final ByteBuffer head = jpeg.duplicate();
+            head.limit(offsetOf(location));
+            final ByteBuffer value = ByteBuffer.allocate(2);
+            writeShort(value, 0, orientation, isLittleEndian(location));
+            final ByteBuffer tail = jpeg.duplicate();
+            tail.position(offsetOf(location) + 2);
+            return new ByteBuffer[]{head, value, tail};
+        }
+
+        final ByteBuffer soi = jpeg.duplicate();
+        soi.limit(soi.position() + 2);
+        final ByteBuffer rest = jpeg.duplicate();
+        rest.position(rest.position() + 2);
+        return new ByteBuffer[]{soi, createOrientationSegment(orientation), rest};
+    }
+
+    /**
+     * Write the JPEG to {@code channel} with the given orientation, in a single gathering write.
+     * The orientation of {@code jpeg} may be patched in place.
+     */
+    public static void write(FileChannel channel, ByteBuffer jpeg, int orientation) throws IOException {
+        final ByteBuffer[] segments = withOrientation(jpeg, orientation);
+        final ByteBuffer last = segments[segments.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(segments);
+        }
+    }
+
+    /**
+     * @return a minimal APP1 segment, marker included, with {@code orientation} as only tag
+     */
+    public static ByteBuffer createOrientationSegment(int orientation) {
+        final ByteBuffer segment = ByteBuffer.allocate(ORIENTATION_SEGMENT_SIZE)
+            .order(ByteOrder.BIG_ENDIAN);
+        segment.put((byte) 0xFF).put((byte) MARKER_APP1);
+        segment.putShort((short) (ORIENTATION_SEGMENT_SIZE - 2));
+        segment.put(EXIF_HEADER);
+
+        // TIFF header, IFD0 right after it
+        segment.put((byte) 'M').put((byte) 'M').putShort((short) 0x2A).putInt(8);
+
+        // IFD0 with the orientation only
+        segment.putShort((short) 1);
+        segment.putShort((short) TAG_ORIENTATION).putShort((short) TYPE_SHORT).putInt(1);
+        segment.putShort((short) orientation).putShort((short) 0);
+        segment.putInt(0);
+
+        segment.flip();
+        return segment;
+    }
+
+    /**
+     * @return the absolute offset of the orientation value shifted left by one, with the lowest
+     * bit set for little endian data, or -1 if there is no orientation tag
+     */
+    private static long locateOrientation(ByteBuffer jpeg) {
+        final int limit = jpeg.limit();
+        int pos = jpeg.position();
+        if (!isMarker(jpeg, pos, MARKER_SOI)) {
+            return -1;
+        }
+        pos += 2;
+
+        while (pos + 4 <= limit) {
+            if ((jpeg.get(pos) & 0xFF) != 0xFF) {
+                return -1;
+            }
+            final int marker = jpeg.get(pos + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return -1;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // markers without a length
+                pos += 2;
+                continue;
+            }
+
+            final int length = readShort(jpeg, pos + 2, false);
+            if (marker == MARKER_APP1 && pos + 2 + length <= limit && hasExifHeader(jpeg, pos + 4, length)) {
+                final int tiff = pos + 4 + EXIF_HEADER.length;
+                final long location = locateInTiff(jpeg, tiff, pos + 2 + length);
+                if (location >= 0) {
+                    return location;
+                }
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    private static long locateInTiff(ByteBuffer jpeg, int tiff, int end) {
+        if (tiff + 8 > end) {
+            return -1;
+        }
+        final boolean littleEndian;
+        final int order = readShort(jpeg, tiff, false);
+        if (order == 0x4949) {
+            littleEndian = true;
+        } else if (order == 0x4D4D) {
+            littleEndian = false;
+        } else {
+            return -1;
+        }
+
+        final long ifdOffset = readInt(jpeg, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+            return -1;
+        }
+        final int ifd = (int) (tiff + ifdOffset);
+        final int count = readShort(jpeg, ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                break;
+            }
+            if (readShort(jpeg, entry, littleEndian) == TAG_ORIENTATION) {
+                if (readShort(jpeg, entry + 2, littleEndian) != TYPE_SHORT) {
+                    return -1;
+                }
+                return ((long) (entry + 8) << 1) | (littleEndian ? 1 : 0);
+            }
+        }
+        return -1;
+    }
+
+    private static void readHeader(FileChannel channel, ByteBuffer scratch) throws IOException {
+        scratch.clear();
+        long position = 0;
+        while (scratch.hasRemaining()) {
+            final int read = channel.read(scratch, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        scratch.flip();
+    }
+
+    private static void checkJpeg(ByteBuffer jpeg) {
+        if (!isMarker(jpeg, jpeg.position(), MARKER_SOI)) {
+            throw new IllegalArgumentException("Not a JPEG");
+        }
+    }
+
+    private static boolean isMarker(ByteBuffer jpeg, int pos, int marker) {
+        return pos + 2 <= jpeg.limit() &&
+            (jpeg.get(pos) & 0xFF) == 0xFF && (jpeg.get(pos + 1) & 0xFF) == marker;
+    }
+
+    private static boolean hasExifHeader(ByteBuffer jpeg, int pos, int length) {
+        if (length < 2 + EXIF_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg.get(pos + i) != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int offsetOf(long location) {
+        return (int) (location >> 1);
+    }
+
+    private static boolean isLittleEndian(long location) {
+        return (location & 1) != 0;
+    }
+
+    private static int readShort(ByteBuffer buffer, int pos, boolean littleEndian) {
+        final int b0 = buffer.get(pos) & 0xFF;
+        final int b1 = buffer.get(pos + 1) & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int readInt(ByteBuffer buffer, int pos, boolean littleEndian) {
+        final int high = readShort(buffer, littleEndian ? pos + 2 : pos, littleEndian);
+        final int low = readShort(buffer, littleEndian ? pos : pos + 2, littleEndian);
+        return (high << 16) | low;
+    }
+
+    private static void writeShort(ByteBuffer buffer, int pos, int value, boolean littleEndian) {
+        final byte high = (byte) (value >> 8);
+        final byte low = (byte) value;
+        buffer.put(pos, littleEndian ? low : high);
+        buffer.put(pos + 1, littleEndian ? high : low);
+    }
+}
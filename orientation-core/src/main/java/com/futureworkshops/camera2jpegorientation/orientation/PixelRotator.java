@@ -0,0 +1,313 @@
+package com.futureworkshops.camera2jpegorientation.orientation;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rotates decoded pixels clockwise by a multiple of 90 degrees, for consumers that can't honour
+ * the EXIF orientation.
+ * <p>
+ * Rotating by 90 or 270 degrees reads rows and writes columns, so a pixel by pixel loop misses
+ * the cache on nearly every write of a large image. The image is walked in square tiles small
+ * enough for a source tile and its destination to stay in the L1 cache together. Images of more
+ * than {@link #PARALLEL_THRESHOLD} pixels are split in bands of tile rows across a fork-join pool;
+ * bands write disjoint parts of the destination so they need no synchronization.
+ * </p>
+ * Destinations are passed in so they can be reused between images and must not overlap the
+ * source. Instances are thread safe.
+ */
+public final class PixelRotator {
+
+    /**
+     * Side of the tiles of 4 byte pixels, 4KB per tile.
+     */
+    static final int INT_TILE = 32;
+
+    /**
+     * Side of the tiles of 1 and 2 byte pixels.
+     */
+    static final int BYTE_TILE = 64;
+
+    /**
+     * Images with fewer pixels are rotated on the calling thread.
+     */
+    public static final int PARALLEL_THRESHOLD = 512 * 512;
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * A rotator working on the calling thread only.
+     */
+    public PixelRotator() {
+        this(null);
+    }
+
+    /**
+     * @param pool the pool rotating large images, or null to work on the calling thread only
+     */
+    public PixelRotator(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @return the width of an image of {@code width} x {@code height} pixels once rotated
+     */
+    public static int rotatedWidth(int width, int height, int degrees) {
+        return Rotations.quadrant(degrees) % 2 == 0 ? width : height;
+    }
+
+    /**
+     * @return the height of an image of {@code width} x {@code height} pixels once rotated
+     */
+    public static int rotatedHeight(int width, int height, int degrees) {
+        return Rotations.quadrant(degrees) % 2 == 0 ? height : width;
+    }
+
+    /**
+     * Rotate packed 4 byte pixels, e.g. ARGB.
+     * @param degrees clockwise rotation, rounded to the closest multiple of 90
+     * @param dst     receives the rotated image, packed; allocated if null or too small
+     * @return {@code dst} or the allocated destination
+     */
+    public int[] rotate(int[] src, int width, int height, int degrees, int[] dst) {
+        checkSize(src.length, width, height, width, 1);
+        if (dst == null || dst.length < width * height) {
+            dst = new int[width * height];
+        } else if (dst == src) {
+            throw new IllegalArgumentException("The destination must not be the source");
+        }
+
+        final int[] target = dst;
+        final Mapping mapping = new Mapping(width, height, degrees);
+        run(width, height, INT_TILE, (top, bottom) -> {
+            for (int tileTop = top; tileTop < bottom; tileTop += INT_TILE) {
+                final int tileBottom = Math.min(tileTop + INT_TILE, bottom);
+                for (int tileLeft = 0; tileLeft < width; tileLeft += INT_TILE) {
+                    final int tileRight = Math.min(tileLeft + INT_TILE, width);
+                    for (int y = tileTop; y < tileBottom; y++) {
+                        int s = y * width + tileLeft;
+                        int d = mapping.indexOf(tileLeft, y);
+                        for (int x = tileLeft; x < tileRight; x++) {
+                            target[d] = src[s++];
+                            d += mapping.dx;
+                        }
+                    }
+                }
+            }
+        });
+        return target;
+    }
+
+    /**
+     * Rotate packed 4 byte pixels held in buffers, e.g. the pixels copied out of a bitmap. The
+     * images start at the position of the buffers, which is not changed.
+     * @param dst receives the rotated image, packed; needs {@code width * height} remaining
+     */
+    public void rotate(IntBuffer src, int width, int height, int degrees, IntBuffer dst) {
+        checkSize(src.remaining(), width, height, width, 1);
+        if (dst.remaining() < width * height) {
+            throw new IllegalArgumentException("The destination holds " + dst.remaining()
+                + " pixels, " + width * height + " needed");
+        }
+        if (dst == src) {
+            throw new IllegalArgumentException("The destination must not be the source");
+        }
+        if (src.hasArray() && dst.hasArray() && src.arrayOffset() + src.position() == 0 &&
+            dst.arrayOffset() + dst.position() == 0) {
+            rotate(src.array(), width, height, degrees, dst.array());
+            return;
+        }
+
+        final int srcStart = src.position();
+        final int dstStart = dst.position();
+        final Mapping mapping = new Mapping(width, height, degrees);
+        run(width, height, INT_TILE, (top, bottom) -> {
+            for (int tileTop = top; tileTop < bottom; tileTop += INT_TILE) {
+                final int tileBottom = Math.min(tileTop + INT_TILE, bottom);
+                for (int tileLeft = 0; tileLeft < width; tileLeft += INT_TILE) {
+                    final int tileRight = Math.min(tileLeft + INT_TILE, width);
+                    for (int y = tileTop; y < tileBottom; y++) {
+                        int s = srcStart + y * width + tileLeft;
+                        int d = dstStart + mapping.indexOf(tileLeft, y);
+                        for (int x = tileLeft; x < tileRight; x++) {
+                            dst.put(d, src.get(s++));
+                            d += mapping.dx;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Rotate a plane of 1 or 2 byte pixels, e.g. the luma or the interleaved chroma of a YUV
+     * image.
+     * @param srcOffset offset of the first pixel in {@code src}
+     * @param rowStride bytes between the starts of two rows in {@code src}
+     * @param pixelSize 1, or 2 to move pairs of bytes together
+     * @param dst       receives the rotated plane at {@code dstOffset}, packed
+     */
+    public void rotatePlane(byte[] src, int srcOffset, int width, int height, int rowStride,
+                            int pixelSize, int degrees, byte[] dst, int dstOffset) {
+        if (pixelSize != 1 && pixelSize != 2) {
+            throw new IllegalArgumentException("Unsupported pixel size " + pixelSize);
+        }
+        checkSize(src.length - srcOffset, width, height, rowStride, pixelSize);
+        if (dst.length - dstOffset < width * height * pixelSize) {
+            throw new IllegalArgumentException("The destination is too small");
+        }
+        if (dst == src) {
+            throw new IllegalArgumentException("The destination must not be the source");
+        }
+
+        final Mapping mapping = new Mapping(width, height, degrees);
+        final int dstStep = mapping.dx * pixelSize;
+        run(width, height, BYTE_TILE, (top, bottom) -> {
+            for (int tileTop = top; tileTop < bottom; tileTop += BYTE_TILE) {
+                final int tileBottom = Math.min(tileTop + BYTE_TILE, bottom);
+                for (int tileLeft = 0; tileLeft < width; tileLeft += BYTE_TILE) {
+                    final int tileRight = Math.min(tileLeft + BYTE_TILE, width);
+                    for (int y = tileTop; y < tileBottom; y++) {
+                        int s = srcOffset + y * rowStride + tileLeft * pixelSize;
+                        int d = dstOffset + mapping.indexOf(tileLeft, y) * pixelSize;
+                        if (pixelSize == 1) {
+                            for (int x = tileLeft; x < tileRight; x++) {
+                                dst[d] = src[s++];
+                                d += dstStep;
+                            }
+                        } else {
+                            for (int x = tileLeft; x < tileRight; x++) {
+                                dst[d] = src[s++];
+                                dst[d + 1] = src[s++];
+                                d += dstStep;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Rotate an NV21 image: a full size luma plane followed by interleaved V and U samples at
+     * half the resolution.
+     * @param width  the width of the image, even
+     * @param height the height of the image, even
+     * @param dst    receives the rotated image; allocated if null or too small
+     * @return {@code dst} or the allocated destination
+     */
+    public byte[] rotateNv21(byte[] src, int width, int height, int degrees, byte[] dst) {
+        if (width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("NV21 needs even dimensions");
+        }
+        final int lumaSize = width * height;
+        if (dst == null || dst.length < lumaSize * 3 / 2) {
+            dst = new byte[lumaSize * 3 / 2];
+        }
+        rotatePlane(src, 0, width, height, width, 1, degrees, dst, 0);
+        rotatePlane(src, lumaSize, width / 2, height / 2, width, 2, degrees, dst, lumaSize);
+        return dst;
+    }
+
+    private void run(int width, int height, int tile, RowKernel kernel) {
+        if (mPool == null || (long) width * height < PARALLEL_THRESHOLD) {
+            kernel.rotate(0, height);
+            return;
+        }
+        // bands of whole tiles, at least PARALLEL_THRESHOLD pixels each
+        final int rows = Math.max(PARALLEL_THRESHOLD / width, 1);
+        final int bandRows = (rows + tile - 1) / tile * tile;
+        mPool.invoke(new RowSplit(kernel, 0, height, bandRows));
+    }
+
+    private static void checkSize(int available, int width, int height, int rowStride, int pixelSize) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        final int rowSize = width * pixelSize;
+        if (rowStride < rowSize || available < (long) (height - 1) * rowStride + rowSize) {
+            throw new IllegalArgumentException("The source is too small for " + width + "x" + height);
+        }
+    }
+
+    /**
+     * Destination index of a source pixel: {@code base + x * dx + y * dy}, in pixels.
+     */
+    private static final class Mapping {
+
+        final int base;
+        final int dx;
+        final int dy;
+
+        Mapping(int width, int height, int degrees) {
+            switch (Rotations.quadrant(degrees)) {
+                case 1:
+                    // (x, y) -> (height - 1 - y, x), rows of height pixels
+                    base = height - 1;
+                    dx = height;
+                    dy = -1;
+                    break;
+                case 2:
+                    // (x, y) -> (width - 1 - x, height - 1 - y)
+                    base = width * height - 1;
+                    dx = -1;
+                    dy = -width;
+                    break;
+                case 3:
+                    // (x, y) -> (y, width - 1 - x), rows of height pixels
+                    base = (width - 1) * height;
+                    dx = -height;
+                    dy = 1;
+                    break;
+                default:
+                    base = 0;
+                    dx = 1;
+                    dy = width;
+                    break;
+            }
+        }
+
+        int indexOf(int x, int y) {
+            return base + x * dx + y * dy;
+        }
+    }
+
+    private static final class RowSplit extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RowKernel mKernel;
+        private final int mTop;
+        private final int mBottom;
+        private final int mBandRows;
+
+        RowSplit(RowKernel kernel, int top, int bottom, int bandRows) {
+            mKernel = kernel;
+            mTop = top;
+            mBottom = bottom;
+            mBandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            final int rows = mBottom - mTop;
+            if (rows <= mBandRows) {
+                mKernel.rotate(mTop, mBottom);
+                return;
+            }
+            // split on a band boundary so that tiles stay whole
+            final int middle = mTop + (rows / mBandRows + 1) / 2 * mBandRows;
+            invokeAll(new RowSplit(mKernel, mTop, middle, mBandRows),
+                new RowSplit(mKernel, middle, mBottom, mBandRows));
+        }
+    }
+
+    /**
+     * Rotates the source rows {@code [top, bottom)}.
+     */
+    private interface RowKernel {
+
+        void rotate(int top, int bottom);
+    }
+}
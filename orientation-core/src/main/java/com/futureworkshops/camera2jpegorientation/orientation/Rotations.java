@@ -0,0 +1,96 @@
+package com.futureworkshops.camera2jpegorientation.orientation;
+
+/**
+ * The rotation math between the camera sensor, the device and the display.
+ * <p>
+ * Rotations are clockwise angles in degrees (0, 90, 180 or 270). The sensor orientation is the
+ * rotation that makes the sensor image upright in the native device orientation, as reported by
+ * the camera characteristics.
+ * </p>
+ */
+public final class Rotations {
+
+    private static final int ROTATION_COUNT = 4;
+
+    private Rotations() {
+    }
+
+    /**
+     * @return the index (0-3) of the 90 degrees quadrant closest to {@code degrees}.
+     */
+    public static int quadrant(int degrees) {
+        return (((degrees % 360) + 360 + 45) / 90) % ROTATION_COUNT;
+    }
+
+    /**
+     * Rotation needed to transform the captured JPEG from the camera sensor orientation to the
+     * orientation of the display content.
+     * @param sensorOrientation the sensor orientation
+     * @param frontFacing       whether the camera faces the same direction as the screen
+     * @param displayRotation   the display rotation
+     * @return the clockwise rotation to apply to the JPEG
+     */
+    public static int jpegRotation(int sensorOrientation, boolean frontFacing, int displayRotation) {
+        // the device is rotated in the opposite direction of the display content
+        int deviceOrientation = (360 - quadrant(displayRotation) * 90) % 360;
+
+        // Reverse device orientation for front-facing cameras
+        if (frontFacing) {
+            deviceOrientation = -deviceOrientation;
+        }
+
+        // Calculate desired JPEG orientation relative to camera orientation to make
+        // the image upright relative to the device orientation
+        return (sensorOrientation + deviceOrientation + 360) % 360;
+    }
+
+    /**
+     * Rotation needed to transform the captured JPEG from the camera sensor orientation to the
+     * physical device orientation.
+     * @param deviceOrientation clockwise rotation of the device from its natural orientation
+     * @see #jpegRotation(int, boolean, int)
+     */
+    public static int jpegRotationForDevice(int sensorOrientation, boolean frontFacing,
+                                            int deviceOrientation) {
+        // a device rotated clockwise shows its content rotated counter-clockwise
+        return jpegRotation(sensorOrientation, frontFacing, 360 - deviceOrientation);
+    }
+
+    /**
+     * Map a region of an image rotated clockwise by {@code degrees} back to the source image, e.g.
+     * to decode the part of a JPEG shown upright on screen.
+     * @param region {left, top, right, bottom} in the rotated image, replaced by the region of
+     *               the source image
+     * @param width  the width of the source image
+     * @param height the height of the source image
+     */
+    public static void rotatedToSource(int[] region, int width, int height, int degrees) {
+        final int left = region[0];
+        final int top = region[1];
+        final int right = region[2];
+        final int bottom = region[3];
+        switch (quadrant(degrees)) {
+            case 1:
+                // the left column of the source is the top row of the rotated image
+                region[0] = top;
+                region[1] = height - right;
+                region[2] = bottom;
+                region[3] = height - left;
+                break;
+            case 2:
+                region[0] = width - right;
+                region[1] = height - bottom;
+                region[2] = width - left;
+                region[3] = height - top;
+                break;
+            case 3:
+                region[0] = width - bottom;
+                region[1] = left;
+                region[2] = width - top;
+                region[3] = right;
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.futureworkshops.camera2jpegorientation.orientation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExifOrientationFileTest {
+
+    /**
+     * Start of scan and a few bytes of entropy coded data.
+     */
+    private static final byte[] IMAGE_DATA = {(byte) 0xFF, (byte) ExifOrientation.MARKER_SOS, 0, 2,
+        0x12, 0x34, 0x56, (byte) 0xFF, (byte) ExifOrientation.MARKER_EOI};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void patchOrientation_writesTheValueInPlace() throws Exception {
+        final File file = write(jpeg(true));
+
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            final FileChannel channel = access.getChannel();
+            final ByteBuffer scratch = ByteBuffer.allocate(ExifOrientation.HEADER_PROBE_SIZE);
+            assertTrue(ExifOrientation.patchOrientation(channel, scratch,
+                ExifOrientation.ORIENTATION_ROTATE_90));
+            assertEquals(ExifOrientation.ORIENTATION_ROTATE_90,
+                ExifOrientation.readOrientation(channel, scratch));
+        }
+        assertEquals(jpeg(true).length, file.length());
+    }
+
+    @Test
+    public void patchOrientation_failsWithoutAnOrientationTag() throws Exception {
+        final File file = write(jpeg(false));
+
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            assertFalse(ExifOrientation.patchOrientation(access.getChannel(),
+                ByteBuffer.allocate(ExifOrientation.HEADER_PROBE_SIZE), ExifOrientation.ORIENTATION_ROTATE_90));
+        }
+        assertArrayEquals(jpeg(false), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void transferWithOrientation_insertsASegmentAndKeepsTheImageData() throws Exception {
+        final File source = write(jpeg(false));
+        final File target = folder.newFile();
+
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            ExifOrientation.transferWithOrientation(in.getChannel(), out.getChannel(),
+                ExifOrientation.ORIENTATION_ROTATE_270);
+        }
+
+        final byte[] written = Files.readAllBytes(target.toPath());
+        assertEquals(ExifOrientation.ORIENTATION_ROTATE_270, ExifOrientation.readOrientation(ByteBuffer.wrap(written)));
+        assertEquals(jpeg(false).length + ExifOrientation.ORIENTATION_SEGMENT_SIZE, written.length);
+    }
+
+    @Test
+    public void withOrientation_doesNotModifyReadOnlyBuffers() throws Exception {
+        final byte[] jpeg = jpeg(true);
+        final ByteBuffer[] segments = ExifOrientation.withOrientation(ByteBuffer.wrap(jpeg).asReadOnlyBuffer(),
+            ExifOrientation.ORIENTATION_ROTATE_180);
+
+        assertArrayEquals(jpeg(true), jpeg);
+        final byte[] written = concat(segments);
+        assertEquals(jpeg.length, written.length);
+        assertEquals(ExifOrientation.ORIENTATION_ROTATE_180, ExifOrientation.readOrientation(ByteBuffer.wrap(written)));
+    }
+
+    @Test
+    public void readDimensions_readsTheStartOfFrame() {
+        final ByteBuffer jpeg = ByteBuffer.allocate(64);
+        jpeg.put((byte) 0xFF).put((byte) ExifOrientation.MARKER_SOI);
+        jpeg.put(ExifOrientation.createOrientationSegment(ExifOrientation.ORIENTATION_NORMAL));
+        // SOF0: length, precision, height, width
+        jpeg.put((byte) 0xFF).put((byte) 0xC0).putShort((short) 8).put((byte) 8)
+            .putShort((short) 3000).putShort((short) 4000);
+        jpeg.flip();
+
+        assertArrayEquals(new int[]{4000, 3000}, ExifOrientation.readDimensions(jpeg));
+        assertNull(ExifOrientation.readDimensions(ByteBuffer.wrap(jpeg(true))));
+    }
+
+    private File write(byte[] data) throws IOException {
+        final File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] jpeg(boolean withOrientation) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(ExifOrientation.MARKER_SOI);
+        if (withOrientation) {
+            final ByteBuffer segment = ExifOrientation.createOrientationSegment(ExifOrientation.ORIENTATION_NORMAL);
+            out.write(segment.array(), 0, segment.limit());
+        }
+        out.write(IMAGE_DATA, 0, IMAGE_DATA.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(ByteBuffer[] segments) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer segment : segments) {
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.duplicate().get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+}
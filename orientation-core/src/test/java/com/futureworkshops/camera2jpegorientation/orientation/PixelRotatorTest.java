@@ -0,0 +1,133 @@
+package com.futureworkshops.camera2jpegorientation.orientation;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PixelRotatorTest {
+
+    private static final int[] DEGREES = {0, 90, 180, 270};
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void tearDown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void rotate_matchesAPixelByPixelRotation() {
+        // partial tiles on both axes
+        final int width = 70;
+        final int height = 45;
+        final int[] image = image(width, height);
+
+        for (int degrees : DEGREES) {
+            assertArrayEquals("rotation " + degrees, reference(image, width, height, degrees),
+                new PixelRotator().rotate(image, width, height, degrees, null));
+        }
+    }
+
+    @Test
+    public void rotate_splitsLargeImagesAcrossThePool() {
+        // more than one band of rows above the parallel threshold
+        final int width = 1030;
+        final int height = 600;
+        final int[] image = image(width, height);
+        final int[] rotated = new int[width * height];
+
+        for (int degrees : DEGREES) {
+            assertSame(rotated, new PixelRotator(POOL).rotate(image, width, height, degrees, rotated));
+            assertArrayEquals("rotation " + degrees, reference(image, width, height, degrees), rotated);
+        }
+    }
+
+    @Test
+    public void rotate_directBuffers() {
+        final int width = 33;
+        final int height = 65;
+        final int[] image = image(width, height);
+        final IntBuffer src = direct(width * height).put(image);
+        src.flip();
+        final IntBuffer dst = direct(width * height);
+
+        new PixelRotator().rotate(src, width, height, 270, dst);
+
+        final int[] rotated = new int[width * height];
+        dst.get(rotated);
+        assertArrayEquals(reference(image, width, height, 270), rotated);
+        assertEquals(0, src.position());
+    }
+
+    @Test
+    public void rotateNv21_rotatesLumaAndChromaPairs() {
+        final int width = 4;
+        final int height = 2;
+        final byte[] nv21 = {
+            0, 1, 2, 3,
+            4, 5, 6, 7,
+            // V, U pairs
+            10, 11, 20, 21};
+
+        final byte[] rotated = new PixelRotator().rotateNv21(nv21, width, height, 90, null);
+
+        assertArrayEquals(new byte[]{
+            4, 0,
+            5, 1,
+            6, 2,
+            7, 3,
+            10, 11,
+            20, 21}, rotated);
+    }
+
+    private static int[] image(int width, int height) {
+        final int[] image = new int[width * height];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = i;
+        }
+        return image;
+    }
+
+    private static int[] reference(int[] src, int width, int height, int degrees) {
+        final int rotatedWidth = PixelRotator.rotatedWidth(width, height, degrees);
+        final int[] dst = new int[src.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int dstX;
+                final int dstY;
+                switch (degrees) {
+                    case 90:
+                        dstX = height - 1 - y;
+                        dstY = x;
+                        break;
+                    case 180:
+                        dstX = width - 1 - x;
+                        dstY = height - 1 - y;
+                        break;
+                    case 270:
+                        dstX = y;
+                        dstY = width - 1 - x;
+                        break;
+                    default:
+                        dstX = x;
+                        dstY = y;
+                        break;
+                }
+                dst[dstY * rotatedWidth + dstX] = src[y * width + x];
+            }
+        }
+        return dst;
+    }
+
+    private static IntBuffer direct(int pixels) {
+        return ByteBuffer.allocateDirect(pixels * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
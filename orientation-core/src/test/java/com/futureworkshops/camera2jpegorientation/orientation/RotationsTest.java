@@ -0,0 +1,62 @@
+package com.futureworkshops.camera2jpegorientation.orientation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RotationsTest {
+
+    @Test
+    public void backCamera_rotatesAgainstTheDisplay() {
+        assertEquals(90, Rotations.jpegRotation(90, false, 0));
+        assertEquals(0, Rotations.jpegRotation(90, false, 90));
+        assertEquals(270, Rotations.jpegRotation(90, false, 180));
+        assertEquals(180, Rotations.jpegRotation(90, false, 270));
+    }
+
+    @Test
+    public void frontCamera_rotatesWithTheDisplay() {
+        assertEquals(270, Rotations.jpegRotation(270, true, 0));
+        assertEquals(0, Rotations.jpegRotation(270, true, 90));
+        assertEquals(180, Rotations.jpegRotation(270, true, 270));
+    }
+
+    @Test
+    public void deviceOrientation_isTheOppositeOfTheDisplayRotation() {
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            assertEquals(Rotations.jpegRotation(90, false, 360 - degrees),
+                Rotations.jpegRotationForDevice(90, false, degrees));
+        }
+    }
+
+    @Test
+    public void quadrant_roundsToTheClosestRightAngle() {
+        assertEquals(0, Rotations.quadrant(-30));
+        assertEquals(1, Rotations.quadrant(100));
+        assertEquals(3, Rotations.quadrant(-90));
+        assertEquals(0, Rotations.quadrant(350));
+    }
+
+    @Test
+    public void exifOrientation_roundTripsThroughDegrees() {
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            assertEquals(degrees, ExifOrientation.exifToDegrees(ExifOrientation.degreesToExif(degrees)));
+        }
+    }
+
+    @Test
+    public void rotatedToSource_mapsTheTopLeftCornerOfTheRotatedImage() {
+        // a 10 x 5 region at the top left corner of a rotated 40 x 30 image
+        assertArrayEquals(new int[]{0, 0, 10, 5}, topLeftToSource(0));
+        assertArrayEquals(new int[]{0, 20, 5, 30}, topLeftToSource(90));
+        assertArrayEquals(new int[]{30, 25, 40, 30}, topLeftToSource(180));
+        assertArrayEquals(new int[]{35, 0, 40, 10}, topLeftToSource(270));
+    }
+
+    private static int[] topLeftToSource(int degrees) {
+        final int[] region = {0, 0, 10, 5};
+        Rotations.rotatedToSource(region, 40, 30, degrees);
+        return region;
+    }
+}